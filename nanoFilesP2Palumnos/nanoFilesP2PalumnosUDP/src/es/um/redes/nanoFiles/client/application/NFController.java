@@ -1,8 +1,12 @@
 package es.um.redes.nanoFiles.client.application;
 
+import java.util.Arrays;
+
 import es.um.redes.nanoFiles.client.comm.NFConnector;
 import es.um.redes.nanoFiles.client.shell.NFCommands;
 import es.um.redes.nanoFiles.client.shell.NFShell;
+import es.um.redes.nanoFiles.directory.connector.DirectoryConnector;
+import es.um.redes.nanoFiles.directory.message.DirMessage;
 import es.um.redes.nanoFiles.util.FileInfo;
 
 public class NFController {
@@ -13,6 +17,10 @@ public class NFController {
 	private static final byte PRE_REGISTRATION = 1;
 	private static final byte OFF_BROWSER = 2;
 	private static final byte IN_BROWSER = 3;
+	/**
+	 * Número de ficheros que muestra topfiles si no se indica
+	 */
+	private static final int DEFAULT_TOP_FILES = 10;
 	
 	/**
 	 * Shell para leer comandos de usuario de la entrada estándar
@@ -47,6 +55,14 @@ public class NFController {
 	private String browseUser; // Nickname del peer con el que conectar (browse)
 	private String downloadTargetFileHash; // Hash del fichero a descargar (download)
 	private String downloadLocalFileName; // Nombre con el que se guardará el fichero descargado
+	private int dhtPort; // Puerto UDP del nodo DHT de este peer (dht)
+	private String dhtSeeds; // Nodos DHT conocidos por los que unirse, o null (dht)
+	private String searchMode; // Tipo de búsqueda: name, prefix o hash (search)
+	private String searchQuery; // Palabras, prefijo del nombre o prefijo del hash (search)
+	private int topFilesCount; // Número de ficheros más pedidos a mostrar (topfiles)
+	private boolean replicate; // Si se replican los ficheros que sugiera el directorio (replicate)
+	private long cacheTtl; // Plazo de la caché del directorio, o -1 para mostrarla (cache)
+	private long cacheNotFoundTtl; // Plazo de los nicks no encontrados en la caché (cache)
 
 	// Constructor
 	public NFController() {
@@ -92,7 +108,27 @@ public class NFController {
 		case NFCommands.COM_FGSERVE:
 			serverPort = Integer.parseInt(args[0]);
 			break;
+		case NFCommands.COM_DHT:
+			dhtPort = Integer.parseInt(args[0]);
+			dhtSeeds = args.length > 1 ? args[1] : null;
+			break;
+		case NFCommands.COM_SEARCH:
+			searchMode = args[0].toLowerCase();
+			searchQuery = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+			break;
+		case NFCommands.COM_TOPFILES:
+			topFilesCount = args.length > 0 ? Math.min(Integer.parseInt(args[0]), DirMessage.MAX_TOP_FILES) : DEFAULT_TOP_FILES;
+			break;
+		case NFCommands.COM_REPLICATE:
+			replicate = args[0].equalsIgnoreCase("on");
+			break;
+		case NFCommands.COM_CACHE:
+			cacheTtl = args.length > 0 ? Long.parseLong(args[0]) : -1;
+			cacheNotFoundTtl = args.length > 1 ? Long.parseLong(args[1])
+					: Math.min(cacheTtl, DirectoryConnector.DEFAULT_NEGATIVE_CACHE_TTL_MILLIS);
+			break;
 		case NFCommands.COM_DOWNLOAD:
+		case NFCommands.COM_FETCH:
 			downloadTargetFileHash = args[0];
 			downloadLocalFileName = args[1];
 			break;
@@ -139,6 +175,14 @@ public class NFController {
 		case NFCommands.COM_MYFILES:
 			showMyLocalFiles(); // Muestra los ficheros en el directorio local compartido
 			break;
+		case NFCommands.COM_DHT:
+			/*
+			 * Unirse a la DHT de peers (a través del controllerDir), que permite
+			 * localizar peers aunque el directorio esté caído o saturado
+			 */
+			result = controllerDir.joinDht(dhtPort, dhtSeeds);
+			if(!result) System.out.println("* Failed to join the peer lookup network");
+			break;
 		case NFCommands.COM_USERLIST:
 			/*
 			 * Pedir la lista de usuarios registrados en el directorio (a través del
@@ -163,6 +207,63 @@ public class NFController {
 			}
 			else System.out.println("* You must be registered to view list of files");
 			break;
+		case NFCommands.COM_SEARCH:
+			/*
+			 * Buscar ficheros en el directorio (a través del controllerDir) sin
+			 * descargar la lista completa
+			 */
+			if(clientStatus == OFF_BROWSER) {
+				result = controllerDir.searchFilesInDirectory(searchMode, searchQuery);
+				if(!result) System.out.println("* Error when searching files. Please try again");
+			}
+			else System.out.println("* You must be registered to search files");
+			break;
+		case NFCommands.COM_TOPFILES:
+			/*
+			 * Pedir al directorio los ficheros más pedidos (a través del
+			 * controllerDir), con sus consultas y descargas estimadas
+			 */
+			if(clientStatus == PRE_REGISTRATION || clientStatus == OFF_BROWSER) {
+				result = controllerDir.getTopFilesFromDirectory(topFilesCount);
+				if(!result) System.out.println("* Error when displaying top files. Please try again");
+			} else {
+				System.out.println("* You must log in first to view the top files");
+			}
+			break;
+		case NFCommands.COM_REPLICATE:
+			/*
+			 * Activar o desactivar la réplica de ficheros populares (a través del
+			 * controllerPeer), que se hace mientras se sirven ficheros
+			 */
+			if(clientStatus == OFF_BROWSER) {
+				controllerPeer.setReplication(replicate);
+				System.out.println(replicate ? "* Popular files suggested by the directory will be replicated while serving"
+						: "* Replication disabled");
+			}
+			else System.out.println("* You must be registered to replicate files");
+			break;
+		case NFCommands.COM_CACHE:
+			/*
+			 * Mostrar la caché de consultas al directorio o cambiar sus plazos (a
+			 * través del controllerDir)
+			 */
+			if(clientStatus == PRE_REGISTRATION || clientStatus == OFF_BROWSER) {
+				if(cacheTtl < 0) controllerDir.showDirectoryCache();
+				else controllerDir.setDirectoryCacheTtl(cacheTtl, cacheNotFoundTtl);
+			} else {
+				System.out.println("* You must log in first to use the directory cache");
+			}
+			break;
+		case NFCommands.COM_FETCH:
+			/*
+			 * Descargar un fichero del peer menos cargado de los que lo sirven (a
+			 * través del controllerPeer), sin entrar en el browser
+			 */
+			if(clientStatus == OFF_BROWSER) {
+				controllerPeer.fetchFile(downloadTargetFileHash, downloadLocalFileName);
+			}
+			else System.out.println("* You must be registered to fetch files");
+			break;
 		case NFCommands.COM_REGISTER:
 			/*
 			 * Registrar un nombre de usuario en el directorio (a través del
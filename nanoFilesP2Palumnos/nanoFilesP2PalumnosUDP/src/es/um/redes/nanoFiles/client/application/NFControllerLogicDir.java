@@ -1,16 +1,27 @@
 package es.um.redes.nanoFiles.client.application;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.net.InetSocketAddress;
+import java.net.SocketException;
 
+import es.um.redes.nanoFiles.dht.DhtNode;
 import es.um.redes.nanoFiles.directory.connector.DirectoryConnector;
+import es.um.redes.nanoFiles.directory.connector.DirectoryUnavailableException;
 import es.um.redes.nanoFiles.directory.message.DirMessage;
+import es.um.redes.nanoFiles.directory.message.DirMessageOps;
+import es.um.redes.nanoFiles.directory.message.PopularFile;
+import es.um.redes.nanoFiles.directory.message.SeedInfo;
 import es.um.redes.nanoFiles.util.FileInfo;
 
 public class NFControllerLogicDir {
 	// Conector para enviar y recibir mensajes del directorio
 	private DirectoryConnector directoryConnector;
+	// Nodo de la DHT de peers (null si no se ha activado con el comando dht)
+	private DhtNode dhtNode;
 
 	/**
 	 * Método para conectar con el directorio y obtener el número de peers que están
@@ -91,8 +102,13 @@ public class NFControllerLogicDir {
 		 * respuesta con IP:puerto válidos, se debe devolver null.
 		 */
 		InetSocketAddress peerAddr = null;
+		if(directoryConnector == null) return lookupUserInDht(nickname);
 		try{
 			peerAddr = directoryConnector.lookupUser(nickname);
+		} catch (DirectoryUnavailableException e) {
+			// Sólo si el directorio no responde: su respuesta manda sobre la DHT
+			System.out.println("* Directory not reachable, looking up " + nickname + " in the DHT");
+			peerAddr = lookupUserInDht(nickname);
 		} catch (IOException e) {
 			System.err.println("* Communication with directory error. Printing stack trace...");
 			e.printStackTrace();
@@ -100,6 +116,53 @@ public class NFControllerLogicDir {
 		return peerAddr;
 	}
 
+	/**
+	 * Método para buscar en la DHT la dirección de un peer cuando no hay
+	 * directorio. Cualquier peer puede publicar en la DHT, así que no se
+	 * pregunta mientras el directorio responda.
+	 * 
+	 * @return La dirección publicada para el nick, o null si no hay DHT o no
+	 *         se encuentra
+	 */
+	private InetSocketAddress lookupUserInDht(String nickname) {
+		if(dhtNode == null) return null;
+		Set<InetSocketAddress> found = dhtNode.findValue(DhtNode.keyForNick(nickname));
+		return found.isEmpty() ? null : found.iterator().next();
+	}
+
+	/**
+	 * Método para avisar de que no se ha podido conectar con un peer servidor,
+	 * para que su dirección no se vuelva a sacar de la caché del conector
+	 * 
+	 * @param peerAddr La dirección con la que ha fallado la conexión
+	 */
+	void reportUnreachablePeer(InetSocketAddress peerAddr) {
+		if(directoryConnector != null) directoryConnector.reportUnreachable(peerAddr);
+	}
+
+	/**
+	 * Método para mostrar los plazos de la caché de consultas al directorio y
+	 * sus aciertos y fallos
+	 */
+	void showDirectoryCache() {
+		System.out.println("* Directory cache: " + directoryConnector.getCacheStats());
+	}
+
+	/**
+	 * Método para cambiar durante cuánto tiempo se reutilizan las respuestas
+	 * del directorio
+	 * 
+	 * @param ttlMillis         Plazo de las direcciones y del catálogo (0 para
+	 *                          preguntar siempre al directorio)
+	 * @param notFoundTtlMillis Plazo de los nicks que no se han encontrado
+	 */
+	void setDirectoryCacheTtl(long ttlMillis, long notFoundTtlMillis) {
+		directoryConnector.setCacheTtl(ttlMillis, notFoundTtlMillis);
+		if(ttlMillis == 0 && notFoundTtlMillis == 0) System.out.println("* Directory cache disabled");
+		else System.out.println("* Directory answers will be reused for " + ttlMillis + " ms (" + notFoundTtlMillis
+				+ " ms for nicknames not found)");
+	}
+
 	/**
 	 * Método para publicar la lista de ficheros que este peer está compartiendo.
 	 * 
@@ -123,6 +186,16 @@ public class NFControllerLogicDir {
 			System.err.println("* Communication with directory error. Printing stack trace...");
 			e.printStackTrace();
 		}
+		if(result && dhtNode != null) {
+			// Publicamos también en la DHT el nick y cada fichero servido, en
+			// segundo plano para no bloquear el shell mientras tanto
+			List<BigInteger> keys = new ArrayList<BigInteger>();
+			keys.add(DhtNode.keyForNick(nickname));
+			for(FileInfo f : NanoFiles.db.getFiles()) {
+				keys.add(DhtNode.keyForFile(f.getHash()));
+			}
+			dhtNode.publishAll(keys, port);
+		}
 		return result;
 	}
 	
@@ -134,9 +207,138 @@ public class NFControllerLogicDir {
 			System.err.println("* Communication with directory error. Printing stack trace...");
 			e.printStackTrace();
 		}
+		if(dhtNode != null) {
+			// Dejan de renovarse y caducan en los nodos que las guardan
+			dhtNode.unpublish(DhtNode.keyForNick(nickname));
+			for(FileInfo f : NanoFiles.db.getFiles()) {
+				dhtNode.unpublish(DhtNode.keyForFile(f.getHash()));
+			}
+		}
 		return result;
 	}
 
+	/**
+	 * Método para unirse a la DHT de peers, que permite localizar peers
+	 * servidores sin pasar por el directorio
+	 * 
+	 * @param port  El puerto UDP en el que escuchará el nodo DHT de este peer
+	 * @param seeds Nodos DHT ya conocidos ("host:puerto,host:puerto"), o null si
+	 *              este peer es el primero
+	 * @return true si se ha creado el nodo y, de haber semillas, alguna responde
+	 */
+	boolean joinDht(int port, String seeds) {
+		if(dhtNode != null) {
+			System.out.println("* Already in the peer lookup network on port " + dhtNode.getPort());
+			return true;
+		}
+		try {
+			dhtNode = new DhtNode(port);
+			dhtNode.start();
+		} catch (SocketException e) {
+			System.err.println("* Cannot create DHT node on UDP port " + port);
+			return false;
+		}
+		if(seeds == null) {
+			System.out.println("* Started a new peer lookup network on port " + dhtNode.getPort());
+			return true;
+		}
+		List<InetSocketAddress> seedAddrs = new ArrayList<InetSocketAddress>();
+		try {
+			for(String seed : seeds.split(",")) {
+				String [] IPPORT = seed.split(":");
+				seedAddrs.add(new InetSocketAddress(IPPORT[0], Integer.parseInt(IPPORT[1])));
+			}
+		} catch (RuntimeException e) {
+			System.out.println("* Invalid DHT node list " + seeds);
+			return false;
+		}
+		int contacts = dhtNode.bootstrap(seedAddrs);
+		System.out.println("* Joined peer lookup network on port " + dhtNode.getPort() + " (" + contacts + " peers known)");
+		return contacts > 0;
+	}
+
+	/**
+	 * Método para preguntar al directorio qué peers sirven el fichero con el
+	 * hash indicado, ordenados de menos a más cargado
+	 * 
+	 * @param hash El hash del fichero, o un prefijo que lo identifique
+	 * @return Los servidores del fichero (vacío si no se encuentra ninguno o no
+	 *         se puede contactar con el directorio)
+	 */
+	List<SeedInfo> lookupFileSeeds(String hash) {
+		if(directoryConnector == null) return List.of();
+		try {
+			return directoryConnector.lookupHash(hash);
+		} catch (IOException e) {
+			System.err.println("* Communication with directory error. Printing stack trace...");
+			e.printStackTrace();
+			return List.of();
+		}
+	}
+
+	/**
+	 * Método para comunicar al directorio que se ha descargado un fichero (sin
+	 * esperar respuesta)
+	 */
+	void reportDownload(String hash) {
+		if(directoryConnector == null) return;
+		try {
+			directoryConnector.reportDownload(hash);
+		} catch (IOException e) {
+			System.err.println("* Failed to report download to directory: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Método para preguntar al directorio qué fichero debe replicar este peer
+	 *
+	 * @return El fichero a replicar, o null si no hay ninguno o el directorio no
+	 *         responde
+	 */
+	FileInfo getReplicationTask(String nickname) {
+		if(directoryConnector == null) return null;
+		try {
+			return directoryConnector.getReplicationTask(nickname);
+		} catch (IOException e) {
+			System.err.println("* Failed to ask directory for replication work: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Método para mostrar los ficheros más pedidos del directorio, con las
+	 * consultas y descargas estimadas de cada uno
+	 */
+	public boolean getTopFilesFromDirectory(int limit) {
+		boolean result = false;
+		try {
+			List<PopularFile> ficheros = directoryConnector.getTopFiles(limit);
+			if(ficheros.isEmpty()) {
+				System.out.println("* No file has been requested yet");
+			}
+			else {
+				System.out.println("TOP FILES: ");
+				PopularFile.printToSysout(ficheros);
+			}
+			result = true;
+		} catch (IOException e) {
+			System.err.println("* Communication with directory error. Printing stack trace...");
+			e.printStackTrace();
+		}
+		return result;
+	}
+
+	/**
+	 * Método para obtener de la DHT las direcciones de los peers que sirven el
+	 * fichero con el hash indicado
+	 * 
+	 * @return Las direcciones encontradas (vacío si no hay DHT o nadie lo sirve)
+	 */
+	public Set<InetSocketAddress> lookupFileServers(String hash) {
+		if(dhtNode == null) return Set.of();
+		return dhtNode.findValue(DhtNode.keyForFile(hash));
+	}
+
 	/**
 	 * Método para obtener y mostrar la lista de nicks registrados en el directorio
 	 */
@@ -197,6 +399,34 @@ public class NFControllerLogicDir {
 		return result;
 	}
 
+	/**
+	 * Método para buscar en el directorio ficheros por palabras del nombre
+	 * ("name"), por prefijo del nombre ("prefix") o por prefijo del hash ("hash")
+	 * y mostrarlos. Sólo viajan por la red los ficheros que coinciden.
+	 */
+	public boolean searchFilesInDirectory(String mode, String query) {
+		boolean result = false;
+		byte opcode;
+		if(mode.equals("name")) opcode = DirMessageOps.OPCODE_SEARCH_NAME;
+		else if(mode.equals("prefix")) opcode = DirMessageOps.OPCODE_SEARCH_NAME_PREFIX;
+		else opcode = DirMessageOps.OPCODE_SEARCH_HASH_PREFIX;
+		try {
+			FileInfo[] ficheros = directoryConnector.searchFiles(opcode, query);
+			if(ficheros.length == 0) {
+				System.out.println("* No files match the search");
+			}
+			else {
+				System.out.println("SEARCH RESULTS: ");
+				FileInfo.printToSysout(ficheros);
+			}
+			result = true;
+		} catch (IOException e) {
+			System.err.println("* Communication with directory error. Printing stack trace...");
+			e.printStackTrace();
+		}
+		return result;
+	}
+
 	/**
 	 * Método para desconectarse del directorio (cerrar sesión) 
 	 */
@@ -209,6 +439,10 @@ public class NFControllerLogicDir {
 		boolean result = false;
 		try {
 			result = directoryConnector.logOffDirectory(nickname);
+		} catch (DirectoryUnavailableException e) {
+			// Sin directorio no se puede dar de baja, pero la concesión del nick caducará
+			System.out.println("* Directory not reachable, the nickname will expire on its own");
+			result = true;
 		} catch (IOException e) {
 			System.err.println("* Communication with directory error. Printing stack trace...");
 			e.printStackTrace();
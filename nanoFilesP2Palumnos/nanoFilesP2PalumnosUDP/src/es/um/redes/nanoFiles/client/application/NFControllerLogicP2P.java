@@ -7,9 +7,12 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import es.um.redes.nanoFiles.client.comm.NFConnector;
+import es.um.redes.nanoFiles.directory.message.SeedInfo;
 import es.um.redes.nanoFiles.server.NFServer;
 import es.um.redes.nanoFiles.server.NFServerSimple;
 import es.um.redes.nanoFiles.util.FileInfo;
@@ -27,6 +30,10 @@ public class NFControllerLogicP2P {
 	 * El controlador que permite interactuar con el directorio
 	 */
 	private NFControllerLogicDir controllerDir;
+	/**
+	 * Si este peer acepta replicar los ficheros más pedidos mientras sirve
+	 */
+	private boolean replication = false;
 
 	protected NFControllerLogicP2P() {
 	}
@@ -36,6 +43,10 @@ public class NFControllerLogicP2P {
 		controllerDir = controller;
 	}
 
+	protected void setReplication(boolean enabled) {
+		replication = enabled;
+	}
+
 	/**
 	 * Método para ejecutar un servidor de ficheros en primer plano. Debe arrancar
 	 * el servidor y darse de alta en el directorio para publicar el puerto en el
@@ -61,8 +72,17 @@ public class NFControllerLogicP2P {
 			if(result){
 				boolean stopSuccessful = false;
 				while(!stopSuccessful) {
+					// Mientras sirve, copiar los ficheros que indique el directorio
+					ReplicationAgent agente = null;
+					if(replication) {
+						agente = new ReplicationAgent(controllerDir, port, nickname);
+						agente.start();
+					}
 					// Ejecutar servidor en primer plano
 					servidor.run();
+					if(agente != null) {
+						agente.stopAgent();
+					}
 					// dejar de servir en el directorio
 					result = controllerDir.stopServingFilesToDirectory(nickname);
 					if(!result) {
@@ -92,7 +112,7 @@ public class NFControllerLogicP2P {
 		 * Averiguar si el nickname es en realidad una cadena con IP:puerto, en
 		 * cuyo caso no es necesario comunicarse con el directorio.
 		 */
-		InetSocketAddress addr;
+		InetSocketAddress addr = null;
 		try{
 			String IP = null;
 			String PORT = null;
@@ -124,6 +144,8 @@ public class NFControllerLogicP2P {
 		} catch(IOException e) {
 			System.err.println("* TCP Server failure. Printing stack trace...");
 			e.printStackTrace();
+			// La dirección puede venir de la caché y haber dejado de ser válida
+			if(addr != null) controllerDir.reportUnreachablePeer(addr);
 		}
 		
 		return connected;
@@ -154,6 +176,7 @@ public class NFControllerLogicP2P {
 				}
 				else{
 					System.out.println("* Downloaded to local folder successfully");
+					controllerDir.reportDownload(targetFileHash);
 				}
 			} catch (IOException e) {
 				System.err.println("* TCP Server failure, printing stack trace...");
@@ -167,6 +190,57 @@ public class NFControllerLogicP2P {
 		}
 	}
 
+	/**
+	 * Método para descargar un fichero sin elegir antes a qué peer conectarse:
+	 * se pregunta al directorio qué peers lo sirven y se prueba con ellos de
+	 * menos a más cargado (y después con los que conozca la DHT), hasta que
+	 * uno complete la descarga
+	 * 
+	 * @param targetFileHash El hash del fichero a descargar
+	 * @param localFileName  El nombre con el que se guardará el fichero descargado
+	 * @return true si se ha descargado el fichero
+	 */
+	protected boolean fetchFile(String targetFileHash, String localFileName) {
+		File f = new File(localFileName);
+		if(f.exists()) {
+			System.out.println("* A file with this name already exists, please try another name");
+			return false;
+		}
+		Set<InetSocketAddress> candidatos = new LinkedHashSet<InetSocketAddress>();
+		for(SeedInfo seed : controllerDir.lookupFileSeeds(targetFileHash)) {
+			System.out.println("* Seed " + seed);
+			candidatos.add(seed.getAddress());
+		}
+		candidatos.addAll(controllerDir.lookupFileServers(targetFileHash));
+		if(candidatos.isEmpty()) {
+			System.out.println("* No peer is serving this file");
+			return false;
+		}
+		for(InetSocketAddress addr : candidatos) {
+			try {
+				NFConnector connector = new NFConnector(addr);
+				boolean downloaded;
+				try {
+					downloaded = connector.download(targetFileHash, f);
+				} finally {
+					connector.close();
+				}
+				if(downloaded) {
+					System.out.println("* Downloaded from " + addr + " to local folder successfully");
+					controllerDir.reportDownload(targetFileHash);
+					return true;
+				}
+				System.out.println("* Download from " + addr + " unsuccessful, trying next peer");
+			} catch (IOException e) {
+				System.out.println("* Peer " + addr + " not reachable (" + e.getMessage() + "), trying next peer");
+				controllerDir.reportUnreachablePeer(addr);
+			}
+			f.delete();
+		}
+		System.out.println("* Download unsuccessful, please try again");
+		return false;
+	}
+
 	protected void browserClose() {
 		/*
 		 * Cerrar el explorador de ficheros remoto (informar al servidor de que se
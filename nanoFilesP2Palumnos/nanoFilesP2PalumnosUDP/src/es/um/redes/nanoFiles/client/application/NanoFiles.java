@@ -1,5 +1,6 @@
 package es.um.redes.nanoFiles.client.application;
 
+import es.um.redes.nanoFiles.server.NFServerComm;
 import es.um.redes.nanoFiles.util.FileDatabase;
 
 public class NanoFiles {
@@ -11,15 +12,19 @@ public class NanoFiles {
 
 	public static void main(String[] args) {
 		// Comprobamos los argumentos
-		if (args.length > 1) {
+		if (args.length > 2) {
 			System.out
-					.println("Usage: java -jar NanoFiles.jar [<local_shared_directory>]");
+					.println("Usage: java -jar NanoFiles.jar [<local_shared_directory> [<upload_kbps>]]");
 			return;
 		}
-		else if (args.length == 1) {
+		if (args.length >= 1) {
 			// Establecemos el directorio compartido especificado 
 			sharedDirname = args[0];
 		}
+		if (args.length == 2) {
+			// Ancho de banda de subida que se comunica al directorio como carga
+			NFServerComm.setUploadCapacityKbps(Integer.parseInt(args[1]));
+		}
 
 		db = new FileDatabase(sharedDirname);
 
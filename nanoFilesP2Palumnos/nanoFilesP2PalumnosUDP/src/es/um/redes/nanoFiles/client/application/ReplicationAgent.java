@@ -0,0 +1,115 @@
+package es.um.redes.nanoFiles.client.application;
+
+import java.io.File;
+import java.io.IOException;
+
+import es.um.redes.nanoFiles.client.comm.NFConnector;
+import es.um.redes.nanoFiles.directory.message.SeedInfo;
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Hilo en segundo plano que, mientras este peer sirve ficheros y ha aceptado
+ * replicar contenido (comando replicate), pregunta periódicamente al
+ * directorio si debe copiar algún fichero muy pedido. El directorio no puede
+ * enviar mensajes a los peers, así que es el peer quien pide trabajo; el
+ * directorio sólo se lo da si su último heartbeat indica que está ocioso.
+ *
+ * El fichero se descarga de sus servidores actuales (de menos a más cargado)
+ * a la carpeta compartida, se comprueba su hash y, si es correcto, se añade a
+ * NanoFiles.db y se vuelve a publicar la lista de ficheros en el directorio.
+ */
+class ReplicationAgent extends Thread {
+	/**
+	 * Periodo (ms) con el que se pide trabajo al directorio
+	 */
+	static final long POLL_INTERVAL_MILLIS = 30000;
+
+	private final NFControllerLogicDir controllerDir;
+	private final int port;
+	private final String nickname;
+
+	private volatile boolean running = true;
+
+	ReplicationAgent(NFControllerLogicDir controllerDir, int port, String nickname) {
+		this.controllerDir = controllerDir;
+		this.port = port;
+		this.nickname = nickname;
+		setDaemon(true);
+		setName("replication-" + nickname);
+	}
+
+	public void run() {
+		while (running) {
+			synchronized (this) {
+				try {
+					wait(POLL_INTERVAL_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			if (!running) {
+				return;
+			}
+			FileInfo task = controllerDir.getReplicationTask(nickname);
+			if (task != null && NanoFiles.db.lookupFilePath(task.getHash()) == null) {
+				replicate(task);
+			}
+		}
+	}
+
+	/**
+	 * Método para descargar el fichero asignado por el directorio y publicarlo
+	 */
+	private void replicate(FileInfo task) {
+		// Sólo el nombre: el directorio no debe poder elegir dónde se escribe
+		File f = new File(NanoFiles.sharedDirname, new File(task.getName()).getName());
+		if (f.exists()) {
+			System.out.println("* Cannot replicate " + task.getName() + ": a file with this name already exists");
+			return;
+		}
+		for (SeedInfo seed : controllerDir.lookupFileSeeds(task.getHash())) {
+			if (!running) {
+				break;
+			}
+			if (seed.getNick().equals(nickname)) {
+				continue;
+			}
+			try {
+				NFConnector connector = new NFConnector(seed.getAddress());
+				boolean downloaded;
+				try {
+					// download comprueba que el hash del fichero recibido es el pedido
+					downloaded = connector.download(task.getHash(), f);
+				} finally {
+					connector.close();
+				}
+				if (downloaded) {
+					NanoFiles.db.addFile(new FileInfo(task.getHash(), f.getName(), f.length(), f.getPath()));
+					controllerDir.publishLocalFilesToDirectory(port, nickname);
+					controllerDir.reportDownload(task.getHash());
+					System.out.println("* Replicated " + f.getName() + " from " + seed.getNick());
+					return;
+				}
+			} catch (IOException e) {
+				System.out.println("* Replication from " + seed.getNick() + " failed (" + e.getMessage() + ")");
+			}
+			f.delete();
+		}
+	}
+
+	/**
+	 * Detiene el hilo y espera a que termine la réplica en curso, para que no
+	 * publique ficheros después de que el peer deje de servir
+	 */
+	void stopAgent() {
+		running = false;
+		synchronized (this) {
+			notifyAll();
+		}
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
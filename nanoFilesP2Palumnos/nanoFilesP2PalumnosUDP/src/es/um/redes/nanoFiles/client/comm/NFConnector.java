@@ -110,7 +110,7 @@ public class NFConnector {
 		byte comprobarHash[] = new byte[(int) filelength];
 		fis.read(comprobarHash);
 		fis.close();
-		byte[] hashBytes = FileDigest.computeFileChecksum(file.getName());
+		byte[] hashBytes = FileDigest.computeFileChecksum(file.getPath());
 		String hash = FileDigest.getChecksumHexString(hashBytes);
 		if(hash.equals(targetFileHashSubstr)) downloaded = true; 
 		else System.out.println("* Requested file was corrupted during download, please try again");
@@ -11,8 +11,14 @@ public class NFCommands {
 	public static final byte COM_FILELIST = 4;
 	public static final byte COM_REGISTER = 5;
 	public static final byte COM_MYFILES = 6;
+	public static final byte COM_DHT = 7;
+	public static final byte COM_SEARCH = 8;
+	public static final byte COM_FETCH = 9;
 	public static final byte COM_FGSERVE = 10;
 	public static final byte COM_BGSERVE = 11;
+	public static final byte COM_TOPFILES = 12;
+	public static final byte COM_REPLICATE = 13;
+	public static final byte COM_CACHE = 14;
 	public static final byte COM_BROWSE = 20;
 	public static final byte COM_QUERYFILES = 22;
 	public static final byte COM_DOWNLOAD = 23;
@@ -36,6 +42,12 @@ public class NFCommands {
 		COM_FILELIST,
 		COM_REGISTER,
 		COM_MYFILES,
+		COM_DHT,
+		COM_SEARCH,
+		COM_FETCH,
+		COM_TOPFILES,
+		COM_REPLICATE,
+		COM_CACHE,
 		COM_FGSERVE,
 		COM_BGSERVE,
 		COM_BROWSE,
@@ -57,6 +69,12 @@ public class NFCommands {
 			"filelist",
 			"register",	
 			"myfiles",
+			"dht",
+			"search",
+			"fetch",
+			"topfiles",
+			"replicate",
+			"cache",
 			"fgserve",
 			"bgserve",
 			"browse",	
@@ -77,6 +95,12 @@ public class NFCommands {
 			"to show list of files tracked by the directory",
 			"to register with directory as user identified by <nickname>",
 			"to show contents of local folder (files that may be served)",
+			"to join the peer lookup network on UDP <port> through <host:port,...> (optional)",
+			"to search the directory for files by <name|prefix|hash> matching <query>",
+			"to download the file identified by <hash> from the least loaded peer serving it",
+			"to show the <count> (optional) files most requested from the directory",
+			"to turn <on|off> copying popular files suggested by the directory while serving",
+			"to show the directory lookup cache, or set its <ttl_ms> and <not_found_ttl_ms> (optional, 0 disables it)",
 			"to begin serving shared files on <port> in foreground (blocking)",
 			"to begin serving shared files on <port> in background (non-blocking)",
 			"to enter browser in order to query/download files shared by <user>/<IP:port>",
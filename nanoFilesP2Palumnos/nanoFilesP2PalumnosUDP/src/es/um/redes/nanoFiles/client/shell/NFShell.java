@@ -3,6 +3,7 @@ package es.um.redes.nanoFiles.client.shell;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.Scanner;
 import java.util.StringTokenizer;
 import java.util.Vector;
@@ -86,6 +87,12 @@ public class NFShell {
 			case NFCommands.COM_REGISTER:
 			case NFCommands.COM_FGSERVE:
 			case NFCommands.COM_BGSERVE:
+			case NFCommands.COM_DHT:
+			case NFCommands.COM_SEARCH:
+			case NFCommands.COM_FETCH:
+			case NFCommands.COM_TOPFILES:
+			case NFCommands.COM_REPLICATE:
+			case NFCommands.COM_CACHE:
 				// Estos requieren un parámetro
 				while (st.hasMoreTokens()) {
 					vargs.add(st.nextToken());
@@ -225,8 +232,45 @@ public class NFShell {
 				return false;
 			}
 			break;
+		// dht requiere el parámetro <port> y admite una lista de nodos conocidos
+		case NFCommands.COM_DHT:
+			if (args.length == 0 || args.length > 2) {
+				System.out.println("Correct use:" + NFCommands.commandToString(command) + " <port> [<host:port,...>]");
+				return false;
+			}
+			break;
+		// search requiere el tipo de búsqueda y la consulta (que puede tener espacios)
+		case NFCommands.COM_SEARCH:
+			if (args.length < 2 || !(args[0].equalsIgnoreCase("name") || args[0].equalsIgnoreCase("prefix")
+					|| args[0].equalsIgnoreCase("hash"))) {
+				System.out.println("Correct use:" + NFCommands.commandToString(command) + " <name|prefix|hash> <query>");
+				return false;
+			}
+			break;
+		// topfiles admite el número de ficheros a mostrar
+		case NFCommands.COM_TOPFILES:
+			if (args.length > 1 || (args.length == 1 && !args[0].matches("[0-9]+"))) {
+				System.out.println("Correct use:" + NFCommands.commandToString(command) + " [<count>]");
+				return false;
+			}
+			break;
+		// replicate requiere activar o desactivar la réplica
+		case NFCommands.COM_REPLICATE:
+			if (args.length != 1 || !(args[0].equalsIgnoreCase("on") || args[0].equalsIgnoreCase("off"))) {
+				System.out.println("Correct use:" + NFCommands.commandToString(command) + " <on|off>");
+				return false;
+			}
+			break;
+		// cache admite los plazos de la caché en ms
+		case NFCommands.COM_CACHE:
+			if (args.length > 2 || !Arrays.stream(args).allMatch(a -> a.matches("[0-9]{1,9}"))) {
+				System.out.println("Correct use:" + NFCommands.commandToString(command) + " [<ttl_ms> [<not_found_ttl_ms>]]");
+				return false;
+			}
+			break;
 		// serve requiere el parámetro <port>
 		case NFCommands.COM_DOWNLOAD:
+		case NFCommands.COM_FETCH:
 			if (args.length != 2) {
 				System.out.println(
 						"Correct use:" + NFCommands.commandToString(command) + " <file_hash> <local_filename>");
@@ -0,0 +1,46 @@
+package es.um.redes.nanoFiles.dht;
+
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+
+/**
+ * Un nodo conocido de la DHT: su identificador de 160 bits y su dirección de
+ * socket UDP
+ */
+public class DhtContact {
+
+	private final BigInteger id;
+	private final InetSocketAddress address;
+
+	public DhtContact(BigInteger id, InetSocketAddress address) {
+		this.id = id;
+		this.address = address;
+	}
+
+	public BigInteger getId() {
+		return id;
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Distancia XOR de Kademlia entre este nodo y una clave
+	 */
+	public BigInteger distanceTo(BigInteger key) {
+		return id.xor(key);
+	}
+
+	public boolean equals(Object o) {
+		return o instanceof DhtContact && ((DhtContact) o).id.equals(id);
+	}
+
+	public int hashCode() {
+		return id.hashCode();
+	}
+
+	public String toString() {
+		return id.toString(16) + "@" + address;
+	}
+}
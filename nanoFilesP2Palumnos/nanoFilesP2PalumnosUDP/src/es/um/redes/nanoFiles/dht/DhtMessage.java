@@ -0,0 +1,239 @@
+package es.um.redes.nanoFiles.dht;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mensajes UDP de la DHT. Todos empiezan por la misma cabecera:
+ * [opcode:1][id de la solicitud:8][id del remitente:20], seguida de los campos
+ * propios de cada tipo de mensaje. La respuesta lleva el mismo id de solicitud
+ * que la solicitud a la que responde.
+ */
+public class DhtMessage {
+
+	public static final int PACKET_MAX_SIZE = 65507;
+
+	public static final int ID_SIZE_BYTES = 20;
+
+	public static final int HEADER_SIZE_BYTES = 1 + Long.BYTES + ID_SIZE_BYTES;
+
+	private byte opcode;
+
+	private long rpcId;
+
+	private BigInteger senderId;
+
+	private BigInteger target;
+
+	private int port;
+
+	private List<DhtContact> contacts;
+
+	private List<InetSocketAddress> values;
+
+	private DhtMessage(byte opcode, long rpcId, BigInteger senderId) {
+		this.opcode = opcode;
+		this.rpcId = rpcId;
+		this.senderId = senderId;
+	}
+
+	public byte getOpcode() {
+		return opcode;
+	}
+
+	public long getRpcId() {
+		return rpcId;
+	}
+
+	public BigInteger getSenderId() {
+		return senderId;
+	}
+
+	/**
+	 * Clave buscada (FIND_NODE, FIND_VALUE) o almacenada (STORE)
+	 */
+	public BigInteger getTarget() {
+		return target;
+	}
+
+	/**
+	 * Puerto del valor almacenado (STORE); la IP es la del remitente
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	public List<DhtContact> getContacts() {
+		return contacts;
+	}
+
+	public List<InetSocketAddress> getValues() {
+		return values;
+	}
+
+	/**
+	 * Método de clase para parsear los campos de un mensaje y construir el objeto
+	 * DhtMessage que contiene los datos del mensaje recibido
+	 *
+	 * @param data   Los datos recibidos
+	 * @param length Número de bytes válidos en data
+	 * @return El mensaje, o null si está mal formado
+	 */
+	public static DhtMessage buildMessageFromReceivedData(byte[] data, int length) {
+		ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+		try {
+			byte opcode = buf.get();
+			DhtMessage mensaje = new DhtMessage(opcode, buf.getLong(), getId(buf));
+			switch (opcode) {
+			case DhtMessageOps.OPCODE_PING:
+			case DhtMessageOps.OPCODE_PONG:
+			case DhtMessageOps.OPCODE_STORE_OK:
+				break;
+			case DhtMessageOps.OPCODE_FIND_NODE:
+			case DhtMessageOps.OPCODE_FIND_VALUE:
+				mensaje.target = getId(buf);
+				break;
+			case DhtMessageOps.OPCODE_STORE:
+				mensaje.target = getId(buf);
+				mensaje.port = buf.getInt();
+				break;
+			case DhtMessageOps.OPCODE_NODES:
+				int numContactos = buf.getInt();
+				mensaje.contacts = new ArrayList<DhtContact>(numContactos);
+				for (int i = 0; i < numContactos; i++) {
+					BigInteger id = getId(buf);
+					mensaje.contacts.add(new DhtContact(id, getAddress(buf)));
+				}
+				break;
+			case DhtMessageOps.OPCODE_VALUE:
+				int numValores = buf.getInt();
+				mensaje.values = new ArrayList<InetSocketAddress>(numValores);
+				for (int i = 0; i < numValores; i++) {
+					mensaje.values.add(getAddress(buf));
+				}
+				break;
+			default:
+				return null;
+			}
+			return mensaje;
+		} catch (BufferUnderflowException | UnknownHostException | IllegalArgumentException e) {
+			// Datagrama truncado o corrupto: se ignora
+			return null;
+		}
+	}
+
+	/*
+	 * Métodos buildXXXX para construir los mensajes de solicitud/respuesta
+	 */
+
+	public static byte[] buildPingMessage(long rpcId, BigInteger senderId) {
+		return header(DhtMessageOps.OPCODE_PING, rpcId, senderId, 0).array();
+	}
+
+	public static byte[] buildPongMessage(long rpcId, BigInteger senderId) {
+		return header(DhtMessageOps.OPCODE_PONG, rpcId, senderId, 0).array();
+	}
+
+	public static byte[] buildFindNodeMessage(long rpcId, BigInteger senderId, BigInteger target) {
+		ByteBuffer bb = header(DhtMessageOps.OPCODE_FIND_NODE, rpcId, senderId, ID_SIZE_BYTES);
+		putId(bb, target);
+		return bb.array();
+	}
+
+	public static byte[] buildFindValueMessage(long rpcId, BigInteger senderId, BigInteger key) {
+		ByteBuffer bb = header(DhtMessageOps.OPCODE_FIND_VALUE, rpcId, senderId, ID_SIZE_BYTES);
+		putId(bb, key);
+		return bb.array();
+	}
+
+	public static byte[] buildStoreMessage(long rpcId, BigInteger senderId, BigInteger key, int port) {
+		ByteBuffer bb = header(DhtMessageOps.OPCODE_STORE, rpcId, senderId, ID_SIZE_BYTES + Integer.BYTES);
+		putId(bb, key);
+		bb.putInt(port);
+		return bb.array();
+	}
+
+	public static byte[] buildStoreOkMessage(long rpcId, BigInteger senderId) {
+		return header(DhtMessageOps.OPCODE_STORE_OK, rpcId, senderId, 0).array();
+	}
+
+	public static byte[] buildNodesMessage(long rpcId, BigInteger senderId, List<DhtContact> contacts) {
+		int bytesContactos = Integer.BYTES;
+		for (DhtContact c : contacts) {
+			bytesContactos += ID_SIZE_BYTES + addressSize(c.getAddress());
+		}
+		ByteBuffer bb = header(DhtMessageOps.OPCODE_NODES, rpcId, senderId, bytesContactos);
+		bb.putInt(contacts.size());
+		for (DhtContact c : contacts) {
+			putId(bb, c.getId());
+			putAddress(bb, c.getAddress());
+		}
+		return bb.array();
+	}
+
+	public static byte[] buildValueMessage(long rpcId, BigInteger senderId, List<InetSocketAddress> values) {
+		int bytesValores = Integer.BYTES;
+		for (InetSocketAddress v : values) {
+			bytesValores += addressSize(v);
+		}
+		ByteBuffer bb = header(DhtMessageOps.OPCODE_VALUE, rpcId, senderId, bytesValores);
+		bb.putInt(values.size());
+		for (InetSocketAddress v : values) {
+			putAddress(bb, v);
+		}
+		return bb.array();
+	}
+
+	private static ByteBuffer header(byte opcode, long rpcId, BigInteger senderId, int bodySize) {
+		ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE_BYTES + bodySize);
+		bb.put(opcode);
+		bb.putLong(rpcId);
+		putId(bb, senderId);
+		return bb;
+	}
+
+	/**
+	 * Escribe un identificador de 160 bits como 20 bytes sin signo
+	 */
+	private static void putId(ByteBuffer bb, BigInteger id) {
+		byte[] raw = id.toByteArray();
+		byte[] fixed = new byte[ID_SIZE_BYTES];
+		// toByteArray puede añadir un byte de signo o devolver menos de 20 bytes
+		int n = Math.min(raw.length, ID_SIZE_BYTES);
+		System.arraycopy(raw, raw.length - n, fixed, ID_SIZE_BYTES - n, n);
+		bb.put(fixed);
+	}
+
+	private static BigInteger getId(ByteBuffer buf) {
+		byte[] raw = new byte[ID_SIZE_BYTES];
+		buf.get(raw);
+		return new BigInteger(1, raw);
+	}
+
+	private static int addressSize(InetSocketAddress addr) {
+		return Integer.BYTES + addr.getAddress().getAddress().length + Integer.BYTES;
+	}
+
+	private static void putAddress(ByteBuffer bb, InetSocketAddress addr) {
+		byte[] ip = addr.getAddress().getAddress();
+		bb.putInt(ip.length);
+		bb.put(ip);
+		bb.putInt(addr.getPort());
+	}
+
+	private static InetSocketAddress getAddress(ByteBuffer buf) throws UnknownHostException {
+		int longitudIP = buf.getInt();
+		if (longitudIP != 4 && longitudIP != 16) {
+			throw new UnknownHostException("Invalid address length " + longitudIP);
+		}
+		byte[] ip = new byte[longitudIP];
+		buf.get(ip);
+		return new InetSocketAddress(InetAddress.getByAddress(ip), buf.getInt());
+	}
+}
@@ -0,0 +1,71 @@
+package es.um.redes.nanoFiles.dht;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+public class DhtMessageOps {
+
+	private static final byte OP_INVALID_CODE = -1;
+	public static final byte OPCODE_PING = 1;
+	public static final byte OPCODE_PONG = 2;
+	public static final byte OPCODE_FIND_NODE = 3;
+	public static final byte OPCODE_NODES = 4;
+	public static final byte OPCODE_FIND_VALUE = 5;
+	public static final byte OPCODE_VALUE = 6;
+	public static final byte OPCODE_STORE = 7;
+	public static final byte OPCODE_STORE_OK = 8;
+
+	private static final Byte[] _valid_opcodes = {
+			OPCODE_PING,
+			OPCODE_PONG,
+			OPCODE_FIND_NODE,
+			OPCODE_NODES,
+			OPCODE_FIND_VALUE,
+			OPCODE_VALUE,
+			OPCODE_STORE,
+			OPCODE_STORE_OK };
+
+	private static final String[] _valid_operations_str = {
+			"PING",
+			"PONG",
+			"FIND_NODE",
+			"NODES",
+			"FIND_VALUE",
+			"VALUE",
+			"STORE",
+			"STORE_OK" };
+
+	private static Map<String, Byte> _operation_to_opcode;
+	private static Map<Byte, String> _opcode_to_operation;
+
+	static {
+		_operation_to_opcode = new TreeMap<>();
+		_opcode_to_operation = new TreeMap<>();
+		for (int i = 0; i < _valid_operations_str.length; ++i) {
+			_operation_to_opcode.put(_valid_operations_str[i].toLowerCase(), _valid_opcodes[i]);
+			_opcode_to_operation.put(_valid_opcodes[i], _valid_operations_str[i]);
+		}
+	}
+
+	/**
+	 * Transforma una cadena en el opcode correspondiente
+	 */
+	protected static byte operationToOpcode(String opStr) {
+		return _operation_to_opcode.getOrDefault(opStr.toLowerCase(), OP_INVALID_CODE);
+	}
+
+	/**
+	 * Transforma un opcode en la cadena correspondiente
+	 */
+	public static String opcodeToOperation(byte opcode) {
+		return _opcode_to_operation.getOrDefault(opcode, null);
+	}
+
+	/**
+	 * Indica si el mensaje es la respuesta a una solicitud previa
+	 */
+	public static boolean isResponse(byte opcode) {
+		return opcode == OPCODE_PONG || opcode == OPCODE_NODES || opcode == OPCODE_VALUE
+				|| opcode == OPCODE_STORE_OK;
+	}
+}
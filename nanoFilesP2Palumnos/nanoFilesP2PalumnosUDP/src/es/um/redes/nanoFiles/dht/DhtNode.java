@@ -0,0 +1,467 @@
+package es.um.redes.nanoFiles.dht;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+/**
+ * Nodo de una tabla hash distribuida al estilo de Kademlia formada por los
+ * propios peers. Asocia claves de 160 bits (el SHA-1 de un nick o del hash de
+ * un fichero) a las direcciones de los peers servidores, de modo que se pueden
+ * localizar sin el directorio en O(log N) saltos.
+ *
+ * Un hilo recibe todos los datagramas: atiende las solicitudes de otros nodos
+ * y entrega las respuestas a quien las espera. Las búsquedas se hacen desde el
+ * hilo que las pide, con ALPHA solicitudes en paralelo por ronda. Las
+ * publicaciones se hacen en segundo plano, PUBLISH_PARALLELISM a la vez.
+ */
+public class DhtNode extends Thread {
+
+	public static final int ID_BITS = 160;
+	/**
+	 * Solicitudes simultáneas en cada ronda de una búsqueda iterativa
+	 */
+	public static final int ALPHA = 3;
+
+	/**
+	 * Claves que se publican (o renuevan) a la vez: cada una necesita su propia
+	 * búsqueda de los nodos más cercanos, y con muchos ficheros hacerlas de una
+	 * en una tardaría minutos
+	 */
+	public static final int PUBLISH_PARALLELISM = 8;
+
+	private static final int RPC_TIMEOUT_MILLIS = 1000;
+	/**
+	 * Los valores almacenados caducan si quien los publicó no los renueva
+	 */
+	private static final int VALUE_TTL_MILLIS = 15 * 60 * 1000;
+	private static final int REPUBLISH_MILLIS = 5 * 60 * 1000;
+	/**
+	 * Máximo de direcciones que se guardan (y devuelven) por clave
+	 */
+	private static final int MAX_VALUES = 1000;
+
+	/**
+	 * Resultado de una búsqueda iterativa
+	 */
+	private static class Lookup {
+		final List<DhtContact> closest = new ArrayList<DhtContact>();
+		final Set<InetSocketAddress> values = new LinkedHashSet<InetSocketAddress>();
+		int rounds;
+	}
+
+	private final DatagramSocket socket;
+	private final BigInteger id;
+	private final RoutingTable routingTable;
+	/**
+	 * Solicitudes enviadas que esperan respuesta, por id de solicitud
+	 */
+	private final ConcurrentHashMap<Long, CompletableFuture<DhtMessage>> pending = new ConcurrentHashMap<Long, CompletableFuture<DhtMessage>>();
+	private final AtomicLong nextRpcId;
+	/**
+	 * Valores almacenados en este nodo: clave -> (dirección -> caducidad)
+	 */
+	private final HashMap<BigInteger, LinkedHashMap<InetSocketAddress, Long>> storage = new HashMap<BigInteger, LinkedHashMap<InetSocketAddress, Long>>();
+	/**
+	 * Claves publicadas por este peer (y su puerto), que se renuevan
+	 * periódicamente
+	 */
+	private final Map<BigInteger, Integer> published = new ConcurrentHashMap<BigInteger, Integer>();
+	private final ScheduledExecutorService maintenance;
+	private final ExecutorService publisher;
+	private volatile boolean running = true;
+	private volatile int lastLookupRounds;
+
+	/**
+	 * @param port Puerto UDP en el que escucha el nodo (0 para uno cualquiera)
+	 */
+	public DhtNode(int port) throws SocketException {
+		socket = new DatagramSocket(port);
+		SecureRandom random = new SecureRandom();
+		id = new BigInteger(ID_BITS, random);
+		nextRpcId = new AtomicLong(random.nextLong());
+		routingTable = new RoutingTable(id);
+		maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "dht-maintenance-" + socket.getLocalPort());
+			t.setDaemon(true);
+			return t;
+		});
+		publisher = Executors.newFixedThreadPool(PUBLISH_PARALLELISM, r -> {
+			Thread t = new Thread(r, "dht-publish-" + socket.getLocalPort());
+			t.setDaemon(true);
+			return t;
+		});
+		maintenance.scheduleWithFixedDelay(this::republish, REPUBLISH_MILLIS, REPUBLISH_MILLIS, TimeUnit.MILLISECONDS);
+		setDaemon(true);
+		setName("dht-" + socket.getLocalPort());
+	}
+
+	public BigInteger getNodeId() {
+		return id;
+	}
+
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	public int getNumContacts() {
+		return routingTable.size();
+	}
+
+	/**
+	 * Rondas de solicitudes que necesitó la última búsqueda
+	 */
+	public int getLastLookupRounds() {
+		return lastLookupRounds;
+	}
+
+	public static BigInteger keyForNick(String nick) {
+		return sha1("nick:" + nick);
+	}
+
+	public static BigInteger keyForFile(String hash) {
+		return sha1("file:" + hash);
+	}
+
+	public void run() {
+		byte[] receptionBuffer = new byte[DhtMessage.PACKET_MAX_SIZE];
+		DatagramPacket packet = new DatagramPacket(receptionBuffer, receptionBuffer.length);
+		while (running) {
+			try {
+				socket.receive(packet);
+				InetSocketAddress from = (InetSocketAddress) packet.getSocketAddress();
+				DhtMessage message = DhtMessage.buildMessageFromReceivedData(receptionBuffer, packet.getLength());
+				if (message == null || message.getSenderId().equals(id)) {
+					continue;
+				}
+				// Cualquier mensaje demuestra que el remitente está vivo
+				routingTable.update(new DhtContact(message.getSenderId(), from));
+				if (DhtMessageOps.isResponse(message.getOpcode())) {
+					CompletableFuture<DhtMessage> waiting = pending.remove(message.getRpcId());
+					if (waiting != null) {
+						waiting.complete(message);
+					}
+				} else {
+					processRequest(message, from);
+				}
+			} catch (IOException e) {
+				if (running) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Método para atender la solicitud de otro nodo y enviarle la respuesta
+	 */
+	private void processRequest(DhtMessage request, InetSocketAddress from) throws IOException {
+		byte[] response;
+		switch (request.getOpcode()) {
+		case DhtMessageOps.OPCODE_PING:
+			response = DhtMessage.buildPongMessage(request.getRpcId(), id);
+			break;
+		case DhtMessageOps.OPCODE_FIND_NODE:
+			response = DhtMessage.buildNodesMessage(request.getRpcId(), id,
+					routingTable.closest(request.getTarget(), RoutingTable.K));
+			break;
+		case DhtMessageOps.OPCODE_FIND_VALUE:
+			List<InetSocketAddress> values = getStoredValues(request.getTarget());
+			if (values.isEmpty()) {
+				response = DhtMessage.buildNodesMessage(request.getRpcId(), id,
+						routingTable.closest(request.getTarget(), RoutingTable.K));
+			} else {
+				response = DhtMessage.buildValueMessage(request.getRpcId(), id, values);
+			}
+			break;
+		case DhtMessageOps.OPCODE_STORE:
+			// La IP del valor es la del peer que lo publica
+			putStoredValue(request.getTarget(), new InetSocketAddress(from.getAddress(), request.getPort()));
+			response = DhtMessage.buildStoreOkMessage(request.getRpcId(), id);
+			break;
+		default:
+			return;
+		}
+		socket.send(new DatagramPacket(response, response.length, from));
+	}
+
+	/**
+	 * Método para unirse a la DHT a través de nodos ya conocidos: se les hace
+	 * ping y después se busca el propio identificador, lo que rellena la tabla de
+	 * rutas y da a conocer este nodo a sus vecinos
+	 *
+	 * @return número de contactos conocidos tras la unión
+	 */
+	public int bootstrap(List<InetSocketAddress> seeds) {
+		List<CompletableFuture<DhtMessage>> pings = new ArrayList<CompletableFuture<DhtMessage>>();
+		for (InetSocketAddress seed : seeds) {
+			pings.add(request(seed, rpcId -> DhtMessage.buildPingMessage(rpcId, id)));
+		}
+		for (CompletableFuture<DhtMessage> ping : pings) {
+			try {
+				ping.get();
+			} catch (InterruptedException | ExecutionException e) {
+				// Semilla caída: se sigue con el resto
+			}
+		}
+		lookup(id, false);
+		return routingTable.size();
+	}
+
+	/**
+	 * Método para publicar que este peer sirve una clave en el puerto indicado.
+	 * La publicación se renueva periódicamente mientras no se retire.
+	 *
+	 * @return número de nodos que han guardado el valor
+	 */
+	public int publish(BigInteger key, int port) {
+		published.put(key, port);
+		return store(key, port);
+	}
+
+	/**
+	 * Método para publicar en segundo plano que este peer sirve varias claves en
+	 * el puerto indicado. Las claves se guardan en paralelo y no hay que esperar
+	 * a que terminen; las publicaciones se renuevan igual que con publish.
+	 *
+	 * @return futuro que se completa con el total de nodos que han guardado
+	 *         algún valor
+	 */
+	public CompletableFuture<Integer> publishAll(Collection<BigInteger> keys, int port) {
+		List<CompletableFuture<Integer>> stores = new ArrayList<CompletableFuture<Integer>>();
+		for (BigInteger key : keys) {
+			published.put(key, port);
+			stores.add(storeAsync(key, port));
+		}
+		return sum(stores);
+	}
+
+	/**
+	 * Deja de renovar una publicación; los nodos la olvidan al caducar
+	 */
+	public void unpublish(BigInteger key) {
+		published.remove(key);
+	}
+
+	/**
+	 * Método para buscar las direcciones asociadas a una clave
+	 */
+	public Set<InetSocketAddress> findValue(BigInteger key) {
+		Set<InetSocketAddress> local = new LinkedHashSet<InetSocketAddress>(getStoredValues(key));
+		if (!local.isEmpty()) {
+			return local;
+		}
+		return lookup(key, true).values;
+	}
+
+	/**
+	 * Método para buscar los K nodos más cercanos a una clave
+	 */
+	public List<DhtContact> findNode(BigInteger key) {
+		return lookup(key, false).closest;
+	}
+
+	public void close() {
+		running = false;
+		maintenance.shutdownNow();
+		publisher.shutdownNow();
+		socket.close();
+	}
+
+	private int store(BigInteger key, int port) {
+		List<CompletableFuture<DhtMessage>> stores = new ArrayList<CompletableFuture<DhtMessage>>();
+		for (DhtContact c : lookup(key, false).closest) {
+			stores.add(request(c.getAddress(), rpcId -> DhtMessage.buildStoreMessage(rpcId, id, key, port)));
+		}
+		int stored = 0;
+		for (CompletableFuture<DhtMessage> store : stores) {
+			try {
+				store.get();
+				stored++;
+			} catch (InterruptedException | ExecutionException e) {
+				// Nodo caído: el valor queda en el resto
+			}
+		}
+		return stored;
+	}
+
+	/**
+	 * Método para guardar una clave desde uno de los hilos de publicación
+	 */
+	private CompletableFuture<Integer> storeAsync(BigInteger key, int port) {
+		return CompletableFuture.supplyAsync(() -> store(key, port), publisher).exceptionally(e -> {
+			e.printStackTrace();
+			return 0;
+		});
+	}
+
+	private static CompletableFuture<Integer> sum(List<CompletableFuture<Integer>> stores) {
+		return CompletableFuture.allOf(stores.toArray(new CompletableFuture<?>[0]))
+				.thenApply(v -> stores.stream().mapToInt(CompletableFuture::join).sum());
+	}
+
+	/**
+	 * Búsqueda iterativa: en cada ronda se pregunta a los ALPHA nodos más
+	 * cercanos aún no consultados, y se termina cuando ya se ha consultado a los
+	 * K más cercanos conocidos (o, buscando un valor, cuando alguno lo devuelve)
+	 */
+	private Lookup lookup(BigInteger key, boolean findValue) {
+		Lookup result = new Lookup();
+		TreeMap<BigInteger, DhtContact> shortlist = new TreeMap<BigInteger, DhtContact>();
+		for (DhtContact c : routingTable.closest(key, RoutingTable.K)) {
+			shortlist.put(c.distanceTo(key), c);
+		}
+		Set<BigInteger> queried = new HashSet<BigInteger>();
+		while (true) {
+			Map<DhtContact, CompletableFuture<DhtMessage>> round = new LinkedHashMap<DhtContact, CompletableFuture<DhtMessage>>();
+			int considered = 0;
+			for (DhtContact c : shortlist.values()) {
+				if (considered++ >= RoutingTable.K || round.size() >= ALPHA) {
+					break;
+				}
+				if (queried.add(c.getId())) {
+					round.put(c, request(c.getAddress(), findValue
+							? rpcId -> DhtMessage.buildFindValueMessage(rpcId, id, key)
+							: rpcId -> DhtMessage.buildFindNodeMessage(rpcId, id, key)));
+				}
+			}
+			if (round.isEmpty()) {
+				break;
+			}
+			result.rounds++;
+			for (Map.Entry<DhtContact, CompletableFuture<DhtMessage>> e : round.entrySet()) {
+				try {
+					DhtMessage response = e.getValue().get();
+					if (response.getOpcode() == DhtMessageOps.OPCODE_VALUE) {
+						result.values.addAll(response.getValues());
+					} else if (response.getContacts() != null) {
+						for (DhtContact c : response.getContacts()) {
+							if (!c.getId().equals(id)) {
+								shortlist.putIfAbsent(c.distanceTo(key), c);
+							}
+						}
+					}
+				} catch (InterruptedException | ExecutionException ex) {
+					// No responde: fuera de la búsqueda y de la tabla de rutas
+					routingTable.remove(e.getKey());
+					shortlist.remove(e.getKey().distanceTo(key));
+				}
+			}
+			if (findValue && !result.values.isEmpty()) {
+				break;
+			}
+		}
+		for (DhtContact c : shortlist.values()) {
+			if (result.closest.size() == RoutingTable.K) {
+				break;
+			}
+			result.closest.add(c);
+		}
+		lastLookupRounds = result.rounds;
+		return result;
+	}
+
+	/**
+	 * Método para enviar una solicitud; el futuro se completa con la respuesta
+	 * o falla si no llega en RPC_TIMEOUT_MILLIS
+	 */
+	private CompletableFuture<DhtMessage> request(InetSocketAddress to, LongFunction<byte[]> builder) {
+		long rpcId = nextRpcId.incrementAndGet();
+		CompletableFuture<DhtMessage> future = new CompletableFuture<DhtMessage>();
+		pending.put(rpcId, future);
+		future.orTimeout(RPC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).whenComplete((m, e) -> pending.remove(rpcId));
+		byte[] data = builder.apply(rpcId);
+		try {
+			socket.send(new DatagramPacket(data, data.length, to));
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	private List<InetSocketAddress> getStoredValues(BigInteger key) {
+		long now = System.currentTimeMillis();
+		ArrayList<InetSocketAddress> values = new ArrayList<InetSocketAddress>();
+		synchronized (storage) {
+			LinkedHashMap<InetSocketAddress, Long> stored = storage.get(key);
+			if (stored != null) {
+				stored.values().removeIf(expiry -> expiry <= now);
+				values.addAll(stored.keySet());
+				if (stored.isEmpty()) {
+					storage.remove(key);
+				}
+			}
+		}
+		return values;
+	}
+
+	private void putStoredValue(BigInteger key, InetSocketAddress value) {
+		synchronized (storage) {
+			LinkedHashMap<InetSocketAddress, Long> stored = storage.computeIfAbsent(key,
+					k -> new LinkedHashMap<InetSocketAddress, Long>());
+			// Al renovarlo pasa al final; si no cabe, se descarta el más antiguo
+			stored.remove(value);
+			stored.put(value, System.currentTimeMillis() + VALUE_TTL_MILLIS);
+			if (stored.size() > MAX_VALUES) {
+				Iterator<InetSocketAddress> oldest = stored.keySet().iterator();
+				oldest.next();
+				oldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Renueva las publicaciones de este peer y purga los valores caducados
+	 */
+	private void republish() {
+		List<CompletableFuture<Integer>> stores = new ArrayList<CompletableFuture<Integer>>();
+		for (Map.Entry<BigInteger, Integer> e : published.entrySet()) {
+			stores.add(storeAsync(e.getKey(), e.getValue()));
+		}
+		// Se esperan todas para que una renovación lenta no se solape con la siguiente
+		sum(stores).join();
+		long now = System.currentTimeMillis();
+		synchronized (storage) {
+			storage.values().removeIf(stored -> {
+				stored.values().removeIf(expiry -> expiry <= now);
+				return stored.isEmpty();
+			});
+		}
+	}
+
+	private static BigInteger sha1(String s) {
+		try {
+			return new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			// Todas las JVM incluyen SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+}
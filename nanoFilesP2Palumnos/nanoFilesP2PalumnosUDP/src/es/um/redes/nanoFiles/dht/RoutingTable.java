@@ -0,0 +1,82 @@
+package es.um.redes.nanoFiles.dht;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Tabla de rutas de Kademlia: un k-bucket por cada bit de distancia al propio
+ * identificador. Cada bucket guarda hasta K contactos ordenados del que lleva
+ * más tiempo sin verse al más reciente. Cuando un bucket está lleno se
+ * conservan los contactos antiguos (los que llevan más tiempo vivos suelen
+ * seguir vivos) y los que dejan de responder se eliminan.
+ */
+public class RoutingTable {
+
+	public static final int K = 20;
+
+	private final BigInteger selfId;
+	private final List<LinkedList<DhtContact>> buckets;
+
+	public RoutingTable(BigInteger selfId) {
+		this.selfId = selfId;
+		buckets = new ArrayList<LinkedList<DhtContact>>(DhtNode.ID_BITS);
+		for (int i = 0; i < DhtNode.ID_BITS; i++) {
+			buckets.add(new LinkedList<DhtContact>());
+		}
+	}
+
+	/**
+	 * Método para anotar que se ha visto (recibido un mensaje de) un contacto
+	 */
+	public synchronized void update(DhtContact contact) {
+		if (contact.getId().equals(selfId)) {
+			return;
+		}
+		LinkedList<DhtContact> bucket = bucketFor(contact.getId());
+		int index = bucket.indexOf(contact);
+		if (index >= 0) {
+			// Pasa al final (visto más recientemente), con su dirección actual
+			bucket.remove(index);
+			bucket.addLast(contact);
+		} else if (bucket.size() < K) {
+			bucket.addLast(contact);
+		}
+	}
+
+	/**
+	 * Método para olvidar un contacto que no ha respondido
+	 */
+	public synchronized void remove(DhtContact contact) {
+		if (!contact.getId().equals(selfId)) {
+			bucketFor(contact.getId()).remove(contact);
+		}
+	}
+
+	/**
+	 * Los n contactos conocidos más cercanos (distancia XOR) a una clave
+	 */
+	public synchronized List<DhtContact> closest(BigInteger key, int n) {
+		ArrayList<DhtContact> all = new ArrayList<DhtContact>();
+		for (LinkedList<DhtContact> bucket : buckets) {
+			all.addAll(bucket);
+		}
+		all.sort(Comparator.comparing(c -> c.distanceTo(key)));
+		return new ArrayList<DhtContact>(all.subList(0, Math.min(n, all.size())));
+	}
+
+	public synchronized int size() {
+		int size = 0;
+		for (LinkedList<DhtContact> bucket : buckets) {
+			size += bucket.size();
+		}
+		return size;
+	}
+
+	private LinkedList<DhtContact> bucketFor(BigInteger id) {
+		// El bucket i guarda los contactos a distancia [2^i, 2^(i+1))
+		return buckets.get(selfId.xor(id).bitLength() - 1);
+	}
+}
@@ -0,0 +1,140 @@
+package es.um.redes.nanoFiles.directory.cluster;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Anillo de hashing consistente que reparte el espacio de claves (nicks y
+ * hashes de ficheros) entre los nodos de un clúster de directorios. Cada nodo
+ * ocupa VIRTUAL_NODES posiciones del anillo para que el reparto sea uniforme, y
+ * cada clave se asigna a los REPLICATION_FACTOR primeros nodos distintos que se
+ * encuentran en el sentido de las agujas del reloj: el primero es el primario y
+ * los siguientes sus réplicas.
+ *
+ * Clientes y directorios construyen el anillo a partir de la misma lista de
+ * nodos, por lo que todos calculan el mismo reparto sin coordinarse.
+ */
+public class ConsistentHashRing {
+
+	public static final int VIRTUAL_NODES = 64;
+	public static final int REPLICATION_FACTOR = 2;
+
+	private final TreeMap<Long, InetSocketAddress> ring = new TreeMap<Long, InetSocketAddress>();
+	private final List<InetSocketAddress> nodes;
+
+	public ConsistentHashRing(List<InetSocketAddress> nodes) {
+		this.nodes = Collections.unmodifiableList(new ArrayList<InetSocketAddress>(nodes));
+		for (InetSocketAddress node : nodes) {
+			for (int i = 0; i < VIRTUAL_NODES; i++) {
+				ring.put(hash(nodeName(node) + "#" + i), node);
+			}
+		}
+	}
+
+	public List<InetSocketAddress> getNodes() {
+		return nodes;
+	}
+
+	public int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * Método para obtener los nodos responsables de una clave, empezando por el
+	 * primario
+	 */
+	public List<InetSocketAddress> replicasFor(String key) {
+		int replicas = Math.min(REPLICATION_FACTOR, nodes.size());
+		ArrayList<InetSocketAddress> result = new ArrayList<InetSocketAddress>(replicas);
+		if (ring.isEmpty()) {
+			return result;
+		}
+		long h = hash(key);
+		// Recorremos el anillo desde la posición de la clave, dando la vuelta
+		for (Map<Long, InetSocketAddress> part : List.of(ring.tailMap(h), ring.headMap(h))) {
+			for (InetSocketAddress node : part.values()) {
+				if (!result.contains(node)) {
+					result.add(node);
+					if (result.size() == replicas) {
+						return result;
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	public boolean isReplica(InetSocketAddress node, String key) {
+		return replicasFor(key).contains(node);
+	}
+
+	/*
+	 * Los nicks y los hashes de ficheros se reparten en espacios de claves
+	 * separados
+	 */
+
+	public static String nickKey(String nick) {
+		return "nick:" + nick;
+	}
+
+	public static String fileKey(String hash) {
+		return "file:" + hash;
+	}
+
+	/**
+	 * Método para interpretar una lista de nodos "host[:puerto],host[:puerto],..."
+	 *
+	 * @param list        La lista de nodos separados por comas
+	 * @param defaultPort Puerto de los nodos para los que no se indica
+	 */
+	public static List<InetSocketAddress> parseNodes(String list, int defaultPort) {
+		ArrayList<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+		for (String entry : list.split(",")) {
+			entry = entry.trim();
+			if (entry.isEmpty()) {
+				continue;
+			}
+			int colon = entry.lastIndexOf(':');
+			InetSocketAddress node;
+			if (colon > 0) {
+				node = new InetSocketAddress(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1)));
+			} else {
+				node = new InetSocketAddress(entry, defaultPort);
+			}
+			if (!result.contains(node)) {
+				result.add(node);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Nombre de un nodo en el anillo: su IP resuelta, para que "localhost" y
+	 * "127.0.0.1" den lugar al mismo reparto
+	 */
+	private static String nodeName(InetSocketAddress node) {
+		String host = node.isUnresolved() ? node.getHostString() : node.getAddress().getHostAddress();
+		return host + ":" + node.getPort();
+	}
+
+	private static long hash(String s) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+			long h = 0;
+			for (int i = 0; i < Long.BYTES; i++) {
+				h = (h << 8) | (digest[i] & 0xff);
+			}
+			return h;
+		} catch (NoSuchAlgorithmException e) {
+			// Todas las JVM incluyen MD5
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package es.um.redes.nanoFiles.directory.connector;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+
+import es.um.redes.nanoFiles.directory.message.CatalogEvent;
+import es.um.redes.nanoFiles.directory.message.DirMessage;
+import es.um.redes.nanoFiles.directory.message.DirMessageOps;
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Hilo en segundo plano que mantiene una copia local del catálogo de un nodo
+ * del directorio a partir de los cambios que éste le envía, en lugar de
+ * descargar periódicamente la lista completa de ficheros.
+ *
+ * Los cambios llevan números de secuencia consecutivos: si falta alguno se
+ * pide al directorio que reenvíe los posteriores al último aplicado, y si ya
+ * no los tiene se descarga el catálogo completo una vez. La suscripción se
+ * renueva periódicamente; la respuesta a la renovación indica el último cambio
+ * del directorio, lo que permite detectar también la pérdida del último
+ * datagrama de cambios.
+ */
+public class CatalogSubscriber extends Thread {
+
+	/**
+	 * Receptor opcional de los cambios aplicados a la copia local
+	 */
+	public interface Listener {
+		void catalogChanged(CatalogEvent event);
+
+		/**
+		 * La copia local se ha sustituido por el catálogo completo
+		 */
+		void catalogReloaded(FileInfo[] files);
+	}
+
+	/**
+	 * Tiempo (ms) tras el que se repite una solicitud sin respuesta
+	 */
+	private static final int RETRY_MILLIS = 1000;
+
+	private DatagramSocket socket;
+	private InetSocketAddress directory;
+	private Listener listener;
+
+	/**
+	 * Copia local del catálogo (hash -> fichero) y de los servidores activos
+	 */
+	private final Map<String, FileInfo> files = new HashMap<String, FileInfo>();
+	private final Map<String, InetSocketAddress> servers = new HashMap<String, InetSocketAddress>();
+	/**
+	 * Último cambio aplicado a la copia local
+	 */
+	private long lastSeq;
+
+	private boolean subscribed;
+	private long nextRenew;
+	/**
+	 * Hay un hueco en la secuencia y se ha pedido el reenvío
+	 */
+	private boolean resyncPending;
+	private long resyncSent;
+	/**
+	 * Se está descargando el catálogo completo, que corresponde al menos al
+	 * cambio fullSeq
+	 */
+	private boolean fullPending;
+	private long fullSent;
+	private long fullSeq;
+
+	private volatile boolean running = true;
+
+	public CatalogSubscriber(InetSocketAddress directory, Listener listener) throws SocketException {
+		this.socket = new DatagramSocket();
+		this.directory = directory;
+		this.listener = listener;
+		setDaemon(true);
+		setName("catalog-" + directory);
+	}
+
+	public void run() {
+		byte[] buffer = new byte[DirMessage.PACKET_MAX_SIZE];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		try {
+			socket.setSoTimeout(RETRY_MILLIS);
+		} catch (SocketException e) {
+			e.printStackTrace();
+		}
+		while (running) {
+			try {
+				sendPendingRequests(System.currentTimeMillis());
+				try {
+					socket.receive(packet);
+				} catch (SocketTimeoutException e) {
+					continue;
+				}
+				if (!directory.equals(packet.getSocketAddress())) {
+					continue;
+				}
+				// Las respuestas se reconocen por su opcode; el id no hace falta
+				byte[] data = DirMessage.unframe(buffer, packet.getLength());
+				DirMessage message = data == null ? null : DirMessage.buildMessageFromReceivedData(data);
+				if (message != null) {
+					processMessage(message);
+				}
+			} catch (IOException e) {
+				if (running) {
+					System.err.println("* Catalog subscription error: " + e.getMessage());
+				}
+			}
+		}
+		socket.close();
+	}
+
+	/**
+	 * Envía las solicitudes pendientes: renovación de la suscripción, reenvío de
+	 * cambios perdidos y descarga del catálogo completo
+	 */
+	private void sendPendingRequests(long now) throws IOException {
+		if (now >= nextRenew) {
+			send(DirMessage.buildSubscribeRequestMessage());
+			// Sin confirmación se reintenta enseguida
+			nextRenew = now + RETRY_MILLIS;
+		}
+		if (fullPending && now - fullSent >= RETRY_MILLIS) {
+			send(DirMessage.buildGetFilesRequestMessage());
+			fullSent = now;
+		} else if (!fullPending && resyncPending && now - resyncSent >= RETRY_MILLIS) {
+			send(DirMessage.buildCatalogResyncRequestMessage(lastSeq));
+			resyncSent = now;
+		}
+	}
+
+	private synchronized void processMessage(DirMessage message) {
+		long now = System.currentTimeMillis();
+		switch (message.getOpcode()) {
+		case DirMessageOps.OPCODE_SUBSCRIBE_OK:
+			nextRenew = now + message.getLeaseMillis() / 3;
+			if (!subscribed || message.getSeq() < lastSeq) {
+				// Primera suscripción, o el directorio se ha reiniciado
+				subscribed = true;
+				startFullResync(message.getSeq());
+			} else if (message.getSeq() > lastSeq) {
+				resyncPending = true;
+			}
+			break;
+		case DirMessageOps.OPCODE_SUBSCRIBE_FAIL:
+			System.err.println("* Directory " + directory + " rejected catalog subscription, retrying later");
+			nextRenew = now + DirMessage.SUBSCRIPTION_LEASE_MILLIS / 3;
+			break;
+		case DirMessageOps.OPCODE_CATALOG_EVENTS:
+			if (fullPending) {
+				break;
+			}
+			if (message.getSeq() < lastSeq) {
+				startFullResync(message.getSeq());
+				break;
+			}
+			boolean hueco = false;
+			for (CatalogEvent e : message.getEvents()) {
+				if (e.getSeq() <= lastSeq) {
+					continue;
+				}
+				if (e.getSeq() != lastSeq + 1) {
+					hueco = true;
+					break;
+				}
+				apply(e);
+			}
+			resyncPending = hueco;
+			break;
+		case DirMessageOps.OPCODE_CATALOG_RESYNC_FULL:
+			startFullResync(message.getSeq());
+			break;
+		case DirMessageOps.OPCODE_FILELIST:
+			if (fullPending) {
+				files.clear();
+				for (FileInfo f : message.getMeta()) {
+					files.put(f.getHash(), f);
+				}
+				// El catálogo descargado ya incluye los cambios hasta fullSeq; los
+				// posteriores se aplican encima (añadir y retirar son idempotentes)
+				lastSeq = fullSeq;
+				fullPending = false;
+				resyncPending = false;
+				if (listener != null) {
+					listener.catalogReloaded(getFiles());
+				}
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void startFullResync(long headSeq) {
+		fullPending = true;
+		fullSeq = headSeq;
+		fullSent = 0;
+	}
+
+	private void apply(CatalogEvent e) {
+		switch (e.getType()) {
+		case CatalogEvent.FILE_ADDED:
+			files.put(e.getFile().getHash(), e.getFile());
+			break;
+		case CatalogEvent.FILE_REMOVED:
+			files.remove(e.getFile().getHash());
+			break;
+		case CatalogEvent.SERVER_UP:
+			servers.put(e.getNick(), e.getAddress());
+			break;
+		case CatalogEvent.SERVER_DOWN:
+			servers.remove(e.getNick());
+			break;
+		}
+		lastSeq = e.getSeq();
+		if (listener != null) {
+			listener.catalogChanged(e);
+		}
+	}
+
+	private void send(byte[] request) throws IOException {
+		byte[] datagram = DirMessage.frame(DirMessage.NO_REQUEST_ID, request);
+		socket.send(new DatagramPacket(datagram, datagram.length, directory));
+	}
+
+	/**
+	 * Ficheros de la copia local del catálogo
+	 */
+	public synchronized FileInfo[] getFiles() {
+		return files.values().toArray(new FileInfo[files.size()]);
+	}
+
+	/**
+	 * Servidores cuya alta se ha recibido desde que empezó la suscripción
+	 */
+	public synchronized Map<String, InetSocketAddress> getServers() {
+		return new HashMap<String, InetSocketAddress>(servers);
+	}
+
+	/**
+	 * Último cambio del catálogo aplicado a la copia local
+	 */
+	public synchronized long getLastSeq() {
+		return lastSeq;
+	}
+
+	/**
+	 * Detiene la suscripción (el directorio la da de baja al caducar) y cierra
+	 * el socket
+	 */
+	public void stopSubscriber() {
+		running = false;
+		socket.close();
+	}
+}
@@ -0,0 +1,154 @@
+package es.um.redes.nanoFiles.directory.connector;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import es.um.redes.nanoFiles.directory.message.DirMessage;
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Lote de solicitudes al directorio que se envían en un único datagrama
+ * (BATCH) y se responden con otro (BATCH_RESULT). El directorio las ejecuta
+ * en el orden en que se añaden, así que entrar en el directorio (login,
+ * registro del nick y publicación de ficheros) o buscar varios nicks cuesta
+ * un único intercambio.
+ *
+ * Cada método añade una solicitud y devuelve un futuro con su resultado, que
+ * se completa al recibir la respuesta del lote (send). Si el directorio no
+ * incluye la respuesta de alguna solicitud (no cabía en el datagrama, o
+ * superaba el límite de solicitudes del cliente), su futuro falla con
+ * IOException.
+ */
+public class DirectoryBatch {
+
+	private final DirectoryConnector connector;
+	/**
+	 * Nodos a los que se envía el lote, por orden de preferencia
+	 */
+	private final List<InetSocketAddress> candidates;
+	private final List<byte[]> requests = new ArrayList<byte[]>();
+	private final List<CompletableFuture<byte[]>> responses = new ArrayList<CompletableFuture<byte[]>>();
+	private boolean sent;
+
+	DirectoryBatch(DirectoryConnector connector, List<InetSocketAddress> candidates) {
+		this.connector = connector;
+		this.candidates = candidates;
+	}
+
+	/**
+	 * Método para añadir al lote una solicitud ya construida
+	 *
+	 * @return La respuesta del directorio a la solicitud
+	 */
+	public CompletableFuture<byte[]> add(byte[] requestData) {
+		if (sent) {
+			throw new IllegalStateException("Batch already sent");
+		}
+		CompletableFuture<byte[]> response = new CompletableFuture<byte[]>();
+		requests.add(requestData);
+		responses.add(response);
+		return response;
+	}
+
+	/**
+	 * @return El número de servidores de ficheros, o -1 si falla el login
+	 */
+	public CompletableFuture<Integer> login() {
+		return add(DirMessage.buildLoginRequestMessage()).thenApply(DirMessage::processLoginResponse);
+	}
+
+	/**
+	 * Si el registro tiene éxito, el conector empieza a renovar la concesión
+	 * del nick igual que con registerNickname
+	 */
+	public CompletableFuture<Boolean> register(String nick) {
+		return add(DirMessage.buildRegisterRequestMessage(nick)).thenApply(responseData -> {
+			boolean result = DirMessage.processRegisterResponseMessage(responseData);
+			if (result) {
+				try {
+					connector.startHeartbeat(nick);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}
+			return result;
+		});
+	}
+
+	public CompletableFuture<Boolean> serveFiles(int port, String nickname, FileInfo[] files) {
+		return add(DirMessage.buildServeFilesRequestMessage(port, nickname, files))
+				.thenApply(DirMessage::processServeFilesResponseMessage);
+	}
+
+	/**
+	 * @return La dirección del servidor con ese nick, o null si no lo hay
+	 */
+	public CompletableFuture<InetSocketAddress> lookupUser(String nickname) {
+		return add(DirMessage.buildLookupUserRequestMessage(nickname))
+				.thenApply(DirMessage::processLookupUserResponseMessage);
+	}
+
+	/**
+	 * Número de solicitudes del lote
+	 */
+	public int size() {
+		return requests.size();
+	}
+
+	/**
+	 * Indica si cabe en el lote otra solicitud sin superar el tamaño máximo de
+	 * un datagrama
+	 */
+	public boolean fits(byte[] requestData) {
+		return DirMessage.REQUEST_ID_SIZE_BYTES + DirMessage.batchSize(requests()) + Integer.BYTES
+				+ requestData.length <= DirMessage.PACKET_MAX_SIZE;
+	}
+
+	private byte[][] requests() {
+		return requests.toArray(new byte[requests.size()][]);
+	}
+
+	/**
+	 * Método para enviar el lote sin esperar la respuesta. El futuro devuelto
+	 * se completa cuando se han completado los de todas las solicitudes, y
+	 * falla con DirectoryUnavailableException si no responde ningún nodo.
+	 */
+	public CompletableFuture<Void> sendAsync() {
+		if (sent) {
+			throw new IllegalStateException("Batch already sent");
+		}
+		sent = true;
+		if (requests.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return connector.sendBatchAsync(DirMessage.buildBatchRequestMessage(requests()), candidates)
+				.handle((responseData, failure) -> {
+					Throwable error = failure instanceof CompletionException ? failure.getCause() : failure;
+					byte[][] parts = error == null ? DirMessage.processBatchResponseMessage(responseData) : null;
+					for (int i = 0; i < responses.size(); i++) {
+						if (error != null) {
+							responses.get(i).completeExceptionally(error);
+						} else if (parts == null || i >= parts.length || parts[i].length == 0) {
+							responses.get(i).completeExceptionally(new IOException("No response for request " + i + " of batch"));
+						} else {
+							responses.get(i).complete(parts[i]);
+						}
+					}
+					if (error != null) {
+						throw new CompletionException(error);
+					}
+					return null;
+				});
+	}
+
+	/**
+	 * Método para enviar el lote y esperar a que lleguen las respuestas
+	 */
+	public void send() throws IOException {
+		DirectoryConnector.await(sendAsync());
+	}
+}
@@ -1,45 +1,199 @@
 package es.um.redes.nanoFiles.directory.connector;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.SocketTimeoutException;
-import java.util.Arrays;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.net.DatagramSocket;
 import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import es.um.redes.nanoFiles.client.application.NanoFiles;
+import es.um.redes.nanoFiles.directory.cluster.ConsistentHashRing;
+import es.um.redes.nanoFiles.directory.message.CatalogEvent;
 import es.um.redes.nanoFiles.directory.message.DirMessage;
+import es.um.redes.nanoFiles.directory.message.DirMessageOps;
+import es.um.redes.nanoFiles.directory.message.DirMessageV2;
+import es.um.redes.nanoFiles.directory.message.PopularFile;
+import es.um.redes.nanoFiles.directory.message.SeedInfo;
+import es.um.redes.nanoFiles.util.BloomFilter;
 import es.um.redes.nanoFiles.util.FileInfo;
 
 import java.util.Set;
 /**
- * Cliente con métodos de consulta y actualización específicos del directorio
+ * Cliente con métodos de consulta y actualización específicos del directorio.
+ * El directorio puede ser un único nodo o un clúster de nodos que se reparten
+ * nicks y ficheros mediante hashing consistente: cada solicitud se envía al
+ * nodo responsable de su clave y, si no responde, a su réplica.
  */
 public class DirectoryConnector {
 	/**
 	 * Puerto en el que atienden los servidores de directorio
 	 */
 	private static final int DEFAULT_PORT = 6868;
-	/**
-	 * Tiempo máximo en milisegundos que se esperará a recibir una respuesta por el
-	 * socket antes de que se deba lanzar una excepción SocketTimeoutException para
-	 * recuperar el control
-	 */
-	private static final int TIMEOUT = 1000;
 	/**
 	 * Número de intentos máximos para obtener del directorio una respuesta a una
-	 * solicitud enviada. Cada vez que expira el timeout sin recibir respuesta se
-	 * cuenta como un intento.
+	 * solicitud enviada. Cada vez que expira el plazo de retransmisión del nodo
+	 * (ver RttEstimator) sin recibir respuesta se cuenta como un intento.
 	 */
 	private static final int MAX_NUMBER_OF_ATTEMPTS = 5;
+	/**
+	 * Tiempo (ms) durante el que un nodo que no ha respondido se intenta en
+	 * último lugar
+	 */
+	private static final int SUSPECT_MILLIS = 30000;
+	/**
+	 * A partir de este número de ficheros se publica un resumen (filtro de
+	 * Bloom) de sus hashes en lugar de la lista completa
+	 */
+	private static final int SUMMARY_MIN_FILES = 1000;
+	/**
+	 * Tasa de falsos positivos con la que se dimensiona el resumen
+	 */
+	private static final double SUMMARY_FALSE_POSITIVE_RATE = 0.01;
+	/**
+	 * Tiempo máximo (ms) para conectar con el canal TCP de un nodo y para cada
+	 * lectura de su respuesta
+	 */
+	private static final int BULK_TIMEOUT_MILLIS = 10000;
+	/**
+	 * Espera máxima (ms) antes de reenviar una solicitud que el directorio ha
+	 * rechazado con SLOW_DOWN
+	 */
+	private static final int MAX_SLOW_DOWN_MILLIS = 5000;
+	/**
+	 * Tiempo (ms) durante el que se reutilizan la dirección de un nick y el
+	 * catálogo obtenidos del directorio, y durante el que se recuerda que un
+	 * nick no está (ver setCacheTtl)
+	 */
+	public static final int DEFAULT_CACHE_TTL_MILLIS = 10000;
+	public static final int DEFAULT_NEGATIVE_CACHE_TTL_MILLIS = 2000;
 
 	/**
 	 * Socket UDP usado para la comunicación con el directorio
 	 */
 	private DatagramSocket socket;
 	/**
-	 * Dirección de socket del directorio (IP:puertoUDP)
+	 * Nodos del directorio (IP:puertoUDP) y reparto de claves entre ellos
+	 */
+	private ConsistentHashRing ring;
+	/**
+	 * Nodos que han dejado de responder, y hasta cuándo se consideran caídos
+	 */
+	private Map<InetSocketAddress, Long> suspectedUntil = new ConcurrentHashMap<InetSocketAddress, Long>();
+	/**
+	 * Estimación del RTT y plazo de retransmisión de cada nodo
+	 */
+	private Map<InetSocketAddress, RttEstimator> rtt = new LinkedHashMap<InetSocketAddress, RttEstimator>();
+	/**
+	 * Hilo que renueva la concesión del nick registrado (null si no hay nick)
+	 */
+	private DirectoryHeartbeat heartbeat;
+	/**
+	 * Puerto del servidor de ficheros publicado (0 si no se publica ninguno),
+	 * para volver a publicarlo si el directorio pierde la concesión del nick
+	 */
+	private volatile int servedPort;
+	/**
+	 * Solicitudes enviadas que esperan respuesta, por id de solicitud
+	 */
+	private final ConcurrentHashMap<Integer, PendingRequest> pending = new ConcurrentHashMap<Integer, PendingRequest>();
+	private final AtomicInteger nextRequestId = new AtomicInteger(new SecureRandom().nextInt());
+	/**
+	 * Temporizadores de retransmisión de las solicitudes en curso
+	 */
+	private final ScheduledExecutorService timers;
+	/**
+	 * Copia local del catálogo de cada nodo y versión a la que corresponde. Se
+	 * actualiza pidiendo sólo los cambios posteriores a esa versión
+	 */
+	private Map<InetSocketAddress, NodeCatalog> catalogs = new HashMap<InetSocketAddress, NodeCatalog>();
+	/**
+	 * Formato de las solicitudes (DirMessageV2.VERSION_1 o VERSION_2). El
+	 * directorio responde a cada solicitud en su mismo formato
+	 */
+	private volatile int wireVersion = DirMessageV2.VERSION_2;
+
+	/**
+	 * Canal TCP para catálogos grandes que ha anunciado cada nodo en LOGIN_OK
+	 */
+	private Map<InetSocketAddress, BulkChannel> bulkChannels = new ConcurrentHashMap<InetSocketAddress, BulkChannel>();
+	/**
+	 * Direcciones de los nicks consultados (null si el nick no está), y último
+	 * catálogo obtenido con el instante en que caduca
 	 */
-	private InetSocketAddress directoryAddress;
+	private final TtlCache<String, InetSocketAddress> lookupCache = new TtlCache<String, InetSocketAddress>(
+			DEFAULT_CACHE_TTL_MILLIS, DEFAULT_NEGATIVE_CACHE_TTL_MILLIS);
+	private volatile long catalogTtlMillis = DEFAULT_CACHE_TTL_MILLIS;
+	private volatile FileInfo[] cachedFiles;
+	private volatile long cachedFilesUntil;
+
+	private static class NodeCatalog {
+		long version;
+		Map<String, FileInfo> files = new LinkedHashMap<String, FileInfo>();
+	}
 
+	/**
+	 * Dirección del canal TCP de un nodo, número de ficheros a partir del cual
+	 * el nodo recomienda usarlo y tamaño conocido de su catálogo
+	 */
+	private static class BulkChannel {
+		final InetSocketAddress address;
+		final int thresholdFiles;
+		volatile int catalogFiles;
+
+		BulkChannel(InetSocketAddress address, int thresholdFiles, int catalogFiles) {
+			this.address = address;
+			this.thresholdFiles = thresholdFiles;
+			this.catalogFiles = catalogFiles;
+		}
+	}
+
+	/**
+	 * Solicitud enviada a un nodo: el datagrama (para retransmitirlo), cuántas
+	 * veces se ha enviado y cuándo fue el último envío. El futuro se completa
+	 * con la respuesta, o con null si el nodo no responde.
+	 */
+	private static class PendingRequest {
+		final InetSocketAddress node;
+		final byte[] datagram;
+		final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		int attempts;
+		long sentAt;
+		ScheduledFuture<?> timer;
+		// El próximo envío es por un SLOW_DOWN, no por falta de respuesta
+		boolean slowedDown;
+
+		PendingRequest(InetSocketAddress node, byte[] datagram) {
+			this.node = node;
+			this.datagram = datagram;
+		}
+	}
+
+	/**
+	 * @param address Host del directorio, o lista de nodos del clúster
+	 *                "host[:puerto],host[:puerto],..."
+	 */
 	public DirectoryConnector(String address) throws IOException {
 		/*
 		 * Crear el socket UDP para comunicación con el directorio durante el
@@ -47,101 +201,945 @@ public class DirectoryConnector {
 		 * atributos
 		 */
 		socket = new DatagramSocket();
-		directoryAddress = new InetSocketAddress(address, DEFAULT_PORT);
+		ring = new ConsistentHashRing(ConsistentHashRing.parseNodes(address, DEFAULT_PORT));
+		for(InetSocketAddress node : ring.getNodes()) {
+			rtt.put(node, new RttEstimator());
+		}
+		timers = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "directory-timers-" + socket.getLocalPort());
+			t.setDaemon(true);
+			return t;
+		});
+		// Las respuestas se reparten a sus solicitudes en un hilo propio
+		Thread receiver = new Thread(this::receiveResponses, "directory-" + socket.getLocalPort());
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	/**
+	 * Estimación del RTT y plazo de retransmisión actual de cada nodo del
+	 * directorio
+	 */
+	public Map<InetSocketAddress, RttEstimator> getRttStats() {
+		return Collections.unmodifiableMap(rtt);
 	}
 
 	/**
 	 * Método para enviar y recibir datagramas al/del directorio
-	 * 
+	 *
 	 * @param requestData los datos a enviar al directorio (mensaje de solicitud)
 	 * @return los datos recibidos del directorio (mensaje de respuesta)
 	 */
 	public byte[] sendAndReceiveDatagrams(byte[] requestData) throws IOException {
-		byte responseData[] = new byte[DirMessage.PACKET_MAX_SIZE];
-		/*
-		 * Enviar datos en un datagrama al directorio y recibir una respuesta.
-		 * Debe implementarse un mecanismo de reintento usando temporizador, en caso de
-		 * que no se reciba respuesta en el plazo de TIMEOUT. En caso de salte el
-		 * timeout, se debe reintentar como máximo en MAX_NUMBER_OF_ATTEMPTS ocasiones
-		 */
-		DatagramPacket requestPacket = new DatagramPacket(requestData, requestData.length, directoryAddress);
-		socket.send(requestPacket);
+		return sendWithFailover(requestData, ring.getNodes());
+	}
+
+	/**
+	 * Método para enviar y recibir datagramas al/del directorio sin esperar la
+	 * respuesta, que completa el futuro devuelto. Se pueden tener a la vez
+	 * tantas solicitudes en curso como se quiera.
+	 *
+	 * @param requestData los datos a enviar al directorio (mensaje de solicitud)
+	 * @return la respuesta, o un fallo DirectoryUnavailableException
+	 */
+	public CompletableFuture<byte[]> sendAndReceiveAsync(byte[] requestData) {
+		return sendWithFailoverAsync(requestData, ring.getNodes());
+	}
+
+	/**
+	 * Bucle del hilo receptor: entrega cada respuesta a la solicitud con su id.
+	 * Las respuestas de solicitudes ya resueltas (duplicadas o tardías) se
+	 * descartan.
+	 */
+	private void receiveResponses() {
+		byte[] responseData = new byte[DirMessage.PACKET_MAX_SIZE];
 		DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length);
-		int intentos = 0;
-		while(intentos < MAX_NUMBER_OF_ATTEMPTS && responsePacket.getAddress() == null) {
-			try{
-				socket.setSoTimeout(TIMEOUT);
+		while(!socket.isClosed()) {
+			try {
 				socket.receive(responsePacket);
+			} catch (IOException e) {
+				if(!socket.isClosed()) e.printStackTrace();
+				continue;
 			}
-			catch(SocketTimeoutException e) {
-				System.out.println("* No response from server. Trying again...");
-				socket.send(requestPacket);
-				intentos++;
+			byte[] message = DirMessage.unframe(responseData, responsePacket.getLength());
+			if(message == null) continue;
+			PendingRequest p = pending.get(DirMessage.getRequestId(responseData));
+			if(p == null || !p.node.equals(responsePacket.getSocketAddress())) continue;
+			synchronized(p) {
+				// Sólo las solicitudes no retransmitidas dan muestras válidas (algoritmo de Karn)
+				if(p.attempts == 1 && !p.future.isDone()) rtt.get(p.node).sample(System.currentTimeMillis() - p.sentAt);
 			}
+			if(DirMessageV2.baseOpcode(message[0]) == DirMessageOps.OPCODE_SLOW_DOWN) {
+				DirMessage slowDown = DirMessage.buildMessageFromReceivedData(message);
+				if(slowDown != null) backOff(p, slowDown.getRetryAfterMillis());
+				continue;
+			}
+			p.future.complete(message);
 		}
-		if(intentos == MAX_NUMBER_OF_ATTEMPTS) {
+	}
+
+	/**
+	 * El directorio ha rechazado la solicitud por superar nuestro límite: se
+	 * reenvía cuando indica (como mucho MAX_SLOW_DOWN_MILLIS), y cuenta como
+	 * un intento más
+	 */
+	private void backOff(PendingRequest p, int retryAfterMillis) {
+		synchronized(p) {
+			if(p.future.isDone()) return;
+			if(p.timer != null) p.timer.cancel(false);
+			if(p.attempts >= MAX_NUMBER_OF_ATTEMPTS) {
+				p.future.complete(null);
+				return;
+			}
+			int delay = Math.min(Math.max(retryAfterMillis, RttEstimator.MIN_RTO_MILLIS), MAX_SLOW_DOWN_MILLIS);
+			System.out.println("* Directory asked to slow down, retrying in " + delay + " ms");
+			p.slowedDown = true;
+			p.timer = timers.schedule(() -> transmit(p), delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Método para enviar una solicitud a un nodo concreto, reintentando si no
+	 * responde en el plazo de retransmisión del nodo como máximo en
+	 * MAX_NUMBER_OF_ATTEMPTS ocasiones
+	 *
+	 * @return el futuro con la respuesta, o con null si el nodo no ha respondido
+	 */
+	private CompletableFuture<byte[]> sendAsync(byte[] requestData, InetSocketAddress node) {
+		int id;
+		do {
+			id = nextRequestId.incrementAndGet();
+		} while(id == DirMessage.NO_REQUEST_ID || pending.containsKey(id));
+		int requestId = id;
+		PendingRequest p = new PendingRequest(node, DirMessage.frame(requestId, encode(requestData)));
+		pending.put(requestId, p);
+		p.future.whenComplete((r, e) -> {
+			pending.remove(requestId);
+			synchronized(p) {
+				if(p.timer != null) p.timer.cancel(false);
+			}
+		});
+		transmit(p);
+		return p.future;
+	}
+
+	/**
+	 * Método para pasar al formato de envío una solicitud construida (en v1)
+	 * con los métodos de DirMessage
+	 */
+	private byte[] encode(byte[] requestData) {
+		return wireVersion == DirMessageV2.VERSION_2 ? DirMessageV2.fromV1(requestData) : requestData;
+	}
+
+	/**
+	 * Método para elegir el formato de las solicitudes: VERSION_1 para hablar
+	 * con directorios que no conocen el formato compacto
+	 */
+	public void setWireVersion(int version) {
+		if(version != DirMessageV2.VERSION_1 && version != DirMessageV2.VERSION_2) {
+			throw new IllegalArgumentException("Unknown wire version " + version);
+		}
+		wireVersion = version;
+	}
+
+	public int getWireVersion() {
+		return wireVersion;
+	}
+
+	/**
+	 * Método para cambiar durante cuánto tiempo se reutilizan las respuestas
+	 * de lookupUser y getFiles (0 para preguntar siempre al directorio)
+	 *
+	 * @param ttlMillis         Plazo de las direcciones y del catálogo
+	 * @param negativeTtlMillis Plazo de los nicks que no se han encontrado
+	 */
+	public void setCacheTtl(long ttlMillis, long negativeTtlMillis) {
+		lookupCache.setTtl(ttlMillis, negativeTtlMillis);
+		catalogTtlMillis = ttlMillis;
+		cachedFiles = null;
+	}
+
+	/**
+	 * Método para avisar de que no se ha podido conectar con un servidor de
+	 * ficheros: se olvidan los nicks que apuntaban a él y el catálogo, que
+	 * probablemente incluye sus ficheros
+	 */
+	public void reportUnreachable(InetSocketAddress server) {
+		if(lookupCache.invalidateValue(server)) {
+			System.out.println("* Forgetting cached address " + server);
+		}
+		cachedFiles = null;
+	}
+
+	/**
+	 * Los cambios que hace este peer en el directorio deben verse enseguida
+	 */
+	private void invalidateCaches(String nickname) {
+		lookupCache.invalidate(nickname);
+		cachedFiles = null;
+	}
+
+	/**
+	 * Plazos de la caché, y aciertos y fallos de la caché de direcciones
+	 */
+	public String getCacheStats() {
+		return "TTL " + catalogTtlMillis + " ms (" + lookupCache.getNegativeTtl() + " ms for nicknames not found), "
+				+ lookupCache;
+	}
+
+	/**
+	 * Envía (o reenvía) una solicitud y programa su temporizador
+	 */
+	private void transmit(PendingRequest p) {
+		synchronized(p) {
+			if(p.future.isDone()) return;
+			if(p.attempts > 0 && !p.slowedDown) System.out.println("* No response from server. Trying again...");
+			p.slowedDown = false;
+			RttEstimator estimator = rtt.get(p.node);
+			int timeout = estimator.timeoutFor(p.attempts);
+			p.attempts++;
+			p.sentAt = System.currentTimeMillis();
+			try {
+				socket.send(new DatagramPacket(p.datagram, p.datagram.length, p.node));
+			} catch (IOException e) {
+				System.err.println("* Cannot send to directory node " + p.node + ": " + e.getMessage());
+				p.future.complete(null);
+				return;
+			}
+			p.timer = timers.schedule(() -> expired(p), timeout, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void expired(PendingRequest p) {
+		if(p.future.isDone()) return;
+		rtt.get(p.node).timedOut();
+		if(p.attempts >= MAX_NUMBER_OF_ATTEMPTS) {
+			p.future.complete(null);
+		} else {
+			transmit(p);
+		}
+	}
+
+	/**
+	 * Método para enviar una solicitud al primero de los nodos candidatos que
+	 * responda, empezando por los que no se sospecha que estén caídos
+	 *
+	 * @throws DirectoryUnavailableException si no responde ninguno
+	 */
+	private byte[] sendWithFailover(byte[] requestData, List<InetSocketAddress> candidates) throws IOException {
+		return await(sendWithFailoverAsync(requestData, candidates));
+	}
+
+	private CompletableFuture<byte[]> sendWithFailoverAsync(byte[] requestData, List<InetSocketAddress> candidates) {
+		return tryNodes(requestData, liveFirst(candidates), 0);
+	}
+
+	private CompletableFuture<byte[]> tryNodes(byte[] requestData, List<InetSocketAddress> nodes, int next) {
+		if(next == nodes.size()) {
 			System.out.println("* No response from server. Maximum number of tries reached.");
-			System.out.println("* Closing NanoFiles...");
-			System.exit(-1);
+			return CompletableFuture.failedFuture(new DirectoryUnavailableException(
+					"No directory node responded after " + MAX_NUMBER_OF_ATTEMPTS + " attempts"));
+		}
+		InetSocketAddress node = nodes.get(next);
+		return sendAsync(requestData, node).thenCompose(responseData -> {
+			if(responseData != null) {
+				suspectedUntil.remove(node);
+				return CompletableFuture.completedFuture(responseData);
+			}
+			suspect(node);
+			return tryNodes(requestData, nodes, next + 1);
+		});
+	}
+
+	/**
+	 * Método para enviar la misma solicitud a todos los nodos a la vez y recoger
+	 * sus respuestas. Los nodos que se sospecha que están caídos sólo se incluyen
+	 * si lo están todos.
+	 *
+	 * @return las respuestas recibidas, por nodo
+	 */
+	private Map<InetSocketAddress, byte[]> fanOut(byte[] requestData) throws IOException {
+		return await(fanOutAsync(node -> requestData));
+	}
+
+	private Map<InetSocketAddress, byte[]> fanOut(Function<InetSocketAddress, byte[]> requestFor) throws IOException {
+		return await(fanOutAsync(requestFor));
+	}
+
+	/**
+	 * Método para enviar a todos los nodos a la vez una solicitud que puede ser
+	 * distinta para cada uno. El futuro se completa cuando han respondido todos
+	 * o se han agotado sus reintentos, y falla con DirectoryUnavailableException
+	 * si no responde ninguno.
+	 */
+	private CompletableFuture<Map<InetSocketAddress, byte[]>> fanOutAsync(Function<InetSocketAddress, byte[]> requestFor) {
+		return fanOutAsync(fanOutTargets(), requestFor);
+	}
+
+	/**
+	 * Nodos a los que se envía una solicitud a todos: los que no se sospecha
+	 * que están caídos, o todos si lo están todos
+	 */
+	private List<InetSocketAddress> fanOutTargets() {
+		List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+		long now = System.currentTimeMillis();
+		for(InetSocketAddress node : ring.getNodes()) {
+			if(suspectedUntil.getOrDefault(node, 0L) <= now) targets.add(node);
+		}
+		if(targets.isEmpty()) targets.addAll(ring.getNodes());
+		return targets;
+	}
+
+	private CompletableFuture<Map<InetSocketAddress, byte[]>> fanOutAsync(List<InetSocketAddress> targets,
+			Function<InetSocketAddress, byte[]> requestFor) {
+		Map<InetSocketAddress, CompletableFuture<byte[]>> futures = new LinkedHashMap<InetSocketAddress, CompletableFuture<byte[]>>();
+		for(InetSocketAddress node : targets) {
+			futures.put(node, sendAsync(requestFor.apply(node), node));
+		}
+		return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()])).thenCompose(v -> {
+			Map<InetSocketAddress, byte[]> responses = new LinkedHashMap<InetSocketAddress, byte[]>();
+			for(Map.Entry<InetSocketAddress, CompletableFuture<byte[]>> e : futures.entrySet()) {
+				byte[] responseData = e.getValue().join();
+				if(responseData != null) {
+					responses.put(e.getKey(), responseData);
+					suspectedUntil.remove(e.getKey());
+				} else suspect(e.getKey());
+			}
+			if(responses.isEmpty()) {
+				System.out.println("* No response from server. Maximum number of tries reached.");
+				return CompletableFuture.failedFuture(new DirectoryUnavailableException(
+						"No directory node responded after " + MAX_NUMBER_OF_ATTEMPTS + " attempts"));
+			}
+			return CompletableFuture.completedFuture(responses);
+		});
+	}
+
+	/**
+	 * Espera el resultado de una solicitud asíncrona, devolviendo sus fallos de
+	 * entrada/salida como IOException
+	 */
+	static <T> T await(CompletableFuture<T> future) throws IOException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw e;
+		}
+	}
+
+	private void suspect(InetSocketAddress node) {
+		if(ring.size() > 1) System.out.println("* Directory node " + node + " is not responding");
+		suspectedUntil.put(node, System.currentTimeMillis() + SUSPECT_MILLIS);
+	}
+
+	/**
+	 * Ordena los candidatos dejando al final los que se sospecha que están caídos
+	 */
+	private List<InetSocketAddress> liveFirst(List<InetSocketAddress> candidates) {
+		List<InetSocketAddress> ordered = new ArrayList<InetSocketAddress>();
+		List<InetSocketAddress> suspected = new ArrayList<InetSocketAddress>();
+		long now = System.currentTimeMillis();
+		for(InetSocketAddress node : candidates) {
+			if(suspectedUntil.getOrDefault(node, 0L) > now) suspected.add(node);
+			else ordered.add(node);
 		}
-		return responseData;
+		ordered.addAll(suspected);
+		return ordered;
 	}
-	
+
 	/*
 	 * Crear un método distinto para cada intercambio posible de mensajes con
 	 * el directorio, haciendo uso
 	 * de los métodos adecuados de DirMessage para construir mensajes de petición y
 	 * procesar mensajes de respuesta
 	 */
-	
+
 	public int logIntoDirectory() throws IOException { // Returns number of file servers
+		if(ring.size() > 1) {
+			// El login sólo sirve para conocer el canal TCP de cada nodo
+			for(Map.Entry<InetSocketAddress, byte[]> e : fanOut(DirMessage.buildLoginRequestMessage()).entrySet()) {
+				recordBulkChannel(e.getKey(), e.getValue());
+			}
+			// Cada nodo sólo conoce los servidores de su parte del anillo
+			int servers = 0;
+			for(String u : getUserList()) {
+				if(u.endsWith(DirMessage.SERVER_IDENTIFIER)) servers++;
+			}
+			return servers;
+		}
 		byte[] requestData = DirMessage.buildLoginRequestMessage();
 		byte[] responseData = this.sendAndReceiveDatagrams(requestData);
+		recordBulkChannel(ring.getNodes().get(0), responseData);
 		return DirMessage.processLoginResponse(responseData);
 	}
-	
+
+	/**
+	 * Método para guardar el canal TCP que anuncia un nodo en su respuesta al
+	 * login (los directorios anteriores no lo anuncian)
+	 */
+	private void recordBulkChannel(InetSocketAddress node, byte[] responseData) {
+		DirMessage response = DirMessage.buildMessageFromReceivedData(responseData);
+		if(response == null || response.getOpcode() != DirMessageOps.OPCODE_LOGIN_OK) return;
+		if(response.getBulkPort() == 0) {
+			bulkChannels.remove(node);
+			return;
+		}
+		bulkChannels.put(node, new BulkChannel(new InetSocketAddress(node.getAddress(), response.getBulkPort()),
+				response.getBulkThresholdFiles(), response.getNumFiles()));
+	}
+
 	public boolean registerNickname(String nick) throws IOException{
 		byte[] requestData = DirMessage.buildRegisterRequestMessage(nick);
-		byte[] responseData = this.sendAndReceiveDatagrams(requestData);
-		return DirMessage.processRegisterResponseMessage(responseData);
+		byte[] responseData = sendWithFailover(requestData, ring.replicasFor(ConsistentHashRing.nickKey(nick)));
+		boolean result = DirMessage.processRegisterResponseMessage(responseData);
+		if(result) startHeartbeat(nick);
+		return result;
+	}
+
+	/**
+	 * A partir de ahora hay que mantener viva la concesión del nick
+	 */
+	synchronized void startHeartbeat(String nick) throws IOException {
+		if(heartbeat != null) heartbeat.stopHeartbeat();
+		heartbeat = new DirectoryHeartbeat(this, ring.getNodes(), nick);
+		heartbeat.start();
 	}
-	
+
+	/**
+	 * Método para recuperar la concesión del nick cuando un nodo ya no la
+	 * conoce: se registra de nuevo en ese nodo (que lo replica) y, si el peer
+	 * estaba sirviendo ficheros, se vuelven a publicar
+	 */
+	void recoverLease(String nick, InetSocketAddress node) {
+		System.out.println("* Directory at " + node + " lost the lease of " + nick + ", registering again");
+		try {
+			byte[] responseData = sendWithFailover(DirMessage.buildRegisterRequestMessage(nick), List.of(node));
+			if(!DirMessage.processRegisterResponseMessage(responseData)) return;
+			int port = servedPort;
+			if(port > 0 && !serveFiles(port, nick)) {
+				System.out.println("* Failed to publish the shared files again");
+			}
+		} catch(IOException e) {
+			System.out.println("* Failed to register " + nick + " again: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Método para crear un lote de solicitudes que se envía en un único
+	 * datagrama a los nodos responsables de un nick (en un directorio de un
+	 * único nodo, a ese nodo). Todas las solicitudes del lote deben poder
+	 * atenderse en esos nodos.
+	 */
+	public DirectoryBatch newBatch(String nickname) {
+		return new DirectoryBatch(this, ring.replicasFor(ConsistentHashRing.nickKey(nickname)));
+	}
+
+	CompletableFuture<byte[]> sendBatchAsync(byte[] requestData, List<InetSocketAddress> candidates) {
+		return sendWithFailoverAsync(requestData, candidates);
+	}
+
+	/**
+	 * Método para entrar en el directorio en un único intercambio: login,
+	 * registro del nick y publicación de los ficheros compartidos van en un
+	 * mismo lote. En un clúster (los ficheros se reparten entre nodos) o con
+	 * catálogos que se publican como resumen se hacen por separado.
+	 *
+	 * @return El número de servidores de ficheros antes de entrar, o -1 si no
+	 *         se ha podido registrar el nick o publicar los ficheros
+	 */
+	public int join(String nickname, int port) throws IOException {
+		FileInfo[] shared = NanoFiles.db.getFiles();
+		invalidateCaches(nickname);
+		if(ring.size() > 1 || shared.length >= SUMMARY_MIN_FILES) {
+			int servers = logIntoDirectory();
+			if(servers == -1 || !registerNickname(nickname) || !serveFiles(port, nickname)) return -1;
+			return servers;
+		}
+		DirectoryBatch batch = newBatch(nickname);
+		CompletableFuture<byte[]> login = batch.add(DirMessage.buildLoginRequestMessage());
+		CompletableFuture<Boolean> registered = batch.register(nickname);
+		CompletableFuture<Boolean> served = batch.serveFiles(port, nickname, shared);
+		batch.send();
+		byte[] loginResponse = await(login);
+		recordBulkChannel(ring.getNodes().get(0), loginResponse);
+		int servers = DirMessage.processLoginResponse(loginResponse);
+		if(servers == -1 || !await(registered) || !await(served)) return -1;
+		servedPort = port;
+		return servers;
+	}
+
 	public Set<String> getUserList() throws IOException{
 		byte[] requestData = DirMessage.buildUserListRequestMessage();
-		byte[] responseData = this.sendAndReceiveDatagrams(requestData);
-		return DirMessage.processUserListResponseMessage(responseData);
+		// Unimos las listas de todos los nodos; un nick es servidor si alguno lo dice
+		Map<String, Boolean> users = new LinkedHashMap<String, Boolean>();
+		for(byte[] responseData : fanOut(requestData).values()) {
+			for(String u : DirMessage.processUserListResponseMessage(responseData)) {
+				boolean server = u.endsWith(DirMessage.SERVER_IDENTIFIER);
+				String nick = server ? u.substring(0, u.length() - DirMessage.SERVER_IDENTIFIER.length()) : u;
+				users.put(nick, users.getOrDefault(nick, false) || server);
+			}
+		}
+		Set<String> userlist = new LinkedHashSet<String>();
+		users.forEach((nick, server) -> userlist.add(server ? nick + DirMessage.SERVER_IDENTIFIER : nick));
+		return userlist;
 	}
-	
+
 	public boolean serveFiles(int port, String nickname) throws IOException{
-		byte[] requestData = DirMessage.buildServeFilesRequestMessage(port, nickname);
-		byte[] responseData = this.sendAndReceiveDatagrams(requestData);
+		FileInfo[] shared = NanoFiles.db.getFiles();
+		invalidateCaches(nickname);
+		servedPort = port;
+		if(shared.length >= SUMMARY_MIN_FILES) {
+			return serveSummary(port, nickname, shared);
+		}
+		// Cada fichero se publica en el primer nodo disponible de los responsables
+		// de su hash, que lo replica; el responsable del nick lo recibe siempre
+		Map<InetSocketAddress, List<FileInfo>> porNodo = new LinkedHashMap<InetSocketAddress, List<FileInfo>>();
+		porNodo.put(liveFirst(ring.replicasFor(ConsistentHashRing.nickKey(nickname))).get(0), new ArrayList<FileInfo>());
+		for(FileInfo f : shared) {
+			InetSocketAddress node = liveFirst(ring.replicasFor(ConsistentHashRing.fileKey(f.getHash()))).get(0);
+			porNodo.computeIfAbsent(node, n -> new ArrayList<FileInfo>()).add(f);
+		}
+		boolean result = true;
+		for(Map.Entry<InetSocketAddress, List<FileInfo>> e : porNodo.entrySet()) {
+			FileInfo[] files = e.getValue().toArray(new FileInfo[e.getValue().size()]);
+			byte[] requestData = DirMessage.buildServeFilesRequestMessage(port, nickname, files);
+			// Si el nodo elegido no responde, lo intentamos en el resto
+			List<InetSocketAddress> candidates = new ArrayList<InetSocketAddress>(ring.getNodes());
+			candidates.remove(e.getKey());
+			candidates.add(0, e.getKey());
+			byte[] responseData = sendWithFailover(requestData, candidates);
+			result = DirMessage.processServeFilesResponseMessage(responseData) && result;
+		}
+		return result;
+	}
+
+	/**
+	 * Método para publicar un resumen de los hashes de un catálogo grande en
+	 * lugar de la lista de ficheros. El directorio sólo guarda el resumen (unos
+	 * pocos bits por fichero) y con él responde a LOOKUP_HASH; los nombres y
+	 * tamaños se piden al propio peer con queryfiles. Como el resumen no se
+	 * puede repartir por hash, se envía a las réplicas del nick.
+	 */
+	private boolean serveSummary(int port, String nickname, FileInfo[] shared) throws IOException {
+		BloomFilter summary = BloomFilter.create(shared.length, SUMMARY_FALSE_POSITIVE_RATE, DirMessage.MAX_SUMMARY_BYTES);
+		for(FileInfo f : shared) {
+			summary.add(f.getHash());
+		}
+		System.out.println("* Publishing a " + summary.getBits().length + "-byte summary of " + shared.length
+				+ " files (" + String.format("%.2f", summary.getFalsePositiveRate() * 100) + "% false positives)");
+		byte[] requestData = DirMessage.buildServeSummaryRequestMessage(port, nickname, summary);
+		byte[] responseData = sendWithFailover(requestData, ring.replicasFor(ConsistentHashRing.nickKey(nickname)));
 		return DirMessage.processServeFilesResponseMessage(responseData);
 	}
-	
+
 	public InetSocketAddress lookupUser(String nickname) throws IOException{
+		return await(lookupUserAsync(nickname));
+	}
+
+	/**
+	 * Método para preguntar la dirección de un servidor sin esperar la
+	 * respuesta. Las búsquedas de varios nicks se hacen a la vez, y tardan lo
+	 * mismo que una.
+	 */
+	public CompletableFuture<InetSocketAddress> lookupUserAsync(String nickname) {
+		TtlCache.Hit<InetSocketAddress> hit = lookupCache.get(nickname, System.currentTimeMillis());
+		if(hit != null) return CompletableFuture.completedFuture(hit.value);
 		byte[] requestData = DirMessage.buildLookupUserRequestMessage(nickname);
-		byte[] responseData = this.sendAndReceiveDatagrams(requestData);
-		return DirMessage.processLookupUserResponseMessage(responseData);
+		return sendWithFailoverAsync(requestData, ring.replicasFor(ConsistentHashRing.nickKey(nickname)))
+				.thenApply(responseData -> {
+					InetSocketAddress addr = DirMessage.processLookupUserResponseMessage(responseData);
+					lookupCache.put(nickname, addr, System.currentTimeMillis());
+					return addr;
+				});
 	}
-	
-	public boolean logOffDirectory(String nickname) throws IOException { 
+
+	/**
+	 * Método para averiguar la dirección de varios servidores a la vez. Las
+	 * búsquedas de los nicks de un mismo nodo van en un único lote, y los lotes
+	 * de distintos nodos se envían a la vez.
+	 *
+	 * @return La dirección de cada nick encontrado
+	 */
+	public Map<String, InetSocketAddress> lookupUsers(Collection<String> nicknames) throws IOException {
+		Map<String, CompletableFuture<InetSocketAddress>> futures = new LinkedHashMap<String, CompletableFuture<InetSocketAddress>>();
+		Map<InetSocketAddress, DirectoryBatch> batches = new LinkedHashMap<InetSocketAddress, DirectoryBatch>();
+		long now = System.currentTimeMillis();
+		for(String nick : nicknames) {
+			TtlCache.Hit<InetSocketAddress> hit = lookupCache.get(nick, now);
+			if(hit != null) {
+				futures.put(nick, CompletableFuture.completedFuture(hit.value));
+				continue;
+			}
+			InetSocketAddress node = liveFirst(ring.replicasFor(ConsistentHashRing.nickKey(nick))).get(0);
+			DirectoryBatch batch = batches.get(node);
+			if(batch != null && !batch.fits(DirMessage.buildLookupUserRequestMessage(nick))) {
+				batch.sendAsync();
+				batch = null;
+			}
+			if(batch == null) {
+				// Si el nodo no responde, el lote se intenta en los demás
+				List<InetSocketAddress> candidates = new ArrayList<InetSocketAddress>(ring.getNodes());
+				candidates.remove(node);
+				candidates.add(0, node);
+				batch = new DirectoryBatch(this, candidates);
+				batches.put(node, batch);
+			}
+			futures.put(nick, batch.lookupUser(nick).thenApply(addr -> {
+				lookupCache.put(nick, addr, System.currentTimeMillis());
+				return addr;
+			}));
+		}
+		for(DirectoryBatch batch : batches.values()) {
+			batch.sendAsync();
+		}
+		Map<String, InetSocketAddress> result = new LinkedHashMap<String, InetSocketAddress>();
+		for(Map.Entry<String, CompletableFuture<InetSocketAddress>> e : futures.entrySet()) {
+			InetSocketAddress addr = await(e.getValue());
+			if(addr != null) result.put(e.getKey(), addr);
+		}
+		return result;
+	}
+
+	public boolean logOffDirectory(String nickname) throws IOException {
+		invalidateCaches(nickname);
 		byte[] requestData = DirMessage.buildLogOffRequestMessage(nickname);
-		byte[] responseData = this.sendAndReceiveDatagrams(requestData);
-		boolean result = DirMessage.processLogOffResponse(responseData);
-		if(result) socket.close();
+		boolean result = false;
+		for(byte[] responseData : fanOut(requestData).values()) {
+			result = DirMessage.processLogOffResponse(responseData) || result;
+		}
+		if(result) {
+			if(heartbeat != null) heartbeat.stopHeartbeat();
+			timers.shutdownNow();
+			socket.close();
+		}
 		return result;
 	}
-	
+
 	public boolean stopServer(String nickname) throws IOException {
+		// Cualquier nodo puede tener ficheros de este servidor
+		invalidateCaches(nickname);
+		servedPort = 0;
 		byte[] requestData = DirMessage.buildStopServerRequestMessage(nickname);
-		byte[] responseData = this.sendAndReceiveDatagrams(requestData);
-		return DirMessage.processStopServerResponse(responseData);
+		boolean result = false;
+		for(byte[] responseData : fanOut(requestData).values()) {
+			result = DirMessage.processStopServerResponse(responseData) || result;
+		}
+		return result;
 	}
-	
+
+	/**
+	 * Método para obtener el catálogo del directorio. Durante el plazo de la
+	 * caché (ver setCacheTtl) se devuelve el último obtenido sin preguntar.
+	 */
 	public FileInfo[] getFiles() throws IOException {
-		byte[] requestData = DirMessage.buildGetFilesRequestMessage();
-		byte[] responseData = this.sendAndReceiveDatagrams(requestData);
-		return DirMessage.processGetFilesResponse(responseData);
+		FileInfo[] files = cachedFiles;
+		if(files != null && System.currentTimeMillis() < cachedFilesUntil) return files.clone();
+		long ttl = catalogTtlMillis;
+		files = fetchFiles();
+		if(ttl > 0) {
+			cachedFilesUntil = System.currentTimeMillis() + ttl;
+			cachedFiles = files.clone();
+		}
+		return files;
+	}
+
+	private FileInfo[] fetchFiles() throws IOException {
+		// Los catálogos grandes que no tenemos se descargan por el canal TCP
+		Set<InetSocketAddress> actualizados = new LinkedHashSet<InetSocketAddress>();
+		List<InetSocketAddress> udp = new ArrayList<InetSocketAddress>();
+		for(InetSocketAddress node : fanOutTargets()) {
+			if(!catalogs.containsKey(node) && useBulkChannel(node) && fetchCatalogBulk(node)) actualizados.add(node);
+			else udp.add(node);
+		}
+		// Cada nodo envía sólo los cambios posteriores a la versión que tenemos
+		Map<InetSocketAddress, byte[]> responses = new LinkedHashMap<InetSocketAddress, byte[]>();
+		if(!udp.isEmpty()) {
+			try {
+				responses = await(fanOutAsync(udp, node -> DirMessage.buildGetFilesSinceRequestMessage(
+						catalogs.containsKey(node) ? catalogs.get(node).version : 0)));
+			} catch(DirectoryUnavailableException e) {
+				if(actualizados.isEmpty()) throw e;
+			}
+		}
+		actualizados.addAll(responses.keySet());
+		// La copia de un nodo que no responde podría quedarse obsoleta
+		catalogs.keySet().retainAll(actualizados);
+		for(Map.Entry<InetSocketAddress, byte[]> e : responses.entrySet()) {
+			updateCatalog(e.getKey(), e.getValue());
+		}
+		// Las réplicas devuelven los mismos ficheros: nos quedamos con uno por hash
+		Map<String, FileInfo> files = new LinkedHashMap<String, FileInfo>();
+		for(Map.Entry<InetSocketAddress, NodeCatalog> e : catalogs.entrySet()) {
+			for(FileInfo f : e.getValue().files.values()) {
+				files.putIfAbsent(f.getHash(), f);
+			}
+			// Tamaño con el que se decide si la próxima descarga va por TCP
+			BulkChannel channel = bulkChannels.get(e.getKey());
+			if(channel != null) channel.catalogFiles = e.getValue().files.size();
+		}
+		return files.values().toArray(new FileInfo[files.size()]);
+	}
+
+	/**
+	 * Método para buscar ficheros en el directorio sin descargar el catálogo
+	 * completo. En un clúster se pregunta a todos los nodos y se unen sus
+	 * resultados.
+	 * 
+	 * @param opcode Tipo de búsqueda (OPCODE_SEARCH_NAME,
+	 *               OPCODE_SEARCH_NAME_PREFIX u OPCODE_SEARCH_HASH_PREFIX)
+	 * @param query  Palabras, prefijo del nombre o prefijo del hash
+	 * @return Los ficheros encontrados (como mucho MAX_SEARCH_RESULTS)
+	 */
+	public FileInfo[] searchFiles(byte opcode, String query) throws IOException {
+		byte[] requestData = DirMessage.buildSearchRequestMessage(opcode, query, DirMessage.MAX_SEARCH_RESULTS);
+		Map<String, FileInfo> files = new LinkedHashMap<String, FileInfo>();
+		boolean truncado = false;
+		for(byte[] responseData : fanOut(requestData).values()) {
+			DirMessage response = DirMessage.buildMessageFromReceivedData(responseData);
+			if(response == null || response.getOpcode() != DirMessageOps.OPCODE_SEARCH_RESULTS) continue;
+			truncado = truncado || response.isTruncated();
+			for(FileInfo f : response.getMeta()) {
+				if(files.size() >= DirMessage.MAX_SEARCH_RESULTS) {
+					truncado = true;
+					break;
+				}
+				files.putIfAbsent(f.getHash(), f);
+			}
+		}
+		if(truncado) {
+			System.out.println("* Showing the first " + files.size() + " results, refine the search to see the rest");
+		}
+		return files.values().toArray(new FileInfo[files.size()]);
+	}
+
+	/**
+	 * Método para averiguar qué servidores publican un fichero, de mejor a peor
+	 * según la carga que han comunicado al directorio. En un clúster cada nodo
+	 * conoce la carga que le llega en los heartbeats, así que se pregunta a
+	 * todos y, si un servidor aparece en varias respuestas, se usa el dato más
+	 * reciente.
+	 * 
+	 * @param hash El hash del fichero, o un prefijo que lo identifique
+	 * @return Los servidores del fichero ordenados (vacío si no se encuentra)
+	 */
+	public List<SeedInfo> lookupHash(String hash) throws IOException {
+		return await(lookupHashAsync(hash));
+	}
+
+	/**
+	 * Método para averiguar los servidores de un fichero sin esperar la
+	 * respuesta, para buscar los de varios ficheros a la vez
+	 */
+	public CompletableFuture<List<SeedInfo>> lookupHashAsync(String hash) {
+		byte[] requestData = DirMessage.buildLookupHashRequestMessage(hash, DirMessage.MAX_SEEDS);
+		return fanOutAsync(node -> requestData).thenApply(responses -> {
+			Map<String, SeedInfo> seeds = new HashMap<String, SeedInfo>();
+			for(byte[] responseData : responses.values()) {
+				DirMessage response = DirMessage.buildMessageFromReceivedData(responseData);
+				if(response == null || response.getOpcode() != DirMessageOps.OPCODE_LOOKUP_HASH_RESULT) continue;
+				for(SeedInfo s : response.getSeeds()) {
+					seeds.merge(s.getNick(), s, (a, b) -> a.getAgeMillis() <= b.getAgeMillis() ? a : b);
+				}
+			}
+			List<SeedInfo> result = new ArrayList<SeedInfo>(seeds.values());
+			result.sort(SeedInfo.RANKING);
+			return result;
+		});
+	}
+
+	/**
+	 * Método para comunicar al directorio que se ha descargado un fichero, para
+	 * que lo cuente en su demanda. Se envía a todos los nodos sin esperar
+	 * respuesta: perder algún aviso sólo hace la cuenta algo menos exacta.
+	 */
+	public void reportDownload(String hash) throws IOException {
+		byte[] requestData = DirMessage.frame(DirMessage.NO_REQUEST_ID, encode(DirMessage.buildDownloadedMessage(hash)));
+		for(InetSocketAddress node : ring.getNodes()) {
+			socket.send(new DatagramPacket(requestData, requestData.length, node));
+		}
+	}
+
+	/**
+	 * Método para obtener los ficheros más pedidos del directorio. En un clúster
+	 * todos los nodos cuentan las mismas consultas y descargas (se envían a
+	 * todos), así que de cada fichero se toma la mayor estimación.
+	 * 
+	 * @param limit Número máximo de ficheros (no más de MAX_TOP_FILES)
+	 * @return Los ficheros, de más a menos demanda
+	 */
+	public List<PopularFile> getTopFiles(int limit) throws IOException {
+		byte[] requestData = DirMessage.buildGetTopFilesRequestMessage(limit);
+		Map<String, PopularFile> files = new HashMap<String, PopularFile>();
+		for(byte[] responseData : fanOut(requestData).values()) {
+			DirMessage response = DirMessage.buildMessageFromReceivedData(responseData);
+			if(response == null || response.getOpcode() != DirMessageOps.OPCODE_TOP_FILES) continue;
+			for(PopularFile f : response.getTopFiles()) {
+				files.merge(f.getHash(), f, (a, b) -> new PopularFile(a.getHash(), a.getName().isEmpty() ? b.getName() : a.getName(),
+						Math.max(a.getSize(), b.getSize()), Math.max(a.getLookups(), b.getLookups()), Math.max(a.getDownloads(), b.getDownloads())));
+			}
+		}
+		List<PopularFile> result = new ArrayList<PopularFile>(files.values());
+		result.sort(PopularFile.BY_DEMAND);
+		return result.subList(0, Math.min(limit, result.size()));
+	}
+
+	/**
+	 * Método para preguntar al directorio qué fichero popular debe replicar este
+	 * peer. En un clúster cada nodo sólo conoce los ficheros de su parte del
+	 * anillo, así que se pregunta a todos y se acepta la primera propuesta.
+	 * 
+	 * @param nickname El nick con el que este peer sirve sus ficheros
+	 * @return El fichero a replicar, o null si no hace falta replicar nada
+	 */
+	public FileInfo getReplicationTask(String nickname) throws IOException {
+		byte[] requestData = DirMessage.buildGetReplicationTaskRequestMessage(nickname);
+		for(byte[] responseData : fanOut(requestData).values()) {
+			DirMessage response = DirMessage.buildMessageFromReceivedData(responseData);
+			if(response != null && response.getOpcode() == DirMessageOps.OPCODE_REPLICATION_TASK
+					&& response.getMeta().length > 0) {
+				return response.getMeta()[0];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Método para aplicar a la copia local del catálogo de un nodo su respuesta
+	 * a GETFILES_SINCE, pidiendo el resto de cambios si no caben en una respuesta
+	 * o el catálogo completo si nuestra versión es demasiado antigua. Si el
+	 * catálogo del nodo es grande, lo que falta se pide por su canal TCP.
+	 */
+	private void updateCatalog(InetSocketAddress node, byte[] responseData) throws IOException {
+		NodeCatalog catalog = catalogs.computeIfAbsent(node, n -> new NodeCatalog());
+		int intentos = 0;
+		while(responseData != null && intentos < MAX_NUMBER_OF_ATTEMPTS) {
+			DirMessage response = DirMessage.buildMessageFromReceivedData(responseData);
+			if(response == null) break;
+			if(response.getOpcode() == DirMessageOps.OPCODE_CATALOG_RESYNC_FULL) {
+				if(useBulkChannel(node) && fetchCatalogBulk(node)) return;
+				byte[] fileList = await(sendAsync(DirMessage.buildGetFilesRequestMessage(), node));
+				DirMessage list = fileList == null ? null : DirMessage.buildMessageFromReceivedData(fileList);
+				if(list != null && list.getOpcode() == DirMessageOps.OPCODE_RESPONSE_TOO_LARGE) {
+					if(fetchTooLarge(node)) return;
+					break;
+				}
+				if(list == null || list.getOpcode() != DirMessageOps.OPCODE_FILELIST) break;
+				catalog.files.clear();
+				for(FileInfo f : list.getMeta()) {
+					catalog.files.put(f.getHash(), f);
+				}
+				// La lista incluye al menos hasta esta versión; los cambios
+				// posteriores se aplican encima en la siguiente consulta
+				catalog.version = response.getSeq();
+				return;
+			}
+			if(response.getOpcode() == DirMessageOps.OPCODE_RESPONSE_TOO_LARGE) {
+				if(fetchTooLarge(node)) return;
+				break;
+			}
+			if(response.getOpcode() != DirMessageOps.OPCODE_CATALOG_EVENTS) break;
+			long antes = catalog.version;
+			applyEvents(catalog, response.getEvents());
+			if(catalog.version >= response.getSeq()) {
+				return;
+			}
+			if(useBulkChannel(node) && fetchCatalogBulk(node)) return;
+			intentos = catalog.version > antes ? 0 : intentos + 1;
+			responseData = await(sendAsync(DirMessage.buildGetFilesSinceRequestMessage(catalog.version), node));
+		}
+		// Sin respuesta válida: la próxima vez se parte de cero
+		catalogs.remove(node);
+	}
+
+	/**
+	 * Método para aplicar cambios consecutivos a la copia local de un catálogo.
+	 * Se detiene en el primer hueco.
+	 */
+	private static void applyEvents(NodeCatalog catalog, List<CatalogEvent> events) {
+		for(CatalogEvent e : events) {
+			// Una respuesta duplicada o tardía puede traer cambios ya aplicados
+			if(e.getSeq() <= catalog.version) continue;
+			if(e.getSeq() != catalog.version + 1) break;
+			if(e.getType() == CatalogEvent.FILE_ADDED) {
+				catalog.files.put(e.getFile().getHash(), e.getFile());
+			} else if(e.getType() == CatalogEvent.FILE_REMOVED) {
+				catalog.files.remove(e.getFile().getHash());
+			}
+			catalog.version = e.getSeq();
+		}
+	}
+
+	/**
+	 * Método para pedir por el canal TCP una respuesta que el nodo no puede
+	 * enviar en un datagrama, aunque su catálogo no llegue al umbral
+	 */
+	private boolean fetchTooLarge(InetSocketAddress node) {
+		if(bulkChannels.containsKey(node)) return fetchCatalogBulk(node);
+		System.out.println("* Catalog of " + node + " too large to be sent by UDP");
+		return false;
+	}
+
+	/**
+	 * Indica si el catálogo de un nodo es tan grande que conviene pedirlo por
+	 * su canal TCP
+	 */
+	private boolean useBulkChannel(InetSocketAddress node) {
+		BulkChannel channel = bulkChannels.get(node);
+		return channel != null && channel.catalogFiles >= channel.thresholdFiles;
+	}
+
+	/**
+	 * Método para actualizar la copia local del catálogo de un nodo por su canal
+	 * TCP: los cambios posteriores a nuestra versión, o el catálogo completo si
+	 * el nodo ya no los tiene
+	 *
+	 * @return false si la transferencia falla (la copia local no cambia, salvo
+	 *         por los cambios ya aplicados)
+	 */
+	private boolean fetchCatalogBulk(InetSocketAddress node) {
+		BulkChannel channel = bulkChannels.get(node);
+		NodeCatalog catalog = catalogs.computeIfAbsent(node, n -> new NodeCatalog());
+		try(Socket s = new Socket()) {
+			s.connect(channel.address, BULK_TIMEOUT_MILLIS);
+			s.setSoTimeout(BULK_TIMEOUT_MILLIS);
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			DirMessage.writeStreamFrame(dos, encode(DirMessage.buildGetFilesSinceRequestMessage(catalog.version)));
+			dos.flush();
+			// El catálogo completo sólo sustituye a la copia si llega entero
+			Map<String, FileInfo> completo = null;
+			long versionCompleto = 0;
+			long head = catalog.version;
+			byte[] frame;
+			while((frame = DirMessage.readStreamFrame(dis)).length > 0) {
+				DirMessage m = DirMessage.buildMessageFromReceivedData(frame);
+				if(m == null) throw new IOException("Malformed message from bulk channel");
+				if(m.getOpcode() == DirMessageOps.OPCODE_CATALOG_RESYNC_FULL) {
+					completo = new LinkedHashMap<String, FileInfo>();
+					versionCompleto = m.getSeq();
+				} else if(m.getOpcode() == DirMessageOps.OPCODE_FILELIST && completo != null) {
+					for(FileInfo f : m.getMeta()) {
+						completo.put(f.getHash(), f);
+					}
+				} else if(m.getOpcode() == DirMessageOps.OPCODE_CATALOG_EVENTS && completo == null) {
+					applyEvents(catalog, m.getEvents());
+					head = m.getSeq();
+				} else {
+					throw new IOException("Unexpected " + DirMessageOps.opcodeToOperation(m.getOpcode()) + " from bulk channel");
+				}
+			}
+			if(completo != null) {
+				catalog.files = completo;
+				catalog.version = versionCompleto;
+			} else if(catalog.version < head) {
+				throw new IOException("Missing catalog changes up to " + head);
+			}
+			channel.catalogFiles = catalog.files.size();
+			return true;
+		} catch(IOException e) {
+			System.out.println("* Bulk transfer from " + channel.address + " failed (" + e.getMessage() + "), using UDP");
+			return false;
+		}
 	}
 
 }
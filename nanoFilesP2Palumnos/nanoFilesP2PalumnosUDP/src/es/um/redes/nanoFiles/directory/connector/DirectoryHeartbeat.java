@@ -0,0 +1,126 @@
+package es.um.redes.nanoFiles.directory.connector;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+
+import es.um.redes.nanoFiles.directory.message.DirMessage;
+import es.um.redes.nanoFiles.directory.message.DirMessageOps;
+import es.um.redes.nanoFiles.server.NFServerComm;
+
+/**
+ * Hilo en segundo plano que renueva periódicamente la concesión del nick de
+ * este peer en el directorio. Usa su propio socket UDP para no interferir con
+ * las solicitudes/respuestas del DirectoryConnector, y no espera respuesta: la
+ * concesión tolera la pérdida de varios heartbeats seguidos. Si aun así
+ * caduca (o el directorio se reinicia), el nodo responde con LEASE_UNKNOWN y
+ * el peer se registra y publica sus ficheros de nuevo. En un clúster se
+ * envía a todos los nodos, ya que cualquiera puede guardar datos del peer.
+ * Cada heartbeat lleva además la carga del servidor de ficheros del peer
+ * (descargas en curso y ancho de banda de subida libre en el último periodo),
+ * que el directorio usa para ordenar los servidores de cada fichero.
+ */
+public class DirectoryHeartbeat extends Thread {
+	/**
+	 * Socket UDP usado únicamente para enviar heartbeats
+	 */
+	private DatagramSocket socket;
+	/**
+	 * Direcciones de socket de los nodos del directorio (IP:puertoUDP)
+	 */
+	private List<InetSocketAddress> directoryNodes;
+	/**
+	 * Nick cuya concesión se renueva
+	 */
+	private String nickname;
+	/**
+	 * Conector con el que se recupera la concesión perdida
+	 */
+	private DirectoryConnector connector;
+
+	private volatile boolean running = true;
+
+	public DirectoryHeartbeat(DirectoryConnector connector, List<InetSocketAddress> directoryNodes, String nickname)
+			throws SocketException {
+		this.connector = connector;
+		this.socket = new DatagramSocket();
+		this.directoryNodes = directoryNodes;
+		this.nickname = nickname;
+		setDaemon(true);
+		setName("heartbeat-" + nickname);
+	}
+
+	public void run() {
+		long lastBytesSent = NFServerComm.getBytesSent();
+		long lastSample = System.currentTimeMillis();
+		while (running) {
+			try {
+				awaitReplies(System.currentTimeMillis() + DirMessage.HEARTBEAT_INTERVAL_MILLIS);
+				if (!running) {
+					break;
+				}
+				// Ancho de banda usado desde el heartbeat anterior
+				long bytesSent = NFServerComm.getBytesSent();
+				long now = System.currentTimeMillis();
+				long usedKbps = (bytesSent - lastBytesSent) * 8 / Math.max(1, now - lastSample);
+				lastBytesSent = bytesSent;
+				lastSample = now;
+				int freeKbps = (int) Math.max(0, NFServerComm.getUploadCapacityKbps() - usedKbps);
+				byte[] heartbeat = DirMessage.frame(DirMessage.NO_REQUEST_ID,
+						DirMessage.buildHeartbeatMessage(nickname, NFServerComm.getActiveTransfers(), freeKbps));
+				for (InetSocketAddress node : directoryNodes) {
+					if (running) {
+						socket.send(new DatagramPacket(heartbeat, heartbeat.length, node));
+					}
+				}
+			} catch (IOException e) {
+				// Un heartbeat perdido no es grave, se reintenta en el siguiente periodo
+				// (stopHeartbeat cierra el socket para despertarnos)
+				if (running) {
+					System.err.println("* Failed to send heartbeat to directory: " + e.getMessage());
+				}
+			}
+		}
+		socket.close();
+	}
+
+	/**
+	 * Método para atender, hasta el próximo heartbeat, los avisos de los nodos
+	 * que ya no conocen la concesión del nick
+	 */
+	private void awaitReplies(long deadline) throws IOException {
+		byte[] buffer = new byte[DirMessage.PACKET_MAX_SIZE];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		long wait;
+		while (running && (wait = deadline - System.currentTimeMillis()) > 0) {
+			socket.setSoTimeout((int) wait);
+			try {
+				socket.receive(packet);
+			} catch (SocketTimeoutException e) {
+				return;
+			}
+			if (packet.getLength() <= DirMessage.REQUEST_ID_SIZE_BYTES
+					|| !directoryNodes.contains(packet.getSocketAddress())) {
+				continue;
+			}
+			DirMessage reply = DirMessage.buildMessageFromReceivedData(buffer, DirMessage.REQUEST_ID_SIZE_BYTES,
+					packet.getLength() - DirMessage.REQUEST_ID_SIZE_BYTES);
+			if (reply != null && reply.getOpcode() == DirMessageOps.OPCODE_LEASE_UNKNOWN
+					&& nickname.equals(reply.getUserName())) {
+				connector.recoverLease(nickname, (InetSocketAddress) packet.getSocketAddress());
+			}
+		}
+	}
+
+	/**
+	 * Detiene el envío de heartbeats y cierra el socket
+	 */
+	public void stopHeartbeat() {
+		running = false;
+		socket.close();
+	}
+}
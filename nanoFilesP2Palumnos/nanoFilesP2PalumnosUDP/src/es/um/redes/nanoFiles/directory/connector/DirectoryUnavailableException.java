@@ -0,0 +1,17 @@
+package es.um.redes.nanoFiles.directory.connector;
+
+import java.io.IOException;
+
+/**
+ * Ningún nodo del directorio ha respondido a una solicitud tras agotar los
+ * reintentos. Antes se terminaba el programa; ahora quien llama decide si
+ * informa al usuario y sigue, o vuelve a intentarlo más tarde.
+ */
+public class DirectoryUnavailableException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public DirectoryUnavailableException(String message) {
+		super(message);
+	}
+}
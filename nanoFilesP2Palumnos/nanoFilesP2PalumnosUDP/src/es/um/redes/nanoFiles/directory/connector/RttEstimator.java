@@ -0,0 +1,104 @@
+package es.um.redes.nanoFiles.directory.connector;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Estimación del tiempo de ida y vuelta (RTT) de un nodo del directorio y del
+ * plazo de retransmisión (RTO) que se deriva de ella, según el RFC 6298:
+ * SRTT y RTTVAR se actualizan con cada muestra (alfa = 1/8, beta = 1/4) y
+ * RTO = SRTT + 4 * RTTVAR.
+ *
+ * Sólo se toman muestras de solicitudes que se han enviado una vez (algoritmo
+ * de Karn): si se ha retransmitido, no se sabe a qué envío corresponde la
+ * respuesta. Cada retransmisión de una solicitud dobla su plazo, con una
+ * parte aleatoria para que los peers que perdieron respuestas a la vez no
+ * reintenten a la vez.
+ */
+public class RttEstimator {
+	/**
+	 * RTO (ms) antes de tener ninguna muestra
+	 */
+	public static final int INITIAL_RTO_MILLIS = 1000;
+	/**
+	 * Límites del RTO (ms). El mínimo del RFC (1 s) está pensado para TCP en
+	 * Internet; con él una pérdida en la red local costaría lo mismo que antes
+	 */
+	public static final int MIN_RTO_MILLIS = 50;
+	public static final int MAX_RTO_MILLIS = 4000;
+
+	private double srtt;
+	private double rttvar;
+	private int rto = INITIAL_RTO_MILLIS;
+	private int samples;
+	private int timeouts;
+
+	/**
+	 * Método para incorporar el RTT medido de una solicitud sin retransmisiones
+	 */
+	public synchronized void sample(long rttMillis) {
+		if (samples == 0) {
+			srtt = rttMillis;
+			rttvar = rttMillis / 2.0;
+		} else {
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMillis);
+			srtt = 0.875 * srtt + 0.125 * rttMillis;
+		}
+		samples++;
+		// El término de varianza no baja de 1 ms (granularidad del reloj)
+		rto = clamp(srtt + Math.max(1, 4 * rttvar));
+	}
+
+	/**
+	 * Método para registrar que ha expirado el plazo de una solicitud
+	 */
+	public synchronized void timedOut() {
+		timeouts++;
+	}
+
+	/**
+	 * Plazo (ms) que se espera a la respuesta del envío número "attempt" de una
+	 * solicitud (0 el primero): RTO * 2^attempt, hasta MAX_RTO_MILLIS. En las
+	 * retransmisiones se reduce al azar hasta la mitad. El plazo crece con los
+	 * reintentos de cada solicitud y no con los del nodo: con muchas
+	 * solicitudes en curso, unas pocas pérdidas no deben retrasar a las demás.
+	 */
+	public synchronized int timeoutFor(int attempt) {
+		int backoff = (int) Math.min((long) rto << Math.min(attempt, 16), MAX_RTO_MILLIS);
+		if (attempt == 0) {
+			return backoff;
+		}
+		return backoff / 2 + ThreadLocalRandom.current().nextInt(backoff / 2 + 1);
+	}
+
+	public synchronized int getRtoMillis() {
+		return rto;
+	}
+
+	/**
+	 * RTT suavizado (ms), o 0 si todavía no hay muestras
+	 */
+	public synchronized double getSrttMillis() {
+		return srtt;
+	}
+
+	public synchronized double getRttvarMillis() {
+		return rttvar;
+	}
+
+	public synchronized int getSamples() {
+		return samples;
+	}
+
+	public synchronized int getTimeouts() {
+		return timeouts;
+	}
+
+	private static int clamp(double millis) {
+		return (int) Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, Math.ceil(millis)));
+	}
+
+	public synchronized String toString() {
+		return String.format("srtt %.1f ms, rttvar %.1f ms, rto %d ms (%d samples, %d timeouts)", srtt, rttvar, rto,
+				samples, timeouts);
+	}
+}
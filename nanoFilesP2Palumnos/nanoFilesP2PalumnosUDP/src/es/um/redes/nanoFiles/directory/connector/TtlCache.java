@@ -0,0 +1,133 @@
+package es.um.redes.nanoFiles.directory.connector;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Respuestas recientes del directorio, para no volver a preguntar lo mismo
+ * mientras no caduquen. También se guardan las respuestas negativas (valor
+ * null, por ejemplo un nick que no está), con su propio plazo, normalmente
+ * más corto: un peer que acaba de publicar debe encontrarse pronto.
+ *
+ * Si se superan MAX_ENTRIES se descartan las más antiguas. Un plazo de 0
+ * desactiva la caché.
+ */
+public class TtlCache<K, V> {
+
+	public static final int MAX_ENTRIES = 1024;
+
+	/**
+	 * Resultado de una consulta que está en la caché (value puede ser null)
+	 */
+	public static final class Hit<V> {
+		public final V value;
+		final long expiresAt;
+
+		Hit(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	// En orden de inserción: la primera entrada es siempre la más antigua
+	private final LinkedHashMap<K, Hit<V>> entries = new LinkedHashMap<K, Hit<V>>();
+	private long ttlMillis;
+	private long negativeTtlMillis;
+	private long hits;
+	private long misses;
+
+	public TtlCache(long ttlMillis, long negativeTtlMillis) {
+		setTtl(ttlMillis, negativeTtlMillis);
+	}
+
+	/**
+	 * Método para cambiar los plazos. Las entradas que ya están en la caché
+	 * conservan el suyo salvo si la caché se desactiva.
+	 */
+	public synchronized void setTtl(long ttlMillis, long negativeTtlMillis) {
+		if (ttlMillis < 0 || negativeTtlMillis < 0) {
+			throw new IllegalArgumentException("Negative TTL");
+		}
+		this.ttlMillis = ttlMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+		if (ttlMillis == 0 && negativeTtlMillis == 0) {
+			entries.clear();
+		}
+	}
+
+	public synchronized long getNegativeTtl() {
+		return negativeTtlMillis;
+	}
+
+	/**
+	 * @return La entrada de "key", o null si no está o ha caducado
+	 */
+	public synchronized Hit<V> get(K key, long now) {
+		Hit<V> hit = entries.get(key);
+		if (hit != null && hit.expiresAt <= now) {
+			entries.remove(key);
+			hit = null;
+		}
+		if (hit == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return hit;
+	}
+
+	public synchronized void put(K key, V value, long now) {
+		long ttl = value == null ? negativeTtlMillis : ttlMillis;
+		if (ttl == 0) {
+			entries.remove(key);
+			return;
+		}
+		// Se reinserta para que quede la última en el orden de antigüedad
+		entries.remove(key);
+		entries.put(key, new Hit<V>(value, now + ttl));
+		while (entries.size() > MAX_ENTRIES) {
+			Iterator<Map.Entry<K, Hit<V>>> it = entries.entrySet().iterator();
+			it.next();
+			it.remove();
+		}
+	}
+
+	public synchronized void invalidate(K key) {
+		entries.remove(key);
+	}
+
+	/**
+	 * Método para descartar las entradas cuyo valor es "value" (por ejemplo, la
+	 * dirección de un servidor que no acepta conexiones)
+	 *
+	 * @return true si había alguna
+	 */
+	public synchronized boolean invalidateValue(V value) {
+		boolean removed = false;
+		for (Iterator<Hit<V>> it = entries.values().iterator(); it.hasNext();) {
+			if (Objects.equals(it.next().value, value)) {
+				it.remove();
+				removed = true;
+			}
+		}
+		return removed;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized String toString() {
+		return entries.size() + " entries, " + hits + " hits, " + misses + " misses";
+	}
+}
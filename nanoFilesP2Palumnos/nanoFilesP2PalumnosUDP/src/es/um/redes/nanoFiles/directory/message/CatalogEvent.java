@@ -0,0 +1,96 @@
+package es.um.redes.nanoFiles.directory.message;
+
+import java.net.InetSocketAddress;
+
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Cambio en el catálogo del directorio (fichero añadido/retirado, servidor
+ * activo/inactivo), con el número de secuencia que le asigna el directorio.
+ * Los números de secuencia son consecutivos, de modo que quien recibe los
+ * eventos detecta si se ha perdido alguno.
+ */
+public class CatalogEvent {
+
+	public static final byte FILE_ADDED = 1;
+	public static final byte FILE_REMOVED = 2;
+	public static final byte SERVER_UP = 3;
+	public static final byte SERVER_DOWN = 4;
+
+	private final long seq;
+	private final byte type;
+	/**
+	 * Servidor afectado (SERVER_UP/SERVER_DOWN) o propietario del fichero
+	 * (FILE_ADDED)
+	 */
+	private final String nick;
+	private final FileInfo file;
+	private final InetSocketAddress address;
+
+	CatalogEvent(long seq, byte type, String nick, FileInfo file, InetSocketAddress address) {
+		this.seq = seq;
+		this.type = type;
+		this.nick = nick;
+		this.file = file;
+		this.address = address;
+	}
+
+	public static CatalogEvent fileAdded(FileInfo file, String owner) {
+		return new CatalogEvent(0, FILE_ADDED, owner, file, null);
+	}
+
+	public static CatalogEvent fileRemoved(String hash) {
+		return new CatalogEvent(0, FILE_REMOVED, null, new FileInfo(hash, null, 0, null), null);
+	}
+
+	public static CatalogEvent serverUp(String nick, InetSocketAddress address) {
+		return new CatalogEvent(0, SERVER_UP, nick, null, address);
+	}
+
+	public static CatalogEvent serverDown(String nick) {
+		return new CatalogEvent(0, SERVER_DOWN, nick, null, null);
+	}
+
+	/**
+	 * El mismo evento con el número de secuencia indicado
+	 */
+	public CatalogEvent withSeq(long seq) {
+		return new CatalogEvent(seq, type, nick, file, address);
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public String getNick() {
+		return nick;
+	}
+
+	/**
+	 * Fichero añadido, o sólo su hash si se ha retirado
+	 */
+	public FileInfo getFile() {
+		return file;
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	public String toString() {
+		switch (type) {
+		case FILE_ADDED:
+			return "#" + seq + " +" + file.getName() + " (" + file.getHash() + ") by " + nick;
+		case FILE_REMOVED:
+			return "#" + seq + " -" + file.getHash();
+		case SERVER_UP:
+			return "#" + seq + " " + nick + " up at " + address;
+		default:
+			return "#" + seq + " " + nick + " down";
+		}
+	}
+}
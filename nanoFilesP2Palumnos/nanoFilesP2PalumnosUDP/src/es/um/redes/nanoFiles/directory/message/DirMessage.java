@@ -1,13 +1,20 @@
 package es.um.redes.nanoFiles.directory.message;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.rmi.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
 
 import es.um.redes.nanoFiles.client.application.NanoFiles;
+import es.um.redes.nanoFiles.util.BloomFilter;
 import es.um.redes.nanoFiles.util.FileInfo;
 
 import java.util.HashSet;
@@ -17,13 +24,68 @@ public class DirMessage {
 	public static final int PACKET_MAX_SIZE = 65507;
 
 	public static final byte OPCODE_SIZE_BYTES = 1;
+	/**
+	 * Cada datagrama del directorio empieza por el id de la solicitud:
+	 * [id:4][opcode:1][campos]. La respuesta lleva el id de su solicitud, y un
+	 * cliente puede tener varias solicitudes en curso a la vez. Los mensajes
+	 * que no esperan respuesta y los que el directorio envía por su cuenta
+	 * llevan NO_REQUEST_ID.
+	 */
+	public static final int REQUEST_ID_SIZE_BYTES = Integer.BYTES;
+	public static final int NO_REQUEST_ID = 0;
 	
 	public static final String SERVER_IDENTIFIER = "   <SERVER>";
 
+	/**
+	 * Periodo (ms) con el que un peer registrado envía heartbeats al directorio
+	 * para renovar la concesión de su nick y de sus ficheros publicados
+	 */
+	public static final int HEARTBEAT_INTERVAL_MILLIS = 10000;
+	/**
+	 * Duración (ms) de la concesión. Se permite perder dos heartbeats seguidos
+	 * antes de que el directorio dé por muerto al peer
+	 */
+	public static final int LEASE_DURATION_MILLIS = 3 * HEARTBEAT_INTERVAL_MILLIS;
+	/**
+	 * Duración (ms) de una suscripción a los cambios del catálogo. El suscriptor
+	 * la renueva repitiendo SUBSCRIBE antes de que caduque
+	 */
+	public static final int SUBSCRIPTION_LEASE_MILLIS = 60000;
+	/**
+	 * Número máximo de resultados que devuelve el directorio a una búsqueda
+	 */
+	public static final int MAX_SEARCH_RESULTS = 100;
+	/**
+	 * Número máximo de servidores que devuelve el directorio para un fichero
+	 */
+	public static final int MAX_SEEDS = 100;
+	/**
+	 * Tamaño máximo (bytes) del resumen de un catálogo, para que quepa en un
+	 * datagrama con el resto de campos de SERVE_FILES_SUMMARY
+	 */
+	public static final int MAX_SUMMARY_BYTES = 64000;
+	/**
+	 * Número máximo de ficheros de la lista de los más pedidos
+	 */
+	public static final int MAX_TOP_FILES = 50;
+	/**
+	 * Tamaño máximo (bytes) de un mensaje del canal TCP del directorio (ver
+	 * writeStreamFrame)
+	 */
+	public static final int MAX_STREAM_FRAME_BYTES = 16 * 1024 * 1024;
+
 	private byte opcode;
 
 	private int servers;
 	
+	private int bulkPort;
+	
+	private int bulkThresholdFiles;
+	
+	private int numFiles;
+	
+	private int retryAfterMillis;
+	
 	private String userName;
 	
 	private Set<String> userlist;
@@ -33,20 +95,63 @@ public class DirMessage {
 	private FileInfo[] meta;
 	
 	private InetSocketAddress serverAddress;
+	
+	private InetAddress origin;
+	
+	private byte[] replicatedRequest;
+	
+	private long seq;
+	
+	private int leaseMillis;
+	
+	private List<CatalogEvent> events;
+	
+	private String query;
+	
+	private int limit;
+	
+	private boolean truncated;
+	
+	private int activeTransfers;
+	
+	private int freeUploadKbps;
+	
+	private List<SeedInfo> seeds;
+	
+	private BloomFilter summary;
+	
+	private List<PopularFile> topFiles;
+	
+	private byte[][] parts;
 
 	public DirMessage(byte operation) {
 		assert (operation == DirMessageOps.OPCODE_LOGIN || operation == DirMessageOps.OPCODE_SERVE_FILES_STOP || operation == DirMessageOps.OPCODE_QUIT || operation == DirMessageOps.OPCODE_SERVE_FILES_STOP_OK || operation == DirMessageOps.OPCODE_GETFILES || operation == DirMessageOps.OPCODE_QUIT || operation == DirMessageOps.OPCODE_SERVE_FILES_OK || operation == DirMessageOps.OPCODE_SERVE_FILES_STOP_OK || operation == DirMessageOps.OPCODE_LOOKUP_USERNAME_NOTFOUND);
 		opcode = operation;
 	}
 	
-	public DirMessage(byte operation, int servers) {
-		assert (operation == DirMessageOps.OPCODE_LOGIN_OK);
+	/**
+	 * @param value Número de servidores (LOGIN_OK) o tiempo de espera
+	 *              (SLOW_DOWN)
+	 */
+	public DirMessage(byte operation, int value) {
+		assert (operation == DirMessageOps.OPCODE_LOGIN_OK || operation == DirMessageOps.OPCODE_SLOW_DOWN);
 		opcode = operation;
-		this.servers = servers;
+		if (operation == DirMessageOps.OPCODE_SLOW_DOWN) {
+			this.retryAfterMillis = value;
+		} else {
+			this.servers = value;
+		}
+	}
+	
+	public DirMessage(byte operation, int servers, int bulkPort, int bulkThresholdFiles, int numFiles) {
+		this(operation, servers);
+		this.bulkPort = bulkPort;
+		this.bulkThresholdFiles = bulkThresholdFiles;
+		this.numFiles = numFiles;
 	}
 	
 	public DirMessage(byte operation, String nick) {
-		assert (operation == DirMessageOps.OPCODE_REGISTER_USERNAME || operation == DirMessageOps.OPCODE_LOOKUP_USERNAME || operation == DirMessageOps.OPCODE_LOGOFF || operation == DirMessageOps.OPCODE_SERVE_FILES_STOP);
+		assert (operation == DirMessageOps.OPCODE_REGISTER_USERNAME || operation == DirMessageOps.OPCODE_LOOKUP_USERNAME || operation == DirMessageOps.OPCODE_LOGOFF || operation == DirMessageOps.OPCODE_SERVE_FILES_STOP || operation == DirMessageOps.OPCODE_HEARTBEAT || operation == DirMessageOps.OPCODE_GET_REPLICATION_TASK || operation == DirMessageOps.OPCODE_LEASE_UNKNOWN);
 		opcode = operation;
 		userName = nick;
 	}
@@ -66,7 +171,7 @@ public class DirMessage {
 	}
 	
 	public DirMessage(byte operation, FileInfo[] meta) {
-		assert(operation == DirMessageOps.OPCODE_FILELIST);
+		assert(operation == DirMessageOps.OPCODE_FILELIST || operation == DirMessageOps.OPCODE_REPLICATION_TASK);
 		opcode = operation;
 		this.meta = meta;
 	}
@@ -76,6 +181,84 @@ public class DirMessage {
 		opcode = operation;
 		serverAddress = addr;
 	}
+	
+	public DirMessage(byte operation, InetAddress origin, byte[] request) {
+		assert(operation == DirMessageOps.OPCODE_REPLICATE);
+		opcode = operation;
+		this.origin = origin;
+		replicatedRequest = request;
+	}
+	
+	public DirMessage(byte operation, long seq) {
+		assert(operation == DirMessageOps.OPCODE_CATALOG_RESYNC || operation == DirMessageOps.OPCODE_CATALOG_RESYNC_FULL || operation == DirMessageOps.OPCODE_GETFILES_SINCE);
+		opcode = operation;
+		this.seq = seq;
+	}
+	
+	public DirMessage(byte operation, long seq, int leaseMillis) {
+		assert(operation == DirMessageOps.OPCODE_SUBSCRIBE_OK);
+		opcode = operation;
+		this.seq = seq;
+		this.leaseMillis = leaseMillis;
+	}
+	
+	public DirMessage(byte operation, long seq, List<CatalogEvent> events) {
+		assert(operation == DirMessageOps.OPCODE_CATALOG_EVENTS);
+		opcode = operation;
+		this.seq = seq;
+		this.events = events;
+	}
+	
+	public DirMessage(byte operation, String query, int limit) {
+		assert(operation == DirMessageOps.OPCODE_SEARCH_NAME || operation == DirMessageOps.OPCODE_SEARCH_NAME_PREFIX || operation == DirMessageOps.OPCODE_SEARCH_HASH_PREFIX || operation == DirMessageOps.OPCODE_LOOKUP_HASH
+				|| operation == DirMessageOps.OPCODE_DOWNLOADED || operation == DirMessageOps.OPCODE_GET_TOP_FILES);
+		opcode = operation;
+		this.query = query;
+		this.limit = limit;
+	}
+	
+	public DirMessage(byte operation, FileInfo[] meta, boolean truncated) {
+		assert(operation == DirMessageOps.OPCODE_SEARCH_RESULTS);
+		opcode = operation;
+		this.meta = meta;
+		this.truncated = truncated;
+	}
+	
+	public DirMessage(byte operation, String nick, int activeTransfers, int freeUploadKbps) {
+		assert(operation == DirMessageOps.OPCODE_HEARTBEAT);
+		opcode = operation;
+		userName = nick;
+		this.activeTransfers = activeTransfers;
+		this.freeUploadKbps = freeUploadKbps;
+	}
+	
+	public DirMessage(byte operation, String nick, int port, BloomFilter summary) {
+		assert(operation == DirMessageOps.OPCODE_SERVE_SUMMARY);
+		opcode = operation;
+		userName = nick;
+		this.port = port;
+		this.summary = summary;
+	}
+	
+	public DirMessage(byte operation, String hash, List<SeedInfo> seeds) {
+		assert(operation == DirMessageOps.OPCODE_LOOKUP_HASH_RESULT);
+		opcode = operation;
+		query = hash;
+		this.seeds = seeds;
+	}
+	
+	public DirMessage(byte operation, List<PopularFile> topFiles) {
+		assert(operation == DirMessageOps.OPCODE_TOP_FILES);
+		opcode = operation;
+		this.topFiles = topFiles;
+	}
+	
+	public DirMessage(byte operation, byte[][] parts) {
+		assert(operation == DirMessageOps.OPCODE_BATCH || operation == DirMessageOps.OPCODE_BATCH_RESULT);
+		opcode = operation;
+		this.parts = parts;
+	}
+	
 	/**
 	 * Método para obtener el tipo de mensaje (opcode)
 	 * @return
@@ -88,6 +271,29 @@ public class DirMessage {
 		return servers;
 	}
 	
+	/**
+	 * Puerto TCP del canal de transferencias grandes del directorio (ver
+	 * CatalogBulkServer), o 0 si no lo anuncia
+	 */
+	public int getBulkPort() {
+		return bulkPort;
+	}
+	
+	/**
+	 * Número de ficheros del catálogo a partir del cual conviene pedirlo por
+	 * el canal TCP
+	 */
+	public int getBulkThresholdFiles() {
+		return bulkThresholdFiles;
+	}
+	
+	/**
+	 * Número de ficheros del catálogo del directorio en el momento del login
+	 */
+	public int getNumFiles() {
+		return numFiles;
+	}
+	
 	public String getUserName() {
 		if (userName == null) {
 			System.err.println(
@@ -113,6 +319,100 @@ public class DirMessage {
 	public InetSocketAddress getServerAddress() {
 		return serverAddress;
 	}
+	
+	public InetAddress getOrigin() {
+		return origin;
+	}
+	
+	public byte[] getReplicatedRequest() {
+		return replicatedRequest;
+	}
+	
+	/**
+	 * Número de secuencia (versión) del catálogo: el último cambio del
+	 * directorio (SUBSCRIBE_OK, CATALOG_EVENTS, CATALOG_RESYNC_FULL) o el último
+	 * aplicado por el cliente (CATALOG_RESYNC, GETFILES_SINCE)
+	 */
+	public long getSeq() {
+		return seq;
+	}
+	
+	public int getLeaseMillis() {
+		return leaseMillis;
+	}
+	
+	/**
+	 * Tiempo (ms) que el cliente debe esperar antes de reenviar la solicitud
+	 * rechazada con SLOW_DOWN
+	 */
+	public int getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+	
+	public List<CatalogEvent> getEvents() {
+		return events;
+	}
+	
+	public String getQuery() {
+		return query;
+	}
+	
+	/**
+	 * Número máximo de resultados pedidos en una búsqueda
+	 */
+	public int getLimit() {
+		return limit;
+	}
+	
+	/**
+	 * Indica si una búsqueda tenía más resultados que los devueltos
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+	
+	/**
+	 * Transferencias en curso comunicadas en un heartbeat
+	 */
+	public int getActiveTransfers() {
+		return activeTransfers;
+	}
+	
+	/**
+	 * Ancho de banda de subida libre (kbps) comunicado en un heartbeat
+	 */
+	public int getFreeUploadKbps() {
+		return freeUploadKbps;
+	}
+	
+	/**
+	 * Servidores de un fichero, ordenados de mejor a peor
+	 */
+	public List<SeedInfo> getSeeds() {
+		return seeds;
+	}
+	
+	/**
+	 * Resumen de los hashes publicados (SERVE_FILES_SUMMARY)
+	 */
+	public BloomFilter getSummary() {
+		return summary;
+	}
+	
+	/**
+	 * Ficheros más pedidos, de más a menos demanda (TOP_FILES)
+	 */
+	public List<PopularFile> getTopFiles() {
+		return topFiles;
+	}
+
+	/**
+	 * Mensajes que lleva un BATCH, o respuestas de un BATCH_RESULT en el mismo
+	 * orden (vacía si la solicitud correspondiente no tiene respuesta)
+	 */
+	public byte[][] getParts() {
+		return parts;
+	}
 
 	/**
 	 * Método de clase para parsear los campos de un mensaje y construir el objeto
@@ -122,12 +422,47 @@ public class DirMessage {
 	 * @return
 	 */
 	public static DirMessage buildMessageFromReceivedData(byte[] data) {
+		return buildMessageFromReceivedData(data, 0, data.length);
+	}
+
+	/**
+	 * Método para construir el DirMessage de un mensaje que ocupa una parte de
+	 * un array (por ejemplo, el de recepción, tras el id de la solicitud), sin
+	 * copiarlo
+	 */
+	public static DirMessage buildMessageFromReceivedData(byte[] data, int offset, int length) {
 		/*
 		 * En función del tipo de mensaje, parsear el resto de campos para extraer
 		 * los valores y llamar al constructor para crear un objeto DirMessage que
 		 * contenga en sus atributos toda la información del mensaje
 		 */
-		ByteBuffer buf = ByteBuffer.wrap(data);
+		if (length > 0 && DirMessageV2.versionOf(data[offset]) == DirMessageV2.VERSION_2) {
+			// Los mensajes v2 se traducen a v1 y se interpretan igual
+			try {
+				data = DirMessageV2.toV1(data, offset, length);
+			} catch (RuntimeException e) { // Mensaje truncado o mal formado
+				e.printStackTrace();
+				return null;
+			}
+			offset = 0;
+			length = data.length;
+		}
+		try {
+			return parseFields(ByteBuffer.wrap(data, offset, length));
+		} catch (RuntimeException e) { // Mensaje truncado o mal formado
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Método para leer los campos de un mensaje v1. Las longitudes y números de
+	 * elementos se comprueban con lo que queda del mensaje antes de reservar
+	 * memoria (ver getBytes y getCount).
+	 *
+	 * @throws RuntimeException si el mensaje está truncado o mal formado
+	 */
+	private static DirMessage parseFields(ByteBuffer buf) {
 		byte opcode = buf.get();
 		DirMessage mensaje = null;
 		switch(opcode) {
@@ -136,13 +471,15 @@ public class DirMessage {
 			break;
 		case DirMessageOps.OPCODE_LOGIN_OK:
 			int servidores = buf.getInt();
-			mensaje = new DirMessage(opcode, servidores);
+			// Los campos del canal TCP son opcionales (directorios anteriores)
+			if (buf.remaining() >= 3 * Integer.BYTES) {
+				mensaje = new DirMessage(opcode, servidores, buf.getInt(), buf.getInt(), buf.getInt());
+			} else {
+				mensaje = new DirMessage(opcode, servidores);
+			}
 			break;
 		case DirMessageOps.OPCODE_REGISTER_USERNAME:
-			int longitud = buf.getInt();
-			byte [] nombre = new byte[longitud];
-			buf.get(nombre);
-			mensaje = new DirMessage(opcode, new String(nombre));
+			mensaje = new DirMessage(opcode, getString(buf));
 			break;
 		case DirMessageOps.OPCODE_REGISTER_USERNAME_OK:
 			mensaje = new DirMessage(opcode);
@@ -155,34 +492,37 @@ public class DirMessage {
 			break;
 		case DirMessageOps.OPCODE_USERLIST:
 			Set<String> users = new HashSet<String>();
-			int numerousers = buf.getInt();
+			int numerousers = getCount(buf);
 			for(int i = 0; i < numerousers; i++) {
-				int longitudnombre = buf.getInt();
-				byte [] nombreusuario = new byte[longitudnombre];
-				buf.get(nombreusuario);
-				users.add(new String(nombreusuario));
+				users.add(getString(buf));
 			}
 			mensaje = new DirMessage(opcode, users);
 			break;
 		case DirMessageOps.OPCODE_SERVE_FILES:
-			int longitudNick = buf.getInt();
-			byte [] nick = new byte[longitudNick];
-			buf.get(nick);
+			String nick = getString(buf);
 			int port = buf.getInt();
-			int numFicheros = buf.getInt();
+			int numFicheros = getCount(buf);
 			FileInfo[] metadatos = new FileInfo[numFicheros];
 			for(int i = 0; i < numFicheros; i++) {
-				int longitudNombre = buf.getInt();
-				byte [] nombreFichero = new byte[longitudNombre];
-				buf.get(nombreFichero);
-				int longitudHash = buf.getInt();
-				byte [] hashFichero = new byte[longitudHash];
-				buf.get(hashFichero);
+				String nombreFichero = getString(buf);
+				String hashFichero = getString(buf);
 				long tamaño = buf.getLong();
-				FileInfo f = new FileInfo(new String(hashFichero), new String(nombreFichero), tamaño, "../nf-shared/" + new String(nombreFichero));
+				FileInfo f = new FileInfo(hashFichero, nombreFichero, tamaño, "../nf-shared/" + nombreFichero);
 				metadatos[i] = f;
 			}
-			mensaje = new DirMessage(opcode, new String(nick), port, metadatos);
+			mensaje = new DirMessage(opcode, nick, port, metadatos);
+			break;
+		case DirMessageOps.OPCODE_SERVE_SUMMARY:
+			String nickResumen = getString(buf);
+			int puertoResumen = buf.getInt();
+			int nHashes = buf.get();
+			int nEntradas = buf.getInt();
+			byte[] bits = getBytes(buf, MAX_SUMMARY_BYTES);
+			try {
+				mensaje = new DirMessage(opcode, nickResumen, puertoResumen, BloomFilter.fromBytes(bits, nHashes, nEntradas));
+			} catch (IllegalArgumentException e) { // Resumen mal formado: se ignora la solicitud
+				e.printStackTrace();
+			}
 			break;
 		case DirMessageOps.OPCODE_SERVE_FILES_OK:
 			mensaje = new DirMessage(opcode);
@@ -191,17 +531,11 @@ public class DirMessage {
 			mensaje = new DirMessage(opcode);
 			break;
 		case DirMessageOps.OPCODE_LOOKUP_USERNAME:
-			int longitudBuscar = buf.getInt();
-			byte [] nombreBuscar = new byte[longitudBuscar];
-			buf.get(nombreBuscar);
-			mensaje = new DirMessage(opcode, new String(nombreBuscar));
+			mensaje = new DirMessage(opcode, getString(buf));
 			break;
 		case DirMessageOps.OPCODE_LOOKUP_USERNAME_FOUND:
 			try{
-				int longitudIP = buf.getInt();
-				byte[] ipportBytes = new byte[longitudIP];
-				buf.get(ipportBytes);
-				String [] IPPORT = new String(ipportBytes).split(":");
+				String [] IPPORT = getString(buf).split(":");
 				String IP = IPPORT[0];
 				String PORT = IPPORT[1];
 				InetSocketAddress addr = new InetSocketAddress(InetAddress.getByName(IP), Integer.parseInt(PORT));
@@ -214,35 +548,144 @@ public class DirMessage {
 			mensaje = new DirMessage(opcode);
 			break;
 		case DirMessageOps.OPCODE_LOGOFF:
-			int longitudLoff = buf.getInt();
-			byte [] nombreLoff = new byte[longitudLoff];
-			buf.get(nombreLoff);
-			mensaje = new DirMessage(opcode, new String(nombreLoff));
+		case DirMessageOps.OPCODE_LEASE_UNKNOWN:
+			mensaje = new DirMessage(opcode, getString(buf));
 			break;
 		case DirMessageOps.OPCODE_QUIT:
 			mensaje = new DirMessage(opcode);
 			break;
 		case DirMessageOps.OPCODE_SERVE_FILES_STOP:
-			int longitudStop = buf.getInt();
-			byte [] nombreStop = new byte[longitudStop];
-			buf.get(nombreStop);
-			mensaje = new DirMessage(opcode, new String(nombreStop));
+			mensaje = new DirMessage(opcode, getString(buf));
 			break;
 		case DirMessageOps.OPCODE_GETFILES:
 			mensaje = new DirMessage(opcode);
 			break;
+		case DirMessageOps.OPCODE_HEARTBEAT:
+			String nombreHeartbeat = getString(buf);
+			int transferencias = buf.getInt();
+			int anchoLibre = buf.getInt();
+			mensaje = new DirMessage(opcode, nombreHeartbeat, transferencias, anchoLibre);
+			break;
+		case DirMessageOps.OPCODE_REPLICATE:
+			try {
+				byte[] origen = getBytes(buf);
+				byte[] solicitud = getBytes(buf);
+				mensaje = new DirMessage(opcode, InetAddress.getByAddress(origen), solicitud);
+			} catch (Exception e) { // UnknownHostException, no debería saltar nunca
+				e.printStackTrace();
+			}
+			break;
+		case DirMessageOps.OPCODE_SUBSCRIBE:
+		case DirMessageOps.OPCODE_SUBSCRIBE_FAIL:
+		case DirMessageOps.OPCODE_RESPONSE_TOO_LARGE:
+		case DirMessageOps.OPCODE_REPLICATE_OK:
+			mensaje = new DirMessage(opcode);
+			break;
+		case DirMessageOps.OPCODE_SUBSCRIBE_OK:
+			long ultimo = buf.getLong();
+			mensaje = new DirMessage(opcode, ultimo, buf.getInt());
+			break;
+		case DirMessageOps.OPCODE_CATALOG_RESYNC:
+		case DirMessageOps.OPCODE_CATALOG_RESYNC_FULL:
+		case DirMessageOps.OPCODE_GETFILES_SINCE:
+			mensaje = new DirMessage(opcode, buf.getLong());
+			break;
+		case DirMessageOps.OPCODE_CATALOG_EVENTS:
+			try {
+				long cabeza = buf.getLong();
+				int numEventos = getCount(buf);
+				List<CatalogEvent> eventos = new ArrayList<CatalogEvent>(numEventos);
+				for(int i = 0; i < numEventos; i++) {
+					eventos.add(getCatalogEvent(buf));
+				}
+				mensaje = new DirMessage(opcode, cabeza, eventos);
+			} catch (Exception e) { // UnknownHostException, no debería saltar nunca
+				e.printStackTrace();
+			}
+			break;
+		case DirMessageOps.OPCODE_SEARCH_NAME:
+		case DirMessageOps.OPCODE_SEARCH_NAME_PREFIX:
+		case DirMessageOps.OPCODE_SEARCH_HASH_PREFIX:
+		case DirMessageOps.OPCODE_LOOKUP_HASH:
+			int limite = buf.getInt();
+			mensaje = new DirMessage(opcode, getString(buf), limite);
+			break;
+		case DirMessageOps.OPCODE_DOWNLOADED:
+			mensaje = new DirMessage(opcode, getString(buf), 0);
+			break;
+		case DirMessageOps.OPCODE_GET_TOP_FILES:
+			mensaje = new DirMessage(opcode, "", buf.getInt());
+			break;
+		case DirMessageOps.OPCODE_SLOW_DOWN:
+			mensaje = new DirMessage(opcode, buf.getInt());
+			break;
+		case DirMessageOps.OPCODE_TOP_FILES:
+			int nPopulares = getCount(buf);
+			List<PopularFile> populares = new ArrayList<PopularFile>(nPopulares);
+			for(int i = 0; i < nPopulares; i++) {
+				String hashPopular = getString(buf);
+				String nombrePopular = getString(buf);
+				long tamañoPopular = buf.getLong();
+				populares.add(new PopularFile(hashPopular, nombrePopular, tamañoPopular, buf.getInt(), buf.getInt()));
+			}
+			mensaje = new DirMessage(opcode, populares);
+			break;
+		case DirMessageOps.OPCODE_GET_REPLICATION_TASK:
+			mensaje = new DirMessage(opcode, getString(buf));
+			break;
+		case DirMessageOps.OPCODE_REPLICATION_TASK:
+			String hashTarea = getString(buf);
+			if(hashTarea.isEmpty()) {
+				mensaje = new DirMessage(opcode, new FileInfo[0]);
+			} else {
+				String nombreTarea = getString(buf);
+				mensaje = new DirMessage(opcode, new FileInfo[] { new FileInfo(hashTarea, nombreTarea, buf.getLong(), null) });
+			}
+			break;
+		case DirMessageOps.OPCODE_SEARCH_RESULTS:
+			boolean truncado = buf.get() != 0;
+			int nResultados = getCount(buf);
+			FileInfo[] resultados = new FileInfo[nResultados];
+			for(int i = 0; i < nResultados; i++) {
+				String hashResultado = getString(buf);
+				String nombreResultado = getString(buf);
+				resultados[i] = new FileInfo(hashResultado, nombreResultado, buf.getLong(), "../nf-shared/" + nombreResultado);
+			}
+			mensaje = new DirMessage(opcode, resultados, truncado);
+			break;
+		case DirMessageOps.OPCODE_LOOKUP_HASH_RESULT:
+			try {
+				String hashBuscado = getString(buf);
+				int nSeeds = getCount(buf);
+				List<SeedInfo> seeds = new ArrayList<SeedInfo>(nSeeds);
+				for(int i = 0; i < nSeeds; i++) {
+					String nickSeed = getString(buf);
+					byte[] ipSeed = getBytes(buf);
+					InetSocketAddress direccionSeed = new InetSocketAddress(InetAddress.getByAddress(ipSeed), buf.getInt());
+					seeds.add(new SeedInfo(nickSeed, direccionSeed, buf.getInt(), buf.getInt(), buf.getInt()));
+				}
+				mensaje = new DirMessage(opcode, hashBuscado, seeds);
+			} catch (Exception e) { // UnknownHostException, no debería saltar nunca
+				e.printStackTrace();
+			}
+			break;
+		case DirMessageOps.OPCODE_BATCH:
+		case DirMessageOps.OPCODE_BATCH_RESULT:
+			int nPartes = getCount(buf);
+			byte[][] partes = new byte[nPartes][];
+			for(int i = 0; i < nPartes; i++) {
+				partes[i] = getBytes(buf);
+			}
+			mensaje = new DirMessage(opcode, partes);
+			break;
 		case DirMessageOps.OPCODE_FILELIST:
-			int nFiles = buf.getInt();
+			int nFiles = getCount(buf);
 			FileInfo[] meta = new FileInfo[nFiles];
 			for(int i = 0; i < nFiles; i++) {
-				int longitudNombre = buf.getInt();
-				byte [] nombreFichero = new byte[longitudNombre];
-				buf.get(nombreFichero);
-				int longitudHash = buf.getInt();
-				byte [] hashFichero = new byte[longitudHash];
-				buf.get(hashFichero);
+				String nombreFichero = getString(buf);
+				String hashFichero = getString(buf);
 				long tamaño = buf.getLong();
-				FileInfo f = new FileInfo(new String(hashFichero), new String(nombreFichero), tamaño, "../nf-shared/" + new String(nombreFichero));
+				FileInfo f = new FileInfo(hashFichero, nombreFichero, tamaño, "../nf-shared/" + nombreFichero);
 				meta[i] = f;
 			}
 			mensaje = new DirMessage(opcode, meta);
@@ -258,6 +701,38 @@ public class DirMessage {
 	 * construir mensajes de petición/respuesta
 	 */
 	
+	/**
+	 * Método para construir el datagrama que lleva un mensaje: el id de la
+	 * solicitud seguido del mensaje
+	 */
+	public static byte[] frame(int requestId, byte[] message) {
+		ByteBuffer bb = ByteBuffer.allocate(REQUEST_ID_SIZE_BYTES + message.length);
+		bb.putInt(requestId);
+		bb.put(message);
+		return bb.array();
+	}
+
+	/**
+	 * Id de la solicitud de un datagrama recibido (con al menos
+	 * REQUEST_ID_SIZE_BYTES bytes)
+	 */
+	public static int getRequestId(byte[] datagram) {
+		return ByteBuffer.wrap(datagram).getInt();
+	}
+
+	/**
+	 * Método para extraer el mensaje de un datagrama recibido
+	 *
+	 * @param length Número de bytes recibidos
+	 * @return El mensaje, o null si el datagrama no llega a tener opcode
+	 */
+	public static byte[] unframe(byte[] datagram, int length) {
+		if (length <= REQUEST_ID_SIZE_BYTES) {
+			return null;
+		}
+		return Arrays.copyOfRange(datagram, REQUEST_ID_SIZE_BYTES, length);
+	}
+
 	/**
 	 * Método para construir una solicitud de ingreso en el directorio
 	 * 
@@ -278,18 +753,48 @@ public class DirMessage {
 	 */
 	public static byte[] buildLoginOKResponseMessage(int numServers) {
 		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES);
+		putLoginOKResponseMessage(bb, numServers);
+		return bb.array();
+	}
+	
+	/*
+	 * Métodos putXXXX: escriben el mensaje en un buffer que ya existe (el de
+	 * envío, reutilizado), para responder sin reservar memoria
+	 */
+	
+	public static void putLoginOKResponseMessage(ByteBuffer bb, int numServers) {
 		bb.put(DirMessageOps.OPCODE_LOGIN_OK);
 		bb.putInt(numServers);
+	}
+	
+	/**
+	 * Método para construir una respuesta al login que anuncia además el canal
+	 * TCP del directorio para catálogos grandes
+	 * 
+	 * @param bulkPort           Puerto TCP del canal, o 0 si no hay canal
+	 * @param bulkThresholdFiles Número de ficheros a partir del cual conviene
+	 *                           usar el canal
+	 * @param numFiles           Número de ficheros del catálogo
+	 */
+	public static byte[] buildLoginOKResponseMessage(int numServers, int bulkPort, int bulkThresholdFiles,
+			int numFiles) {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + 4 * Integer.BYTES);
+		putLoginOKResponseMessage(bb, numServers, bulkPort, bulkThresholdFiles, numFiles);
 		return bb.array();
 	}
 	
+	public static void putLoginOKResponseMessage(ByteBuffer bb, int numServers, int bulkPort,
+			int bulkThresholdFiles, int numFiles) {
+		putLoginOKResponseMessage(bb, numServers);
+		bb.putInt(bulkPort);
+		bb.putInt(bulkThresholdFiles);
+		bb.putInt(numFiles);
+	}
+	
 	public static byte[] buildRegisterRequestMessage(String nick) {
-		byte[] nombre = nick.getBytes();
-		int longitud = nick.length();
-		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES + longitud);
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + stringSize(nick));
 		bb.put(DirMessageOps.OPCODE_REGISTER_USERNAME);
-		bb.putInt(longitud);
-		bb.put(nombre);
+		putString(bb, nick);
 		return bb.array();
 	}
 	
@@ -312,47 +817,62 @@ public class DirMessage {
 	}
 	
 	public static byte[] buildUserListResponseMessage(Set<String> nicks, Set<String> servers) {
-		int bytesUserList = nicks.size()*Integer.BYTES;
+		int bytesUserList = 0;
 		for(String s : nicks) {
-			bytesUserList = bytesUserList + s.length();
-			if(servers.contains(s)) bytesUserList = bytesUserList + SERVER_IDENTIFIER.getBytes().length;
+			bytesUserList = bytesUserList + stringSize(servers.contains(s) ? s + SERVER_IDENTIFIER : s);
 		}
-		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES + (byte) bytesUserList);
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES + bytesUserList);
 		bb.put(DirMessageOps.OPCODE_USERLIST);
 		bb.putInt(nicks.size());
 		for(String s : nicks) {
-			if(servers.contains(s)) {
-				bb.putInt(s.getBytes().length + SERVER_IDENTIFIER.getBytes().length);
-				byte[] buf = (new String(s.getBytes(), StandardCharsets.UTF_8) + new String(SERVER_IDENTIFIER.getBytes(), StandardCharsets.UTF_8)).getBytes();
-				bb.put(buf);
-			}
-			else {
-				bb.putInt(s.getBytes().length);
-				bb.put(s.getBytes());
-			}
+			putString(bb, servers.contains(s) ? s + SERVER_IDENTIFIER : s);
 		}
 		return bb.array();
 	}
 	
 	public static byte[] buildServeFilesRequestMessage(int port, String nickname) {
-		FileInfo[] metadatos = NanoFiles.db.getFiles();
-		int bytesMetaDatos = metadatos.length * (Integer.BYTES * 2 + Long.BYTES);
+		return buildServeFilesRequestMessage(port, nickname, NanoFiles.db.getFiles());
+	}
+	
+	/**
+	 * Método para construir una solicitud de publicación de un resumen (filtro de
+	 * Bloom) de los hashes de los ficheros, en lugar de su lista. El directorio
+	 * sólo podrá responder si este peer probablemente sirve un hash concreto; el
+	 * resto de datos de los ficheros se piden al propio peer (queryfiles).
+	 * Formato: [nick][puerto:4][k:1][entradas:4][longitud:4][bits]
+	 */
+	public static byte[] buildServeSummaryRequestMessage(int port, String nickname, BloomFilter summary) {
+		byte[] bits = summary.getBits();
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + stringSize(nickname) + Integer.BYTES + 1
+				+ Integer.BYTES + Integer.BYTES + bits.length);
+		bb.put(DirMessageOps.OPCODE_SERVE_SUMMARY);
+		putString(bb, nickname);
+		bb.putInt(port);
+		bb.put((byte) summary.getNumHashes());
+		bb.putInt(summary.getNumEntries());
+		bb.putInt(bits.length);
+		bb.put(bits);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir una solicitud de publicación de una lista de ficheros
+	 * concreta (en un clúster, cada nodo recibe sólo los ficheros de los que es
+	 * responsable)
+	 */
+	public static byte[] buildServeFilesRequestMessage(int port, String nickname, FileInfo[] metadatos) {
+		int bytesMetaDatos = metadatos.length * Long.BYTES;
 		for(FileInfo f : metadatos) {
-			bytesMetaDatos = bytesMetaDatos + f.getName().length() + f.getHash().length();
+			bytesMetaDatos = bytesMetaDatos + stringSize(f.getName()) + stringSize(f.getHash());
 		}
-		byte[] nombre = nickname.getBytes();
-		int longitud = nickname.length();
-		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES + longitud + Integer.BYTES + Integer.BYTES + bytesMetaDatos);
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + stringSize(nickname) + Integer.BYTES + Integer.BYTES + bytesMetaDatos);
 		bb.put(DirMessageOps.OPCODE_SERVE_FILES);
-		bb.putInt(longitud);
-		bb.put(nombre);
+		putString(bb, nickname);
 		bb.putInt(port);
 		bb.putInt(metadatos.length);
 		for(FileInfo f : metadatos) {
-			bb.putInt(f.getName().length());
-			bb.put(f.getName().getBytes());
-			bb.putInt(f.getHash().length());
-			bb.put(f.getHash().getBytes());
+			putString(bb, f.getName());
+			putString(bb, f.getHash());
 			bb.putLong(f.getSize());
 		}
 		return bb.array();
@@ -365,41 +885,52 @@ public class DirMessage {
 	}
 	
 	public static byte[] buildLookupUserRequestMessage(String nickname) {
-		byte[] nombre = nickname.getBytes();
-		int longitud = nickname.length();
-		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES + longitud);
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + stringSize(nickname));
 		bb.put(DirMessageOps.OPCODE_LOOKUP_USERNAME);
-		bb.putInt(longitud);
-		bb.put(nombre);
+		putString(bb, nickname);
 		return bb.array();
 	}
 	
 	public static byte[] buildLookupUserFoundResponseMessage(InetSocketAddress server) {
+		byte[] buf = encodeServerAddress(server);
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES + buf.length);
+		putLookupUserFoundResponseMessage(bb, buf);
+		return bb.array();
+	}
+	
+	/**
+	 * Forma en que LOOKUP_USERNAME_FOUND lleva la dirección de un servidor
+	 * ("IP:puerto"), para calcularla una vez por servidor
+	 */
+	public static byte[] encodeServerAddress(InetSocketAddress server) {
 		String IP = server.getAddress().getHostAddress();
 		String PORT = Integer.toString(server.getPort());
-		String ipport = IP + ":" + PORT;
-		byte[] buf = ipport.getBytes();
-		int longitud = ipport.length();
-		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES + longitud);
+		return (IP + ":" + PORT).getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @param encodedServer Dirección obtenida con encodeServerAddress
+	 */
+	public static void putLookupUserFoundResponseMessage(ByteBuffer bb, byte[] encodedServer) {
 		bb.put(DirMessageOps.OPCODE_LOOKUP_USERNAME_FOUND);
-		bb.putInt(longitud);
-		bb.put(buf);
-		return bb.array();
+		bb.putInt(encodedServer.length);
+		bb.put(encodedServer);
 	}
 	
 	public static byte[] buildLookupUserNotFoundResponseMessage() {
 		ByteBuffer bb = ByteBuffer.allocate(OPCODE_SIZE_BYTES);
-		bb.put(DirMessageOps.OPCODE_LOOKUP_USERNAME_NOTFOUND);
+		putLookupUserNotFoundResponseMessage(bb);
 		return bb.array();
 	}
 	
+	public static void putLookupUserNotFoundResponseMessage(ByteBuffer bb) {
+		bb.put(DirMessageOps.OPCODE_LOOKUP_USERNAME_NOTFOUND);
+	}
+	
 	public static byte[] buildLogOffRequestMessage(String nickname) {
-		byte[] nombre = nickname.getBytes();
-		int longitud = nickname.length();
-		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES + longitud);
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + stringSize(nickname));
 		bb.put(DirMessageOps.OPCODE_LOGOFF);
-		bb.putInt(longitud);
-		bb.put(nombre);
+		putString(bb, nickname);
 		return bb.array();
 	}
 	
@@ -410,12 +941,9 @@ public class DirMessage {
 	}
 	
 	public static byte[] buildStopServerRequestMessage(String nick) {
-		byte[] nombre = nick.getBytes();
-		int longitud = nick.length();
-		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES + longitud);
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + stringSize(nick));
 		bb.put(DirMessageOps.OPCODE_SERVE_FILES_STOP);
-		bb.putInt(longitud);
-		bb.put(nombre);
+		putString(bb, nick);
 		return bb.array();
 	}
 	
@@ -432,23 +960,555 @@ public class DirMessage {
 	}
 	
 	public static byte[] buildFileListResponseMessage(FileInfo[] files) {
-		int bytesMetaDatos = files.length * (Integer.BYTES * 2 + Long.BYTES);
+		int bytesMetaDatos = files.length * Long.BYTES;
 		for(FileInfo f : files) {
-			bytesMetaDatos = bytesMetaDatos + f.getName().length() + f.getHash().length();
+			bytesMetaDatos = bytesMetaDatos + stringSize(f.getName()) + stringSize(f.getHash());
 		}
 		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES + bytesMetaDatos);
 		bb.put(DirMessageOps.OPCODE_FILELIST);
 		bb.putInt(files.length);
 		for(FileInfo f : files) {
-			bb.putInt(f.getName().length());
-			bb.put(f.getName().getBytes());
-			bb.putInt(f.getHash().length());
-			bb.put(f.getHash().getBytes());
+			putString(bb, f.getName());
+			putString(bb, f.getHash());
+			bb.putLong(f.getSize());
+		}
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir un heartbeat que renueva la concesión del nick (y
+	 * de sus ficheros publicados) y comunica la carga actual del servidor de
+	 * ficheros del peer. El directorio sólo responde (con LEASE_UNKNOWN) si el
+	 * nick no tiene concesión.
+	 * 
+	 * @param nick            El nick registrado por este peer
+	 * @param activeTransfers Descargas que está sirviendo en este momento
+	 * @param freeUploadKbps  Ancho de banda de subida libre estimado (kbps)
+	 * @return El array de bytes con el mensaje de heartbeat
+	 */
+	public static byte[] buildHeartbeatMessage(String nick, int activeTransfers, int freeUploadKbps) {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + stringSize(nick) + 2 * Integer.BYTES);
+		bb.put(DirMessageOps.OPCODE_HEARTBEAT);
+		putString(bb, nick);
+		bb.putInt(activeTransfers);
+		bb.putInt(freeUploadKbps);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir la confirmación de un REPLICATE
+	 */
+	public static byte[] buildReplicateOKMessage() {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES);
+		bb.put(DirMessageOps.OPCODE_REPLICATE_OK);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir la respuesta a un heartbeat de un nick cuya
+	 * concesión el directorio no conoce
+	 */
+	public static byte[] buildLeaseUnknownMessage(String nick) {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + stringSize(nick));
+		bb.put(DirMessageOps.OPCODE_LEASE_UNKNOWN);
+		putString(bb, nick);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir el mensaje con el que un nodo del clúster reenvía a
+	 * las réplicas una modificación ya aplicada. Las réplicas la aplican sin
+	 * volver a reenviarla, y la confirman con REPLICATE_OK.
+	 * 
+	 * @param origin  La IP del cliente que hizo la solicitud original (da la IP de
+	 *                los servidores de ficheros)
+	 * @param request El mensaje de solicitud a aplicar en la réplica
+	 * @return El array de bytes con el mensaje de replicación
+	 */
+	public static byte[] buildReplicateMessage(InetAddress origin, byte[] request) {
+		byte[] ip = origin.getAddress();
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES + ip.length + Integer.BYTES + request.length);
+		bb.put(DirMessageOps.OPCODE_REPLICATE);
+		bb.putInt(ip.length);
+		bb.put(ip);
+		bb.putInt(request.length);
+		bb.put(request);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir una solicitud (o renovación) de suscripción a los
+	 * cambios del catálogo
+	 */
+	public static byte[] buildSubscribeRequestMessage() {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES);
+		bb.put(DirMessageOps.OPCODE_SUBSCRIBE);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir la respuesta a una suscripción aceptada
+	 * 
+	 * @param headSeq     Número de secuencia del último cambio del catálogo
+	 * @param leaseMillis Duración de la suscripción
+	 */
+	public static byte[] buildSubscribeOKResponseMessage(long headSeq, int leaseMillis) {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Long.BYTES + Integer.BYTES);
+		bb.put(DirMessageOps.OPCODE_SUBSCRIBE_OK);
+		bb.putLong(headSeq);
+		bb.putInt(leaseMillis);
+		return bb.array();
+	}
+	
+	public static byte[] buildSubscribeFAILResponseMessage() {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES);
+		bb.put(DirMessageOps.OPCODE_SUBSCRIBE_FAIL);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir el mensaje con una serie de cambios consecutivos del
+	 * catálogo
+	 * 
+	 * @param headSeq Número de secuencia del último cambio del catálogo (si es
+	 *                mayor que el del último evento, hay más cambios pendientes)
+	 * @param events  Los cambios, en orden de secuencia
+	 */
+	public static byte[] buildCatalogEventsMessage(long headSeq, List<CatalogEvent> events) {
+		int bytesEventos = 0;
+		for(CatalogEvent e : events) {
+			bytesEventos = bytesEventos + catalogEventSize(e);
+		}
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Long.BYTES + Integer.BYTES + bytesEventos);
+		bb.put(DirMessageOps.OPCODE_CATALOG_EVENTS);
+		bb.putLong(headSeq);
+		bb.putInt(events.size());
+		for(CatalogEvent e : events) {
+			putCatalogEvent(bb, e);
+		}
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir la solicitud de reenvío de los cambios posteriores
+	 * al último que ha aplicado el suscriptor (tras detectar un hueco)
+	 */
+	public static byte[] buildCatalogResyncRequestMessage(long lastAppliedSeq) {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Long.BYTES);
+		bb.put(DirMessageOps.OPCODE_CATALOG_RESYNC);
+		bb.putLong(lastAppliedSeq);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir el aviso de que los cambios pedidos ya no están en el
+	 * historial: el suscriptor debe descargar el catálogo completo (GETFILES) y
+	 * aplicar a partir de "headSeq"
+	 */
+	public static byte[] buildCatalogResyncFullMessage(long headSeq) {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Long.BYTES);
+		bb.put(DirMessageOps.OPCODE_CATALOG_RESYNC_FULL);
+		bb.putLong(headSeq);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir una solicitud de los cambios del catálogo posteriores
+	 * a la versión que tiene el cliente. La respuesta es CATALOG_EVENTS (quizá
+	 * sólo los primeros cambios, si son muchos) o CATALOG_RESYNC_FULL si la
+	 * versión es demasiado antigua.
+	 */
+	public static byte[] buildGetFilesSinceRequestMessage(long version) {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Long.BYTES);
+		bb.put(DirMessageOps.OPCODE_GETFILES_SINCE);
+		bb.putLong(version);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir una solicitud de búsqueda en el catálogo
+	 * 
+	 * @param opcode OPCODE_SEARCH_NAME (ficheros con todas las palabras de la
+	 *               consulta), OPCODE_SEARCH_NAME_PREFIX u
+	 *               OPCODE_SEARCH_HASH_PREFIX
+	 * @param query  Palabras, prefijo del nombre o prefijo del hash
+	 * @param limit  Número máximo de resultados (el directorio no devuelve más de
+	 *               MAX_SEARCH_RESULTS)
+	 */
+	public static byte[] buildSearchRequestMessage(byte opcode, String query, int limit) {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES + stringSize(query));
+		bb.put(opcode);
+		bb.putInt(limit);
+		putString(bb, query);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir la respuesta a una búsqueda
+	 * 
+	 * @param results   Ficheros encontrados
+	 * @param truncated Si había más resultados que el límite pedido
+	 */
+	public static byte[] buildSearchResultsMessage(List<FileInfo> results, boolean truncated) {
+		int bytesResultados = 0;
+		for(FileInfo f : results) {
+			bytesResultados = bytesResultados + stringSize(f.getHash()) + stringSize(f.getName()) + Long.BYTES;
+		}
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + 1 + Integer.BYTES + bytesResultados);
+		bb.put(DirMessageOps.OPCODE_SEARCH_RESULTS);
+		bb.put((byte) (truncated ? 1 : 0));
+		bb.putInt(results.size());
+		for(FileInfo f : results) {
+			putString(bb, f.getHash());
+			putString(bb, f.getName());
+			bb.putLong(f.getSize());
+		}
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir una solicitud de los servidores de un fichero
+	 * 
+	 * @param hash El hash del fichero, o un prefijo que lo identifique
+	 * @param limit Número máximo de servidores (el directorio no devuelve más de
+	 *              MAX_SEEDS)
+	 */
+	public static byte[] buildLookupHashRequestMessage(String hash, int limit) {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES + stringSize(hash));
+		bb.put(DirMessageOps.OPCODE_LOOKUP_HASH);
+		bb.putInt(limit);
+		putString(bb, hash);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir la respuesta con los servidores de un fichero:
+	 * [hash][n] y, por cada servidor, [nick][ip][puerto:4][transferencias:4]
+	 * [kbps libres:4][antigüedad ms:4]
+	 * 
+	 * @param hash  El hash completo del fichero (la consulta si no se ha
+	 *              encontrado)
+	 * @param seeds Los servidores, de mejor a peor (vacío si no se ha encontrado)
+	 */
+	public static byte[] buildLookupHashResultMessage(String hash, List<SeedInfo> seeds) {
+		int bytesSeeds = 0;
+		for(SeedInfo s : seeds) {
+			bytesSeeds = bytesSeeds + stringSize(s.getNick()) + Integer.BYTES + s.getAddress().getAddress().getAddress().length + 4 * Integer.BYTES;
+		}
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + stringSize(hash) + Integer.BYTES + bytesSeeds);
+		bb.put(DirMessageOps.OPCODE_LOOKUP_HASH_RESULT);
+		putString(bb, hash);
+		bb.putInt(seeds.size());
+		for(SeedInfo s : seeds) {
+			putString(bb, s.getNick());
+			byte[] ip = s.getAddress().getAddress().getAddress();
+			bb.putInt(ip.length);
+			bb.put(ip);
+			bb.putInt(s.getAddress().getPort());
+			bb.putInt(s.getActiveTransfers());
+			bb.putInt(s.getFreeUploadKbps());
+			bb.putInt(s.getAgeMillis());
+		}
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir el aviso de que este peer ha descargado un fichero,
+	 * con el que el directorio mide la demanda de cada fichero. El directorio no
+	 * responde a este mensaje.
+	 * 
+	 * @param hash El hash del fichero descargado
+	 */
+	public static byte[] buildDownloadedMessage(String hash) {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + stringSize(hash));
+		bb.put(DirMessageOps.OPCODE_DOWNLOADED);
+		putString(bb, hash);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir la respuesta a una solicitud que supera el límite
+	 * del cliente
+	 * 
+	 * @param retryAfterMillis Tiempo (ms) tras el que se puede reenviar
+	 */
+	public static byte[] buildSlowDownMessage(int retryAfterMillis) {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES);
+		putSlowDownMessage(bb, retryAfterMillis);
+		return bb.array();
+	}
+	
+	public static void putSlowDownMessage(ByteBuffer bb, int retryAfterMillis) {
+		bb.put(DirMessageOps.OPCODE_SLOW_DOWN);
+		bb.putInt(retryAfterMillis);
+	}
+	
+	/**
+	 * Método para construir la respuesta que sustituye a otra que no cabe en un
+	 * datagrama
+	 */
+	public static byte[] buildResponseTooLargeMessage() {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES);
+		bb.put(DirMessageOps.OPCODE_RESPONSE_TOO_LARGE);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir una solicitud de los ficheros más pedidos
+	 * 
+	 * @param limit Número máximo de ficheros (el directorio no devuelve más de
+	 *              MAX_TOP_FILES)
+	 */
+	public static byte[] buildGetTopFilesRequestMessage(int limit) {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES);
+		bb.put(DirMessageOps.OPCODE_GET_TOP_FILES);
+		bb.putInt(limit);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir la respuesta con los ficheros más pedidos: [n] y, por
+	 * cada fichero, [hash][nombre][tamaño:8][consultas:4][descargas:4]
+	 */
+	public static byte[] buildTopFilesResponseMessage(List<PopularFile> files) {
+		int bytesFicheros = 0;
+		for(PopularFile f : files) {
+			bytesFicheros = bytesFicheros + stringSize(f.getHash()) + stringSize(f.getName()) + Long.BYTES + 2 * Integer.BYTES;
+		}
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES + bytesFicheros);
+		bb.put(DirMessageOps.OPCODE_TOP_FILES);
+		bb.putInt(files.size());
+		for(PopularFile f : files) {
+			putString(bb, f.getHash());
+			putString(bb, f.getName());
 			bb.putLong(f.getSize());
+			bb.putInt(f.getLookups());
+			bb.putInt(f.getDownloads());
 		}
 		return bb.array();
 	}
 	
+	/**
+	 * Método para construir la solicitud con la que un peer que se ofrece a
+	 * replicar ficheros populares pide al directorio qué fichero debe copiar
+	 * 
+	 * @param nick El nick con el que el peer sirve sus ficheros
+	 */
+	public static byte[] buildGetReplicationTaskRequestMessage(String nick) {
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + stringSize(nick));
+		bb.put(DirMessageOps.OPCODE_GET_REPLICATION_TASK);
+		putString(bb, nick);
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir la respuesta con el fichero a replicar:
+	 * [hash][nombre][tamaño:8], o sólo un hash vacío si no hay que replicar nada
+	 * 
+	 * @param task El fichero a replicar, o null
+	 */
+	public static byte[] buildReplicationTaskResponseMessage(FileInfo task) {
+		if(task == null) {
+			ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + stringSize(""));
+			bb.put(DirMessageOps.OPCODE_REPLICATION_TASK);
+			putString(bb, "");
+			return bb.array();
+		}
+		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + stringSize(task.getHash()) + stringSize(task.getName()) + Long.BYTES);
+		bb.put(DirMessageOps.OPCODE_REPLICATION_TASK);
+		putString(bb, task.getHash());
+		putString(bb, task.getName());
+		bb.putLong(task.getSize());
+		return bb.array();
+	}
+	
+	/**
+	 * Método para construir una solicitud que agrupa varias solicitudes en un
+	 * único datagrama: [n:4] y, por cada una, [longitud:4][mensaje]. El
+	 * directorio las ejecuta en orden y responde con un único BATCH_RESULT.
+	 * 
+	 * @param requests Mensajes construidos con los métodos build*Request*
+	 */
+	public static byte[] buildBatchRequestMessage(byte[][] requests) {
+		return buildBatch(DirMessageOps.OPCODE_BATCH, requests);
+	}
+	
+	/**
+	 * Método para construir la respuesta a un BATCH, con la respuesta a cada
+	 * solicitud en el mismo orden y en el mismo formato
+	 * 
+	 * @param responses Respuestas (un array vacío si no la hay)
+	 */
+	public static byte[] buildBatchResponseMessage(byte[][] responses) {
+		return buildBatch(DirMessageOps.OPCODE_BATCH_RESULT, responses);
+	}
+	
+	/**
+	 * Tamaño (bytes) de un BATCH o BATCH_RESULT con estos mensajes
+	 */
+	public static int batchSize(byte[][] parts) {
+		int size = DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES;
+		for(byte[] part : parts) {
+			size += Integer.BYTES + part.length;
+		}
+		return size;
+	}
+	
+	private static byte[] buildBatch(byte opcode, byte[][] parts) {
+		ByteBuffer bb = ByteBuffer.allocate(batchSize(parts));
+		bb.put(opcode);
+		bb.putInt(parts.length);
+		for(byte[] part : parts) {
+			bb.putInt(part.length);
+			bb.put(part);
+		}
+		return bb.array();
+	}
+	
+	/*
+	 * Canal TCP del directorio: cada mensaje va precedido de su longitud
+	 * ([longitud:4][mensaje], sin id de solicitud) y un mensaje vacío marca el
+	 * final de la respuesta
+	 */
+	
+	/**
+	 * Método para escribir un mensaje en el canal TCP (un array vacío es el
+	 * final de la respuesta)
+	 */
+	public static void writeStreamFrame(DataOutputStream dos, byte[] message) throws IOException {
+		dos.writeInt(message.length);
+		dos.write(message);
+	}
+	
+	/**
+	 * Método para leer un mensaje del canal TCP
+	 * 
+	 * @return El mensaje, o un array vacío si es el final de la respuesta
+	 * @throws IOException si la conexión se cierra o el mensaje es demasiado
+	 *                     grande
+	 */
+	public static byte[] readStreamFrame(DataInputStream dis) throws IOException {
+		int length = dis.readInt();
+		if (length < 0 || length > MAX_STREAM_FRAME_BYTES) {
+			throw new IOException("Invalid stream frame length " + length);
+		}
+		byte[] message = new byte[length];
+		dis.readFully(message);
+		return message;
+	}
+	
+	/*
+	 * Codificación de un cambio del catálogo: [seq:8][tipo:1] seguido de
+	 * FILE_ADDED: [hash][nombre][tamaño:8][propietario]; FILE_REMOVED: [hash];
+	 * SERVER_UP: [nick][ip][puerto:4]; SERVER_DOWN: [nick]. Las cadenas e IPs
+	 * van precedidas de su longitud en bytes (int).
+	 */
+	
+	private static int catalogEventSize(CatalogEvent e) {
+		int size = Long.BYTES + 1;
+		switch(e.getType()) {
+		case CatalogEvent.FILE_ADDED:
+			return size + stringSize(e.getFile().getHash()) + stringSize(e.getFile().getName()) + Long.BYTES + stringSize(e.getNick());
+		case CatalogEvent.FILE_REMOVED:
+			return size + stringSize(e.getFile().getHash());
+		case CatalogEvent.SERVER_UP:
+			return size + stringSize(e.getNick()) + Integer.BYTES + e.getAddress().getAddress().getAddress().length + Integer.BYTES;
+		default:
+			return size + stringSize(e.getNick());
+		}
+	}
+	
+	private static void putCatalogEvent(ByteBuffer bb, CatalogEvent e) {
+		bb.putLong(e.getSeq());
+		bb.put(e.getType());
+		switch(e.getType()) {
+		case CatalogEvent.FILE_ADDED:
+			putString(bb, e.getFile().getHash());
+			putString(bb, e.getFile().getName());
+			bb.putLong(e.getFile().getSize());
+			putString(bb, e.getNick());
+			break;
+		case CatalogEvent.FILE_REMOVED:
+			putString(bb, e.getFile().getHash());
+			break;
+		case CatalogEvent.SERVER_UP:
+			putString(bb, e.getNick());
+			byte[] ip = e.getAddress().getAddress().getAddress();
+			bb.putInt(ip.length);
+			bb.put(ip);
+			bb.putInt(e.getAddress().getPort());
+			break;
+		default:
+			putString(bb, e.getNick());
+		}
+	}
+	
+	private static CatalogEvent getCatalogEvent(ByteBuffer buf) throws java.net.UnknownHostException {
+		long seq = buf.getLong();
+		byte type = buf.get();
+		switch(type) {
+		case CatalogEvent.FILE_ADDED:
+			String hash = getString(buf);
+			String nombre = getString(buf);
+			long tamaño = buf.getLong();
+			FileInfo f = new FileInfo(hash, nombre, tamaño, "../nf-shared/" + nombre);
+			return new CatalogEvent(seq, type, getString(buf), f, null);
+		case CatalogEvent.FILE_REMOVED:
+			return new CatalogEvent(seq, type, null, new FileInfo(getString(buf), null, 0, null), null);
+		case CatalogEvent.SERVER_UP:
+			String nick = getString(buf);
+			byte[] ip = getBytes(buf);
+			InetSocketAddress addr = new InetSocketAddress(InetAddress.getByAddress(ip), buf.getInt());
+			return new CatalogEvent(seq, type, nick, null, addr);
+		default:
+			return new CatalogEvent(seq, type, getString(buf), null, null);
+		}
+	}
+	
+	private static int stringSize(String s) {
+		return Integer.BYTES + s.getBytes(StandardCharsets.UTF_8).length;
+	}
+	
+	private static void putString(ByteBuffer bb, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		bb.putInt(bytes.length);
+		bb.put(bytes);
+	}
+	
+	private static String getString(ByteBuffer buf) {
+		return new String(getBytes(buf), StandardCharsets.UTF_8);
+	}
+
+	private static byte[] getBytes(ByteBuffer buf) {
+		return getBytes(buf, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Lee un campo precedido de su longitud (int), que no puede pasar de "max"
+	 * ni de lo que queda del mensaje
+	 */
+	private static byte[] getBytes(ByteBuffer buf, int max) {
+		int length = buf.getInt();
+		if (length < 0 || length > Math.min(max, buf.remaining())) {
+			throw new IllegalArgumentException("Field length out of range: " + length);
+		}
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Lee un número de elementos. Cada elemento ocupa al menos un int, así que
+	 * no puede haber más de los que caben en lo que queda del mensaje.
+	 */
+	private static int getCount(ByteBuffer buf) {
+		int count = buf.getInt();
+		if (count < 0 || count > buf.remaining() / Integer.BYTES) {
+			throw new IllegalArgumentException("Element count out of range: " + count);
+		}
+		return count;
+	}
+	
 	/*
 	 * Crear métodos processXXXXRequestMessage/processXXXXResponseMessage para
 	 * parsear el mensaje recibido y devolver un objeto según el tipo de dato que
@@ -491,7 +1551,11 @@ public class DirMessage {
 		if(opcode == DirMessageOps.OPCODE_USERLIST) {
 			return response.getUserList();
 		}
-		System.out.println("* Error when retrieving user list");
+		if(opcode == DirMessageOps.OPCODE_RESPONSE_TOO_LARGE) {
+			System.out.println("* User list too large to be sent by the directory");
+		} else {
+			System.out.println("* Error when retrieving user list");
+		}
 		HashSet<String> vacio = new HashSet<String>();
 		return vacio;
 	}
@@ -534,6 +1598,20 @@ public class DirMessage {
 		}
 	}
 	
+	/**
+	 * Método que procesa la respuesta a un BATCH
+	 * 
+	 * @return La respuesta a cada solicitud en orden (vacía si el directorio no
+	 *         la ha incluido), o null si no es un BATCH_RESULT
+	 */
+	public static byte[][] processBatchResponseMessage(byte[] data) {
+		DirMessage response = buildMessageFromReceivedData(data);
+		if (response != null && response.getOpcode() == DirMessageOps.OPCODE_BATCH_RESULT) {
+			return response.getParts();
+		}
+		return null;
+	}
+	
 	public static FileInfo[] processGetFilesResponse(byte[] data) {
 		DirMessage response = buildMessageFromReceivedData(data);
 		byte opcode = response.getOpcode();
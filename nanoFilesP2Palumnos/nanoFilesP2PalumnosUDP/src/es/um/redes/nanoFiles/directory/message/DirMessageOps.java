@@ -25,6 +25,48 @@ public class DirMessageOps {
 	public static final byte OPCODE_FILELIST = 18;
 	public static final byte OPCODE_LOGOFF = 19;
 	public static final byte OPCODE_QUIT = 20;
+	public static final byte OPCODE_HEARTBEAT = 21;
+	public static final byte OPCODE_REPLICATE = 22;
+	public static final byte OPCODE_SUBSCRIBE = 23;
+	public static final byte OPCODE_SUBSCRIBE_OK = 24;
+	public static final byte OPCODE_SUBSCRIBE_FAIL = 25;
+	public static final byte OPCODE_CATALOG_EVENTS = 26;
+	public static final byte OPCODE_CATALOG_RESYNC = 27;
+	public static final byte OPCODE_CATALOG_RESYNC_FULL = 28;
+	public static final byte OPCODE_GETFILES_SINCE = 29;
+	public static final byte OPCODE_SEARCH_NAME = 30;
+	public static final byte OPCODE_SEARCH_NAME_PREFIX = 31;
+	public static final byte OPCODE_SEARCH_HASH_PREFIX = 32;
+	public static final byte OPCODE_SEARCH_RESULTS = 33;
+	public static final byte OPCODE_LOOKUP_HASH = 34;
+	public static final byte OPCODE_LOOKUP_HASH_RESULT = 35;
+	public static final byte OPCODE_SERVE_SUMMARY = 36;
+	public static final byte OPCODE_DOWNLOADED = 37;
+	public static final byte OPCODE_GET_TOP_FILES = 38;
+	public static final byte OPCODE_TOP_FILES = 39;
+	public static final byte OPCODE_GET_REPLICATION_TASK = 40;
+	public static final byte OPCODE_REPLICATION_TASK = 41;
+	public static final byte OPCODE_BATCH = 42;
+	public static final byte OPCODE_BATCH_RESULT = 43;
+	/**
+	 * Respuesta a una solicitud que supera el límite del cliente: debe
+	 * reenviarla pasado el tiempo que indica
+	 */
+	public static final byte OPCODE_SLOW_DOWN = 44;
+	/**
+	 * Respuesta que no cabe en un datagrama (catálogo demasiado grande): el
+	 * cliente debe pedirla por el canal TCP del directorio
+	 */
+	public static final byte OPCODE_RESPONSE_TOO_LARGE = 45;
+	/**
+	 * Respuesta a un heartbeat de un nick sin concesión (caducada, o el
+	 * directorio se ha reiniciado): el peer debe volver a registrarse
+	 */
+	public static final byte OPCODE_LEASE_UNKNOWN = 46;
+	/**
+	 * Confirmación de un REPLICATE (se retransmite hasta recibirla)
+	 */
+	public static final byte OPCODE_REPLICATE_OK = 47;
 	
 	private static final Byte[] _valid_opcodes = { 
 			OPCODE_LOGIN, 
@@ -45,7 +87,34 @@ public class DirMessageOps {
 			OPCODE_GETFILES, 
 			OPCODE_FILELIST, 
 			OPCODE_LOGOFF,
-			OPCODE_QUIT };
+			OPCODE_QUIT,
+			OPCODE_HEARTBEAT,
+			OPCODE_REPLICATE,
+			OPCODE_SUBSCRIBE,
+			OPCODE_SUBSCRIBE_OK,
+			OPCODE_SUBSCRIBE_FAIL,
+			OPCODE_CATALOG_EVENTS,
+			OPCODE_CATALOG_RESYNC,
+			OPCODE_CATALOG_RESYNC_FULL,
+			OPCODE_GETFILES_SINCE,
+			OPCODE_SEARCH_NAME,
+			OPCODE_SEARCH_NAME_PREFIX,
+			OPCODE_SEARCH_HASH_PREFIX,
+			OPCODE_SEARCH_RESULTS,
+			OPCODE_LOOKUP_HASH,
+			OPCODE_LOOKUP_HASH_RESULT,
+			OPCODE_SERVE_SUMMARY,
+			OPCODE_DOWNLOADED,
+			OPCODE_GET_TOP_FILES,
+			OPCODE_TOP_FILES,
+			OPCODE_GET_REPLICATION_TASK,
+			OPCODE_REPLICATION_TASK,
+			OPCODE_BATCH,
+			OPCODE_BATCH_RESULT,
+			OPCODE_SLOW_DOWN,
+			OPCODE_RESPONSE_TOO_LARGE,
+			OPCODE_LEASE_UNKNOWN,
+			OPCODE_REPLICATE_OK };
 	
 	private static final String[] _valid_operations_str = { 
 			"SIGNIN", 
@@ -66,7 +135,34 @@ public class DirMessageOps {
 			"GET_FILELIST", 
 			"FILELIST",
 			"LOGOFF",
-			"QUIT" };
+			"QUIT",
+			"HEARTBEAT",
+			"REPLICATE",
+			"SUBSCRIBE",
+			"SUBSCRIBE_OK",
+			"SUBSCRIBE_FAIL",
+			"CATALOG_EVENTS",
+			"CATALOG_RESYNC",
+			"CATALOG_RESYNC_FULL",
+			"GET_FILELIST_SINCE",
+			"SEARCH_NAME",
+			"SEARCH_NAME_PREFIX",
+			"SEARCH_HASH_PREFIX",
+			"SEARCH_RESULTS",
+			"LOOKUP_HASH",
+			"LOOKUP_HASH_RESULT",
+			"SERVE_FILES_SUMMARY",
+			"DOWNLOADED",
+			"GET_TOP_FILES",
+			"TOP_FILES",
+			"GET_REPLICATION_TASK",
+			"REPLICATION_TASK",
+			"BATCH",
+			"BATCH_RESULT",
+			"SLOW_DOWN",
+			"RESPONSE_TOO_LARGE",
+			"LEASE_UNKNOWN",
+			"REPLICATE_OK" };
 
 	private static Map<String, Byte> _operation_to_opcode;
 	private static Map<Byte, String> _opcode_to_operation;
@@ -0,0 +1,843 @@
+package es.um.redes.nanoFiles.directory.message;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Formato compacto (v2) de los mensajes del directorio. Lleva los mismos
+ * campos que el formato original (v1) y en el mismo orden, pero:
+ *
+ * - Las longitudes y los contadores son varints (7 bits por byte, el bit alto
+ * indica que sigue otro byte), y los demás enteros, varints en zigzag.
+ * - Los hashes (SHA-1 en hexadecimal) van como sus 20 bytes, con una cabecera
+ * varint (longitud << 1 | 1). Un hash que no es hexadecimal en minúsculas va
+ * como texto (longitud << 1).
+ * - Las direcciones van como [longitud de la IP:1][IP (4 o 16 bytes)]
+ * [puerto:2], también en LOOKUP_USERNAME_FOUND, que en v1 las lleva como
+ * texto "IP:puerto".
+ *
+ * Un mensaje v2 se distingue por el bit alto del opcode (VERSION_FLAG), así que
+ * el directorio atiende a la vez a clientes de las dos versiones y responde a
+ * cada uno en la suya. Los mensajes se construyen y se interpretan siempre en
+ * v1 (métodos de DirMessage): fromV1 y toV1 traducen un mensaje completo de un
+ * formato a otro recorriendo sus campos.
+ *
+ * Las listas largas (FILELIST y USERLIST de más de COMPRESS_MIN_BYTES) se
+ * comprimen con Deflate, con un diccionario de fragmentos habituales en los
+ * nombres de fichero. El bit COMPRESSED_FLAG del opcode marca un mensaje
+ * comprimido: [opcode][longitud sin comprimir (varint)][campos comprimidos].
+ * Como sólo se comprimen mensajes v2, los clientes v1 no los reciben nunca.
+ */
+public class DirMessageV2 {
+
+	public static final int VERSION_1 = 1;
+	public static final int VERSION_2 = 2;
+	/**
+	 * Bit del opcode que marca un mensaje v2 (los opcodes son menores que 128)
+	 */
+	public static final byte VERSION_FLAG = (byte) 0x80;
+	/**
+	 * Bit del opcode que marca un mensaje v2 comprimido (los opcodes son menores
+	 * que 64)
+	 */
+	public static final byte COMPRESSED_FLAG = 0x40;
+	/**
+	 * Tamaño (bytes) a partir del cual se comprimen las listas
+	 */
+	public static final int COMPRESS_MIN_BYTES = 512;
+	/**
+	 * Tamaño máximo (bytes) de un mensaje descomprimido
+	 */
+	public static final int MAX_INFLATED_BYTES = 1 << 20;
+	/**
+	 * Diccionario de Deflate: extensiones y palabras frecuentes en los nombres,
+	 * y la marca de servidor de USERLIST. Deflate referencia mejor lo que está
+	 * al final, así que lo más frecuente va al final.
+	 */
+	private static final byte[] DICTIONARY = ("backup_copy_final_version_draft_report_notes_image_photo_video_"
+			+ "music_song_track_album_document_file_data_test_sample_readme_"
+			+ ".tar.gz.tgz.7z.rar.iso.exe.bin.dat.log.csv.json.xml.html.java.py.c.h"
+			+ ".doc.docx.odt.xls.xlsx.ppt.pptx.epub.png.gif.jpeg.jpg.mkv.avi.mov.mp4"
+			+ ".flac.ogg.wav.mp3.zip.pdf.txt" + DirMessage.SERVER_IDENTIFIER).getBytes(StandardCharsets.UTF_8);
+
+	private static final int DIGEST_HEX = 1;
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Versión del mensaje que empieza por este opcode
+	 */
+	public static int versionOf(byte opcode) {
+		return (opcode & VERSION_FLAG) != 0 ? VERSION_2 : VERSION_1;
+	}
+
+	/**
+	 * Opcode sin las marcas de versión y de compresión
+	 */
+	public static byte baseOpcode(byte opcode) {
+		return (byte) (opcode & ~(VERSION_FLAG | COMPRESSED_FLAG));
+	}
+
+	public static boolean isCompressed(byte opcode) {
+		return (opcode & (VERSION_FLAG | COMPRESSED_FLAG)) == (VERSION_FLAG | COMPRESSED_FLAG);
+	}
+
+	/**
+	 * Método para traducir un mensaje v1 a v2, comprimido si es una lista larga.
+	 * Los mensajes vacíos (respuestas vacías de un lote) y los que ya están en
+	 * v2 se devuelven tal cual.
+	 *
+	 * @throws IllegalArgumentException Si el opcode no existe
+	 * @throws java.nio.BufferUnderflowException Si el mensaje está truncado
+	 */
+	public static byte[] fromV1(byte[] message) {
+		if (message.length == 0 || versionOf(message[0]) == VERSION_2) {
+			return message;
+		}
+		Writer out = new V2Writer(message.length);
+		out.putByte((byte) (message[0] | VERSION_FLAG));
+		copyFields(message[0], new V1Reader(ByteBuffer.wrap(message, 1, message.length - 1)), out, true);
+		byte[] v2 = out.toByteArray();
+		if (message[0] == DirMessageOps.OPCODE_FILELIST || message[0] == DirMessageOps.OPCODE_USERLIST) {
+			return compress(v2);
+		}
+		return v2;
+	}
+
+	/**
+	 * Método para traducir a v1 un mensaje v2 que ocupa una parte de un array.
+	 * Los mensajes vacíos y los que ya están en v1 se copian tal cual.
+	 */
+	public static byte[] toV1(byte[] data, int offset, int length) {
+		if (length == 0 || versionOf(data[offset]) == VERSION_1) {
+			return Arrays.copyOfRange(data, offset, offset + length);
+		}
+		if (isCompressed(data[offset])) {
+			data = inflate(data, offset, length);
+			offset = 0;
+			length = data.length;
+		}
+		byte opcode = baseOpcode(data[offset]);
+		// Un mensaje v1 ocupa, como mucho, unas tres veces lo que en v2
+		Writer out = new V1Writer(3 * length);
+		out.putByte(opcode);
+		copyFields(opcode, new V2Reader(ByteBuffer.wrap(data, offset + 1, length - 1)), out, false);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Método para comprimir los campos de un mensaje v2, si es lo bastante
+	 * largo y ocupa menos comprimido
+	 */
+	static byte[] compress(byte[] v2) {
+		if (v2.length < COMPRESS_MIN_BYTES) {
+			return v2;
+		}
+		Out out = new Out(v2.length / 2);
+		out.write(v2[0] | COMPRESSED_FLAG);
+		new V2Writer(out).putCount(v2.length - 1);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setDictionary(DICTIONARY);
+			deflater.setInput(v2, 1, v2.length - 1);
+			deflater.finish();
+			byte[] chunk = new byte[4096];
+			while (!deflater.finished() && out.size() < v2.length) {
+				out.write(chunk, 0, deflater.deflate(chunk));
+			}
+		} finally {
+			deflater.end();
+		}
+		return out.size() < v2.length ? out.toByteArray() : v2;
+	}
+
+	/**
+	 * Método para descomprimir un mensaje v2 comprimido
+	 *
+	 * @return El mensaje v2 sin comprimir
+	 */
+	private static byte[] inflate(byte[] data, int offset, int length) {
+		ByteBuffer buf = ByteBuffer.wrap(data, offset + 1, length - 1);
+		int n = new V2Reader(buf).getCount();
+		if (n > MAX_INFLATED_BYTES) {
+			throw new IllegalArgumentException("Compressed message too large: " + n);
+		}
+		byte[] message = new byte[1 + n];
+		message[0] = (byte) (data[offset] & ~COMPRESSED_FLAG);
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, buf.position(), buf.remaining());
+			int inflated = 0;
+			while (inflated < n) {
+				int r = inflater.inflate(message, 1 + inflated, n - inflated);
+				if (r == 0 && inflater.needsDictionary()) {
+					inflater.setDictionary(DICTIONARY);
+				} else if (r == 0) { // Fin de los datos comprimidos
+					break;
+				}
+				inflated += r;
+			}
+			if (inflated != n) {
+				throw new IllegalArgumentException("Truncated compressed message");
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException(e);
+		} finally {
+			inflater.end();
+		}
+		return message;
+	}
+
+	/*
+	 * Métodos putXXXX, como los de DirMessage, para las respuestas que el
+	 * directorio escribe directamente en v2 (sin pasar por v1)
+	 */
+
+	public static void putLoginOKResponseMessage(ByteBuffer bb, int numServers) {
+		bb.put((byte) (DirMessageOps.OPCODE_LOGIN_OK | VERSION_FLAG));
+		putVarint(bb, zigzag(numServers));
+	}
+
+	public static void putLoginOKResponseMessage(ByteBuffer bb, int numServers, int bulkPort,
+			int bulkThresholdFiles, int numFiles) {
+		putLoginOKResponseMessage(bb, numServers);
+		bb.putShort((short) bulkPort);
+		putVarint(bb, zigzag(bulkThresholdFiles));
+		putVarint(bb, zigzag(numFiles));
+	}
+
+	public static void putSlowDownMessage(ByteBuffer bb, int retryAfterMillis) {
+		bb.put((byte) (DirMessageOps.OPCODE_SLOW_DOWN | VERSION_FLAG));
+		putVarint(bb, zigzag(retryAfterMillis));
+	}
+
+	/**
+	 * Forma en que LOOKUP_USERNAME_FOUND lleva en v2 la dirección de un servidor
+	 */
+	public static byte[] encodeServerAddress(InetSocketAddress server) {
+		byte[] ip = server.getAddress().getAddress();
+		ByteBuffer bb = ByteBuffer.allocate(1 + ip.length + Short.BYTES);
+		bb.put((byte) ip.length);
+		bb.put(ip);
+		bb.putShort((short) server.getPort());
+		return bb.array();
+	}
+
+	/**
+	 * @param encodedServer Dirección obtenida con encodeServerAddress
+	 */
+	public static void putLookupUserFoundResponseMessage(ByteBuffer bb, byte[] encodedServer) {
+		bb.put((byte) (DirMessageOps.OPCODE_LOOKUP_USERNAME_FOUND | VERSION_FLAG));
+		bb.put(encodedServer);
+	}
+
+	public static void putLookupUserNotFoundResponseMessage(ByteBuffer bb) {
+		bb.put((byte) (DirMessageOps.OPCODE_LOOKUP_USERNAME_NOTFOUND | VERSION_FLAG));
+	}
+
+	/**
+	 * Método para copiar los campos de un mensaje (sin el opcode) de un formato
+	 * a otro. Es la descripción de los campos de cada mensaje: debe seguir a los
+	 * métodos build* de DirMessage.
+	 *
+	 * @param toV2 Sentido de la traducción (para los mensajes de un lote)
+	 */
+	private static void copyFields(byte opcode, Reader in, Writer out, boolean toV2) {
+		int n;
+		switch (opcode) {
+		case DirMessageOps.OPCODE_LOGIN:
+		case DirMessageOps.OPCODE_LOOKUP_USERNAME_NOTFOUND:
+		case DirMessageOps.OPCODE_REGISTER_USERNAME_OK:
+		case DirMessageOps.OPCODE_REGISTER_USERNAME_FAIL:
+		case DirMessageOps.OPCODE_SERVE_FILES_OK:
+		case DirMessageOps.OPCODE_SERVE_FILES_FAIL:
+		case DirMessageOps.OPCODE_SERVE_FILES_STOP_OK:
+		case DirMessageOps.OPCODE_GETUSERS:
+		case DirMessageOps.OPCODE_GETFILES:
+		case DirMessageOps.OPCODE_QUIT:
+		case DirMessageOps.OPCODE_SUBSCRIBE:
+		case DirMessageOps.OPCODE_SUBSCRIBE_FAIL:
+		case DirMessageOps.OPCODE_RESPONSE_TOO_LARGE:
+		case DirMessageOps.OPCODE_REPLICATE_OK:
+			break;
+		case DirMessageOps.OPCODE_LOGIN_OK:
+			out.putInt(in.getInt());
+			// Canal TCP del directorio: opcional
+			if (in.hasRemaining()) {
+				out.putPort(in.getPort());
+				out.putInt(in.getInt());
+				out.putInt(in.getInt());
+			}
+			break;
+		case DirMessageOps.OPCODE_GET_TOP_FILES:
+		case DirMessageOps.OPCODE_SLOW_DOWN:
+			out.putInt(in.getInt());
+			break;
+		case DirMessageOps.OPCODE_REGISTER_USERNAME:
+		case DirMessageOps.OPCODE_LOOKUP_USERNAME:
+		case DirMessageOps.OPCODE_LOGOFF:
+		case DirMessageOps.OPCODE_SERVE_FILES_STOP:
+		case DirMessageOps.OPCODE_GET_REPLICATION_TASK:
+		case DirMessageOps.OPCODE_LEASE_UNKNOWN:
+			out.putString(in.getString());
+			break;
+		case DirMessageOps.OPCODE_USERLIST:
+			n = copyCount(in, out);
+			for (int i = 0; i < n; i++) {
+				out.putString(in.getString());
+			}
+			break;
+		case DirMessageOps.OPCODE_SERVE_FILES:
+			out.putString(in.getString());
+			out.putPort(in.getPort());
+			copyFiles(in, out);
+			break;
+		case DirMessageOps.OPCODE_FILELIST:
+			copyFiles(in, out);
+			break;
+		case DirMessageOps.OPCODE_SERVE_SUMMARY:
+			out.putString(in.getString());
+			out.putPort(in.getPort());
+			out.putByte(in.getByte());
+			out.putInt(in.getInt());
+			out.putString(in.getString());
+			break;
+		case DirMessageOps.OPCODE_LOOKUP_USERNAME_FOUND:
+			out.putServerAddress(in.getServerAddress());
+			break;
+		case DirMessageOps.OPCODE_HEARTBEAT:
+			out.putString(in.getString());
+			out.putInt(in.getInt());
+			out.putInt(in.getInt());
+			break;
+		case DirMessageOps.OPCODE_REPLICATE:
+			// IP de origen y solicitud replicada, tal cual
+			out.putString(in.getString());
+			out.putString(in.getString());
+			break;
+		case DirMessageOps.OPCODE_SUBSCRIBE_OK:
+			out.putLong(in.getLong());
+			out.putInt(in.getInt());
+			break;
+		case DirMessageOps.OPCODE_CATALOG_RESYNC:
+		case DirMessageOps.OPCODE_CATALOG_RESYNC_FULL:
+		case DirMessageOps.OPCODE_GETFILES_SINCE:
+			out.putLong(in.getLong());
+			break;
+		case DirMessageOps.OPCODE_CATALOG_EVENTS:
+			out.putLong(in.getLong());
+			n = copyCount(in, out);
+			for (int i = 0; i < n; i++) {
+				copyCatalogEvent(in, out);
+			}
+			break;
+		case DirMessageOps.OPCODE_SEARCH_NAME:
+		case DirMessageOps.OPCODE_SEARCH_NAME_PREFIX:
+			out.putInt(in.getInt());
+			out.putString(in.getString());
+			break;
+		case DirMessageOps.OPCODE_SEARCH_HASH_PREFIX:
+		case DirMessageOps.OPCODE_LOOKUP_HASH:
+			out.putInt(in.getInt());
+			out.putDigest(in.getDigest());
+			break;
+		case DirMessageOps.OPCODE_DOWNLOADED:
+			out.putDigest(in.getDigest());
+			break;
+		case DirMessageOps.OPCODE_TOP_FILES:
+			n = copyCount(in, out);
+			for (int i = 0; i < n; i++) {
+				out.putDigest(in.getDigest());
+				out.putString(in.getString());
+				out.putLong(in.getLong());
+				out.putInt(in.getInt());
+				out.putInt(in.getInt());
+			}
+			break;
+		case DirMessageOps.OPCODE_REPLICATION_TASK:
+			byte[] tarea = in.getDigest();
+			out.putDigest(tarea);
+			if (tarea.length > 0) {
+				out.putString(in.getString());
+				out.putLong(in.getLong());
+			}
+			break;
+		case DirMessageOps.OPCODE_SEARCH_RESULTS:
+			out.putByte(in.getByte());
+			n = copyCount(in, out);
+			for (int i = 0; i < n; i++) {
+				out.putDigest(in.getDigest());
+				out.putString(in.getString());
+				out.putLong(in.getLong());
+			}
+			break;
+		case DirMessageOps.OPCODE_LOOKUP_HASH_RESULT:
+			out.putDigest(in.getDigest());
+			n = copyCount(in, out);
+			for (int i = 0; i < n; i++) {
+				out.putString(in.getString());
+				out.putAddress(in.getAddress());
+				out.putInt(in.getInt());
+				out.putInt(in.getInt());
+				out.putInt(in.getInt());
+			}
+			break;
+		case DirMessageOps.OPCODE_BATCH:
+		case DirMessageOps.OPCODE_BATCH_RESULT:
+			// Cada mensaje del lote se traduce también. Uno mal formado se deja
+			// como está: el directorio responde vacía sólo esa posición del lote
+			n = copyCount(in, out);
+			for (int i = 0; i < n; i++) {
+				byte[] parte = in.getString();
+				try {
+					parte = toV2 ? fromV1(parte) : toV1(parte, 0, parte.length);
+				} catch (RuntimeException e) { // Opcode desconocido o mensaje truncado
+					e.printStackTrace();
+				}
+				out.putString(parte);
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown opcode " + opcode);
+		}
+	}
+
+	private static int copyCount(Reader in, Writer out) {
+		int n = in.getCount();
+		out.putCount(n);
+		return n;
+	}
+
+	private static void copyFiles(Reader in, Writer out) {
+		int n = copyCount(in, out);
+		for (int i = 0; i < n; i++) {
+			out.putString(in.getString());
+			out.putDigest(in.getDigest());
+			out.putLong(in.getLong());
+		}
+	}
+
+	private static void copyCatalogEvent(Reader in, Writer out) {
+		out.putLong(in.getLong());
+		byte type = in.getByte();
+		out.putByte(type);
+		switch (type) {
+		case CatalogEvent.FILE_ADDED:
+			out.putDigest(in.getDigest());
+			out.putString(in.getString());
+			out.putLong(in.getLong());
+			out.putString(in.getString());
+			break;
+		case CatalogEvent.FILE_REMOVED:
+			out.putDigest(in.getDigest());
+			break;
+		case CatalogEvent.SERVER_UP:
+			out.putString(in.getString());
+			out.putAddress(in.getAddress());
+			break;
+		default:
+			out.putString(in.getString());
+		}
+	}
+
+	/*
+	 * Lectura y escritura de cada tipo de campo en los dos formatos. Las cadenas
+	 * y los hashes se copian como sus bytes en UTF-8.
+	 */
+
+	private interface Reader {
+		byte getByte();
+
+		int getInt();
+
+		long getLong();
+
+		int getCount();
+
+		int getPort();
+
+		byte[] getString();
+
+		byte[] getDigest();
+
+		InetSocketAddress getAddress();
+
+		/**
+		 * Dirección de LOOKUP_USERNAME_FOUND
+		 */
+		InetSocketAddress getServerAddress();
+
+		/**
+		 * Indica si quedan campos por leer (para los campos opcionales del final)
+		 */
+		boolean hasRemaining();
+	}
+
+	private interface Writer {
+		void putByte(byte b);
+
+		void putInt(int v);
+
+		void putLong(long v);
+
+		void putCount(int n);
+
+		void putPort(int port);
+
+		void putString(byte[] s);
+
+		void putDigest(byte[] hash);
+
+		void putAddress(InetSocketAddress addr);
+
+		void putServerAddress(InetSocketAddress addr);
+
+		byte[] toByteArray();
+	}
+
+	private static class V1Reader implements Reader {
+		private final ByteBuffer buf;
+
+		V1Reader(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		public boolean hasRemaining() {
+			return buf.hasRemaining();
+		}
+
+		public byte getByte() {
+			return buf.get();
+		}
+
+		public int getInt() {
+			return buf.getInt();
+		}
+
+		public long getLong() {
+			return buf.getLong();
+		}
+
+		public int getCount() {
+			return buf.getInt();
+		}
+
+		public int getPort() {
+			return buf.getInt();
+		}
+
+		public byte[] getString() {
+			return getBytes(buf, buf.getInt());
+		}
+
+		public byte[] getDigest() {
+			return getString();
+		}
+
+		public InetSocketAddress getAddress() {
+			byte[] ip = getBytes(buf, buf.getInt());
+			return new InetSocketAddress(toInetAddress(ip), buf.getInt());
+		}
+
+		public InetSocketAddress getServerAddress() {
+			String ipPort = new String(getString(), StandardCharsets.UTF_8);
+			int sep = ipPort.lastIndexOf(':');
+			if (sep < 0) {
+				throw new IllegalArgumentException("Malformed server address " + ipPort);
+			}
+			try {
+				// Es una IP literal: no se resuelve ningún nombre
+				InetAddress ip = InetAddress.getByName(ipPort.substring(0, sep));
+				return new InetSocketAddress(ip, Integer.parseInt(ipPort.substring(sep + 1)));
+			} catch (UnknownHostException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+
+	private static class V1Writer implements Writer {
+		private final Out out;
+
+		V1Writer(int sizeHint) {
+			out = new Out(sizeHint);
+		}
+
+		public void putByte(byte b) {
+			out.write(b);
+		}
+
+		public void putInt(int v) {
+			out.writeInt(v);
+		}
+
+		public void putLong(long v) {
+			out.writeInt((int) (v >>> 32));
+			out.writeInt((int) v);
+		}
+
+		public void putCount(int n) {
+			out.writeInt(n);
+		}
+
+		public void putPort(int port) {
+			out.writeInt(port);
+		}
+
+		public void putString(byte[] s) {
+			out.writeInt(s.length);
+			out.write(s, 0, s.length);
+		}
+
+		public void putDigest(byte[] hash) {
+			putString(hash);
+		}
+
+		public void putAddress(InetSocketAddress addr) {
+			putString(addr.getAddress().getAddress());
+			out.writeInt(addr.getPort());
+		}
+
+		public void putServerAddress(InetSocketAddress addr) {
+			putString(DirMessage.encodeServerAddress(addr));
+		}
+
+		public byte[] toByteArray() {
+			return out.toByteArray();
+		}
+	}
+
+	private static class V2Reader implements Reader {
+		private final ByteBuffer buf;
+
+		V2Reader(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		public boolean hasRemaining() {
+			return buf.hasRemaining();
+		}
+
+		public byte getByte() {
+			return buf.get();
+		}
+
+		public int getInt() {
+			long v = getVarlong();
+			return (int) ((v >>> 1) ^ -(v & 1));
+		}
+
+		public long getLong() {
+			long v = getVarlong();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		public int getCount() {
+			long n = getVarlong();
+			if (n > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Count too large: " + n);
+			}
+			return (int) n;
+		}
+
+		public int getPort() {
+			return buf.getShort() & 0xffff;
+		}
+
+		public byte[] getString() {
+			return getBytes(buf, getCount());
+		}
+
+		public byte[] getDigest() {
+			int header = getCount();
+			byte[] bytes = getBytes(buf, header >>> 1);
+			if ((header & DIGEST_HEX) == 0) {
+				return bytes;
+			}
+			byte[] hex = new byte[2 * bytes.length];
+			for (int i = 0; i < bytes.length; i++) {
+				hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+				hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+			}
+			return hex;
+		}
+
+		public InetSocketAddress getAddress() {
+			byte[] ip = getBytes(buf, buf.get() & 0xff);
+			return new InetSocketAddress(toInetAddress(ip), getPort());
+		}
+
+		public InetSocketAddress getServerAddress() {
+			return getAddress();
+		}
+
+		private long getVarlong() {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = buf.get();
+				v |= (long) (b & 0x7f) << shift;
+				if (b >= 0) {
+					return v;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint");
+		}
+	}
+
+	private static class V2Writer implements Writer {
+		private final Out out;
+
+		V2Writer(int sizeHint) {
+			this(new Out(sizeHint));
+		}
+
+		V2Writer(Out out) {
+			this.out = out;
+		}
+
+		public void putByte(byte b) {
+			out.write(b);
+		}
+
+		public void putInt(int v) {
+			putVarlong(zigzag(v) & 0xffffffffL);
+		}
+
+		public void putLong(long v) {
+			putVarlong((v << 1) ^ (v >> 63));
+		}
+
+		public void putCount(int n) {
+			if (n < 0) {
+				throw new IllegalArgumentException("Negative count: " + n);
+			}
+			putVarlong(n);
+		}
+
+		public void putPort(int port) {
+			if (port < 0 || port > 0xffff) {
+				throw new IllegalArgumentException("Port out of range: " + port);
+			}
+			out.write(port >>> 8);
+			out.write(port);
+		}
+
+		public void putString(byte[] s) {
+			putCount(s.length);
+			out.write(s, 0, s.length);
+		}
+
+		public void putDigest(byte[] hash) {
+			if (!isLowerHex(hash)) {
+				putCount(hash.length << 1);
+				out.write(hash, 0, hash.length);
+				return;
+			}
+			putCount(hash.length / 2 << 1 | DIGEST_HEX);
+			for (int i = 0; i < hash.length; i += 2) {
+				out.write(hexValue(hash[i]) << 4 | hexValue(hash[i + 1]));
+			}
+		}
+
+		public void putAddress(InetSocketAddress addr) {
+			out.write(encodeServerAddress(addr));
+		}
+
+		public void putServerAddress(InetSocketAddress addr) {
+			putAddress(addr);
+		}
+
+		public byte[] toByteArray() {
+			return out.toByteArray();
+		}
+
+		private void putVarlong(long v) {
+			while ((v & ~0x7fL) != 0) {
+				out.write((int) (v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			out.write((int) v);
+		}
+	}
+
+	/**
+	 * Buffer de salida que crece según hace falta
+	 */
+	private static class Out extends ByteArrayOutputStream {
+		Out(int sizeHint) {
+			super(Math.max(16, sizeHint));
+		}
+
+		void writeInt(int v) {
+			write(v >>> 24);
+			write(v >>> 16);
+			write(v >>> 8);
+			write(v);
+		}
+
+		public void write(byte[] b) {
+			write(b, 0, b.length);
+		}
+	}
+
+	private static int zigzag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	private static void putVarint(ByteBuffer bb, int v) {
+		while ((v & ~0x7f) != 0) {
+			bb.put((byte) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		bb.put((byte) v);
+	}
+
+	private static byte[] getBytes(ByteBuffer buf, int length) {
+		if (length < 0 || length > buf.remaining()) {
+			throw new IllegalArgumentException("Field length out of range: " + length);
+		}
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+		return bytes;
+	}
+
+	private static InetAddress toInetAddress(byte[] ip) {
+		try {
+			return InetAddress.getByAddress(ip);
+		} catch (UnknownHostException e) { // Longitud distinta de 4 o 16
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Indica si un hash se puede enviar como bytes: hexadecimal en minúsculas,
+	 * con un número par de cifras (un prefijo impar o en mayúsculas va como
+	 * texto para que llegue tal cual)
+	 */
+	private static boolean isLowerHex(byte[] s) {
+		if (s.length == 0 || s.length % 2 != 0) {
+			return false;
+		}
+		for (byte b : s) {
+			if (hexValue(b) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hexValue(byte c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		} else if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,145 @@
+package es.um.redes.nanoFiles.directory.message;
+
+import es.um.redes.nanoFiles.util.PersistentHashMap;
+
+/**
+ * Vista de sólo lectura sobre un datagrama recibido del directorio
+ * ([id:4][opcode:1][campos]), que lee los campos en el propio array de
+ * recepción sin copiarlo ni construir un DirMessage. Una misma vista se
+ * reutiliza para todos los datagramas que se reciben en un array, así que
+ * no es válida después de la siguiente recepción.
+ *
+ * Por ahora sólo sabe leer el nick de LOOKUP_USERNAME (en v1 o en v2, ver
+ * DirMessageV2), que se compara con los
+ * nicks del directorio sin construir un String (ver
+ * PersistentHashMap.KeyMatcher). Los nicks que no son ASCII se tratan por el
+ * camino general.
+ */
+public final class DirMessageView implements PersistentHashMap.KeyMatcher {
+
+	private byte[] data;
+	private int length;
+	/*
+	 * Posición y longitud del nick en data, y su hashCode() como String
+	 */
+	private int nickOffset;
+	private int nickLength;
+	private int nickHash;
+
+	/**
+	 * Método para situar la vista sobre un datagrama recibido
+	 *
+	 * @param length Número de bytes recibidos
+	 * @return false si el datagrama no llega a tener opcode
+	 */
+	public boolean wrap(byte[] datagram, int length) {
+		this.data = datagram;
+		this.length = length;
+		nickLength = -1;
+		return length > DirMessage.REQUEST_ID_SIZE_BYTES;
+	}
+
+	public int getRequestId() {
+		return readInt(0);
+	}
+
+	/**
+	 * Opcode del mensaje, sin la marca de versión
+	 */
+	public byte getOpcode() {
+		return DirMessageV2.baseOpcode(data[DirMessage.REQUEST_ID_SIZE_BYTES]);
+	}
+
+	/**
+	 * Versión del formato del mensaje (DirMessageV2.VERSION_1 o VERSION_2)
+	 */
+	public int getVersion() {
+		return DirMessageV2.versionOf(data[DirMessage.REQUEST_ID_SIZE_BYTES]);
+	}
+
+	/**
+	 * Longitud del mensaje, sin el id de la solicitud
+	 */
+	public int getMessageLength() {
+		return length - DirMessage.REQUEST_ID_SIZE_BYTES;
+	}
+
+	/**
+	 * Método para localizar el nick de un mensaje [opcode][longitud:4][nick]
+	 * (en v2, la longitud es un varint)
+	 *
+	 * @return false si el mensaje está truncado o comprimido, o el nick no es
+	 *         ASCII
+	 */
+	public boolean readUserName() {
+		int offset = DirMessage.REQUEST_ID_SIZE_BYTES + DirMessage.OPCODE_SIZE_BYTES;
+		int n = 0;
+		if (DirMessageV2.isCompressed(data[DirMessage.REQUEST_ID_SIZE_BYTES])) {
+			return false;
+		} else if (getVersion() == DirMessageV2.VERSION_1) {
+			if (length < offset + Integer.BYTES) {
+				return false;
+			}
+			n = readInt(offset);
+			offset += Integer.BYTES;
+		} else {
+			// Varint de hasta 3 bytes: un nick no ocupa más de un datagrama
+			for (int shift = 0;; shift += 7) {
+				if (offset == length || shift > 14) {
+					return false;
+				}
+				byte b = data[offset++];
+				n |= (b & 0x7f) << shift;
+				if (b >= 0) {
+					break;
+				}
+			}
+		}
+		if (n < 0 || n > length - offset) {
+			return false;
+		}
+		// Mismo cálculo que String.hashCode(): en ASCII cada byte es un char
+		int h = 0;
+		for (int i = offset; i < offset + n; i++) {
+			if (data[i] < 0) {
+				return false;
+			}
+			h = 31 * h + data[i];
+		}
+		nickOffset = offset;
+		nickLength = n;
+		nickHash = h;
+		return true;
+	}
+
+	/**
+	 * hashCode() del nick leído con readUserName
+	 */
+	public int getUserNameHash() {
+		return nickHash;
+	}
+
+	/**
+	 * Indica si "key" es el nick leído con readUserName
+	 */
+	public boolean matches(Object key) {
+		if (!(key instanceof String)) {
+			return false;
+		}
+		String s = (String) key;
+		if (s.length() != nickLength) {
+			return false;
+		}
+		for (int i = 0; i < nickLength; i++) {
+			if (s.charAt(i) != data[nickOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int readInt(int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8)
+				| (data[offset + 3] & 0xff);
+	}
+}
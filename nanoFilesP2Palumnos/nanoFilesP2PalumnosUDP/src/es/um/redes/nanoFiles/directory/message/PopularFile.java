@@ -0,0 +1,73 @@
+package es.um.redes.nanoFiles.directory.message;
+
+import java.util.Comparator;
+
+/**
+ * Fichero de la lista de los más pedidos del directorio, con la estimación de
+ * las consultas de sus servidores y de las descargas comunicadas en los
+ * últimos minutos. Si el fichero ya no está publicado, el nombre va vacío.
+ */
+public class PopularFile {
+
+	/**
+	 * Orden de la lista: de más a menos demanda (consultas + descargas)
+	 */
+	public static final Comparator<PopularFile> BY_DEMAND = Comparator.comparingLong(PopularFile::getDemand)
+			.reversed();
+
+	private final String hash;
+	private final String name;
+	private final long size;
+	private final int lookups;
+	private final int downloads;
+
+	public PopularFile(String hash, String name, long size, int lookups, int downloads) {
+		this.hash = hash;
+		this.name = name;
+		this.size = size;
+		this.lookups = lookups;
+		this.downloads = downloads;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public int getLookups() {
+		return lookups;
+	}
+
+	public int getDownloads() {
+		return downloads;
+	}
+
+	public long getDemand() {
+		return (long) lookups + downloads;
+	}
+
+	public String toString() {
+		return String.format("%1$-30s", name.isEmpty() ? "(not published)" : name) + String.format("%1$10s", size)
+				+ String.format("%1$9s", lookups) + String.format("%1$11s", downloads) + String.format(" %1$-45s", hash);
+	}
+
+	public static void printToSysout(Iterable<PopularFile> files) {
+		StringBuffer strBuf = new StringBuffer();
+		strBuf.append(String.format("%1$-30s", "Name"));
+		strBuf.append(String.format("%1$10s", "Size"));
+		strBuf.append(String.format("%1$9s", "Lookups"));
+		strBuf.append(String.format("%1$11s", "Downloads"));
+		strBuf.append(String.format(" %1$-45s", "Hash"));
+		System.out.println(strBuf);
+		for (PopularFile file : files) {
+			System.out.println(file);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package es.um.redes.nanoFiles.directory.message;
+
+import java.net.InetSocketAddress;
+import java.util.Comparator;
+
+/**
+ * Servidor que publica un fichero, con la carga que comunicó en su último
+ * heartbeat (transferencias en curso y ancho de banda de subida libre) y la
+ * antigüedad de ese dato. El directorio devuelve los servidores de un fichero
+ * ordenados según RANKING.
+ */
+public class SeedInfo {
+
+	/**
+	 * Antigüedad (ms) a partir de la cual la carga comunicada deja de ser
+	 * fiable: el peer se ha saltado al menos un heartbeat
+	 */
+	public static final int FRESH_MILLIS = DirMessage.HEARTBEAT_INTERVAL_MILLIS * 3 / 2;
+
+	/**
+	 * Orden de preferencia: primero los que han comunicado su carga hace poco,
+	 * después los que tienen menos transferencias en curso, más ancho de banda
+	 * libre y, por último, el dato más reciente
+	 */
+	public static final Comparator<SeedInfo> RANKING = Comparator.comparing((SeedInfo s) -> !s.isFresh())
+			.thenComparingInt(SeedInfo::getActiveTransfers)
+			.thenComparing(Comparator.comparingInt(SeedInfo::getFreeUploadKbps).reversed())
+			.thenComparingInt(SeedInfo::getAgeMillis);
+
+	private final String nick;
+	private final InetSocketAddress address;
+	private final int activeTransfers;
+	private final int freeUploadKbps;
+	private final int ageMillis;
+
+	public SeedInfo(String nick, InetSocketAddress address, int activeTransfers, int freeUploadKbps, int ageMillis) {
+		this.nick = nick;
+		this.address = address;
+		this.activeTransfers = activeTransfers;
+		this.freeUploadKbps = freeUploadKbps;
+		this.ageMillis = ageMillis;
+	}
+
+	public String getNick() {
+		return nick;
+	}
+
+	/**
+	 * Dirección de socket del servidor de ficheros (IP:puertoTCP)
+	 */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	public int getActiveTransfers() {
+		return activeTransfers;
+	}
+
+	public int getFreeUploadKbps() {
+		return freeUploadKbps;
+	}
+
+	/**
+	 * Tiempo (ms) transcurrido desde que el servidor comunicó su carga
+	 */
+	public int getAgeMillis() {
+		return ageMillis;
+	}
+
+	public boolean isFresh() {
+		return ageMillis <= FRESH_MILLIS;
+	}
+
+	public String toString() {
+		return nick + " (" + address.getAddress().getHostAddress() + ":" + address.getPort() + ", " + activeTransfers
+				+ " transfers, " + freeUploadKbps + " kbps free, " + (ageMillis / 1000) + "s ago)";
+	}
+}
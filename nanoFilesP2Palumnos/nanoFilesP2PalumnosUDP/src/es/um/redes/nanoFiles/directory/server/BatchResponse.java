@@ -0,0 +1,112 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import es.um.redes.nanoFiles.directory.message.DirMessage;
+import es.um.redes.nanoFiles.directory.message.DirMessageOps;
+
+/**
+ * Respuesta a un BATCH en construcción. Cada solicitud del lote se procesa
+ * como si hubiera llegado sola, pero responde a un Requester con su posición
+ * en el lote; las respuestas pueden llegar desde distintos hilos (lecturas,
+ * fsync del registro) y, cuando están todas, se envía un único BATCH_RESULT.
+ *
+ * Como un cliente que enviase las solicitudes una a una, el lote se detiene
+ * en la primera que falla (un registro con un nick en uso no debe seguir con
+ * la publicación de sus ficheros): las siguientes se responden vacías.
+ */
+class BatchResponse {
+	/**
+	 * Respuesta vacía: solicitud mal formada o que no se admite en un lote
+	 */
+	static final byte[] NO_RESPONSE = new byte[0];
+
+	private final Requester requester;
+	private final byte[][] responses;
+	private int missing;
+	private boolean failed;
+
+	BatchResponse(Requester requester, int size) {
+		this.requester = requester;
+		responses = new byte[size][];
+		missing = size;
+	}
+
+	/**
+	 * Indica si una solicitud puede ir en un lote: deben tener siempre una
+	 * respuesta, o el lote no se completaría nunca
+	 */
+	static boolean isBatchable(byte opcode) {
+		switch (opcode) {
+		case DirMessageOps.OPCODE_LOGIN:
+		case DirMessageOps.OPCODE_LOOKUP_USERNAME:
+		case DirMessageOps.OPCODE_REGISTER_USERNAME:
+		case DirMessageOps.OPCODE_SERVE_FILES:
+		case DirMessageOps.OPCODE_SERVE_SUMMARY:
+		case DirMessageOps.OPCODE_SERVE_FILES_STOP:
+		case DirMessageOps.OPCODE_GETUSERS:
+		case DirMessageOps.OPCODE_GETFILES:
+		case DirMessageOps.OPCODE_GETFILES_SINCE:
+		case DirMessageOps.OPCODE_LOGOFF:
+		case DirMessageOps.OPCODE_SEARCH_NAME:
+		case DirMessageOps.OPCODE_SEARCH_NAME_PREFIX:
+		case DirMessageOps.OPCODE_SEARCH_HASH_PREFIX:
+		case DirMessageOps.OPCODE_LOOKUP_HASH:
+		case DirMessageOps.OPCODE_GET_TOP_FILES:
+		case DirMessageOps.OPCODE_GET_REPLICATION_TASK:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	Requester getRequester() {
+		return requester;
+	}
+
+	/**
+	 * Método para añadir la respuesta de una solicitud del lote
+	 *
+	 * @return true si era la última que faltaba (el lote se puede enviar)
+	 */
+	synchronized boolean deliver(int slot, byte[] response) {
+		if (responses[slot] != null) {
+			return false;
+		}
+		responses[slot] = response;
+		if (response.length > 0 && isFailure(response[0])) {
+			failed = true;
+		}
+		return --missing == 0;
+	}
+
+	/**
+	 * Indica si alguna solicitud ya respondida ha fallado
+	 */
+	synchronized boolean hasFailed() {
+		return failed;
+	}
+
+	private static boolean isFailure(byte opcode) {
+		return opcode == DirMessageOps.OPCODE_REGISTER_USERNAME_FAIL || opcode == DirMessageOps.OPCODE_SERVE_FILES_FAIL;
+	}
+
+	/**
+	 * Método para construir el BATCH_RESULT. Si las respuestas no caben en un
+	 * datagrama, las que no quepan se dejan vacías y el cliente las pedirá por
+	 * separado.
+	 */
+	synchronized byte[] encode() {
+		// Cabecera del lote y longitud de cada respuesta, aunque vaya vacía
+		int budget = DirMessage.PACKET_MAX_SIZE - DirMessage.REQUEST_ID_SIZE_BYTES - DirMessage.OPCODE_SIZE_BYTES
+				- Integer.BYTES * (1 + responses.length);
+		byte[][] included = new byte[responses.length][];
+		for (int i = 0; i < responses.length; i++) {
+			if (responses[i].length <= budget) {
+				included[i] = responses[i];
+				budget -= responses[i].length;
+			} else {
+				included[i] = NO_RESPONSE;
+			}
+		}
+		return DirMessage.buildBatchResponseMessage(included);
+	}
+}
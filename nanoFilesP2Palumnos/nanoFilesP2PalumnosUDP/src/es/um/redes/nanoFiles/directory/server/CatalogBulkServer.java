@@ -0,0 +1,278 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import es.um.redes.nanoFiles.directory.message.CatalogEvent;
+import es.um.redes.nanoFiles.directory.message.DirMessage;
+import es.um.redes.nanoFiles.directory.message.DirMessageOps;
+import es.um.redes.nanoFiles.directory.message.DirMessageV2;
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Canal TCP del directorio para transferir catálogos demasiado grandes para
+ * un datagrama. Escucha en el puerto TCP con el mismo número que el puerto
+ * UDP del directorio, que lo anuncia en LOGIN_OK junto con el número de
+ * ficheros a partir del cual conviene usarlo.
+ *
+ * Cada conexión lleva una única solicitud, GETFILES o GETFILES_SINCE, y su
+ * respuesta es una secuencia de mensajes (ver DirMessage.writeStreamFrame)
+ * terminada por un mensaje vacío:
+ * - Si la versión del cliente está en el historial, CATALOG_EVENTS con los
+ * cambios posteriores (en varios mensajes si son muchos).
+ * - Si no, CATALOG_RESYNC_FULL con la versión del catálogo seguido de su
+ * contenido en mensajes FILELIST.
+ * Los mensajes van en el formato de la solicitud (v1 o v2).
+ *
+ * Cada conexión es una solicitud cara para el límite de su dirección de
+ * origen (ver RateLimiter), que se aplica al aceptarla. Las que lo superan,
+ * las de una dirección que ya tiene MAX_CONNECTIONS_PER_SOURCE abiertas y
+ * las que no caben en la cola de los hilos se cierran sin respuesta: el
+ * cliente vuelve a pedir el catálogo por UDP.
+ */
+public class CatalogBulkServer implements Runnable {
+
+	/**
+	 * Número de ficheros del catálogo a partir del cual el directorio
+	 * recomienda este canal en lugar de FILELIST por UDP
+	 */
+	public static final int THRESHOLD_FILES = 500;
+	/**
+	 * Ficheros y cambios del catálogo por mensaje
+	 */
+	private static final int FILES_PER_FRAME = 1024;
+	private static final int EVENTS_PER_FRAME = 1024;
+	/**
+	 * Transferencias simultáneas, conexiones que pueden esperar a un hilo y
+	 * conexiones abiertas de una misma dirección
+	 */
+	private static final int WORKERS = 4;
+	private static final int MAX_QUEUED = 2 * WORKERS;
+	private static final int MAX_CONNECTIONS_PER_SOURCE = 2;
+	/**
+	 * Tiempo máximo (ms) de espera de la solicitud y de un envío
+	 */
+	private static final int REQUEST_TIMEOUT_MILLIS = 2000;
+	private static final int SOCKET_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * Versión del catálogo y estado del directorio que le corresponde, leídos
+	 * a la vez
+	 */
+	public static final class Snapshot {
+		final long headSeq;
+		final DirectoryState state;
+
+		public Snapshot(long headSeq, DirectoryState state) {
+			this.headSeq = headSeq;
+			this.state = state;
+		}
+	}
+
+	private final ServerSocket serverSocket;
+	private final CatalogChangeLog changes;
+	private final Supplier<Snapshot> snapshots;
+	private final Supplier<RateLimiter> limiters;
+	private final ThreadPoolExecutor workers;
+	/**
+	 * Conexiones abiertas de cada dirección (en cola o en curso)
+	 */
+	private final Map<InetAddress, Integer> connections = new HashMap<InetAddress, Integer>();
+	private volatile boolean stopped;
+
+	/**
+	 * @param port      Puerto TCP en el que escuchar
+	 * @param changes   Historial de cambios del catálogo
+	 * @param snapshots Instantánea actual del catálogo y su versión
+	 * @param limiters  Límite de solicitudes del directorio (null si no hay)
+	 */
+	public CatalogBulkServer(int port, CatalogChangeLog changes, Supplier<Snapshot> snapshots,
+			Supplier<RateLimiter> limiters) throws IOException {
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(port));
+		this.changes = changes;
+		this.snapshots = snapshots;
+		this.limiters = limiters;
+		workers = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_QUEUED), r -> {
+					Thread t = new Thread(r, "catalog-bulk");
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Método para arrancar el canal en un hilo propio
+	 */
+	public void startServer() {
+		Thread t = new Thread(this, "catalog-bulk-accept");
+		t.setDaemon(true);
+		t.start();
+		System.out.println("* Directory bulk channel listening on TCP port " + getPort());
+	}
+
+	public void stopServer() {
+		stopped = true;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		workers.shutdownNow();
+	}
+
+	public void run() {
+		while (!stopped) {
+			try {
+				Socket client = serverSocket.accept();
+				InetAddress source = client.getInetAddress();
+				if (!admit(source)) {
+					client.close();
+					continue;
+				}
+				try {
+					workers.execute(() -> {
+						try {
+							serve(client);
+						} finally {
+							release(source);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					release(source);
+					client.close();
+				}
+			} catch (IOException e) {
+				if (!stopped) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Método para decidir si se atiende una conexión de "source": gasta una
+	 * solicitud cara de su límite y cuenta como una de sus conexiones abiertas
+	 * (que se libera con release)
+	 */
+	private boolean admit(InetAddress source) {
+		synchronized (connections) {
+			int abiertas = connections.getOrDefault(source, 0);
+			if (abiertas >= MAX_CONNECTIONS_PER_SOURCE) {
+				return false;
+			}
+			// Cualquier solicitud del canal (GETFILES o GETFILES_SINCE) es cara
+			RateLimiter limiter = limiters.get();
+			if (limiter != null && limiter.admit(source, DirMessageOps.OPCODE_GETFILES,
+					System.currentTimeMillis()) != RateLimiter.Verdict.ACCEPT) {
+				return false;
+			}
+			connections.put(source, abiertas + 1);
+			return true;
+		}
+	}
+
+	private void release(InetAddress source) {
+		synchronized (connections) {
+			int abiertas = connections.get(source) - 1;
+			if (abiertas == 0) {
+				connections.remove(source);
+			} else {
+				connections.put(source, abiertas);
+			}
+		}
+	}
+
+	/**
+	 * Método para atender la solicitud de una conexión y cerrarla
+	 */
+	private void serve(Socket client) {
+		try (Socket socket = client) {
+			// Una conexión que no envía la solicitud no retiene el hilo mucho tiempo
+			socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			byte[] requestData = DirMessage.readStreamFrame(dis);
+			socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+			DirMessage request = requestData.length == 0 ? null : DirMessage.buildMessageFromReceivedData(requestData);
+			if (request == null) {
+				System.err.println("* Directory received a malformed bulk request from " + socket.getRemoteSocketAddress());
+				return;
+			}
+			int version = DirMessageV2.versionOf(requestData[0]);
+			switch (request.getOpcode()) {
+			case DirMessageOps.OPCODE_GETFILES:
+				sendCatalog(snapshots.get(), dos, version);
+				break;
+			case DirMessageOps.OPCODE_GETFILES_SINCE:
+				sendChanges(request.getSeq(), dos, version);
+				break;
+			default:
+				System.err.println("* Directory received an unexpected bulk request "
+						+ DirMessageOps.opcodeToOperation(request.getOpcode()) + " from " + socket.getRemoteSocketAddress());
+				return;
+			}
+			DirMessage.writeStreamFrame(dos, new byte[0]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Envía los cambios posteriores a "fromSeq" hasta la versión actual, o el
+	 * catálogo completo si ya no están en el historial
+	 */
+	private void sendChanges(long fromSeq, DataOutputStream dos, int version) throws IOException {
+		Snapshot snapshot = snapshots.get();
+		long seq = fromSeq;
+		do {
+			List<CatalogEvent> events = changes.since(seq,
+					(int) Math.max(0, Math.min(EVENTS_PER_FRAME, snapshot.headSeq - seq)));
+			if (events == null) {
+				// El historial ha avanzado más allá de la versión: lo ya enviado
+				// se sustituye por el catálogo completo
+				sendCatalog(snapshot, dos, version);
+				return;
+			}
+			write(dos, DirMessage.buildCatalogEventsMessage(snapshot.headSeq, events), version);
+			if (events.isEmpty()) {
+				return;
+			}
+			seq = events.get(events.size() - 1).getSeq();
+		} while (seq < snapshot.headSeq);
+	}
+
+	private void sendCatalog(Snapshot snapshot, DataOutputStream dos, int version) throws IOException {
+		write(dos, DirMessage.buildCatalogResyncFullMessage(snapshot.headSeq), version);
+		FileInfo[] files = snapshot.state.getFiles();
+		for (int from = 0; from < files.length; from += FILES_PER_FRAME) {
+			FileInfo[] chunk = Arrays.copyOfRange(files, from, Math.min(files.length, from + FILES_PER_FRAME));
+			write(dos, DirMessage.buildFileListResponseMessage(chunk), version);
+		}
+	}
+
+	private static void write(DataOutputStream dos, byte[] message, int version) throws IOException {
+		DirMessage.writeStreamFrame(dos, version == DirMessageV2.VERSION_2 ? DirMessageV2.fromV1(message) : message);
+	}
+}
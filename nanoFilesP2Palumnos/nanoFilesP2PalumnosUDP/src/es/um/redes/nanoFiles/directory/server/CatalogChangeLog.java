@@ -0,0 +1,70 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import es.um.redes.nanoFiles.directory.message.CatalogEvent;
+
+/**
+ * Historial acotado de los cambios del catálogo del directorio. Cada cambio
+ * recibe el siguiente número de secuencia (la versión del catálogo) y se guarda
+ * en un buffer circular, de modo que sólo se conservan los CAPACITY últimos:
+ * quien se haya quedado más atrás debe volver a descargar el catálogo completo.
+ *
+ * La numeración parte del instante de arranque del directorio, así que las
+ * versiones siguen creciendo tras un reinicio y una versión anterior al
+ * reinicio nunca se confunde con una del historial actual.
+ */
+public class CatalogChangeLog {
+
+	public static final int CAPACITY = 4096;
+	/**
+	 * Máximo de cambios que se envían en un datagrama (el resto se envía en los
+	 * siguientes)
+	 */
+	public static final int MAX_EVENTS_PER_DATAGRAM = 128;
+
+	private final CatalogEvent[] ring = new CatalogEvent[CAPACITY];
+	/**
+	 * Versión inicial del catálogo (ningún cambio), que depende del arranque
+	 */
+	private final long baseSeq = System.currentTimeMillis() << 20;
+	/**
+	 * Número de secuencia del último cambio (baseSeq si todavía no hay ninguno)
+	 */
+	private long headSeq = baseSeq;
+
+	/**
+	 * Método para añadir un cambio al historial
+	 *
+	 * @return El cambio con su número de secuencia asignado
+	 */
+	public synchronized CatalogEvent append(CatalogEvent event) {
+		CatalogEvent numbered = event.withSeq(++headSeq);
+		ring[(int) (headSeq % CAPACITY)] = numbered;
+		return numbered;
+	}
+
+	public synchronized long getHeadSeq() {
+		return headSeq;
+	}
+
+	/**
+	 * Cambios posteriores a "fromSeq", en orden y como mucho "max"
+	 *
+	 * @return Los cambios (vacío si está al día), o null si parte de ellos ya no
+	 *         están en el historial o "fromSeq" no corresponde a este historial
+	 */
+	public synchronized List<CatalogEvent> since(long fromSeq, int max) {
+		long firstSeq = Math.max(baseSeq + 1, headSeq - CAPACITY + 1);
+		if (fromSeq < firstSeq - 1 || fromSeq > headSeq) {
+			return null;
+		}
+		int count = (int) Math.min(max, headSeq - fromSeq);
+		ArrayList<CatalogEvent> result = new ArrayList<CatalogEvent>(count);
+		for (long seq = fromSeq + 1; seq <= fromSeq + count; seq++) {
+			result.add(ring[(int) (seq % CAPACITY)]);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,464 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.LongPredicate;
+
+import es.um.redes.nanoFiles.util.Hashing;
+
+/**
+ * Índices inmutables de búsqueda sobre los ficheros publicados, que forman
+ * parte de cada instantánea del directorio:
+ * <ul>
+ * <li>índice invertido de palabras del nombre</li>
+ * <li>ficheros en orden alfabético del nombre, para buscar por prefijo</li>
+ * <li>ficheros en orden del hash, para buscar por prefijo del hash</li>
+ * </ul>
+ * Los índices no guardan nombres ni hashes, sino las referencias (enteros) de
+ * los registros del almacén del catálogo de la instantánea, que es de donde se
+ * leen los datos. El índice de palabras guarda, por cada palabra de cada
+ * nombre, un long (hash de 32 bits de la palabra, referencia) en orden y
+ * comprimido por bloques (diferencias entre claves consecutivas en varint), de
+ * modo que todo el índice ocupa unos pocos bytes por fichero. Nombres y
+ * palabras se indexan en minúsculas, de modo que las búsquedas no distinguen
+ * mayúsculas.
+ *
+ * Cada índice tiene una parte base, grande y compartida entre instantáneas, y
+ * otra con las altas recientes, pequeña y que se copia en cada modificación.
+ * Las bajas no se quitan de los índices: las búsquedas descartan los registros
+ * que no están vigentes en la instantánea. Cuando las altas y bajas pendientes
+ * superan una fracción de la base, se construye una base nueva sin las bajas;
+ * y cuando el almacén se compacta (las referencias cambian) se reconstruye
+ * todo.
+ */
+public final class CatalogIndex {
+
+	/**
+	 * Altas y bajas pendientes a partir de las que siempre se reconstruye la
+	 * base (además de cuando superan un octavo de ella)
+	 */
+	private static final int MIN_PENDING = 4096;
+
+	private static final int[] NO_REFS = new int[0];
+	private static final long[] NO_KEYS = new long[0];
+
+	private final CatalogStore.View view;
+	private final PackedKeys tokens;
+	private final long[] newTokens;
+	private final int[] names;
+	private final int[] newNames;
+	private final int[] hashes;
+	private final int[] newHashes;
+	/**
+	 * Registros retirados desde la última reconstrucción de la base
+	 */
+	private final int retired;
+
+	private CatalogIndex(CatalogStore.View view, PackedKeys tokens, long[] newTokens, int[] names, int[] newNames,
+			int[] hashes, int[] newHashes, int retired) {
+		this.view = view;
+		this.tokens = tokens;
+		this.newTokens = newTokens;
+		this.names = names;
+		this.newNames = newNames;
+		this.hashes = hashes;
+		this.newHashes = newHashes;
+		this.retired = retired;
+	}
+
+	/**
+	 * Índices de todos los ficheros vigentes de una instantánea del almacén
+	 */
+	public static CatalogIndex build(CatalogStore.View view) {
+		int[] refs = new int[view.size()];
+		int[] count = new int[1];
+		view.forEach(ref -> {
+			refs[count[0]++] = ref;
+			return true;
+		});
+		CatalogStore store = view.getStore();
+		return new CatalogIndex(view, PackedKeys.of(tokenKeys(store, refs, count[0])), NO_KEYS,
+				sort(refs, count[0], ref -> nameKey(store, ref)), NO_REFS,
+				sort(refs, count[0], ref -> hashKey(store, ref)), NO_REFS, 0);
+	}
+
+	/**
+	 * Método para obtener los índices de la instantánea siguiente del almacén
+	 *
+	 * @param view    La nueva instantánea
+	 * @param added   Registros escritos en ella (los "count" primeros, que
+	 *                pueden repetirse)
+	 * @param retired Registros que ha retirado (incluidos los sustituidos por
+	 *                otro)
+	 */
+	public CatalogIndex update(CatalogStore.View view, int[] added, int count, int retired) {
+		CatalogStore store = view.getStore();
+		if (store != this.view.getStore()) {
+			return build(view);
+		}
+		added = Arrays.stream(added, 0, count).distinct().toArray();
+		count = added.length;
+		long[] pendingTokens = mergeKeys(newTokens, tokenKeys(store, added, count));
+		int[] pendingNames = merge(newNames, sort(added, count, ref -> nameKey(store, ref)),
+				ref -> nameKey(store, ref), ref -> true);
+		int[] pendingHashes = merge(newHashes, sort(added, count, ref -> hashKey(store, ref)),
+				ref -> hashKey(store, ref), ref -> true);
+		int pending = pendingNames.length + this.retired + retired;
+		if (pending <= Math.max(MIN_PENDING, names.length / 8)) {
+			return new CatalogIndex(view, tokens, pendingTokens, names, pendingNames, hashes, pendingHashes,
+					this.retired + retired);
+		}
+		IntPredicate live = view::isLive;
+		return new CatalogIndex(view, tokens.merge(pendingTokens, live), NO_KEYS,
+				merge(names, pendingNames, ref -> nameKey(store, ref), live), NO_REFS,
+				merge(hashes, pendingHashes, ref -> hashKey(store, ref), live), NO_REFS, 0);
+	}
+
+	/**
+	 * Hashes de los ficheros cuyo nombre contiene todas las palabras de la
+	 * consulta
+	 *
+	 * @param limit Número máximo de resultados
+	 */
+	public List<String> searchName(String query, int limit) {
+		Set<String> words = tokenize(query);
+		ArrayList<String> result = new ArrayList<String>();
+		if (words.isEmpty()) {
+			return result;
+		}
+		// Se recorren los ficheros de la palabra menos frecuente y se comprueba
+		// que su nombre tenga el resto (y también esa, por si otra palabra
+		// tiene el mismo hash), hasta tener "limit" resultados
+		long first = 0;
+		int fewest = Integer.MAX_VALUE;
+		for (String w : words) {
+			long key = tokenKey(w, 0);
+			int estimate = tokens.estimate(key, key | 0xFFFFFFFFL)
+					+ countKeys(newTokens, key, key | 0xFFFFFFFFL);
+			if (estimate < fewest) {
+				fewest = estimate;
+				first = key;
+			}
+		}
+		CatalogStore store = view.getStore();
+		long last = first | 0xFFFFFFFFL;
+		LongPredicate check = key -> {
+			if (result.size() >= limit || key > last) {
+				return false;
+			}
+			int ref = (int) key;
+			if (view.isLive(ref) && tokenize(store.nameOf(ref)).containsAll(words)) {
+				result.add(store.hashOf(ref));
+			}
+			return true;
+		};
+		tokens.forEachFrom(first, check);
+		int i = lowerBound(newTokens, first);
+		while (i < newTokens.length && check.test(newTokens[i])) {
+			i++;
+		}
+		return result;
+	}
+
+	/**
+	 * Hashes de los ficheros cuyo nombre empieza por el prefijo, en orden
+	 * alfabético del nombre
+	 */
+	public List<String> searchNamePrefix(String prefix, int limit) {
+		CatalogStore store = view.getStore();
+		return searchPrefix(names, newNames, normalize(prefix), ref -> nameKey(store, ref), limit);
+	}
+
+	/**
+	 * Hashes que empiezan por el prefijo
+	 */
+	public List<String> searchHashPrefix(String prefix, int limit) {
+		CatalogStore store = view.getStore();
+		return searchPrefix(hashes, newHashes, normalize(prefix), ref -> hashKey(store, ref), limit);
+	}
+
+	/**
+	 * Recorre a la vez los dos índices ordenados por "key" desde el prefijo
+	 */
+	private List<String> searchPrefix(int[] base, int[] pending, String prefix, IntFunction<String> key,
+			int limit) {
+		ArrayList<String> result = new ArrayList<String>();
+		int i = lowerBound(base, prefix, key);
+		int j = lowerBound(pending, prefix, key);
+		String a = i < base.length ? key.apply(base[i]) : null;
+		String b = j < pending.length ? key.apply(pending[j]) : null;
+		while (result.size() < limit) {
+			boolean inBase = a != null && a.startsWith(prefix);
+			boolean inPending = b != null && b.startsWith(prefix);
+			int ref;
+			if (inBase && (!inPending || a.compareTo(b) <= 0)) {
+				ref = base[i++];
+				a = i < base.length ? key.apply(base[i]) : null;
+			} else if (inPending) {
+				ref = pending[j++];
+				b = j < pending.length ? key.apply(pending[j]) : null;
+			} else {
+				break;
+			}
+			if (view.isLive(ref)) {
+				result.add(view.getStore().hashOf(ref));
+			}
+		}
+		return result;
+	}
+
+	private static String nameKey(CatalogStore store, int ref) {
+		return normalize(store.nameOf(ref)) + '\0' + store.hashOf(ref);
+	}
+
+	private static String hashKey(CatalogStore store, int ref) {
+		return normalize(store.hashOf(ref));
+	}
+
+	private static long tokenKey(String token, int ref) {
+		long h = Hashing.hash1(token);
+		return ((h ^ (h >>> 32)) << 32) | (ref & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Claves del índice de palabras de unos registros, en orden
+	 */
+	private static long[] tokenKeys(CatalogStore store, int[] refs, int count) {
+		long[] keys = new long[4 * count];
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			for (String w : tokenize(store.nameOf(refs[i]))) {
+				if (n == keys.length) {
+					keys = Arrays.copyOf(keys, 2 * n);
+				}
+				keys[n++] = tokenKey(w, refs[i]);
+			}
+		}
+		keys = Arrays.copyOf(keys, n);
+		Arrays.sort(keys);
+		return keys;
+	}
+
+	private static long[] mergeKeys(long[] a, long[] b) {
+		long[] merged = new long[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length || j < b.length) {
+			merged[n++] = j == b.length || (i < a.length && a[i] <= b[j]) ? a[i++] : b[j++];
+		}
+		return merged;
+	}
+
+	private static int lowerBound(long[] keys, long key) {
+		int i = Arrays.binarySearch(keys, key);
+		return i < 0 ? -i - 1 : i;
+	}
+
+	private static int countKeys(long[] keys, long from, long to) {
+		int end = lowerBound(keys, to);
+		if (end < keys.length && keys[end] == to) {
+			end++;
+		}
+		return end - lowerBound(keys, from);
+	}
+
+	/**
+	 * Referencias ordenadas por "key" (calculada una sola vez por registro)
+	 */
+	private static int[] sort(int[] refs, int count, IntFunction<String> key) {
+		String[] keys = new String[count];
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = key.apply(refs[i]);
+			order[i] = i;
+		}
+		Arrays.sort(order, (x, y) -> keys[x].compareTo(keys[y]));
+		int[] sorted = new int[count];
+		for (int i = 0; i < count; i++) {
+			sorted[i] = refs[order[i]];
+		}
+		return sorted;
+	}
+
+	/**
+	 * Mezcla dos listas de referencias ordenadas por "key", quedándose sólo con
+	 * las que cumplen "keep"
+	 */
+	private static int[] merge(int[] a, int[] b, IntFunction<String> key, IntPredicate keep) {
+		int[] merged = new int[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		String ka = a.length > 0 ? key.apply(a[0]) : null;
+		String kb = b.length > 0 ? key.apply(b[0]) : null;
+		while (ka != null || kb != null) {
+			int ref;
+			if (kb == null || (ka != null && ka.compareTo(kb) <= 0)) {
+				ref = a[i++];
+				ka = i < a.length ? key.apply(a[i]) : null;
+			} else {
+				ref = b[j++];
+				kb = j < b.length ? key.apply(b[j]) : null;
+			}
+			if (keep.test(ref)) {
+				merged[n++] = ref;
+			}
+		}
+		return n == merged.length ? merged : Arrays.copyOf(merged, n);
+	}
+
+	/**
+	 * Primera posición cuya clave no es menor que "key"
+	 */
+	private static int lowerBound(int[] refs, String key, IntFunction<String> keyOf) {
+		int lo = 0, hi = refs.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keyOf.apply(refs[mid]).compareTo(key) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private static String normalize(String s) {
+		return s.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Palabras (secuencias de letras y dígitos) de un nombre, en minúsculas
+	 */
+	static Set<String> tokenize(String name) {
+		LinkedHashSet<String> words = new LinkedHashSet<String>();
+		for (String w : normalize(name).split("[^\\p{L}\\p{N}]+")) {
+			if (!w.isEmpty()) {
+				words.add(w);
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * Lista ordenada e inmutable de claves long, comprimida por bloques de
+	 * BLOCK claves: la primera de cada bloque se guarda entera y el resto como
+	 * diferencias con la anterior en varint (7 bits por byte)
+	 */
+	private static final class PackedKeys {
+		private static final int BLOCK = 128;
+
+		private final long[] firsts;
+		private final int[] offsets;
+		private final byte[] data;
+		private final int size;
+
+		private PackedKeys(long[] firsts, int[] offsets, byte[] data, int size) {
+			this.firsts = firsts;
+			this.offsets = offsets;
+			this.data = data;
+			this.size = size;
+		}
+
+		static PackedKeys of(long[] sorted) {
+			int blocks = (sorted.length + BLOCK - 1) / BLOCK;
+			long[] firsts = new long[blocks];
+			int[] offsets = new int[blocks];
+			byte[] data = new byte[Math.max(16, sorted.length * 2)];
+			int pos = 0;
+			for (int i = 0; i < sorted.length; i++) {
+				if (i % BLOCK == 0) {
+					firsts[i / BLOCK] = sorted[i];
+					offsets[i / BLOCK] = pos;
+					continue;
+				}
+				if (pos + 10 > data.length) {
+					data = Arrays.copyOf(data, data.length * 2);
+				}
+				long delta = sorted[i] - sorted[i - 1];
+				while ((delta & ~0x7FL) != 0) {
+					data[pos++] = (byte) ((delta & 0x7F) | 0x80);
+					delta >>>= 7;
+				}
+				data[pos++] = (byte) delta;
+			}
+			return new PackedKeys(firsts, offsets, Arrays.copyOf(data, pos), sorted.length);
+		}
+
+		/**
+		 * Bloque en el que estaría "key" (el último cuya primera clave no es
+		 * mayor), o -1 si es menor que todas
+		 */
+		private int blockOf(long key) {
+			int i = Arrays.binarySearch(firsts, key);
+			return i < 0 ? -i - 2 : i;
+		}
+
+		/**
+		 * Cota superior del número de claves entre "from" y "to"
+		 */
+		int estimate(long from, long to) {
+			int first = Math.max(0, blockOf(from));
+			int last = blockOf(to);
+			return last < first ? 0 : (last - first + 1) * BLOCK;
+		}
+
+		/**
+		 * Recorre en orden las claves desde "from" hasta que "action" devuelva
+		 * false
+		 */
+		void forEachFrom(long from, LongPredicate action) {
+			for (int b = Math.max(0, blockOf(from)); b < firsts.length; b++) {
+				long key = firsts[b];
+				int pos = offsets[b];
+				int n = Math.min(BLOCK, size - b * BLOCK);
+				for (int i = 0; i < n; i++) {
+					if (i > 0) {
+						long delta = 0;
+						int shift = 0;
+						byte x;
+						do {
+							x = data[pos++];
+							delta |= (long) (x & 0x7F) << shift;
+							shift += 7;
+						} while (x < 0);
+						key += delta;
+					}
+					if (key >= from && !action.test(key)) {
+						return;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Claves de esta lista y de "added" (ordenada), quitando las de los
+		 * registros que no cumplen "keep"
+		 */
+		PackedKeys merge(long[] added, IntPredicate keep) {
+			long[] merged = new long[size + added.length];
+			int[] n = new int[1];
+			int[] j = new int[1];
+			forEachFrom(Long.MIN_VALUE, key -> {
+				while (j[0] < added.length && added[j[0]] < key) {
+					keepKey(merged, n, added[j[0]++], keep);
+				}
+				keepKey(merged, n, key, keep);
+				return true;
+			});
+			while (j[0] < added.length) {
+				keepKey(merged, n, added[j[0]++], keep);
+			}
+			return of(Arrays.copyOf(merged, n[0]));
+		}
+
+		private static void keepKey(long[] keys, int[] n, long key, IntPredicate keep) {
+			if (keep.test((int) key)) {
+				keys[n[0]++] = key;
+			}
+		}
+	}
+}
@@ -0,0 +1,700 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Almacén compacto del catálogo del directorio (hash, nombre, tamaño y
+ * propietario de cada fichero publicado). Los ficheros se guardan fuera del
+ * heap, en bloques de memoria directa donde cada registro ocupa:
+ *
+ * <pre>
+ * [añadido:4][retirado:4][propietario:4][longitud del nombre:2][tipo de hash:1]
+ * [longitud del hash:1]([anterior:4])[hash][nombre][tamaño:varint]
+ * </pre>
+ *
+ * Los hashes SHA-1 en hexadecimal se guardan como sus 20 bytes, los nombres en
+ * UTF-8, el tamaño en varint (7 bits por byte) y los propietarios como un
+ * identificador de una tabla de nicks. "Anterior" sólo está en los registros
+ * que sustituyen a otro, y lo indica un bit del tipo de hash. Una
+ * tabla de direccionamiento abierto de enteros (sin objetos por entrada)
+ * asocia cada hash a su registro más reciente.
+ *
+ * Los registros nunca se sobrescriben: modificar un fichero añade un registro
+ * nuevo que apunta al anterior, y retirarlo sólo anota la versión en que se
+ * retiró. Así cada instantánea del directorio (View) ve los ficheros tal como
+ * estaban en su versión, sin cerrojos, mientras el escritor sigue añadiendo.
+ * Cuando los registros obsoletos ocupan más que los vigentes, compact() copia
+ * los vigentes a un almacén nuevo; las instantáneas antiguas siguen usando el
+ * anterior hasta que dejan de estar referenciadas.
+ *
+ * Sólo hay un escritor (el que tiene writeLock), que debe modificar siempre a
+ * partir de la última versión escrita; los lectores pueden ser cualquier hilo.
+ */
+public final class CatalogStore {
+
+	public static final int NONE = -1;
+
+	private static final int CHUNK_BITS = 20;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int MIN_COMPACTION_BYTES = CHUNK_SIZE;
+	private static final int INITIAL_SLOTS = 1024;
+
+	/*
+	 * Posición de cada campo dentro del registro. Los registros están alineados
+	 * a 4 bytes para que "retirado" se pueda leer/escribir de forma atómica.
+	 */
+	private static final int ADDED = 0;
+	private static final int REMOVED = 4;
+	private static final int OWNER = 8;
+	private static final int NAME_LEN = 12;
+	private static final int HASH_KIND = 14;
+	private static final int HASH_LEN = 15;
+	private static final int PREV = 16;
+	private static final int HEADER = 16;
+
+	/**
+	 * Valor de "retirado" de un registro vigente
+	 */
+	private static final int LIVE = Integer.MAX_VALUE;
+	/**
+	 * Valor de "añadido" que marca el final de los registros de un bloque
+	 */
+	private static final int PADDING = -1;
+	private static final int MAX_HASH_BYTES = 0xFF;
+	private static final int MAX_NAME_BYTES = 0xFFFF;
+
+	private static final byte HASH_RAW = 0;
+	private static final byte HASH_SHA1_HEX = 1;
+	/**
+	 * Bit del tipo de hash que indica que el registro tiene "anterior"
+	 */
+	private static final byte HAS_PREV = (byte) 0x80;
+	private static final int SHA1_BYTES = 20;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final VarHandle RECORD_INT = MethodHandles.byteBufferViewVarHandle(int[].class,
+			ByteOrder.nativeOrder());
+	private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(int[].class);
+
+	/**
+	 * Versión del directorio a partir de la que se cuentan las de los registros
+	 */
+	private final long baseVersion;
+	/**
+	 * Bloques de memoria directa. Sólo crece, copiando el array y publicándolo
+	 */
+	private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+	/**
+	 * Posición (en bytes) en la que se escribirá el siguiente registro
+	 */
+	private long tail;
+	/**
+	 * Tabla hash -> (referencia del registro más reciente + 1), 0 si está libre
+	 */
+	private volatile int[] slots = new int[INITIAL_SLOTS];
+	private int usedSlots;
+	/**
+	 * Nicks de los propietarios, por identificador, y tabla nick -> (id + 1)
+	 */
+	private volatile String[] ownerNames = new String[16];
+	private int numOwners;
+	private int[] ownerSlots = new int[32];
+
+	private long latestVersion;
+	private int liveCount;
+	private long liveBytes;
+	private long deadBytes;
+
+	private CatalogStore(long baseVersion) {
+		this.baseVersion = baseVersion;
+		this.latestVersion = baseVersion;
+	}
+
+	public static CatalogStore create(long baseVersion) {
+		return new CatalogStore(baseVersion);
+	}
+
+	/**
+	 * Ficheros vigentes en una versión del directorio. Es inmutable: sólo ve
+	 * los registros escritos hasta esa versión.
+	 */
+	public static final class View {
+		private final CatalogStore store;
+		private final long version;
+		private final long end;
+		private final int size;
+
+		private View(CatalogStore store, long version, long end, int size) {
+			this.store = store;
+			this.version = version;
+			this.end = end;
+			this.size = size;
+		}
+
+		public CatalogStore getStore() {
+			return store;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Referencia al registro del fichero en esta versión, o NONE
+		 */
+		public int lookup(String hash) {
+			return store.lookup(hash, version);
+		}
+
+		public FileInfo get(String hash) {
+			int ref = lookup(hash);
+			return ref == NONE ? null : store.fileInfo(ref);
+		}
+
+		public String getOwner(String hash) {
+			int ref = lookup(hash);
+			return ref == NONE ? null : store.ownerOf(ref);
+		}
+
+		/**
+		 * Indica si un registro (por ejemplo, uno que guarda un índice) está
+		 * vigente en esta versión
+		 */
+		public boolean isLive(int ref) {
+			return store.isLive(ref, version);
+		}
+
+		/**
+		 * Recorre, en orden de publicación, las referencias de los ficheros
+		 * vigentes hasta que "action" devuelva false
+		 */
+		public void forEach(IntPredicate action) {
+			store.forEach(version, end, action);
+		}
+
+		public FileInfo[] toArray() {
+			ArrayList<FileInfo> result = new ArrayList<FileInfo>(size);
+			forEach(ref -> result.add(store.fileInfo(ref)));
+			return result.toArray(new FileInfo[result.size()]);
+		}
+	}
+
+	/**
+	 * Instantánea de los ficheros vigentes en "version", que debe ser la última
+	 * escrita (o posterior)
+	 */
+	public View view(long version) {
+		return new View(this, version, tail, liveCount);
+	}
+
+	/**
+	 * Indica si un hash puede guardarse (como mucho MAX_HASH_BYTES en UTF-8)
+	 */
+	public static boolean isStorable(String hash) {
+		return encodeHash(hash) != null;
+	}
+
+	/*
+	 * Escritura (sólo el escritor)
+	 */
+
+	/**
+	 * Método para publicar (o modificar) un fichero en "version". Si ya está
+	 * vigente con los mismos datos no se escribe nada.
+	 *
+	 * @return Referencia al registro vigente del fichero (la del que ya estaba
+	 *         si no ha cambiado)
+	 */
+	public int put(String hash, String name, long size, String owner, long version) {
+		byte[] key = encodeHash(hash);
+		if (key == null) {
+			throw new IllegalArgumentException("File hash too long: " + hash.length() + " chars");
+		}
+		int rel = relative(version);
+		int ownerId = internOwner(owner);
+		byte[] nameBytes = encodeName(name);
+		int slot = findSlot(slots, key);
+		int prev = slots[slot] - 1;
+		if (prev != NONE && removed(prev) == LIVE) {
+			if (ownerId(prev) == ownerId && sizeOf(prev) == size && nameEquals(prev, nameBytes)) {
+				return prev;
+			}
+			retire(prev, rel);
+		}
+		int ref = append(key, nameBytes, size, ownerId, prev, rel);
+		liveCount++;
+		liveBytes += recordSize(ref);
+		if (prev == NONE) {
+			if ((usedSlots + 1) * 4L > slots.length * 3L) {
+				grow();
+				slot = findSlot(slots, key);
+			}
+			usedSlots++;
+		}
+		SLOT.setRelease(slots, slot, ref + 1);
+		return ref;
+	}
+
+	/**
+	 * Método para retirar un fichero en "version"
+	 *
+	 * @return false si no estaba vigente
+	 */
+	public boolean remove(String hash, long version) {
+		byte[] key = encodeHash(hash);
+		if (key == null) {
+			return false;
+		}
+		int rel = relative(version);
+		int ref = slots[findSlot(slots, key)] - 1;
+		if (ref == NONE || removed(ref) != LIVE) {
+			return false;
+		}
+		retire(ref, rel);
+		return true;
+	}
+
+	/**
+	 * Indica si los registros obsoletos ocupan lo bastante para compactar
+	 */
+	public boolean needsCompaction() {
+		return deadBytes >= MIN_COMPACTION_BYTES && deadBytes > liveBytes;
+	}
+
+	/**
+	 * Método para copiar los ficheros vigentes en la última versión a un almacén
+	 * nuevo, sin registros obsoletos. Este almacén deja de modificarse.
+	 */
+	public CatalogStore compact(long version) {
+		CatalogStore compacted = new CatalogStore(version);
+		forEach(version, tail, ref -> {
+			byte[] key = keyOf(ref);
+			byte[] name = new byte[chunk(ref).getShort(offset(ref) + NAME_LEN) & 0xFFFF];
+			chunk(ref).get(hashStart(ref) + key.length - 1, name);
+			int ownerId = compacted.internOwner(ownerOf(ref));
+			int slot = findSlot(compacted.slots, key);
+			if ((compacted.usedSlots + 1) * 4L > compacted.slots.length * 3L) {
+				compacted.grow();
+				slot = findSlot(compacted.slots, key);
+			}
+			int copy = compacted.append(key, name, sizeOf(ref), ownerId, NONE, 0);
+			compacted.slots[slot] = copy + 1;
+			compacted.usedSlots++;
+			compacted.liveCount++;
+			compacted.liveBytes += compacted.recordSize(copy);
+			return true;
+		});
+		return compacted;
+	}
+
+	private int relative(long version) {
+		if (version < latestVersion) {
+			throw new IllegalStateException("Catalog store written at version " + latestVersion
+					+ ", cannot write version " + version);
+		}
+		if (version - baseVersion >= LIVE) {
+			throw new IllegalStateException("Catalog store version overflow, compact it first");
+		}
+		latestVersion = version;
+		return (int) (version - baseVersion);
+	}
+
+	private void retire(int ref, int rel) {
+		RECORD_INT.setRelease(chunk(ref), offset(ref) + REMOVED, rel);
+		liveCount--;
+		liveBytes -= recordSize(ref);
+		deadBytes += recordSize(ref);
+	}
+
+	private int append(byte[] key, byte[] name, long size, int ownerId, int prev, int rel) {
+		int hash = prev == NONE ? HEADER : PREV + 4;
+		int length = align(hash + key.length - 1 + name.length + varintLength(size));
+		int pos = (int) (tail & (CHUNK_SIZE - 1));
+		if (pos + length > CHUNK_SIZE) {
+			chunks[(int) (tail >>> CHUNK_BITS)].putInt(pos + ADDED, PADDING);
+			tail += CHUNK_SIZE - pos;
+			pos = 0;
+		}
+		int index = (int) (tail >>> CHUNK_BITS);
+		if (index == chunks.length) {
+			ByteBuffer[] grown = Arrays.copyOf(chunks, index + 1);
+			grown[index] = ByteBuffer.allocateDirect(CHUNK_SIZE + Long.BYTES).alignedSlice(Long.BYTES)
+					.order(ByteOrder.nativeOrder());
+			chunks = grown;
+		}
+		ByteBuffer chunk = chunks[index];
+		chunk.putInt(pos + ADDED, rel);
+		chunk.putInt(pos + REMOVED, LIVE);
+		chunk.putInt(pos + OWNER, ownerId);
+		chunk.putShort(pos + NAME_LEN, (short) name.length);
+		chunk.put(pos + HASH_KIND, prev == NONE ? key[0] : (byte) (key[0] | HAS_PREV));
+		chunk.put(pos + HASH_LEN, (byte) (key.length - 1));
+		if (prev != NONE) {
+			chunk.putInt(pos + PREV, prev);
+		}
+		chunk.put(pos + hash, key, 1, key.length - 1);
+		chunk.put(pos + hash + key.length - 1, name);
+		int at = pos + hash + key.length - 1 + name.length;
+		long rest = size;
+		while ((rest & ~0x7FL) != 0) {
+			chunk.put(at++, (byte) ((rest & 0x7F) | 0x80));
+			rest >>>= 7;
+		}
+		chunk.put(at, (byte) rest);
+		int ref = (int) (tail >>> 2);
+		tail += length;
+		return ref;
+	}
+
+	private void grow() {
+		int[] grown = new int[slots.length * 2];
+		for (int s : slots) {
+			if (s != 0) {
+				grown[findSlot(grown, keyOf(s - 1))] = s;
+			}
+		}
+		slots = grown;
+	}
+
+	private int internOwner(String owner) {
+		int mask = ownerSlots.length - 1;
+		int i = mix(owner.hashCode()) & mask;
+		while (ownerSlots[i] != 0) {
+			if (ownerNames[ownerSlots[i] - 1].equals(owner)) {
+				return ownerSlots[i] - 1;
+			}
+			i = (i + 1) & mask;
+		}
+		if (numOwners == ownerNames.length) {
+			ownerNames = Arrays.copyOf(ownerNames, numOwners * 2);
+		}
+		ownerNames[numOwners] = owner;
+		ownerSlots[i] = ++numOwners;
+		if (numOwners * 2 > ownerSlots.length) {
+			int[] grown = new int[ownerSlots.length * 2];
+			for (int s : ownerSlots) {
+				if (s != 0) {
+					int j = mix(ownerNames[s - 1].hashCode()) & (grown.length - 1);
+					while (grown[j] != 0) {
+						j = (j + 1) & (grown.length - 1);
+					}
+					grown[j] = s;
+				}
+			}
+			ownerSlots = grown;
+		}
+		return numOwners - 1;
+	}
+
+	/*
+	 * Lectura (cualquier hilo)
+	 */
+
+	private int lookup(String hash, long version) {
+		byte[] key = encodeHash(hash);
+		if (key == null) {
+			return NONE;
+		}
+		int rel = (int) (version - baseVersion);
+		int[] table = slots;
+		int ref = (int) SLOT.getAcquire(table, findSlot(table, key)) - 1;
+		// El primer registro de la cadena añadido hasta "version" es el que veía
+		while (ref != NONE) {
+			if (added(ref) <= rel) {
+				return removed(ref) > rel ? ref : NONE;
+			}
+			ref = prev(ref);
+		}
+		return NONE;
+	}
+
+	private boolean isLive(int ref, long version) {
+		int rel = (int) (version - baseVersion);
+		return added(ref) <= rel && removed(ref) > rel;
+	}
+
+	private void forEach(long version, long end, IntPredicate action) {
+		int rel = (int) (version - baseVersion);
+		ByteBuffer[] blocks = chunks;
+		long position = 0;
+		while (position < end) {
+			ByteBuffer chunk = blocks[(int) (position >>> CHUNK_BITS)];
+			int pos = (int) (position & (CHUNK_SIZE - 1));
+			int added = chunk.getInt(pos + ADDED);
+			if (added == PADDING) {
+				position += CHUNK_SIZE - pos;
+				continue;
+			}
+			int ref = (int) (position >>> 2);
+			if (added <= rel && removed(ref) > rel && !action.test(ref)) {
+				return;
+			}
+			position += recordSize(ref);
+		}
+	}
+
+	public FileInfo fileInfo(int ref) {
+		return new FileInfo(hashOf(ref), nameOf(ref), sizeOf(ref), null);
+	}
+
+	public String hashOf(int ref) {
+		ByteBuffer chunk = chunk(ref);
+		int pos = offset(ref);
+		byte[] bytes = new byte[chunk.get(pos + HASH_LEN) & 0xFF];
+		chunk.get(hashStart(ref), bytes);
+		if ((chunk.get(pos + HASH_KIND) & ~HAS_PREV) == HASH_SHA1_HEX) {
+			char[] hex = new char[bytes.length * 2];
+			for (int i = 0; i < bytes.length; i++) {
+				hex[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+				hex[2 * i + 1] = HEX[bytes[i] & 0xF];
+			}
+			return new String(hex);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public String nameOf(int ref) {
+		ByteBuffer chunk = chunk(ref);
+		int pos = offset(ref);
+		byte[] bytes = new byte[chunk.getShort(pos + NAME_LEN) & 0xFFFF];
+		chunk.get(hashStart(ref) + (chunk.get(pos + HASH_LEN) & 0xFF), bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public long sizeOf(int ref) {
+		ByteBuffer chunk = chunk(ref);
+		int at = sizeStart(ref);
+		long size = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = chunk.get(at++);
+			size |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return size;
+	}
+
+	public String ownerOf(int ref) {
+		return ownerNames[ownerId(ref)];
+	}
+
+	/*
+	 * Estadísticas
+	 */
+
+	public int getLiveCount() {
+		return liveCount;
+	}
+
+	/**
+	 * Bytes ocupados por los registros vigentes
+	 */
+	public long getLiveBytes() {
+		return liveBytes;
+	}
+
+	/**
+	 * Bytes de memoria directa reservados (incluye registros obsoletos)
+	 */
+	public long getOffHeapBytes() {
+		return (long) chunks.length * CHUNK_SIZE;
+	}
+
+	/**
+	 * Bytes de heap de las tablas de hashes y de propietarios
+	 */
+	public long getTableBytes() {
+		return 4L * (slots.length + ownerSlots.length) + 8L * ownerNames.length;
+	}
+
+	@Override
+	public String toString() {
+		int perFile = liveCount == 0 ? 0 : (int) ((liveBytes + 4L * slots.length) / liveCount);
+		return liveCount + " files, " + getOffHeapBytes() / 1024 + " KB off-heap, " + perFile + " bytes/file";
+	}
+
+	/*
+	 * Acceso a los campos de un registro
+	 */
+
+	private ByteBuffer chunk(int ref) {
+		return chunks[(int) (((long) ref << 2) >>> CHUNK_BITS)];
+	}
+
+	private static int offset(int ref) {
+		return (int) (((long) ref << 2) & (CHUNK_SIZE - 1));
+	}
+
+	private int added(int ref) {
+		return chunk(ref).getInt(offset(ref) + ADDED);
+	}
+
+	private int removed(int ref) {
+		return (int) RECORD_INT.getAcquire(chunk(ref), offset(ref) + REMOVED);
+	}
+
+	private int prev(int ref) {
+		ByteBuffer chunk = chunk(ref);
+		int pos = offset(ref);
+		return (chunk.get(pos + HASH_KIND) & HAS_PREV) == 0 ? NONE : chunk.getInt(pos + PREV);
+	}
+
+	private int ownerId(int ref) {
+		return chunk(ref).getInt(offset(ref) + OWNER);
+	}
+
+	private int recordSize(int ref) {
+		return align(sizeStart(ref) + varintLength(sizeOf(ref)) - offset(ref));
+	}
+
+	/**
+	 * Posición (en el bloque) del hash de un registro
+	 */
+	private int hashStart(int ref) {
+		ByteBuffer chunk = chunk(ref);
+		int pos = offset(ref);
+		return pos + ((chunk.get(pos + HASH_KIND) & HAS_PREV) == 0 ? HEADER : PREV + 4);
+	}
+
+	/**
+	 * Posición (en el bloque) del tamaño de un registro, tras el nombre
+	 */
+	private int sizeStart(int ref) {
+		ByteBuffer chunk = chunk(ref);
+		int pos = offset(ref);
+		return hashStart(ref) + (chunk.get(pos + HASH_LEN) & 0xFF) + (chunk.getShort(pos + NAME_LEN) & 0xFFFF);
+	}
+
+	private byte[] keyOf(int ref) {
+		ByteBuffer chunk = chunk(ref);
+		int pos = offset(ref);
+		byte[] key = new byte[1 + (chunk.get(pos + HASH_LEN) & 0xFF)];
+		key[0] = (byte) (chunk.get(pos + HASH_KIND) & ~HAS_PREV);
+		chunk.get(hashStart(ref), key, 1, key.length - 1);
+		return key;
+	}
+
+	private boolean keyEquals(int ref, byte[] key) {
+		ByteBuffer chunk = chunk(ref);
+		int pos = offset(ref);
+		if ((chunk.get(pos + HASH_KIND) & ~HAS_PREV) != key[0]
+				|| (chunk.get(pos + HASH_LEN) & 0xFF) != key.length - 1) {
+			return false;
+		}
+		int start = hashStart(ref);
+		for (int i = 1; i < key.length; i++) {
+			if (chunk.get(start + i - 1) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean nameEquals(int ref, byte[] name) {
+		ByteBuffer chunk = chunk(ref);
+		int pos = offset(ref);
+		if ((chunk.getShort(pos + NAME_LEN) & 0xFFFF) != name.length) {
+			return false;
+		}
+		int start = hashStart(ref) + (chunk.get(pos + HASH_LEN) & 0xFF);
+		for (int i = 0; i < name.length; i++) {
+			if (chunk.get(start + i) != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Posición de "key" en la tabla: la que ocupa o la primera libre
+	 */
+	private int findSlot(int[] table, byte[] key) {
+		int mask = table.length - 1;
+		int i = mix(Arrays.hashCode(key)) & mask;
+		while (true) {
+			int s = (int) SLOT.getAcquire(table, i);
+			if (s == 0 || keyEquals(s - 1, key)) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static int align(int length) {
+		return (length + 3) & ~3;
+	}
+
+	private static int varintLength(long value) {
+		int length = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	/*
+	 * Codificación de hashes y nombres
+	 */
+
+	/**
+	 * [tipo][bytes]: los 20 bytes de un SHA-1 en hexadecimal (minúsculas), o
+	 * la cadena en UTF-8 para cualquier otro hash. null si es demasiado largo.
+	 */
+	private static byte[] encodeHash(String hash) {
+		if (hash.length() == 2 * SHA1_BYTES && isLowerHex(hash)) {
+			byte[] key = new byte[1 + SHA1_BYTES];
+			key[0] = HASH_SHA1_HEX;
+			for (int i = 0; i < SHA1_BYTES; i++) {
+				key[1 + i] = (byte) ((Character.digit(hash.charAt(2 * i), 16) << 4)
+						| Character.digit(hash.charAt(2 * i + 1), 16));
+			}
+			return key;
+		}
+		byte[] bytes = hash.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > MAX_HASH_BYTES) {
+			return null;
+		}
+		byte[] key = new byte[1 + bytes.length];
+		key[0] = HASH_RAW;
+		System.arraycopy(bytes, 0, key, 1, bytes.length);
+		return key;
+	}
+
+	private static boolean isLowerHex(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * El nombre en UTF-8, recortado a MAX_NAME_BYTES
+	 */
+	private static byte[] encodeName(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		return bytes.length > MAX_NAME_BYTES ? Arrays.copyOf(bytes, MAX_NAME_BYTES) : bytes;
+	}
+}
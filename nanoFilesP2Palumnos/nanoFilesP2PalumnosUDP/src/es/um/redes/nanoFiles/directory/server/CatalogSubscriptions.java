@@ -0,0 +1,138 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import es.um.redes.nanoFiles.directory.message.CatalogEvent;
+import es.um.redes.nanoFiles.directory.message.DirMessage;
+
+/**
+ * Suscriptores a los cambios del catálogo. A cada suscriptor se le envían, en
+ * un único datagrama, los cambios que todavía no ha recibido; el siguiente
+ * envío a ese suscriptor espera al menos MIN_PUSH_INTERVAL_MILLIS, así que los
+ * cambios que se producen mientras tanto se agrupan en el siguiente datagrama.
+ * Las suscripciones caducan si no se renuevan, y el número de suscriptores y
+ * de reenvíos que puede pedir cada uno están limitados.
+ *
+ * La clase no es thread-safe: el directorio la usa con writeLock tomado.
+ */
+public class CatalogSubscriptions {
+
+	private static final int MAX_SUBSCRIBERS = 64;
+	/**
+	 * Tiempo mínimo (ms) entre dos envíos de cambios a un mismo suscriptor
+	 */
+	private static final int MIN_PUSH_INTERVAL_MILLIS = 250;
+	/**
+	 * Tiempo mínimo (ms) entre dos solicitudes de reenvío de un suscriptor
+	 */
+	private static final int MIN_RESYNC_INTERVAL_MILLIS = 1000;
+	private static final int LEASE_TICK_MILLIS = 1000;
+	private static final int LEASE_WHEEL_SLOTS = 128;
+
+	/**
+	 * Estado de envío de un suscriptor
+	 */
+	private static class Subscription {
+		/**
+		 * Último cambio enviado al suscriptor
+		 */
+		long sentSeq;
+		long lastPush;
+		long lastResync;
+	}
+
+	private final CatalogChangeLog changes;
+	private final SingleFlight.Delivery sender;
+	private final HashMap<InetSocketAddress, Subscription> subscribers = new HashMap<InetSocketAddress, Subscription>();
+	private final HashedTimerWheel<InetSocketAddress> leases;
+
+	public CatalogSubscriptions(CatalogChangeLog changes, SingleFlight.Delivery sender, long now) {
+		this.changes = changes;
+		this.sender = sender;
+		leases = new HashedTimerWheel<InetSocketAddress>(LEASE_TICK_MILLIS, LEASE_WHEEL_SLOTS, now);
+	}
+
+	/**
+	 * Método para dar de alta (o renovar) una suscripción. Un suscriptor nuevo
+	 * empieza a recibir los cambios posteriores al último actual.
+	 *
+	 * @return false si se ha alcanzado el máximo de suscriptores
+	 */
+	public boolean subscribe(InetSocketAddress subscriber, long now) {
+		if (!subscribers.containsKey(subscriber)) {
+			if (subscribers.size() >= MAX_SUBSCRIBERS) {
+				return false;
+			}
+			Subscription s = new Subscription();
+			s.sentSeq = changes.getHeadSeq();
+			subscribers.put(subscriber, s);
+		}
+		leases.schedule(subscriber, now + DirMessage.SUBSCRIPTION_LEASE_MILLIS);
+		return true;
+	}
+
+	/**
+	 * Método para reenviar a un suscriptor los cambios posteriores a
+	 * "lastAppliedSeq", o el aviso de que debe descargar el catálogo completo.
+	 * Se ignoran las solicitudes de quien no está suscrito o repite demasiado
+	 * pronto (el suscriptor vuelve a pedirlo si no recibe nada).
+	 */
+	public void resync(InetSocketAddress subscriber, long lastAppliedSeq, long now) throws IOException {
+		Subscription s = subscribers.get(subscriber);
+		if (s == null || now - s.lastResync < MIN_RESYNC_INTERVAL_MILLIS) {
+			return;
+		}
+		s.lastResync = now;
+		s.sentSeq = lastAppliedSeq;
+		send(subscriber, s, now);
+	}
+
+	/**
+	 * Método para enviar a cada suscriptor los cambios que le faltan, salvo a
+	 * los que han recibido un envío hace menos de MIN_PUSH_INTERVAL_MILLIS
+	 */
+	public void push(long now) throws IOException {
+		long head = changes.getHeadSeq();
+		for (HashMap.Entry<InetSocketAddress, Subscription> entry : subscribers.entrySet()) {
+			Subscription s = entry.getValue();
+			if (s.sentSeq != head && now - s.lastPush >= MIN_PUSH_INTERVAL_MILLIS) {
+				send(entry.getKey(), s, now);
+			}
+		}
+	}
+
+	/**
+	 * Método para dar de baja las suscripciones que no se han renovado a tiempo
+	 */
+	public void expire(long now) {
+		ArrayList<InetSocketAddress> caducados = new ArrayList<InetSocketAddress>();
+		leases.advance(now, caducados);
+		for (InetSocketAddress subscriber : caducados) {
+			subscribers.remove(subscriber);
+		}
+	}
+
+	public int size() {
+		return subscribers.size();
+	}
+
+	private void send(InetSocketAddress subscriber, Subscription s, long now) throws IOException {
+		long head = changes.getHeadSeq();
+		List<CatalogEvent> pending = changes.since(s.sentSeq, CatalogChangeLog.MAX_EVENTS_PER_DATAGRAM);
+		if (pending == null) {
+			// Se ha quedado demasiado atrás: debe volver a descargar el catálogo
+			sender.deliver(DirMessage.buildCatalogResyncFullMessage(head), Requester.unsolicited(subscriber));
+			s.sentSeq = head;
+		} else {
+			sender.deliver(DirMessage.buildCatalogEventsMessage(head, pending), Requester.unsolicited(subscriber));
+			if (!pending.isEmpty()) {
+				s.sentSeq = pending.get(pending.size() - 1).getSeq();
+			}
+		}
+		s.lastPush = now;
+	}
+}
@@ -1,6 +1,13 @@
 package es.um.redes.nanoFiles.directory.server;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.List;
+
+import es.um.redes.nanoFiles.directory.cluster.ConsistentHashRing;
 
 public class Directory {
 	public static final int DIRECTORY_PORT = 6868;
@@ -8,41 +15,140 @@ public class Directory {
 
 	public static void main(String[] args) {
 		double datagramCorruptionProbability = DEFAULT_CORRUPTION_PROBABILITY;
+		String dataDir = null;
+		int port = DIRECTORY_PORT;
+		String cluster = null;
+		DirectoryLog.FsyncPolicy fsyncPolicy = DirectoryLog.DEFAULT_FSYNC_POLICY;
+		RateLimiter limiter = new RateLimiter();
 
 		/**
-		 * Command line argument to directory is optional, if not specified, default
-		 * value is used: -loss: probability of corruption of received datagrams
+		 * Command line arguments to directory are optional, if not specified, default
+		 * values are used: -loss: probability of corruption of received datagrams
+		 * -data: folder where the directory state is persisted ("none" to disable)
+		 * -fsync: when the log is flushed to disk (always, interval or never)
+		 * -port: UDP port to listen on
+		 * -cluster: all the nodes of a directory cluster (host:port,host:port,...),
+		 * including this one
+		 * -ratelimit: requests per second allowed from each IP address, for cheap
+		 * and for expensive operations (cheap,expensive), or "none"
 		 */
 		String arg;
 
-		// Analizamos si hay parámetro
-		if (args.length > 0 && args[0].startsWith("-")) {
-			arg = args[0];
+		// Analizamos los parámetros, cada opción seguida de su valor
+		for (int i = 0; i < args.length; i += 2) {
+			arg = args[i];
+			if (i + 1 >= args.length) {
+				System.err.println("option " + arg + " requires a value");
+				return;
+			}
+			String value = args[i + 1];
 			// Examinamos si es un parámetro válido
 			if (arg.equals("-loss")) {
-				if (args.length == 2) {
+				try {
+					// El segundo argumento contiene la probabilidad de descarte
+					datagramCorruptionProbability = Double.parseDouble(value);
+				} catch (NumberFormatException e) {
+					System.err.println("Wrong value passed to option " + arg);
+					return;
+				}
+			} else if (arg.equals("-port")) {
+				try {
+					port = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					System.err.println("Wrong value passed to option " + arg);
+					return;
+				}
+			} else if (arg.equals("-cluster")) {
+				cluster = value;
+			} else if (arg.equals("-ratelimit")) {
+				if (value.equals("none")) {
+					limiter = null;
+				} else {
 					try {
-						// El segundo argumento contiene la probabilidad de descarte
-						datagramCorruptionProbability = Double.parseDouble(args[1]);
-					} catch (NumberFormatException e) {
+						String[] rates = value.split(",");
+						limiter = new RateLimiter(Double.parseDouble(rates[0]), Double.parseDouble(rates[1]));
+					} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
 						System.err.println("Wrong value passed to option " + arg);
 						return;
 					}
-				} else
-					System.err.println("option " + arg + " requires a value");
+				}
+			} else if (arg.equals("-data")) {
+				dataDir = value;
+			} else if (arg.equals("-fsync")) {
+				try {
+					fsyncPolicy = DirectoryLog.FsyncPolicy.valueOf(value.toUpperCase());
+				} catch (IllegalArgumentException e) {
+					System.err.println("Wrong value passed to option " + arg);
+					return;
+				}
 			} else {
 				System.err.println("Illegal option " + arg);
+				return;
 			}
 		}
 		System.out.println("Probability of corruption for received datagrams: " + datagramCorruptionProbability);
+		if (dataDir == null) {
+			// Varios nodos en la misma máquina no pueden compartir carpeta
+			dataDir = port == DIRECTORY_PORT ? DirectoryLog.DEFAULT_DATA_DIR
+					: DirectoryLog.DEFAULT_DATA_DIR + "-" + port;
+		}
+		ConsistentHashRing ring = null;
+		InetSocketAddress self = null;
+		if (cluster != null) {
+			try {
+				List<InetSocketAddress> nodes = ConsistentHashRing.parseNodes(cluster, DIRECTORY_PORT);
+				self = findSelf(nodes, port);
+				if (self == null) {
+					System.err.println("This directory (port " + port + ") is not in the cluster " + cluster);
+					return;
+				}
+				ring = new ConsistentHashRing(nodes);
+				System.out.println("Directory node " + self + " in a cluster of " + nodes.size() + " nodes");
+			} catch (IllegalArgumentException | SocketException e) {
+				System.err.println("Wrong value passed to option -cluster");
+				return;
+			}
+		}
+		DirectoryLog log = null;
+		DirectoryState recovered = DirectoryState.empty();
+		if (!dataDir.equals("none")) {
+			try {
+				long start = System.currentTimeMillis();
+				log = new DirectoryLog(new File(dataDir), fsyncPolicy);
+				recovered = log.recover();
+				System.out.println("Directory state persisted in " + dataDir + " (fsync " + fsyncPolicy
+						+ "), recovered " + recovered.getNumNicks() + " nicks, " + recovered.getNumServers()
+						+ " servers and " + recovered.getNumFiles() + " files in "
+						+ (System.currentTimeMillis() - start) + " ms");
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.err.println("Directory cannot recover its state from " + dataDir);
+				System.exit(-1);
+			}
+		}
 		DirectoryThread dt;
 		try {
-			dt = new DirectoryThread(DIRECTORY_PORT, datagramCorruptionProbability);
+			dt = new DirectoryThread(port, datagramCorruptionProbability, log, recovered, ring, self);
+			dt.setRateLimiter(limiter);
 			dt.start();
 		} catch (SocketException e) {
-			System.err.println("Directory cannot create UDP socket on port " + DIRECTORY_PORT);
+			System.err.println("Directory cannot create UDP socket on port " + port);
 			System.err.println("Most likely a Directory process is already running and listening on that port...");
 			System.exit(-1);
 		}
 	}
+
+	/**
+	 * Busca en la lista de nodos del clúster el que corresponde a este proceso:
+	 * el que tiene su puerto y una IP de esta máquina
+	 */
+	private static InetSocketAddress findSelf(List<InetSocketAddress> nodes, int port) throws SocketException {
+		for (InetSocketAddress node : nodes) {
+			if (node.getPort() == port && !node.isUnresolved() && (node.getAddress().isLoopbackAddress()
+					|| NetworkInterface.getByInetAddress(node.getAddress()) != null)) {
+				return node;
+			}
+		}
+		return null;
+	}
 }
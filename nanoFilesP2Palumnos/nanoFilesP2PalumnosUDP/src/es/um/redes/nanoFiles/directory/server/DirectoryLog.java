@@ -0,0 +1,650 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import es.um.redes.nanoFiles.util.BloomFilter;
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Persistencia del estado del directorio: registro de escritura anticipada
+ * (WAL) con las modificaciones, más instantáneas compactas periódicas que
+ * permiten descartar los segmentos del registro ya cubiertos.
+ *
+ * Las modificaciones se añaden a una cola y un único hilo escritor las vuelca
+ * al segmento actual. Todas las que se acumulan mientras se hace un fsync se
+ * escriben y sincronizan juntas en el siguiente (group commit). Con la política
+ * ALWAYS la respuesta al cliente sólo se envía cuando su modificación está en
+ * disco.
+ */
+public class DirectoryLog {
+
+	/**
+	 * Cuándo se fuerza el volcado a disco del registro
+	 */
+	public enum FsyncPolicy {
+		/**
+		 * Antes de responder al cliente (un fsync por lote de modificaciones)
+		 */
+		ALWAYS,
+		/**
+		 * Cada FSYNC_INTERVAL_MILLIS; se pueden perder las modificaciones de ese
+		 * intervalo si se cae la máquina (no el proceso)
+		 */
+		INTERVAL,
+		/**
+		 * Nunca: el sistema operativo decide cuándo escribir
+		 */
+		NEVER
+	}
+
+	/**
+	 * Acción (normalmente enviar la respuesta) que se ejecuta cuando la
+	 * modificación es durable según la política configurada
+	 */
+	public interface DurableAction {
+		void run() throws IOException;
+	}
+
+	public static final String DEFAULT_DATA_DIR = "nf-directory-data";
+	public static final FsyncPolicy DEFAULT_FSYNC_POLICY = FsyncPolicy.INTERVAL;
+
+	private static final int FSYNC_INTERVAL_MILLIS = 100;
+	/**
+	 * Se hace una instantánea cuando se acumulan tantos registros desde la
+	 * anterior, o cuando pasa SNAPSHOT_INTERVAL_MILLIS con algún cambio
+	 */
+	private static final int SNAPSHOT_EVERY_RECORDS = 100000;
+	private static final int SNAPSHOT_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+	private static final String SNAPSHOT_FILE = "snapshot.dat";
+	private static final String SNAPSHOT_TMP_FILE = "snapshot.tmp";
+	private static final String WAL_PREFIX = "wal-";
+	private static final String WAL_SUFFIX = ".log";
+	private static final int SNAPSHOT_MAGIC = 0x4E46534E; // "NFSN"
+	/**
+	 * Tamaño máximo de un registro; uno mayor indica un final de fichero dañado
+	 */
+	private static final int MAX_RECORD_SIZE = 1 << 24;
+
+	/*
+	 * Tipos de registro del WAL. Una caducidad de concesión se registra como
+	 * STOP seguido de LOGOFF.
+	 */
+	private static final byte RECORD_REGISTER = 1;
+	private static final byte RECORD_LOGOFF = 2;
+	private static final byte RECORD_SERVE = 3;
+	private static final byte RECORD_STOP = 4;
+	private static final byte RECORD_SUMMARY = 5;
+
+	/**
+	 * Elemento de la cola del hilo escritor: un registro con su acción, o una
+	 * marca para pasar al siguiente segmento
+	 */
+	private static class Entry {
+		final byte[] record;
+		final DurableAction action;
+		final long rotateTo;
+		final CountDownLatch rotated;
+
+		Entry(byte[] record, DurableAction action) {
+			this.record = record;
+			this.action = action;
+			this.rotateTo = -1;
+			this.rotated = null;
+		}
+
+		Entry(long rotateTo) {
+			this.record = null;
+			this.action = null;
+			this.rotateTo = rotateTo;
+			this.rotated = new CountDownLatch(1);
+		}
+	}
+
+	private final File dataDir;
+	private final FsyncPolicy policy;
+	private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+	private Thread writer;
+	private volatile boolean running = true;
+
+	/*
+	 * Estado del hilo escritor: segmento abierto y si tiene datos sin sincronizar
+	 */
+	private FileChannel wal;
+	private boolean dirty;
+	private long lastForce;
+
+	/*
+	 * Estado de quien añade registros (con el writeLock del directorio)
+	 */
+	private long currentSegment;
+	private long recordsSinceSnapshot;
+	private long lastSnapshot;
+	private volatile boolean snapshotInProgress;
+
+	public DirectoryLog(File dataDir, FsyncPolicy policy) throws IOException {
+		this.dataDir = dataDir;
+		this.policy = policy;
+		if (!dataDir.isDirectory() && !dataDir.mkdirs()) {
+			throw new IOException("Cannot create directory data folder " + dataDir);
+		}
+	}
+
+	public FsyncPolicy getPolicy() {
+		return policy;
+	}
+
+	public File getDataDir() {
+		return dataDir;
+	}
+
+	/**
+	 * Método para reconstruir el estado a partir de la última instantánea y de
+	 * los segmentos del registro posteriores. Un registro final incompleto o
+	 * corrupto (caída a mitad de escritura) se descarta truncando el segmento.
+	 * Después abre un segmento nuevo y arranca el hilo escritor.
+	 */
+	public DirectoryState recover() throws IOException {
+		DirectoryState recovered = DirectoryState.empty();
+		long firstSegment = 0;
+		File snapshot = new File(dataDir, SNAPSHOT_FILE);
+		if (snapshot.exists()) {
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(snapshot)))) {
+				if (in.readInt() != SNAPSHOT_MAGIC) {
+					throw new IOException("Invalid directory snapshot " + snapshot);
+				}
+				firstSegment = in.readLong();
+				recovered = readSnapshot(in);
+			}
+		}
+		long[] segments = listSegments();
+		long lastSegment = firstSegment - 1;
+		for (long seg : segments) {
+			if (seg >= firstSegment) {
+				File segment = segmentFile(seg);
+				recovered = replaySegment(segment, recovered);
+				lastSegment = seg;
+				if (segment.length() == 0) {
+					// Arranque sin modificaciones: no hace falta conservarlo
+					segment.delete();
+				}
+			}
+		}
+		// Cada arranque escribe en un segmento nuevo
+		currentSegment = lastSegment + 1;
+		wal = openSegment(currentSegment);
+		lastForce = System.currentTimeMillis();
+		lastSnapshot = lastForce;
+		// Los segmentos recuperados aún no están cubiertos por una instantánea
+		recordsSinceSnapshot = lastSegment >= firstSegment ? 1 : 0;
+		writer = new Thread(this::writeLoop, "directory-wal");
+		writer.setDaemon(true);
+		writer.start();
+		return recovered;
+	}
+
+	/*
+	 * Métodos para construir los registros de cada modificación
+	 */
+
+	public static byte[] registerRecord(String nick, LocalDateTime registered) {
+		return record(out -> {
+			out.writeByte(RECORD_REGISTER);
+			out.writeUTF(nick);
+			out.writeLong(registered.toEpochSecond(ZoneOffset.UTC));
+			out.writeInt(registered.getNano());
+		});
+	}
+
+	public static byte[] logoffRecord(String nick) {
+		return record(out -> {
+			out.writeByte(RECORD_LOGOFF);
+			out.writeUTF(nick);
+		});
+	}
+
+	public static byte[] serveRecord(String nick, InetSocketAddress address, FileInfo[] files) {
+		return record(out -> {
+			out.writeByte(RECORD_SERVE);
+			out.writeUTF(nick);
+			writeAddress(out, address);
+			writeFiles(out, files);
+		});
+	}
+
+	public static byte[] summaryRecord(String nick, InetSocketAddress address, BloomFilter summary) {
+		return record(out -> {
+			out.writeByte(RECORD_SUMMARY);
+			out.writeUTF(nick);
+			writeAddress(out, address);
+			writeSummary(out, summary);
+		});
+	}
+
+	public static byte[] stopRecord(String nick) {
+		return record(out -> {
+			out.writeByte(RECORD_STOP);
+			out.writeUTF(nick);
+		});
+	}
+
+	/**
+	 * Método para añadir un registro al WAL. "action" (que puede ser null) se
+	 * ejecuta en cuanto el registro es durable según la política: con ALWAYS
+	 * desde el hilo escritor tras el fsync de su lote, y si no inmediatamente.
+	 */
+	public void append(byte[] record, DurableAction action) throws IOException {
+		recordsSinceSnapshot++;
+		if (policy == FsyncPolicy.ALWAYS) {
+			queue.add(new Entry(record, action));
+		} else {
+			queue.add(new Entry(record, null));
+			if (action != null) {
+				action.run();
+			}
+		}
+	}
+
+	/**
+	 * Método para escribir una instantánea del estado si toca hacerlo. Se llama
+	 * con el writeLock tomado, de modo que "current" refleja exactamente los
+	 * registros añadidos hasta ahora: se cierra el segmento actual y la
+	 * instantánea (inmutable) se escribe en segundo plano; al terminar se borran
+	 * los segmentos que cubre.
+	 */
+	public void maybeSnapshot(DirectoryState current, long now) {
+		if (snapshotInProgress || recordsSinceSnapshot == 0) {
+			return;
+		}
+		if (recordsSinceSnapshot < SNAPSHOT_EVERY_RECORDS && now - lastSnapshot < SNAPSHOT_INTERVAL_MILLIS) {
+			return;
+		}
+		snapshotInProgress = true;
+		recordsSinceSnapshot = 0;
+		lastSnapshot = now;
+		currentSegment++;
+		final long coveredUpTo = currentSegment;
+		final Entry rotate = new Entry(coveredUpTo);
+		queue.add(rotate);
+		Thread t = new Thread(() -> {
+			try {
+				writeSnapshot(current, coveredUpTo);
+				rotate.rotated.await();
+				for (long seg : listSegments()) {
+					if (seg < coveredUpTo) {
+						segmentFile(seg).delete();
+					}
+				}
+			} catch (IOException | InterruptedException e) {
+				e.printStackTrace();
+			} finally {
+				snapshotInProgress = false;
+			}
+		}, "directory-snapshot");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Vuelca lo pendiente y detiene el hilo escritor
+	 */
+	public void close() {
+		running = false;
+		if (writer != null) {
+			writer.interrupt();
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void writeLoop() {
+		ArrayList<Entry> batch = new ArrayList<Entry>();
+		while (running || !queue.isEmpty()) {
+			batch.clear();
+			try {
+				Entry first = queue.poll(FSYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					// Todo lo que se ha acumulado mientras tanto va en el mismo lote
+					queue.drainTo(batch);
+				}
+			} catch (InterruptedException e) {
+				queue.drainTo(batch);
+			}
+			try {
+				writeBatch(batch);
+			} catch (IOException e) {
+				System.err.println("* Failed to write directory log: " + e.getMessage());
+				e.printStackTrace();
+			}
+			// Las respuestas se envían aunque falle el disco: el directorio sigue
+			// funcionando, aunque sin la garantía de durabilidad
+			for (Entry e : batch) {
+				if (e.action != null) {
+					try {
+						e.action.run();
+					} catch (IOException ex) {
+						ex.printStackTrace();
+					}
+				}
+			}
+		}
+		try {
+			wal.force(false);
+			wal.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void writeBatch(ArrayList<Entry> batch) throws IOException {
+		for (Entry e : batch) {
+			if (e.record != null) {
+				ByteBuffer buf = ByteBuffer.wrap(e.record);
+				while (buf.hasRemaining()) {
+					wal.write(buf);
+				}
+				dirty = true;
+			} else {
+				wal.force(false);
+				wal.close();
+				wal = openSegment(e.rotateTo);
+				dirty = false;
+				e.rotated.countDown();
+			}
+		}
+		long now = System.currentTimeMillis();
+		boolean force = policy == FsyncPolicy.ALWAYS
+				|| (policy == FsyncPolicy.INTERVAL && now - lastForce >= FSYNC_INTERVAL_MILLIS);
+		if (dirty && force) {
+			wal.force(false);
+			dirty = false;
+			lastForce = now;
+		}
+	}
+
+	private FileChannel openSegment(long seg) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(segmentFile(seg), "rw");
+		raf.seek(raf.length());
+		return raf.getChannel();
+	}
+
+	private File segmentFile(long seg) {
+		return new File(dataDir, String.format("%s%016d%s", WAL_PREFIX, seg, WAL_SUFFIX));
+	}
+
+	/**
+	 * Números de los segmentos presentes en la carpeta, en orden
+	 */
+	private long[] listSegments() {
+		String[] names = dataDir.list();
+		if (names == null) {
+			return new long[0];
+		}
+		long[] segments = new long[names.length];
+		int n = 0;
+		for (String name : names) {
+			if (name.startsWith(WAL_PREFIX) && name.endsWith(WAL_SUFFIX)) {
+				try {
+					segments[n++] = Long.parseLong(
+							name.substring(WAL_PREFIX.length(), name.length() - WAL_SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					// No es un segmento nuestro
+				}
+			}
+		}
+		segments = Arrays.copyOf(segments, n);
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	/*
+	 * Formato de un registro: [longitud:4][crc32:4][tipo:1][campos]
+	 */
+
+	private interface RecordWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private static byte[] record(RecordWriter writer) {
+		try {
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			writer.write(new DataOutputStream(payload));
+			byte[] data = payload.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			ByteBuffer buf = ByteBuffer.allocate(8 + data.length);
+			buf.putInt(data.length);
+			buf.putInt((int) crc.getValue());
+			buf.put(data);
+			return buf.array();
+		} catch (IOException e) {
+			// No ocurre escribiendo en memoria
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private DirectoryState replaySegment(File segment, DirectoryState state) throws IOException {
+		long valid = 0;
+		int replayed = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (length < 0 || length > MAX_RECORD_SIZE) {
+					break;
+				}
+				int expectedCrc;
+				byte[] data = new byte[length];
+				try {
+					expectedCrc = in.readInt();
+					in.readFully(data);
+				} catch (EOFException e) {
+					break;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				if ((int) crc.getValue() != expectedCrc) {
+					break;
+				}
+				state = applyRecord(state, new DataInputStream(new ByteArrayInputStream(data)));
+				valid += 8 + length;
+				replayed++;
+			}
+		}
+		if (valid < segment.length()) {
+			System.err.println("* Discarding damaged tail of " + segment.getName() + " ("
+					+ (segment.length() - valid) + " bytes)");
+			try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+				raf.setLength(valid);
+			}
+		}
+		System.out.println("* Replayed " + replayed + " records from " + segment.getName());
+		return state;
+	}
+
+	private static DirectoryState applyRecord(DirectoryState state, DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		String nick = in.readUTF();
+		switch (type) {
+		case RECORD_REGISTER:
+			return state.withNick(nick, LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC));
+		case RECORD_LOGOFF:
+			return state.withoutNick(nick);
+		case RECORD_SERVE:
+			InetSocketAddress address = readAddress(in);
+			return state.withServer(nick, address, readFiles(in));
+		case RECORD_STOP:
+			return state.withoutServer(nick);
+		case RECORD_SUMMARY:
+			InetSocketAddress summaryAddress = readAddress(in);
+			return state.withServerSummary(nick, summaryAddress, readSummary(in));
+		default:
+			throw new IOException("Unknown directory log record type " + type);
+		}
+	}
+
+	/*
+	 * Formato de la instantánea: [magic][primer segmento no cubierto][nicks]
+	 * [servidores con sus ficheros][resúmenes de los servidores que los usan].
+	 * Las instantáneas anteriores a los resúmenes terminan tras los servidores.
+	 */
+
+	private void writeSnapshot(DirectoryState snapshot, long firstSegment) throws IOException {
+		File tmp = new File(dataDir, SNAPSHOT_TMP_FILE);
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeLong(firstSegment);
+			out.writeInt(snapshot.getNumNicks());
+			IOException[] failure = new IOException[1];
+			snapshot.forEachNick((nick, registered) -> {
+				try {
+					out.writeUTF(nick);
+					out.writeLong(registered.toEpochSecond(ZoneOffset.UTC));
+					out.writeInt(registered.getNano());
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			});
+			out.writeInt(snapshot.getNumServers());
+			snapshot.forEachServer((nick, address) -> {
+				try {
+					out.writeUTF(nick);
+					writeAddress(out, address);
+					writeFiles(out, snapshot.getServedBy(nick));
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			});
+			out.writeInt(snapshot.getNumSummaries());
+			snapshot.forEachSummary((nick, summary) -> {
+				try {
+					out.writeUTF(nick);
+					writeSummary(out, summary);
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			});
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+			out.flush();
+			fos.getFD().sync();
+		}
+		// El cambio de nombre es atómico: o la instantánea anterior o la nueva
+		Files.move(tmp.toPath(), new File(dataDir, SNAPSHOT_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		System.out.println("* Directory snapshot written (" + snapshot.getNumNicks() + " nicks, "
+				+ snapshot.getNumServers() + " servers, " + snapshot.getNumFiles() + " files)");
+	}
+
+	private static DirectoryState readSnapshot(DataInputStream in) throws IOException {
+		DirectoryState state = DirectoryState.empty();
+		int numNicks = in.readInt();
+		for (int i = 0; i < numNicks; i++) {
+			String nick = in.readUTF();
+			state = state.withNick(nick, LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC));
+		}
+		int numServers = in.readInt();
+		for (int i = 0; i < numServers; i++) {
+			String nick = in.readUTF();
+			InetSocketAddress address = readAddress(in);
+			state = state.withServer(nick, address, readFiles(in));
+		}
+		int numSummaries;
+		try {
+			numSummaries = in.readInt();
+		} catch (EOFException e) {
+			return state;
+		}
+		for (int i = 0; i < numSummaries; i++) {
+			String nick = in.readUTF();
+			state = state.withServerSummary(nick, state.lookupServer(nick), readSummary(in));
+		}
+		return state;
+	}
+
+	private static void writeAddress(DataOutputStream out, InetSocketAddress address) throws IOException {
+		byte[] ip = address.getAddress().getAddress();
+		out.writeByte(ip.length);
+		out.write(ip);
+		out.writeInt(address.getPort());
+	}
+
+	private static InetSocketAddress readAddress(DataInputStream in) throws IOException {
+		byte[] ip = new byte[in.readByte()];
+		in.readFully(ip);
+		return new InetSocketAddress(InetAddress.getByAddress(ip), in.readInt());
+	}
+
+	private static void writeFiles(DataOutputStream out, FileInfo[] files) throws IOException {
+		out.writeInt(files.length);
+		for (FileInfo f : files) {
+			out.writeUTF(f.getHash());
+			out.writeUTF(f.getName());
+			out.writeLong(f.getSize());
+			out.writeUTF(f.getPath() == null ? "" : f.getPath());
+		}
+	}
+
+	private static void writeSummary(DataOutputStream out, BloomFilter summary) throws IOException {
+		out.writeByte(summary.getNumHashes());
+		out.writeInt(summary.getNumEntries());
+		out.writeInt(summary.getBits().length);
+		out.write(summary.getBits());
+	}
+
+	private static BloomFilter readSummary(DataInputStream in) throws IOException {
+		int numHashes = in.readByte();
+		int numEntries = in.readInt();
+		byte[] bits = new byte[in.readInt()];
+		in.readFully(bits);
+		try {
+			return BloomFilter.fromBytes(bits, numHashes, numEntries);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	private static FileInfo[] readFiles(DataInputStream in) throws IOException {
+		FileInfo[] files = new FileInfo[in.readInt()];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = new FileInfo(in.readUTF(), in.readUTF(), in.readLong(), in.readUTF());
+		}
+		return files;
+	}
+}
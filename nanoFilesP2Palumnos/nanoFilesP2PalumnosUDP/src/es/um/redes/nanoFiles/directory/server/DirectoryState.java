@@ -0,0 +1,531 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.net.InetSocketAddress;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import es.um.redes.nanoFiles.directory.message.DirMessage;
+import es.um.redes.nanoFiles.directory.message.DirMessageV2;
+import es.um.redes.nanoFiles.util.BloomFilter;
+import es.um.redes.nanoFiles.util.FileInfo;
+import es.um.redes.nanoFiles.util.PersistentHashMap;
+
+/**
+ * Instantánea inmutable y versionada del estado del directorio. Cada
+ * modificación devuelve una instantánea nueva que comparte con la anterior
+ * todo lo que no ha cambiado, de modo que los lectores pueden consultar una
+ * instantánea sin cerrojos y obtienen siempre una vista consistente.
+ */
+public final class DirectoryState {
+
+	/**
+	 * Número de versión, que se incrementa con cada modificación
+	 */
+	private final long version;
+	/**
+	 * Nicks de usuarios registrados, y la fecha/hora de registro
+	 */
+	private final PersistentHashMap<String, LocalDateTime> nicks;
+	/**
+	 * Usuarios servidores (nick, direcciones de socket TCP)
+	 */
+	private final PersistentHashMap<String, InetSocketAddress> servers;
+	/**
+	 * Ficheros publicados por todos los peers servidores (hash, nombre, tamaño
+	 * y servidor propietario), tal como estaban en esta versión
+	 */
+	private final CatalogStore.View catalog;
+	/**
+	 * Ficheros publicados por cada servidor (sea o no el propietario), como
+	 * referencias a un registro del fichero en el almacén. El registro puede
+	 * haber sido sustituido después por otro del mismo fichero (ver resolve).
+	 */
+	private final PersistentHashMap<String, int[]> servedFiles;
+	/**
+	 * Servidores que publican cada hash, sólo para los publicados por más de uno
+	 * (el resto sólo los publica su propietario)
+	 */
+	private final PersistentHashMap<String, Set<String>> seeders;
+	/**
+	 * Resúmenes (filtros de Bloom) de los hashes de los servidores que no
+	 * publican la lista de sus ficheros
+	 */
+	private final PersistentHashMap<String, BloomFilter> summaries;
+	/**
+	 * Índices de búsqueda de los ficheros publicados
+	 */
+	private final CatalogIndex index;
+	/*
+	 * Respuestas USERLIST y FILELIST codificadas en v1 y en v2 (traducidas y
+	 * comprimidas), construidas la primera vez que se piden. Las instantáneas
+	 * que no cambian la lista correspondiente las heredan de la anterior.
+	 */
+	private volatile byte[] userListResponse;
+	private volatile byte[] userListResponseV2;
+	private volatile byte[] fileListResponse;
+	private volatile byte[] fileListResponseV2;
+
+	private DirectoryState(long version, PersistentHashMap<String, LocalDateTime> nicks,
+			PersistentHashMap<String, InetSocketAddress> servers, CatalogStore.View catalog,
+			PersistentHashMap<String, int[]> servedFiles, PersistentHashMap<String, Set<String>> seeders,
+			PersistentHashMap<String, BloomFilter> summaries, CatalogIndex index, byte[] userListResponse,
+			byte[] userListResponseV2, byte[] fileListResponse, byte[] fileListResponseV2) {
+		this.version = version;
+		this.nicks = nicks;
+		this.servers = servers;
+		this.catalog = catalog;
+		this.servedFiles = servedFiles;
+		this.seeders = seeders;
+		this.summaries = summaries;
+		this.index = index;
+		this.userListResponse = userListResponse;
+		this.userListResponseV2 = userListResponseV2;
+		this.fileListResponse = fileListResponse;
+		this.fileListResponseV2 = fileListResponseV2;
+	}
+
+	/**
+	 * Instantánea inicial, con un almacén del catálogo propio: las
+	 * modificaciones de un estado y las de otro obtenido con empty() no se
+	 * mezclan
+	 */
+	public static DirectoryState empty() {
+		CatalogStore.View catalog = CatalogStore.create(0).view(0);
+		return new DirectoryState(0, PersistentHashMap.empty(), PersistentHashMap.empty(), catalog,
+				PersistentHashMap.empty(), PersistentHashMap.empty(), PersistentHashMap.empty(),
+				CatalogIndex.build(catalog), null, null, null, null);
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public boolean isRegistered(String nick) {
+		return nicks.containsKey(nick);
+	}
+
+	public boolean isServer(String nick) {
+		return servers.containsKey(nick);
+	}
+
+	public InetSocketAddress lookupServer(String nick) {
+		return servers.get(nick);
+	}
+
+	/**
+	 * Método para buscar un servidor sin construir su nick
+	 *
+	 * @param nickHash El hashCode() del nick
+	 */
+	public InetSocketAddress lookupServer(int nickHash, PersistentHashMap.KeyMatcher nick) {
+		return servers.get(nickHash, nick);
+	}
+
+	public int getNumServers() {
+		return servers.size();
+	}
+
+	public int getNumFiles() {
+		return catalog.size();
+	}
+
+	public int getNumNicks() {
+		return nicks.size();
+	}
+
+	/**
+	 * Recorre los nicks registrados junto con su fecha de registro
+	 */
+	public void forEachNick(BiConsumer<String, LocalDateTime> action) {
+		nicks.forEach(action);
+	}
+
+	/**
+	 * Recorre los servidores junto con su dirección de socket
+	 */
+	public void forEachServer(BiConsumer<String, InetSocketAddress> action) {
+		servers.forEach(action);
+	}
+
+	/**
+	 * Ficheros de los que un servidor es actualmente el propietario
+	 */
+	public FileInfo[] getFilesOf(String nick) {
+		ArrayList<FileInfo> result = new ArrayList<FileInfo>();
+		int[] served = servedFiles.get(nick);
+		if (served != null) {
+			CatalogStore store = catalog.getStore();
+			for (int s : served) {
+				int ref = resolve(s);
+				if (ref != CatalogStore.NONE && nick.equals(store.ownerOf(ref))) {
+					result.add(store.fileInfo(ref));
+				}
+			}
+		}
+		return result.toArray(new FileInfo[result.size()]);
+	}
+
+	/**
+	 * Todos los ficheros que publica un servidor, sea o no su propietario
+	 */
+	public FileInfo[] getServedBy(String nick) {
+		ArrayList<FileInfo> result = new ArrayList<FileInfo>();
+		int[] served = servedFiles.get(nick);
+		if (served != null) {
+			for (int s : served) {
+				int ref = resolve(s);
+				if (ref != CatalogStore.NONE) {
+					result.add(catalog.getStore().fileInfo(ref));
+				}
+			}
+		}
+		return result.toArray(new FileInfo[result.size()]);
+	}
+
+	/**
+	 * Servidores que publican un fichero (vacío si no está publicado)
+	 */
+	public Set<String> getSeeders(String hash) {
+		Set<String> result = seeders.get(hash);
+		if (result != null) {
+			return result;
+		}
+		String owner = catalog.getOwner(hash);
+		return owner == null ? Collections.emptySet() : Collections.singleton(owner);
+	}
+
+	/**
+	 * Resumen de los hashes de un servidor (null si publica la lista completa)
+	 */
+	public BloomFilter getSummary(String nick) {
+		return summaries.get(nick);
+	}
+
+	/**
+	 * Recorre los servidores que han publicado un resumen en lugar de la lista
+	 */
+	public void forEachSummary(BiConsumer<String, BloomFilter> action) {
+		summaries.forEach(action);
+	}
+
+	public int getNumSummaries() {
+		return summaries.size();
+	}
+
+	/**
+	 * Datos de un fichero publicado (null si no lo está). El FileInfo se
+	 * construye a partir del almacén y no tiene ruta.
+	 */
+	public FileInfo getFile(String hash) {
+		return catalog.get(hash);
+	}
+
+	/**
+	 * Servidor que publicó en último lugar un fichero (null si no está publicado)
+	 */
+	public String getOwner(String hash) {
+		return catalog.getOwner(hash);
+	}
+
+	/**
+	 * Índices de búsqueda (por palabras, prefijo del nombre y prefijo del hash)
+	 */
+	public CatalogIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Ficheros de una lista de hashes (como los que devuelve el índice) que
+	 * siguen publicados en esta instantánea
+	 */
+	public List<FileInfo> getFiles(List<String> hashes) {
+		ArrayList<FileInfo> result = new ArrayList<FileInfo>(hashes.size());
+		for (String hash : hashes) {
+			FileInfo f = catalog.get(hash);
+			if (f != null) {
+				result.add(f);
+			}
+		}
+		return result;
+	}
+
+	public FileInfo[] getFiles() {
+		return catalog.toArray();
+	}
+
+	/**
+	 * Almacén del catálogo de esta instantánea (para consultar su ocupación)
+	 */
+	public CatalogStore getCatalogStore() {
+		return catalog.getStore();
+	}
+
+	/**
+	 * Respuesta USERLIST ya codificada en un formato (DirMessageV2.VERSION_1 o
+	 * VERSION_2), o null si aún no se ha construido para esta instantánea
+	 */
+	public byte[] getCachedUserListResponse(int version) {
+		return version == DirMessageV2.VERSION_2 ? userListResponseV2 : userListResponse;
+	}
+
+	public byte[] getCachedFileListResponse(int version) {
+		return version == DirMessageV2.VERSION_2 ? fileListResponseV2 : fileListResponse;
+	}
+
+	/**
+	 * Respuesta USERLIST codificada para esta instantánea (se construye una sola
+	 * vez)
+	 */
+	public byte[] getUserListResponse() {
+		byte[] response = userListResponse;
+		if (response == null) {
+			response = DirMessage.buildUserListResponseMessage(nicks.keySet(), servers.keySet());
+			userListResponse = response;
+		}
+		return response;
+	}
+
+	/**
+	 * Respuesta FILELIST codificada para esta instantánea (se construye una sola
+	 * vez)
+	 */
+	public byte[] getFileListResponse() {
+		byte[] response = fileListResponse;
+		if (response == null) {
+			response = DirMessage.buildFileListResponseMessage(getFiles());
+			fileListResponse = response;
+		}
+		return response;
+	}
+
+	/**
+	 * Respuesta USERLIST codificada en un formato para esta instantánea (cada
+	 * formato se construye una sola vez: la v2 se traduce de la v1)
+	 */
+	public byte[] getUserListResponse(int version) {
+		if (version != DirMessageV2.VERSION_2) {
+			return getUserListResponse();
+		}
+		byte[] response = userListResponseV2;
+		if (response == null) {
+			response = DirMessageV2.fromV1(getUserListResponse());
+			userListResponseV2 = response;
+		}
+		return response;
+	}
+
+	public byte[] getFileListResponse(int version) {
+		if (version != DirMessageV2.VERSION_2) {
+			return getFileListResponse();
+		}
+		byte[] response = fileListResponseV2;
+		if (response == null) {
+			response = DirMessageV2.fromV1(getFileListResponse());
+			fileListResponseV2 = response;
+		}
+		return response;
+	}
+
+	/*
+	 * Modificaciones: devuelven una nueva instantánea con la versión siguiente
+	 */
+
+	public DirectoryState withNick(String nick, LocalDateTime registered) {
+		return new DirectoryState(version + 1, nicks.plus(nick, registered), servers, catalog, servedFiles, seeders,
+				summaries, index, null, null, fileListResponse, fileListResponseV2);
+	}
+
+	public DirectoryState withoutNick(String nick) {
+		if (!nicks.containsKey(nick)) {
+			return this;
+		}
+		return new DirectoryState(version + 1, nicks.minus(nick), servers, catalog, servedFiles, seeders,
+				summaries, index, null, null, fileListResponse, fileListResponseV2);
+	}
+
+	/**
+	 * Registra (o actualiza) un servidor y le añade los ficheros publicados
+	 */
+	public DirectoryState withServer(String nick, InetSocketAddress address, FileInfo[] published) {
+		long newVersion = version + 1;
+		CatalogStore store = catalog.getStore();
+		PersistentHashMap<String, Set<String>> newSeeders = seeders;
+		int[] added = new int[published.length];
+		int numAdded = 0;
+		int retired = 0;
+		int[] previous = servedFiles.get(nick);
+		LinkedHashSet<String> served = new LinkedHashSet<String>();
+		if (previous != null) {
+			for (int ref : previous) {
+				served.add(store.hashOf(ref));
+			}
+		}
+		for (FileInfo f : published) {
+			String hash = f.getHash();
+			if (!CatalogStore.isStorable(hash)) {
+				continue;
+			}
+			int ref = catalog.lookup(hash);
+			if (ref != CatalogStore.NONE) {
+				String owner = store.ownerOf(ref);
+				if (!owner.equals(nick) || newSeeders.containsKey(hash)) {
+					Set<String> current = newSeeders.get(hash);
+					newSeeders = newSeeders.plus(hash, with(current == null ? Set.of(owner) : current, nick));
+				}
+			}
+			int current = store.put(hash, f.getName(), f.getSize(), nick, newVersion);
+			if (current != ref) {
+				added[numAdded++] = current;
+				if (ref != CatalogStore.NONE) {
+					retired++;
+				}
+			}
+			served.add(hash);
+		}
+		CatalogStore.View written = store.view(newVersion);
+		int[] refs = new int[served.size()];
+		int n = 0;
+		for (String hash : served) {
+			int ref = written.lookup(hash);
+			if (ref != CatalogStore.NONE) {
+				refs[n++] = ref;
+			}
+		}
+		PersistentHashMap<String, int[]> newServed = servedFiles.plus(nick,
+				n == refs.length ? refs : Arrays.copyOf(refs, n));
+		CatalogStore.View newCatalog = viewAfterWrite(written);
+		if (newCatalog != written) {
+			newServed = relocate(newServed, written, newCatalog);
+		}
+		return new DirectoryState(newVersion, nicks, servers.plus(nick, address), newCatalog, newServed, newSeeders,
+				summaries, index.update(newCatalog, added, numAdded, retired), null, null, null, null);
+	}
+
+	/**
+	 * Registra (o actualiza) un servidor que publica un resumen de sus hashes en
+	 * lugar de la lista de sus ficheros. El resumen sustituye al anterior.
+	 */
+	public DirectoryState withServerSummary(String nick, InetSocketAddress address, BloomFilter summary) {
+		return new DirectoryState(version + 1, nicks, servers.plus(nick, address), catalog, servedFiles, seeders,
+				summaries.plus(nick, summary), index, null, null, fileListResponse, fileListResponseV2);
+	}
+
+	/**
+	 * Retira a un servidor. Los ficheros de los que era propietario pasan a otro
+	 * servidor que también los publique, o se retiran si no queda ninguno
+	 */
+	public DirectoryState withoutServer(String nick) {
+		if (!servers.containsKey(nick)) {
+			return this;
+		}
+		long newVersion = version + 1;
+		CatalogStore store = catalog.getStore();
+		PersistentHashMap<String, Set<String>> newSeeders = seeders;
+		int[] served = servedFiles.get(nick);
+		if (served == null) {
+			served = new int[0];
+		}
+		int[] added = new int[served.length];
+		int numAdded = 0;
+		int retired = 0;
+		for (int s : served) {
+			int ref = resolve(s);
+			if (ref == CatalogStore.NONE) {
+				continue;
+			}
+			String hash = store.hashOf(ref);
+			String owner = store.ownerOf(ref);
+			Set<String> current = newSeeders.get(hash);
+			Set<String> remaining = without(current == null ? Set.of(owner) : current, nick);
+			if (remaining.isEmpty()) {
+				store.remove(hash, newVersion);
+				retired++;
+			} else if (owner.equals(nick)) {
+				added[numAdded++] = store.put(hash, store.nameOf(ref), store.sizeOf(ref),
+						remaining.iterator().next(), newVersion);
+				retired++;
+			}
+			newSeeders = remaining.size() > 1 ? newSeeders.plus(hash, remaining) : newSeeders.minus(hash);
+		}
+		CatalogStore.View written = store.view(newVersion);
+		PersistentHashMap<String, int[]> newServed = servedFiles.minus(nick);
+		CatalogStore.View newCatalog = viewAfterWrite(written);
+		if (newCatalog != written) {
+			newServed = relocate(newServed, written, newCatalog);
+		}
+		return new DirectoryState(newVersion, nicks, servers.minus(nick), newCatalog, newServed, newSeeders,
+				summaries.minus(nick), index.update(newCatalog, added, numAdded, retired), null, null, null, null);
+	}
+
+	/**
+	 * Registro vigente en esta instantánea del fichero de una referencia de
+	 * servedFiles, o NONE si ya no está publicado
+	 */
+	private int resolve(int ref) {
+		return catalog.isLive(ref) ? ref : catalog.lookup(catalog.getStore().hashOf(ref));
+	}
+
+	/**
+	 * Instantánea del almacén recién escrito, compactándolo antes si tiene
+	 * demasiados registros obsoletos
+	 */
+	private static CatalogStore.View viewAfterWrite(CatalogStore.View written) {
+		CatalogStore store = written.getStore();
+		if (!store.needsCompaction()) {
+			return written;
+		}
+		long version = written.getVersion();
+		return store.compact(version).view(version);
+	}
+
+	/**
+	 * Método para traducir las referencias de servedFiles a las del almacén
+	 * compactado
+	 */
+	private static PersistentHashMap<String, int[]> relocate(PersistentHashMap<String, int[]> served,
+			CatalogStore.View from, CatalogStore.View to) {
+		PersistentHashMap<String, int[]> relocated = PersistentHashMap.empty();
+		for (String nick : served.keySet()) {
+			relocated = relocated.plus(nick, lookupAll(to, from.getStore(), served.get(nick)));
+		}
+		return relocated;
+	}
+
+	/**
+	 * Registros vigentes en "view" de los ficheros de unas referencias de
+	 * "store" (sin los que ya no están publicados)
+	 */
+	private static int[] lookupAll(CatalogStore.View view, CatalogStore store, int[] refs) {
+		int[] found = new int[refs.length];
+		int n = 0;
+		for (int ref : refs) {
+			int current = view.lookup(store.hashOf(ref));
+			if (current != CatalogStore.NONE) {
+				found[n++] = current;
+			}
+		}
+		return n == found.length ? found : Arrays.copyOf(found, n);
+	}
+
+	private static Set<String> with(Set<String> set, String element) {
+		HashSet<String> copy = set == null ? new HashSet<String>() : new HashSet<String>(set);
+		copy.add(element);
+		return Collections.unmodifiableSet(copy);
+	}
+
+	private static Set<String> without(Set<String> set, String element) {
+		if (set == null) {
+			return Collections.emptySet();
+		}
+		HashSet<String> copy = new HashSet<String>(set);
+		copy.remove(element);
+		return Collections.unmodifiableSet(copy);
+	}
+}
@@ -3,17 +3,56 @@ package es.um.redes.nanoFiles.directory.server;
 import java.io.*;
 import java.net.*;
 import java.time.LocalDateTime;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
+import es.um.redes.nanoFiles.directory.message.CatalogEvent;
 import es.um.redes.nanoFiles.directory.message.DirMessage;
+import es.um.redes.nanoFiles.directory.cluster.ConsistentHashRing;
 import es.um.redes.nanoFiles.directory.message.DirMessageOps;
+import es.um.redes.nanoFiles.directory.message.DirMessageV2;
+import es.um.redes.nanoFiles.directory.message.DirMessageView;
+import es.um.redes.nanoFiles.directory.message.PopularFile;
+import es.um.redes.nanoFiles.directory.message.SeedInfo;
+import es.um.redes.nanoFiles.util.BloomFilter;
 import es.um.redes.nanoFiles.util.FileInfo;
 
 public class DirectoryThread extends Thread {
 
+	/**
+	 * Duración (ms) de un tick de la rueda de concesiones. Es también el tiempo
+	 * máximo que el hilo espera en receive antes de revisar las caducidades
+	 */
+	private static final int LEASE_TICK_MILLIS = 500;
+	/**
+	 * Número de ranuras de la rueda (128 * 500 ms = 64 s, más que una concesión)
+	 */
+	private static final int LEASE_WHEEL_SLOTS = 128;
+	/**
+	 * Hilos que construyen las respuestas de lectura costosas (listas)
+	 */
+	private static final int READ_WORKERS = 4;
+	/**
+	 * Cada cuánto (ms) se muestran las métricas de agrupamiento de lecturas
+	 */
+	private static final int METRICS_REPORT_MILLIS = 60000;
+	/**
+	 * Con tráfico continuo, cada cuánto (ms) se revisan las caducidades y los
+	 * cambios pendientes de enviar a los suscriptores
+	 */
+	private static final int HOUSEKEEPING_MILLIS = 100;
+	/**
+	 * Número máximo de direcciones de servidor codificadas que se guardan
+	 */
+	private static final int MAX_ENCODED_ADDRESSES = 4096;
+
 	/**
 	 * Socket de comunicación UDP con el cliente UDP (DirectoryConnector)
 	 */
@@ -26,214 +65,1073 @@ public class DirectoryThread extends Thread {
 	protected double messageDiscardProbability;
 
 	/**
-	 * Estructura para guardar los nicks de usuarios registrados, y la fecha/hora de
-	 * registro
-	 * 
+	 * Instantánea actual del estado del directorio (nicks, servidores, ficheros y
+	 * propietarios). Los lectores la consultan sin cerrojos; los escritores
+	 * construyen una nueva a partir de ella y la publican aquí.
+	 */
+	private final AtomicReference<DirectoryState> state;
+	/**
+	 * Serializa a los escritores (comprobar y modificar debe ser atómico)
+	 */
+	private final Object writeLock = new Object();
+	/**
+	 * Concesiones de los nicks registrados. La concesión de un nick cubre también
+	 * su dirección de servidor y sus ficheros publicados, y se renueva con
+	 * cada heartbeat (o al registrarse/publicar)
+	 */
+	private HashedTimerWheel<String> leases;
+	/**
+	 * Hilos lectores y agrupamiento de lecturas idénticas simultáneas
 	 */
-	private HashMap<String, LocalDateTime> nicks;
+	private ExecutorService readWorkers;
+	private SingleFlight<String> readFlights;
+	private long lastMetricsReport;
+	private long lastReportedFlights;
+	private long lastReportedVersion;
 	/**
-	 * Estructura para guardar los usuarios servidores (nick, direcciones de socket
-	 * TCP)
+	 * Registro persistente de las modificaciones (null si el directorio no
+	 * persiste su estado)
 	 */
-	// TCP)
-	private HashMap<String, InetSocketAddress> servers;
+	private DirectoryLog log;
 	/**
-	 * Estructura para guardar la lista de ficheros publicados por todos los peers
-	 * servidores, cada fichero identificado por su hash
+	 * Anillo del clúster de directorios y dirección de este nodo en él (null si
+	 * el directorio funciona en solitario)
 	 */
-	private HashMap<String, FileInfo> files;
+	private ConsistentHashRing ring;
+	private InetSocketAddress self;
 	/**
-	 * Estructura para asociar cada fichero (identificado por su hash) con
-	 * su servidor propietario (necesario para mantener actualizado filelist)
+	 * Historial de cambios del catálogo y suscriptores a los que se envían
 	 */
-	private HashMap<String, String> owners;
+	private CatalogChangeLog catalogChanges;
+	private CatalogSubscriptions subscriptions;
+	/**
+	 * Canal TCP para transferir catálogos grandes (null si no se ha podido
+	 * abrir su puerto)
+	 */
+	private CatalogBulkServer bulkServer;
+	/**
+	 * Carga comunicada por los servidores de ficheros en sus heartbeats
+	 */
+	private PeerLoadTable loads;
+	/**
+	 * Demanda (consultas y descargas) de cada fichero y los más pedidos
+	 */
+	private PopularityTracker popularity;
+	/**
+	 * Asignación de ficheros populares a los peers que se ofrecen a replicarlos
+	 */
+	private ReplicationPlanner replication;
+	/**
+	 * Respuestas recientes, para reenviarlas a los clientes que retransmiten
+	 */
+	private ResponseCache responses;
+	private long lastReportedReplays;
+	/**
+	 * Límite de solicitudes de cada dirección de origen, y direcciones (IP y
+	 * puerto) de los nodos del clúster: los únicos de los que se aceptan
+	 * REPLICATE, que no se limitan. Los nodos envían desde el puerto en el que
+	 * escuchan, así que otro proceso en la misma máquina no pasa por un nodo.
+	 */
+	private volatile RateLimiter limiter = new RateLimiter();
+	private final Set<InetSocketAddress> clusterAddresses = new HashSet<InetSocketAddress>();
+	/**
+	 * Envío con confirmación de las modificaciones a los demás nodos
+	 */
+	private ReplicationSender replicator;
+	private long lastReportedReplications;
+	private long lastReportedLimited;
+	private long lastHousekeeping;
+	/**
+	 * Vista del datagrama recibido, y dirección codificada de los servidores
+	 * por los que se pregunta (sólo se usan en el hilo receptor)
+	 */
+	private final DirMessageView requestView = new DirMessageView();
+	private final HashMap<InetSocketAddress, byte[][]> encodedAddresses = new HashMap<InetSocketAddress, byte[][]>();
+	/**
+	 * Buffer de envío de cada hilo que responde (receptor, lectores, fsync)
+	 */
+	private final ThreadLocal<SendBuffer> sendBuffers = ThreadLocal.withInitial(SendBuffer::new);
+
+	private static final class SendBuffer {
+		final byte[] data = new byte[DirMessage.PACKET_MAX_SIZE];
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		final DatagramPacket packet = new DatagramPacket(data, data.length);
+
+		/**
+		 * Vacía el buffer y escribe el id de la solicitud a la que se responde
+		 */
+		ByteBuffer start(int requestId) {
+			buffer.clear();
+			buffer.putInt(requestId);
+			return buffer;
+		}
+	}
 
 	public DirectoryThread(int directoryPort, double corruptionProbability) throws SocketException {
+		this(directoryPort, corruptionProbability, null, DirectoryState.empty());
+	}
+
+	public DirectoryThread(int directoryPort, double corruptionProbability, DirectoryLog log,
+			DirectoryState recovered) throws SocketException {
+		this(directoryPort, corruptionProbability, log, recovered, null, null);
+	}
+
+	/**
+	 * Crea el directorio a partir del estado recuperado de "log". Los nicks
+	 * recuperados reciben una concesión nueva: los peers que sigan vivos la
+	 * renovarán con sus heartbeats y el resto caducará.
+	 */
+	public DirectoryThread(int directoryPort, double corruptionProbability, DirectoryLog log,
+			DirectoryState recovered, ConsistentHashRing ring, InetSocketAddress self) throws SocketException {
 		// Crear dirección de socket con el puerto en el que escucha el directorio
 		InetSocketAddress serverAddress = new InetSocketAddress(directoryPort);
 		// Crear el socket UDP asociado a la dirección de socket anterior
 		socket = new DatagramSocket(serverAddress);
-		// Creamos los mapas de nicks, servers y ficheros
-		nicks = new HashMap<String, LocalDateTime>();
-		servers = new HashMap<String, InetSocketAddress>();
-		files = new HashMap<String, FileInfo>();
-		owners = new HashMap<String, String>();
+		this.log = log;
+		this.ring = ring;
+		this.self = self;
+		if (ring != null) {
+			for (InetSocketAddress node : ring.getNodes()) {
+				clusterAddresses.add(node);
+			}
+		}
+		state = new AtomicReference<DirectoryState>(recovered);
+		long now = System.currentTimeMillis();
+		leases = new HashedTimerWheel<String>(LEASE_TICK_MILLIS, LEASE_WHEEL_SLOTS, now);
+		recovered.forEachNick((nick, registered) -> leases.schedule(nick, now + DirMessage.LEASE_DURATION_MILLIS));
+		recovered.forEachServer((nick, address) -> leases.schedule(nick, now + DirMessage.LEASE_DURATION_MILLIS));
+		readWorkers = Executors.newFixedThreadPool(READ_WORKERS);
+		readFlights = new SingleFlight<String>(readWorkers, this::sendResponse, this::abandon);
+		replicator = new ReplicationSender(this::sendResponse);
+		catalogChanges = new CatalogChangeLog();
+		subscriptions = new CatalogSubscriptions(catalogChanges, this::sendResponse, now);
+		try {
+			bulkServer = new CatalogBulkServer(socket.getLocalPort(), catalogChanges, this::catalogSnapshot, () -> limiter);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("* Directory bulk channel unavailable, catalogs will be sent over UDP only");
+		}
+		loads = new PeerLoadTable();
+		popularity = new PopularityTracker(now);
+		replication = new ReplicationPlanner();
+		responses = new ResponseCache();
+		lastMetricsReport = System.currentTimeMillis();
 		// Probabilidad de que nos llegue un mensaje corrupto
 		messageDiscardProbability = corruptionProbability;
 	}
 
+	/**
+	 * Método para cambiar el límite de solicitudes de cada dirección de origen
+	 * (null para no limitarlas). Debe llamarse antes de arrancar el hilo.
+	 */
+	public void setRateLimiter(RateLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Método para consultar las métricas de agrupamiento de lecturas
+	 * (GETUSERS y GETFILES idénticos que comparten un mismo cálculo)
+	 */
+	public FlightStats getReadCoalescing() {
+		return readFlights;
+	}
+
 	public void run() {
 		byte[] receptionBuffer = new byte[DirMessage.PACKET_MAX_SIZE];
 		DatagramPacket requestPacket = new DatagramPacket(receptionBuffer, receptionBuffer.length);
 		InetSocketAddress clientId = null;
 
 		System.out.println("Directory starting...");
+		if (bulkServer != null) {
+			bulkServer.startServer();
+		}
+
+		try {
+			// Despertamos periódicamente para revisar las concesiones caducadas
+			socket.setSoTimeout(LEASE_TICK_MILLIS);
+		} catch (SocketException e) {
+			e.printStackTrace();
+		}
 
 		while (true) {
 			try {
 
 				// Recibimos a través del socket el datagrama con mensaje de solicitud
-				socket.receive(requestPacket);
-				
-				// Averiguamos quién es el cliente
-				clientId = (InetSocketAddress) requestPacket.getSocketAddress();
+				try {
+					socket.receive(requestPacket);
+				} catch (SocketTimeoutException e) {
+					expireLeases();
+					continue;
+				}
 				
-				// Vemos si el mensaje debe ser descartado por la probabilidad de descarte
+				// El datagrama se lee en el propio array de recepción
+				if (!requestView.wrap(receptionBuffer, requestPacket.getLength())) {
+					System.err.println("Directory received EMPTY datagram from " + requestPacket.getSocketAddress());
+					continue;
+				}
 
+				// Vemos si el mensaje debe ser descartado por la probabilidad de descarte
+				// (la simulación de pérdidas es para las solicitudes de los clientes: ni
+				// entre nodos ni los heartbeats, que no se retransmiten)
+				byte opcode = requestView.getOpcode();
+				boolean entreNodos = opcode == DirMessageOps.OPCODE_REPLICATE || opcode == DirMessageOps.OPCODE_REPLICATE_OK;
+				if (entreNodos && !isClusterNode((InetSocketAddress) requestPacket.getSocketAddress())) {
+					System.err.println("* Directory ignored " + DirMessageOps.opcodeToOperation(opcode) + " from "
+							+ requestPacket.getSocketAddress() + ", which is not a cluster node");
+					continue;
+				}
 				double rand = Math.random();
-				if (rand < messageDiscardProbability) {
-					System.err.println("Directory DISCARDED datagram from " + clientId);
+				if (rand < messageDiscardProbability && !entreNodos && opcode != DirMessageOps.OPCODE_HEARTBEAT) {
+					System.err.println("Directory DISCARDED datagram from " + requestPacket.getSocketAddress());
 					continue;
 				}
-				
-				// Mostramos lo que hemos recibido
-				byte opcode = receptionBuffer[0];
-				System.out.println("Datagram received from client at addr " + clientId);
-				System.out.println("Operation: " + DirMessageOps.opcodeToOperation(opcode));
-				
-				
-				if (requestPacket.getData().length > 0) {
-					processRequestFromClient(requestPacket.getData(), clientId);
-				} else {
-					System.err.println("Directory received EMPTY datagram from " + clientId);
+
+				if (!admit(requestPacket, opcode)) {
+					continue;
 				}
-				
+
+				if (!answerFast(requestPacket)) {
+					// Averiguamos quién es el cliente
+					clientId = (InetSocketAddress) requestPacket.getSocketAddress();
+
+					// Mostramos lo que hemos recibido (salvo los heartbeats, muy frecuentes)
+					if (opcode != DirMessageOps.OPCODE_HEARTBEAT && !entreNodos) {
+						System.out.println("Datagram received from client at addr " + clientId);
+						System.out.println("Operation: " + DirMessageOps.opcodeToOperation(opcode));
+					}
+
+					processDatagram(receptionBuffer, requestPacket.getLength(),
+							new Requester(clientId, requestView.getRequestId(), requestView.getVersion()));
+				}
+				// Con tráfico continuo el receive no llega a expirar
+				if (System.currentTimeMillis() - lastHousekeeping >= HOUSEKEEPING_MILLIS) {
+					expireLeases();
+				}
+
 			} catch (IOException e) {
 				e.printStackTrace();
 				System.err.println("Directory received EMPTY datagram from " + clientId);				
 				break;
+			} catch (RuntimeException e) {
+				// Un fallo al atender una solicitud no debe detener el directorio
+				e.printStackTrace();
 			}
 		}
 		// Cerrar el socket
+		readWorkers.shutdown();
+		if (bulkServer != null) {
+			bulkServer.stopServer();
+		}
+		if (log != null) {
+			log.close();
+		}
 		socket.close();
 	}
 
-	// Método para procesar la solicitud enviada por clientAddr
-	// Actualizar estado del directorio y enviar una respuesta en función del
-	// tipo de mensaje recibido
-	public void processRequestFromClient(byte[] data, InetSocketAddress clientAddr) throws IOException {
-		// Construir un objeto mensaje (DirMessage) a partir de los datos recibidos
-		DirMessage request = DirMessage.buildMessageFromReceivedData(data);
+	/**
+	 * Procesa una solicitud recibida en "datagram" (con el id de solicitud),
+	 * salvo si es la retransmisión de una ya procesada o en curso
+	 */
+	private void processDatagram(byte[] datagram, int length, Requester requester) throws IOException {
+		boolean cached = requester.getRequestId() != DirMessage.NO_REQUEST_ID
+				&& ResponseCache.isCached(DirMessageV2.baseOpcode(datagram[DirMessage.REQUEST_ID_SIZE_BYTES]));
+		if (cached) {
+			// Una retransmisión no vuelve a ejecutarse
+			ResponseCache.Lookup previa = responses.begin(requester, System.currentTimeMillis());
+			if (previa == ResponseCache.Lookup.IN_PROGRESS) {
+				return;
+			} else if (previa == ResponseCache.Lookup.ANSWERED) {
+				byte[] respuesta = responses.getResponse(requester);
+				if (respuesta != null) {
+					sendResponse(respuesta, requester);
+				}
+				return;
+			}
+		}
+		DirMessage request = DirMessage.buildMessageFromReceivedData(datagram, DirMessage.REQUEST_ID_SIZE_BYTES,
+				length - DirMessage.REQUEST_ID_SIZE_BYTES);
+		if (request == null) {
+			System.err.println("* Directory received a malformed request from " + requester);
+			if (cached) {
+				responses.abandon(requester);
+			}
+			return;
+		}
+		try {
+			processRequest(request, requester);
+		} catch (RuntimeException e) {
+			abandon(requester);
+			throw e;
+		}
+	}
+
+	/**
+	 * Método para liberar una solicitud que se ha quedado sin respuesta, para
+	 * que su retransmisión se vuelva a procesar. En un lote, su hueco se
+	 * responde vacío para que el lote se pueda enviar.
+	 */
+	private void abandon(Requester clientAddr) {
+		if (clientAddr.getBatch() == null) {
+			responses.abandon(clientAddr);
+			return;
+		}
+		try {
+			sendResponse(BatchResponse.NO_RESPONSE, clientAddr);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Aplica el límite de solicitudes de la dirección de origen del datagrama.
+	 * Las que lo superan se responden con SLOW_DOWN (con su propio límite, ver
+	 * RateLimiter) o se descartan. SLOW_DOWN no pasa por la caché de
+	 * respuestas: la solicitud reenviada más tarde debe procesarse.
+	 *
+	 * @return true si la solicitud debe procesarse
+	 */
+	private boolean admit(DatagramPacket requestPacket, byte opcode) throws IOException {
+		InetAddress source = requestPacket.getAddress();
+		RateLimiter limiter = this.limiter;
+		if (limiter == null || ((opcode == DirMessageOps.OPCODE_REPLICATE || opcode == DirMessageOps.OPCODE_REPLICATE_OK)
+				&& isClusterNode((InetSocketAddress) requestPacket.getSocketAddress()))) {
+			return true;
+		}
+		RateLimiter.Verdict verdict = limiter.admit(source, opcode, System.currentTimeMillis());
+		if (verdict == RateLimiter.Verdict.ACCEPT) {
+			return true;
+		}
+		// Los mensajes sin id no esperan respuesta
+		int requestId = requestView.getRequestId();
+		if (verdict == RateLimiter.Verdict.DROP || requestId == DirMessage.NO_REQUEST_ID) {
+			return false;
+		}
+		int retryAfter = limiter.retryAfterMillis(source, opcode);
+		SendBuffer sb = sendBuffers.get();
+		if (requestView.getVersion() == DirMessageV2.VERSION_2) {
+			DirMessageV2.putSlowDownMessage(sb.start(requestId), retryAfter);
+		} else {
+			DirMessage.putSlowDownMessage(sb.start(requestId), retryAfter);
+		}
+		sb.packet.setData(sb.data, 0, sb.buffer.position());
+		sb.packet.setAddress(source);
+		sb.packet.setPort(requestPacket.getPort());
+		socket.send(sb.packet);
+		return false;
+	}
+
+	/**
+	 * Indica si "address" es la de un nodo del clúster. Un directorio sin
+	 * clúster no tiene ninguno: una REPLICATE se saltaría la comprobación de
+	 * nicks repetidos, así que sólo se aceptan de los nodos.
+	 */
+	private boolean isClusterNode(InetSocketAddress address) {
+		return ring != null && clusterAddresses.contains(address);
+	}
+
+	/**
+	 * Responde en el propio hilo receptor, sin reservar memoria, a las
+	 * solicitudes más frecuentes (LOGIN y LOOKUP_USERNAME): se leen en la vista
+	 * del datagrama y la respuesta se escribe en el buffer de envío. Son
+	 * lecturas de la instantánea actual, así que una retransmisión se responde
+	 * igual que la original y no hace falta pasar por la caché de respuestas.
+	 *
+	 * @return false si la solicitud debe seguir el camino general
+	 */
+	private boolean answerFast(DatagramPacket requestPacket) throws IOException {
+		SendBuffer sb;
+		boolean v2 = requestView.getVersion() == DirMessageV2.VERSION_2;
+		switch (requestView.getOpcode()) {
+		case DirMessageOps.OPCODE_LOGIN:
+			if (requestView.getMessageLength() != DirMessage.OPCODE_SIZE_BYTES) {
+				return false;
+			}
+			sb = sendBuffers.get();
+			DirectoryState actual = state.get();
+			if (v2) {
+				DirMessageV2.putLoginOKResponseMessage(sb.start(requestView.getRequestId()), actual.getNumServers(),
+						getBulkPort(), CatalogBulkServer.THRESHOLD_FILES, actual.getNumFiles());
+			} else {
+				DirMessage.putLoginOKResponseMessage(sb.start(requestView.getRequestId()), actual.getNumServers(),
+						getBulkPort(), CatalogBulkServer.THRESHOLD_FILES, actual.getNumFiles());
+			}
+			break;
+		case DirMessageOps.OPCODE_LOOKUP_USERNAME:
+			if (!requestView.readUserName()) {
+				return false;
+			}
+			InetSocketAddress servidor = state.get().lookupServer(requestView.getUserNameHash(), requestView);
+			sb = sendBuffers.get();
+			ByteBuffer bb = sb.start(requestView.getRequestId());
+			if (servidor == null && v2) {
+				DirMessageV2.putLookupUserNotFoundResponseMessage(bb);
+			} else if (servidor == null) {
+				DirMessage.putLookupUserNotFoundResponseMessage(bb);
+			} else if (v2) {
+				DirMessageV2.putLookupUserFoundResponseMessage(bb, encodedAddress(servidor)[1]);
+			} else {
+				DirMessage.putLookupUserFoundResponseMessage(bb, encodedAddress(servidor)[0]);
+			}
+			break;
+		default:
+			return false;
+		}
+		sb.packet.setData(sb.data, 0, sb.buffer.position());
+		sb.packet.setAddress(requestPacket.getAddress());
+		sb.packet.setPort(requestPacket.getPort());
+		socket.send(sb.packet);
+		return true;
+	}
+
+	/**
+	 * Dirección de un servidor tal como la lleva LOOKUP_USERNAME_FOUND en v1
+	 * (posición 0) y en v2 (posición 1)
+	 */
+	private byte[][] encodedAddress(InetSocketAddress server) {
+		byte[][] encoded = encodedAddresses.get(server);
+		if (encoded == null) {
+			if (encodedAddresses.size() >= MAX_ENCODED_ADDRESSES) {
+				encodedAddresses.clear();
+			}
+			encoded = new byte[][] { DirMessage.encodeServerAddress(server), DirMessageV2.encodeServerAddress(server) };
+			encodedAddresses.put(server, encoded);
+		}
+		return encoded;
+	}
+
+	private void processRequest(DirMessage request, Requester clientAddr) throws IOException {
+		// Las lecturas trabajan sobre una instantánea, sin esperar a los escritores
+		DirectoryState snapshot = state.get();
 		switch(request.getOpcode()) {
 		case DirMessageOps.OPCODE_LOGIN:
-			sendLoginOK(clientAddr);
+			sendLoginOK(snapshot, clientAddr);
+			break;
+		case DirMessageOps.OPCODE_GETUSERS:
+			sendUserList(snapshot, clientAddr);
+			break;
+		case DirMessageOps.OPCODE_GETFILES:
+			sendFileList(snapshot, clientAddr);
+			break;
+		case DirMessageOps.OPCODE_GETFILES_SINCE:
+			sendFileChanges(request.getSeq(), clientAddr);
+			break;
+		case DirMessageOps.OPCODE_SEARCH_NAME:
+		case DirMessageOps.OPCODE_SEARCH_NAME_PREFIX:
+		case DirMessageOps.OPCODE_SEARCH_HASH_PREFIX:
+			sendSearchResults(snapshot, request, clientAddr);
 			break;
+		case DirMessageOps.OPCODE_LOOKUP_HASH:
+			sendSeeds(snapshot, request, clientAddr);
+			break;
+		case DirMessageOps.OPCODE_DOWNLOADED:
+			// Sólo se cuenta; no hay respuesta
+			popularity.recordDownload(request.getQuery());
+			break;
+		case DirMessageOps.OPCODE_GET_TOP_FILES:
+			sendTopFiles(snapshot, request, clientAddr);
+			break;
+		case DirMessageOps.OPCODE_GET_REPLICATION_TASK:
+			sendReplicationTask(snapshot, request.getUserName(), clientAddr);
+			break;
+		case DirMessageOps.OPCODE_LOOKUP_USERNAME:
+			InetSocketAddress servidorBuscado = snapshot.lookupServer(request.getUserName());
+			if(servidorBuscado != null) {
+				sendLookupFound(servidorBuscado, clientAddr);
+			} else sendLookupNotFound(clientAddr);
+			break;
+		case DirMessageOps.OPCODE_BATCH:
+			processBatch(request, clientAddr);
+			break;
+		case DirMessageOps.OPCODE_REPLICATE:
+			// Modificación reenviada por otro nodo del clúster: se confirma aunque
+			// no se pueda aplicar, o el nodo la retransmitiría sin fin
+			if(!isClusterNode(clientAddr.getSocketAddress())) {
+				System.err.println("* Directory ignored REPLICATE from " + clientAddr + ", which is not a cluster node");
+				break;
+			}
+			DirMessage replicated = DirMessage.buildMessageFromReceivedData(request.getReplicatedRequest());
+			if(replicated != null) {
+				synchronized (writeLock) {
+					processUpdateFromClient(replicated, Requester.unsolicited(new InetSocketAddress(request.getOrigin(), 0)), true);
+				}
+			} else System.err.println("* Directory received a malformed REPLICATE from " + clientAddr);
+			if(clientAddr.getRequestId() != DirMessage.NO_REQUEST_ID) {
+				sendResponse(DirMessage.buildReplicateOKMessage(), clientAddr);
+			}
+			break;
+		case DirMessageOps.OPCODE_REPLICATE_OK:
+			if(isClusterNode(clientAddr.getSocketAddress())) {
+				replicator.acknowledge(clientAddr.getSocketAddress(), clientAddr.getRequestId(), System.currentTimeMillis());
+			}
+			break;
+		default:
+			synchronized (writeLock) {
+				processUpdateFromClient(request, clientAddr, false);
+			}
+		}
+	}
+
+	/**
+	 * Procesa en orden las solicitudes de un lote. Cada una responde a su
+	 * posición del lote, y sendResponse envía el BATCH_RESULT cuando están
+	 * todas; las que no se admiten en un lote, y las que siguen a una que ha
+	 * fallado, se responden vacías.
+	 *
+	 * Cada solicitud se cobra en el RateLimiter como si llegara sola: la que
+	 * supera el límite, y las que la siguen, se responden vacías.
+	 */
+	private void processBatch(DirMessage request, Requester clientAddr) throws IOException {
+		byte[][] partes = request.getParts();
+		BatchResponse batch = new BatchResponse(clientAddr, partes.length);
+		if (partes.length == 0) {
+			sendResponse(batch.encode(), clientAddr);
+			return;
+		}
+		RateLimiter limiter = this.limiter;
+		boolean limitado = false;
+		for (int i = 0; i < partes.length; i++) {
+			Requester destino = clientAddr.inBatch(batch, i);
+			DirMessage sub = null;
+			try {
+				sub = DirMessage.buildMessageFromReceivedData(partes[i]);
+			} catch (RuntimeException e) { // Solicitud truncada
+				e.printStackTrace();
+			}
+			if (sub != null && !limitado && limiter != null) {
+				limitado = !limiter.charge(clientAddr.getAddress(), sub.getOpcode(), System.currentTimeMillis());
+			}
+			if (sub == null || !BatchResponse.isBatchable(sub.getOpcode()) || batch.hasFailed() || limitado) {
+				sendResponse(BatchResponse.NO_RESPONSE, destino);
+			} else {
+				try {
+					processRequest(sub, destino);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					abandon(destino);
+				}
+			}
+		}
+	}
+
+	// Operaciones que modifican el estado: se ejecutan con writeLock tomado.
+	// Las replicadas desde otro nodo se aplican sin responder ni reenviarlas.
+	private void processUpdateFromClient(DirMessage request, Requester clientAddr, boolean replicated) throws IOException {
+		DirectoryState current = state.get();
+		switch(request.getOpcode()) {
 		case DirMessageOps.OPCODE_REGISTER_USERNAME:
 			String nuevonick = request.getUserName();
-			if(nicks.containsKey(nuevonick)) sendRegisterFAIL(clientAddr);
+			// El primario ya ha comprobado que el nick no estaba en uso
+			if(current.isRegistered(nuevonick) && !replicated) sendRegisterFAIL(clientAddr);
 			else{
-				nicks.put(nuevonick, LocalDateTime.now());
-				sendRegisterOK(clientAddr);
+				LocalDateTime registrado = LocalDateTime.now();
+				state.set(current.withNick(nuevonick, registrado));
+				leases.schedule(nuevonick, System.currentTimeMillis() + DirMessage.LEASE_DURATION_MILLIS);
+				persist(DirectoryLog.registerRecord(nuevonick, registrado), replicated ? null : () -> sendRegisterOK(clientAddr));
+				if(!replicated) replicateRegister(nuevonick, clientAddr.getAddress());
 			}
 			break;
-		case DirMessageOps.OPCODE_GETUSERS:
-			sendUserList(clientAddr);
-			break;
 		case DirMessageOps.OPCODE_SERVE_FILES:
-			servers.put(request.getUserName(), new InetSocketAddress(clientAddr.getAddress(), request.getPort()));
-			FileInfo[] ficheros = request.getMeta();
-			for(FileInfo f : ficheros) {
-				files.put(f.getHash(), f);
-				owners.put(f.getHash(), request.getUserName());
-			}
-			sendServeOK(clientAddr);
+			String servidor = request.getUserName();
+			InetSocketAddress direccion = new InetSocketAddress(clientAddr.getAddress(), request.getPort());
+			DirectoryState conServidor = current.withServer(servidor, direccion, request.getMeta());
+			state.set(conServidor);
+			recordCatalogChanges(current, conServidor, servidor, request.getMeta());
+			leases.schedule(servidor, System.currentTimeMillis() + DirMessage.LEASE_DURATION_MILLIS);
+			loads.touch(servidor, System.currentTimeMillis());
+			persist(DirectoryLog.serveRecord(servidor, direccion, request.getMeta()), replicated ? null : () -> sendServeOK(clientAddr));
+			if(!replicated) replicateServe(servidor, request.getPort(), request.getMeta(), clientAddr.getAddress());
 			break;
-		case DirMessageOps.OPCODE_LOOKUP_USERNAME:
-			String buscarNick = request.getUserName();
-			if(servers.containsKey(buscarNick)) {
-				sendLookupFound(servers.get(buscarNick), clientAddr);
-			} else sendLookupNotFound(clientAddr);
+		case DirMessageOps.OPCODE_SERVE_SUMMARY:
+			String servidorResumen = request.getUserName();
+			InetSocketAddress direccionResumen = new InetSocketAddress(clientAddr.getAddress(), request.getPort());
+			DirectoryState conResumen = current.withServerSummary(servidorResumen, direccionResumen, request.getSummary());
+			state.set(conResumen);
+			recordCatalogChanges(current, conResumen, servidorResumen, new FileInfo[0]);
+			leases.schedule(servidorResumen, System.currentTimeMillis() + DirMessage.LEASE_DURATION_MILLIS);
+			loads.touch(servidorResumen, System.currentTimeMillis());
+			persist(DirectoryLog.summaryRecord(servidorResumen, direccionResumen, request.getSummary()),
+					replicated ? null : () -> sendServeOK(clientAddr));
+			if(!replicated) replicateSummary(servidorResumen, request.getPort(), request.getSummary(), clientAddr.getAddress());
 			break;
 		case DirMessageOps.OPCODE_LOGOFF:
-			nicks.remove(request.getUserName());
-			sendQuit(clientAddr);
+			String nickLogoff = request.getUserName();
+			state.set(current.withoutNick(nickLogoff));
+			if(!current.isServer(nickLogoff)) leases.cancel(nickLogoff);
+			if(current.isRegistered(nickLogoff)) {
+				persist(DirectoryLog.logoffRecord(nickLogoff), replicated ? null : () -> sendQuit(clientAddr));
+			} else if(!replicated) sendQuit(clientAddr);
 			break;
 		case DirMessageOps.OPCODE_SERVE_FILES_STOP:
-			servers.remove(request.getUserName());
-			HashSet<String> hashFicheros = new HashSet<String>();
-			for(String s : owners.keySet()) {
-				hashFicheros.add(s);
-			};
-			for(String s : hashFicheros) {
-				if(owners.get(s).equals(request.getUserName())) {
-					owners.remove(s);
-					files.remove(s);
-				}
-			}
-			sendStopOk(clientAddr);
+			String nickStop = request.getUserName();
+			DirectoryState sinServidor = current.withoutServer(nickStop);
+			state.set(sinServidor);
+			recordCatalogChanges(current, sinServidor, nickStop, new FileInfo[0]);
+			if(!current.isRegistered(nickStop)) leases.cancel(nickStop);
+			loads.remove(nickStop);
+			if(current.isServer(nickStop)) {
+				persist(DirectoryLog.stopRecord(nickStop), replicated ? null : () -> sendStopOk(clientAddr));
+			} else if(!replicated) sendStopOk(clientAddr);
 			break;
-		case DirMessageOps.OPCODE_GETFILES:
-			FileInfo[] meta = new FileInfo[files.keySet().size()];
-			int i = 0;
-			for(String s : files.keySet()) {
-				meta[i] = files.get(s);
-				i++;
+		case DirMessageOps.OPCODE_HEARTBEAT:
+			// Sólo se renuevan concesiones existentes. Si el nick no la tiene y este
+			// nodo es responsable de él, se avisa al peer para que se registre de nuevo
+			String nickHeartbeat = request.getUserName();
+			if(!leases.renew(nickHeartbeat, System.currentTimeMillis() + DirMessage.LEASE_DURATION_MILLIS)
+					&& !replicated && (ring == null || ring.isReplica(self, ConsistentHashRing.nickKey(nickHeartbeat)))) {
+				sendResponse(DirMessage.buildLeaseUnknownMessage(nickHeartbeat), clientAddr);
+			}
+			if(current.isServer(nickHeartbeat)) {
+				loads.report(nickHeartbeat, request.getActiveTransfers(), request.getFreeUploadKbps(), System.currentTimeMillis());
 			}
-			sendFileList(meta, clientAddr);
+			break;
+		case DirMessageOps.OPCODE_SUBSCRIBE:
+			if(subscriptions.subscribe(clientAddr.getSocketAddress(), System.currentTimeMillis())) {
+				sendResponse(DirMessage.buildSubscribeOKResponseMessage(catalogChanges.getHeadSeq(),
+						DirMessage.SUBSCRIPTION_LEASE_MILLIS), clientAddr);
+			} else sendResponse(DirMessage.buildSubscribeFAILResponseMessage(), clientAddr);
+			break;
+		case DirMessageOps.OPCODE_CATALOG_RESYNC:
+			subscriptions.resync(clientAddr.getSocketAddress(), request.getSeq(), System.currentTimeMillis());
+			break;
 		default:
 			break;
 		}
+		subscriptions.push(System.currentTimeMillis());
+	}
+
+	/**
+	 * Añade al historial del catálogo los cambios de un servidor entre dos
+	 * versiones del estado: su alta/baja o cambio de dirección y los ficheros
+	 * que ha añadido, retirado o de los que ha pasado a ser propietario
+	 * 
+	 * @param published Ficheros que acaba de publicar (pueden ser de otro
+	 *                  propietario en "before")
+	 */
+	private void recordCatalogChanges(DirectoryState before, DirectoryState after, String nick, FileInfo[] published) {
+		InetSocketAddress antes = before.lookupServer(nick);
+		InetSocketAddress despues = after.lookupServer(nick);
+		if (despues != null && !despues.equals(antes)) {
+			catalogChanges.append(CatalogEvent.serverUp(nick, despues));
+		}
+		HashSet<String> afectados = new HashSet<String>();
+		for (FileInfo f : before.getFilesOf(nick)) {
+			afectados.add(f.getHash());
+		}
+		for (FileInfo f : published) {
+			afectados.add(f.getHash());
+		}
+		for (String hash : afectados) {
+			FileInfo f = after.getFile(hash);
+			if (f == null) {
+				if (before.getFile(hash) != null) {
+					catalogChanges.append(CatalogEvent.fileRemoved(hash));
+				}
+			} else if (before.getFile(hash) == null || !after.getOwner(hash).equals(before.getOwner(hash))) {
+				catalogChanges.append(CatalogEvent.fileAdded(f, after.getOwner(hash)));
+			}
+		}
+		if (antes != null && despues == null) {
+			catalogChanges.append(CatalogEvent.serverDown(nick));
+		}
+	}
+
+	/**
+	 * Añade la modificación al registro persistente (si lo hay) y ejecuta
+	 * "reply" cuando sea durable según la política de fsync configurada
+	 */
+	private void persist(byte[] record, DirectoryLog.DurableAction reply) throws IOException {
+		if (log == null) {
+			if (reply != null) {
+				reply.run();
+			}
+		} else {
+			log.append(record, reply);
+		}
+	}
+
+	/**
+	 * Reenvía un registro de nick a las demás réplicas del nick
+	 */
+	private void replicateRegister(String nick, InetAddress origin) throws IOException {
+		if (ring == null) {
+			return;
+		}
+		byte[] forward = DirMessage.buildReplicateMessage(origin, DirMessage.buildRegisterRequestMessage(nick));
+		for (InetSocketAddress node : ring.replicasFor(ConsistentHashRing.nickKey(nick))) {
+			if (!node.equals(self)) {
+				replicator.send(node, forward, System.currentTimeMillis());
+			}
+		}
+	}
+
+	/**
+	 * Reenvía el resumen de un servidor a las demás réplicas del nick (el resumen
+	 * no se puede repartir por hash como una lista de ficheros)
+	 */
+	private void replicateSummary(String nick, int port, BloomFilter summary, InetAddress origin) throws IOException {
+		if (ring == null) {
+			return;
+		}
+		byte[] forward = DirMessage.buildReplicateMessage(origin, DirMessage.buildServeSummaryRequestMessage(port, nick, summary));
+		for (InetSocketAddress node : ring.replicasFor(ConsistentHashRing.nickKey(nick))) {
+			if (!node.equals(self)) {
+				replicator.send(node, forward, System.currentTimeMillis());
+			}
+		}
+	}
+
+	/**
+	 * Reenvía a cada nodo del clúster los ficheros publicados de los que es
+	 * réplica. Las réplicas del nick lo reciben aunque no les toque ningún
+	 * fichero, para que sepan que es un servidor.
+	 */
+	private void replicateServe(String nick, int port, FileInfo[] files, InetAddress origin) throws IOException {
+		if (ring == null) {
+			return;
+		}
+		for (InetSocketAddress node : ring.getNodes()) {
+			if (node.equals(self)) {
+				continue;
+			}
+			List<FileInfo> subset = new ArrayList<FileInfo>();
+			for (FileInfo f : files) {
+				if (ring.isReplica(node, ConsistentHashRing.fileKey(f.getHash()))) {
+					subset.add(f);
+				}
+			}
+			if (!subset.isEmpty() || ring.isReplica(node, ConsistentHashRing.nickKey(nick))) {
+				replicateServe(nick, port, subset, origin, node);
+			}
+		}
+	}
+
+	/**
+	 * Reenvía a un nodo parte de los ficheros publicados, dividida en tantos
+	 * SERVE_FILES como haga falta para que cada uno quepa en un datagrama (la
+	 * réplica los añade a los que ya tenía)
+	 */
+	private void replicateServe(String nick, int port, List<FileInfo> subset, InetAddress origin, InetSocketAddress node)
+			throws IOException {
+		byte[] request = DirMessage.buildServeFilesRequestMessage(port, nick, subset.toArray(new FileInfo[subset.size()]));
+		byte[] forward = DirMessage.buildReplicateMessage(origin, request);
+		if (DirMessage.REQUEST_ID_SIZE_BYTES + forward.length > DirMessage.PACKET_MAX_SIZE && subset.size() > 1) {
+			int mitad = subset.size() / 2;
+			replicateServe(nick, port, subset.subList(0, mitad), origin, node);
+			replicateServe(nick, port, subset.subList(mitad, subset.size()), origin, node);
+			return;
+		}
+		replicator.send(node, forward, System.currentTimeMillis());
+	}
+
+	/**
+	 * Avanza la rueda de concesiones y elimina de todas las estructuras los nicks
+	 * de los peers que han dejado de enviar heartbeats
+	 */
+	private void expireLeases() {
+		ArrayList<String> caducados = new ArrayList<String>();
+		long now = System.currentTimeMillis();
+		lastHousekeeping = now;
+		synchronized (writeLock) {
+			leases.advance(now, caducados);
+			if(!caducados.isEmpty()) {
+				// Todas las caducidades del tick se publican en una única instantánea
+				DirectoryState updated = state.get();
+				for(String nick : caducados) {
+					try {
+						if(updated.isServer(nick)) persist(DirectoryLog.stopRecord(nick), null);
+						if(updated.isRegistered(nick)) persist(DirectoryLog.logoffRecord(nick), null);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					DirectoryState anterior = updated;
+					updated = updated.withoutServer(nick).withoutNick(nick);
+					loads.remove(nick);
+					recordCatalogChanges(anterior, updated, nick, new FileInfo[0]);
+					System.out.println("* Lease expired for " + nick + ", removed from directory");
+				}
+				state.set(updated);
+			}
+			if(log != null) {
+				log.maybeSnapshot(state.get(), now);
+			}
+			popularity.maybeDecay(now);
+			// Cambios retenidos por el límite de envíos y suscripciones caducadas
+			subscriptions.expire(now);
+			try {
+				subscriptions.push(now);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		try {
+			replicator.retransmit(now);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if(now - lastMetricsReport >= METRICS_REPORT_MILLIS) {
+			lastMetricsReport = now;
+			if(readFlights.getFlights() != lastReportedFlights) {
+				lastReportedFlights = readFlights.getFlights();
+				System.out.println("* Read coalescing: " + readFlights);
+			}
+			RateLimiter limiter = this.limiter;
+			if(limiter != null && limiter.getLimited() != lastReportedLimited) {
+				lastReportedLimited = limiter.getLimited();
+				System.out.println("* Rate limiting: " + limiter);
+			}
+			if(ring != null && replicator.getSent() != lastReportedReplications) {
+				lastReportedReplications = replicator.getSent();
+				System.out.println("* Replication: " + replicator);
+			}
+			if(responses.getReplayed() + responses.getDropped() != lastReportedReplays) {
+				lastReportedReplays = responses.getReplayed() + responses.getDropped();
+				System.out.println("* Duplicate requests: " + responses);
+			}
+			DirectoryState snapshot = state.get();
+			if(snapshot.getVersion() != lastReportedVersion) {
+				lastReportedVersion = snapshot.getVersion();
+				System.out.println("* Catalog store: " + snapshot.getCatalogStore());
+			}
+		}
 	}
 
 	// Construir el datagrama con la respuesta y enviarlo por el socket al cliente
 	
-	private void sendLoginOK(InetSocketAddress clientAddr) throws IOException {
-		byte[] responseData = DirMessage.buildLoginOKResponseMessage(servers.size());
-		DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(responsePacket);
+	private void sendLoginOK(DirectoryState snapshot, Requester clientAddr) throws IOException {
+		byte[] responseData = DirMessage.buildLoginOKResponseMessage(snapshot.getNumServers(), getBulkPort(),
+				CatalogBulkServer.THRESHOLD_FILES, snapshot.getNumFiles());
+		sendResponse(responseData, clientAddr);
+	}
+
+	/**
+	 * Puerto del canal TCP que se anuncia en LOGIN_OK (0 si no hay canal)
+	 */
+	private int getBulkPort() {
+		return bulkServer == null ? 0 : bulkServer.getPort();
+	}
+
+	/**
+	 * Versión del catálogo y la instantánea que le corresponde. Los cambios se
+	 * añaden al historial con writeLock tomado y antes de publicar la
+	 * instantánea, así que fuera del cerrojo podrían no coincidir.
+	 */
+	private CatalogBulkServer.Snapshot catalogSnapshot() {
+		synchronized (writeLock) {
+			return new CatalogBulkServer.Snapshot(catalogChanges.getHeadSeq(), state.get());
+		}
 	}
 	
-	private void sendRegisterOK(InetSocketAddress clientAddr) throws IOException {
+	private void sendRegisterOK(Requester clientAddr) throws IOException {
 		byte[] responseData = DirMessage.buildRegisterOKResponseMessage();
-		DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(responsePacket);
+		sendResponse(responseData, clientAddr);
 	}
 	
-	private void sendRegisterFAIL(InetSocketAddress clientAddr) throws IOException{
+	private void sendRegisterFAIL(Requester clientAddr) throws IOException{
 		byte[] responseData = DirMessage.buildRegisterFAILResponseMessage();
-		DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(responsePacket);
+		sendResponse(responseData, clientAddr);
 	}
 	
-	private void sendUserList(InetSocketAddress clientAddr) throws IOException{
-		byte[] responseData = DirMessage.buildUserListResponseMessage(nicks.keySet(), servers.keySet());
-		DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(responsePacket);
+	private void sendUserList(DirectoryState snapshot, Requester clientAddr) throws IOException{
+		int version = listVersion(clientAddr);
+		byte[] responseData = snapshot.getCachedUserListResponse(version);
+		if(responseData == null) {
+			// Se construye en un hilo lector, agrupando solicitudes simultáneas
+			// sobre la misma versión del estado (y el mismo formato)
+			readFlights.request("USERLIST@" + snapshot.getVersion() + "v" + version, clientAddr,
+					() -> snapshot.getUserListResponse(version));
+			return;
+		}
+		sendResponse(responseData, clientAddr);
 	}
 	
-	private void sendServeOK(InetSocketAddress clientAddr) throws IOException{
+	private void sendServeOK(Requester clientAddr) throws IOException{
 		byte[] responseData = DirMessage.buildServeFilesResponseMessage();
-		DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(responsePacket);
+		sendResponse(responseData, clientAddr);
 	}
 	
-	private void sendLookupFound(InetSocketAddress server, InetSocketAddress clientAddr) throws IOException{
+	private void sendLookupFound(InetSocketAddress server, Requester clientAddr) throws IOException{
 		byte[] responseData = DirMessage.buildLookupUserFoundResponseMessage(server);
-		DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(responsePacket);
+		sendResponse(responseData, clientAddr);
 	}
 	
-	private void sendLookupNotFound(InetSocketAddress clientAddr) throws IOException{
+	private void sendLookupNotFound(Requester clientAddr) throws IOException{
 		byte[] responseData = DirMessage.buildLookupUserNotFoundResponseMessage();
-		DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(responsePacket);
+		sendResponse(responseData, clientAddr);
 	}
 	
-	private void sendQuit(InetSocketAddress clientAddr) throws IOException{
+	private void sendQuit(Requester clientAddr) throws IOException{
 		byte[] responseData = DirMessage.buildLogOffResponseMessage();
-		DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(responsePacket);
+		sendResponse(responseData, clientAddr);
 	}
 	
-	private void sendStopOk(InetSocketAddress clientAddr) throws IOException{
+	private void sendStopOk(Requester clientAddr) throws IOException{
 		byte[] responseData = DirMessage.buildStopServerResponseMessage();
-		DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(responsePacket);
+		sendResponse(responseData, clientAddr);
 	}
 	
-	private void sendFileList(FileInfo[] ficheros, InetSocketAddress clientAddr) throws IOException{
-		byte[] responseData = DirMessage.buildFileListResponseMessage(ficheros);
-		DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(responsePacket);
+	private void sendFileList(DirectoryState snapshot, Requester clientAddr) throws IOException{
+		int version = listVersion(clientAddr);
+		byte[] responseData = snapshot.getCachedFileListResponse(version);
+		if(responseData == null) {
+			// Se construye en un hilo lector, agrupando solicitudes simultáneas
+			// sobre la misma versión del estado (y el mismo formato)
+			readFlights.request("FILELIST@" + snapshot.getVersion() + "v" + version, clientAddr,
+					() -> snapshot.getFileListResponse(version));
+			return;
+		}
+		sendResponse(responseData, clientAddr);
+	}
+
+	/**
+	 * Formato en que se pide a la instantánea una lista ya codificada: el de la
+	 * solicitud, para que sendResponse no tenga que traducirla (ni comprimirla)
+	 * en cada envío, salvo en un lote, cuyas respuestas se guardan en v1 y se
+	 * traducen con la del lote
+	 */
+	private static int listVersion(Requester clientAddr) {
+		return clientAddr.getBatch() == null ? clientAddr.getVersion() : DirMessageV2.VERSION_1;
+	}
+
+	/**
+	 * Envía los cambios del catálogo posteriores a la versión del cliente, o el
+	 * aviso de que debe descargarlo completo si ya no están en el historial
+	 */
+	private void sendFileChanges(long version, Requester clientAddr) throws IOException {
+		long head = catalogChanges.getHeadSeq();
+		List<CatalogEvent> cambios = catalogChanges.since(version, CatalogChangeLog.MAX_EVENTS_PER_DATAGRAM);
+		if(cambios == null) {
+			sendResponse(DirMessage.buildCatalogResyncFullMessage(head), clientAddr);
+		} else sendResponse(DirMessage.buildCatalogEventsMessage(head, cambios), clientAddr);
+	}
+
+	/**
+	 * Busca en los índices de la instantánea y envía como mucho el número de
+	 * resultados pedido (y nunca más de MAX_SEARCH_RESULTS)
+	 */
+	private void sendSearchResults(DirectoryState snapshot, DirMessage request, Requester clientAddr) throws IOException {
+		int limite = Math.max(0, Math.min(request.getLimit(), DirMessage.MAX_SEARCH_RESULTS));
+		CatalogIndex index = snapshot.getIndex();
+		// Se pide uno más para saber si hay más resultados que el límite
+		List<String> hashes;
+		switch(request.getOpcode()) {
+		case DirMessageOps.OPCODE_SEARCH_NAME:
+			hashes = index.searchName(request.getQuery(), limite + 1);
+			break;
+		case DirMessageOps.OPCODE_SEARCH_NAME_PREFIX:
+			hashes = index.searchNamePrefix(request.getQuery(), limite + 1);
+			break;
+		default:
+			hashes = index.searchHashPrefix(request.getQuery(), limite + 1);
+		}
+		List<FileInfo> resultados = snapshot.getFiles(hashes);
+		boolean truncado = resultados.size() > limite;
+		if(truncado) resultados = resultados.subList(0, limite);
+		sendResponse(DirMessage.buildSearchResultsMessage(resultados, truncado), clientAddr);
+	}
+
+	/**
+	 * Envía los servidores de un fichero, de mejor a peor según la carga que
+	 * han comunicado. Se acepta también un prefijo del hash, siempre que
+	 * identifique a un único fichero. Los servidores que sólo han publicado un
+	 * resumen se incluyen si su resumen probablemente contiene el hash (nunca
+	 * con un prefijo, que el resumen no puede responder).
+	 */
+	private void sendSeeds(DirectoryState snapshot, DirMessage request, Requester clientAddr) throws IOException {
+		String hash = request.getQuery();
+		if(snapshot.getFile(hash) == null) {
+			List<String> candidatos = snapshot.getIndex().searchHashPrefix(hash, 2);
+			if(candidatos.size() == 1) hash = candidatos.get(0);
+		}
+		int limite = Math.max(0, Math.min(request.getLimit(), DirMessage.MAX_SEEDS));
+		long now = System.currentTimeMillis();
+		List<SeedInfo> seeds = new ArrayList<SeedInfo>();
+		for(String nick : snapshot.getSeeders(hash)) {
+			InetSocketAddress direccion = snapshot.lookupServer(nick);
+			if(direccion == null) continue;
+			PeerLoadTable.Load carga = loads.get(nick);
+			int antiguedad = (int) Math.min(Integer.MAX_VALUE, now - carga.reportedAt);
+			seeds.add(new SeedInfo(nick, direccion, carga.activeTransfers, carga.freeUploadKbps, antiguedad));
+		}
+		String hashBuscado = hash;
+		Set<String> listados = snapshot.getSeeders(hash);
+		snapshot.forEachSummary((nick, resumen) -> {
+			InetSocketAddress direccion = snapshot.lookupServer(nick);
+			if(direccion != null && !listados.contains(nick) && resumen.mightContain(hashBuscado)) {
+				PeerLoadTable.Load carga = loads.get(nick);
+				int antiguedad = (int) Math.min(Integer.MAX_VALUE, now - carga.reportedAt);
+				seeds.add(new SeedInfo(nick, direccion, carga.activeTransfers, carga.freeUploadKbps, antiguedad));
+			}
+		});
+		seeds.sort(SeedInfo.RANKING);
+		if(!seeds.isEmpty()) popularity.recordLookup(hash);
+		sendResponse(DirMessage.buildLookupHashResultMessage(hash, seeds.subList(0, Math.min(limite, seeds.size()))), clientAddr);
+	}
+
+	/**
+	 * Envía los ficheros más pedidos, con su nombre y tamaño si siguen
+	 * publicados en la instantánea
+	 */
+	private void sendTopFiles(DirectoryState snapshot, DirMessage request, Requester clientAddr) throws IOException {
+		int limite = Math.max(0, Math.min(request.getLimit(), DirMessage.MAX_TOP_FILES));
+		List<PopularFile> populares = new ArrayList<PopularFile>();
+		for(PopularityTracker.Entry e : popularity.top(limite)) {
+			FileInfo f = snapshot.getFile(e.hash);
+			populares.add(new PopularFile(e.hash, f == null ? "" : f.getName(), f == null ? 0 : f.getSize(), e.lookups, e.downloads));
+		}
+		sendResponse(DirMessage.buildTopFilesResponseMessage(populares), clientAddr);
+	}
+
+	/**
+	 * Envía al peer el fichero popular que debe replicar, si está ocioso y
+	 * algún fichero con mucha demanda tiene pocos servidores
+	 */
+	private void sendReplicationTask(DirectoryState snapshot, String nick, Requester clientAddr) throws IOException {
+		long now = System.currentTimeMillis();
+		FileInfo tarea = replication.assign(nick, snapshot, loads.get(nick), popularity.top(PopularityTracker.CAPACITY), now);
+		if(tarea != null) {
+			System.out.println("* Suggested to " + nick + " replicating " + tarea.getName() + " (" + tarea.getHash() + ")");
+		}
+		sendResponse(DirMessage.buildReplicationTaskResponseMessage(tarea), clientAddr);
+	}
+
+	/**
+	 * Envía un mensaje precedido del id de la solicitud a la que responde, y lo
+	 * guarda por si el cliente retransmite la solicitud. Los mensajes se
+	 * construyen en v1 y se traducen aquí si la solicitud llegó en v2.
+	 */
+	private void sendResponse(byte[] responseData, Requester clientAddr) throws IOException {
+		BatchResponse batch = clientAddr.getBatch();
+		if (batch != null) {
+			// Respuesta a una solicitud de un lote: se envía con las demás (el
+			// BATCH_RESULT se traduce entero)
+			if (batch.deliver(clientAddr.getSlot(), responseData)) {
+				sendResponse(batch.encode(), batch.getRequester());
+			}
+			return;
+		}
+		if (clientAddr.getVersion() == DirMessageV2.VERSION_2) {
+			responseData = DirMessageV2.fromV1(responseData);
+		}
+		if (DirMessage.REQUEST_ID_SIZE_BYTES + responseData.length > DirMessage.PACKET_MAX_SIZE) {
+			// Un catálogo demasiado grande para un datagrama: el cliente debe
+			// pedirlo por el canal TCP
+			System.err.println("* Directory response to " + clientAddr + " does not fit in a datagram ("
+					+ responseData.length + " bytes)");
+			if (clientAddr.getRequestId() == DirMessage.NO_REQUEST_ID) {
+				return;
+			}
+			responseData = DirMessage.buildResponseTooLargeMessage();
+			if (clientAddr.getVersion() == DirMessageV2.VERSION_2) {
+				responseData = DirMessageV2.fromV1(responseData);
+			}
+		}
+		if (clientAddr.getRequestId() != DirMessage.NO_REQUEST_ID) {
+			responses.complete(clientAddr, responseData);
+		}
+		SendBuffer sb = sendBuffers.get();
+		sb.start(clientAddr.getRequestId()).put(responseData);
+		sb.packet.setData(sb.data, 0, sb.buffer.position());
+		sb.packet.setSocketAddress(clientAddr.getSocketAddress());
+		socket.send(sb.packet);
 	}
 }
@@ -0,0 +1,25 @@
+package es.um.redes.nanoFiles.directory.server;
+
+/**
+ * Métricas de agrupamiento de un SingleFlight, de sólo lectura: quien las
+ * consulta no puede lanzar cálculos.
+ */
+public interface FlightStats {
+	/** Cálculos lanzados desde el arranque */
+	long getFlights();
+
+	/** Solicitudes que se han agrupado con un cálculo ya en curso */
+	long getCoalescedRequests();
+
+	/** Mayor número de clientes que han esperado un mismo cálculo */
+	int getMaxWaiters();
+
+	/** Clientes que esperaban el último cálculo terminado */
+	int getLastWaiters();
+
+	/** Duración (ms) de la ventana de agrupamiento del último cálculo */
+	double getLastWindowMillis();
+
+	/** Duración media (ms) de las ventanas de agrupamiento */
+	double getAverageWindowMillis();
+}
@@ -0,0 +1,197 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Rueda de temporizadores "hashed" para gestionar la caducidad de las
+ * concesiones (leases) del directorio. Cada concesión se enlaza en la ranura
+ * correspondiente a su instante de caducidad, de forma que programar, renovar
+ * y cancelar una concesión cuesta O(1) y en cada tick sólo se visita una
+ * ranura, independientemente del número total de concesiones.
+ *
+ * Las renovaciones son perezosas: sólo actualizan el instante de caducidad y la
+ * concesión se vuelve a enlazar en su nueva ranura cuando la rueda pasa por la
+ * antigua. Así, un heartbeat no toca las listas de la rueda.
+ *
+ * La clase no es thread-safe: debe usarse desde un único hilo.
+ */
+public class HashedTimerWheel<K> {
+
+	/**
+	 * Nodo de una concesión, enlazado en la lista doblemente enlazada de su
+	 * ranura
+	 */
+	private static class Lease<K> {
+		K key;
+		long expiresAt; // Instante de caducidad (ms)
+		long deadlineTick; // Tick en el que la rueda volverá a examinarla
+		Lease<K> prev;
+		Lease<K> next;
+
+		Lease(K key, long expiresAt) {
+			this.key = key;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * Duración de un tick en milisegundos
+	 */
+	private final long tickMillis;
+	/**
+	 * Cabeceras de las listas de cada ranura (el número de ranuras es potencia de
+	 * 2 para poder usar una máscara)
+	 */
+	private final Lease<K>[] slots;
+	private final int mask;
+	/**
+	 * Índice de concesiones por clave, para renovar y cancelar en O(1)
+	 */
+	private final HashMap<K, Lease<K>> leases;
+	/**
+	 * Siguiente tick (absoluto) que debe procesar la rueda
+	 */
+	private long currentTick;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public HashedTimerWheel(long tickMillis, int numSlots, long now) {
+		assert (tickMillis > 0 && numSlots > 0);
+		int size = Integer.highestOneBit(numSlots);
+		if (size < numSlots) {
+			size <<= 1;
+		}
+		this.tickMillis = tickMillis;
+		this.slots = (Lease<K>[]) new Lease[size];
+		this.mask = size - 1;
+		this.leases = new HashMap<K, Lease<K>>();
+		this.currentTick = now / tickMillis;
+	}
+
+	public int size() {
+		return leases.size();
+	}
+
+	public boolean contains(K key) {
+		return leases.containsKey(key);
+	}
+
+	/**
+	 * Programa (o renueva, si ya existe) la concesión de una clave
+	 *
+	 * @param key       La clave cuya concesión se programa
+	 * @param expiresAt Instante absoluto (ms) en el que caduca
+	 */
+	public void schedule(K key, long expiresAt) {
+		Lease<K> lease = leases.get(key);
+		if (lease == null) {
+			lease = new Lease<K>(key, expiresAt);
+			leases.put(key, lease);
+			link(lease, currentTick);
+		} else if (expiresAt >= lease.expiresAt) {
+			// Renovación perezosa: se reubicará cuando la rueda pase por su ranura
+			lease.expiresAt = expiresAt;
+		} else {
+			unlink(lease);
+			lease.expiresAt = expiresAt;
+			link(lease, currentTick);
+		}
+	}
+
+	/**
+	 * Renueva la concesión de una clave existente
+	 *
+	 * @return false si la clave no tiene concesión (ya caducó o nunca existió)
+	 */
+	public boolean renew(K key, long expiresAt) {
+		if (!leases.containsKey(key)) {
+			return false;
+		}
+		schedule(key, expiresAt);
+		return true;
+	}
+
+	/**
+	 * Cancela la concesión de una clave, si la tiene
+	 */
+	public void cancel(K key) {
+		Lease<K> lease = leases.remove(key);
+		if (lease != null) {
+			unlink(lease);
+		}
+	}
+
+	/**
+	 * Avanza la rueda hasta el instante indicado, añadiendo a "expired" las
+	 * claves cuya concesión ha caducado (y que dejan de estar en la rueda)
+	 *
+	 * @param now     Instante actual (ms)
+	 * @param expired Lista en la que se devuelven las claves caducadas
+	 */
+	public void advance(long now, List<K> expired) {
+		long nowTick = now / tickMillis;
+		if (nowTick - currentTick >= slots.length) {
+			// Hemos estado parados más de una vuelta: basta con recorrer cada ranura
+			// una vez, procesando todo lo que venza hasta nowTick
+			for (int i = 0; i < slots.length; i++) {
+				processSlot(i, nowTick, now, expired);
+			}
+			currentTick = nowTick + 1;
+			return;
+		}
+		while (currentTick <= nowTick) {
+			processSlot((int) (currentTick & mask), currentTick, now, expired);
+			currentTick++;
+		}
+	}
+
+	private void processSlot(int slot, long tick, long now, List<K> expired) {
+		Lease<K> lease = slots[slot];
+		while (lease != null) {
+			Lease<K> next = lease.next;
+			if (lease.deadlineTick <= tick) {
+				unlink(lease);
+				if (lease.expiresAt <= now) {
+					leases.remove(lease.key);
+					expired.add(lease.key);
+				} else {
+					// Renovada desde que se enlazó: la movemos a su nueva ranura (nunca a
+					// la que se está procesando, o no se revisaría hasta la siguiente vuelta)
+					link(lease, tick + 1);
+				}
+			}
+			lease = next;
+		}
+	}
+
+	private void link(Lease<K> lease, long minTick) {
+		long tick = (lease.expiresAt + tickMillis - 1) / tickMillis;
+		if (tick < minTick) {
+			tick = minTick;
+		}
+		lease.deadlineTick = tick;
+		int slot = (int) (tick & mask);
+		lease.prev = null;
+		lease.next = slots[slot];
+		if (slots[slot] != null) {
+			slots[slot].prev = lease;
+		}
+		slots[slot] = lease;
+	}
+
+	private void unlink(Lease<K> lease) {
+		if (lease.prev != null) {
+			lease.prev.next = lease.next;
+		} else {
+			int slot = (int) (lease.deadlineTick & mask);
+			if (slots[slot] == lease) {
+				slots[slot] = lease.next;
+			}
+		}
+		if (lease.next != null) {
+			lease.next.prev = lease.prev;
+		}
+		lease.prev = null;
+		lease.next = null;
+	}
+}
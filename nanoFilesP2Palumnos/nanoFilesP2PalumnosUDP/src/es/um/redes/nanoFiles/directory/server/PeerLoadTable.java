@@ -0,0 +1,67 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Última carga comunicada por cada servidor de ficheros en sus heartbeats.
+ * La escriben los escritores del directorio (con writeLock tomado) y la leen
+ * las consultas LOOKUP_HASH sin cerrojos, así que cada entrada es inmutable.
+ * No forma parte de la instantánea del estado ni se persiste: tras un
+ * reinicio se reconstruye con los siguientes heartbeats.
+ */
+public class PeerLoadTable {
+
+	/**
+	 * Carga de un servidor y cuándo la comunicó
+	 */
+	public static final class Load {
+		public final int activeTransfers;
+		public final int freeUploadKbps;
+		public final long reportedAt;
+
+		Load(int activeTransfers, int freeUploadKbps, long reportedAt) {
+			this.activeTransfers = activeTransfers;
+			this.freeUploadKbps = freeUploadKbps;
+			this.reportedAt = reportedAt;
+		}
+	}
+
+	/**
+	 * Carga que se supone a un servidor que aún no ha enviado ningún heartbeat
+	 * (ninguna transferencia y ancho de banda desconocido)
+	 */
+	private static final Load UNKNOWN = new Load(0, 0, 0);
+
+	private final ConcurrentHashMap<String, Load> loads = new ConcurrentHashMap<String, Load>();
+
+	/**
+	 * Método para guardar la carga comunicada por un servidor en un heartbeat
+	 */
+	public void report(String nick, int activeTransfers, int freeUploadKbps, long now) {
+		loads.put(nick, new Load(Math.max(0, activeTransfers), Math.max(0, freeUploadKbps), now));
+	}
+
+	/**
+	 * Método para marcar como reciente la carga de un servidor que acaba de
+	 * publicar ficheros (aún no ha tenido tiempo de enviar un heartbeat)
+	 */
+	public void touch(String nick, long now) {
+		Load previous = loads.get(nick);
+		if (previous == null) {
+			loads.put(nick, new Load(0, 0, now));
+		} else {
+			loads.put(nick, new Load(previous.activeTransfers, previous.freeUploadKbps, now));
+		}
+	}
+
+	public void remove(String nick) {
+		loads.remove(nick);
+	}
+
+	/**
+	 * Última carga comunicada por el servidor (con reportedAt 0 si no se conoce)
+	 */
+	public Load get(String nick) {
+		return loads.getOrDefault(nick, UNKNOWN);
+	}
+}
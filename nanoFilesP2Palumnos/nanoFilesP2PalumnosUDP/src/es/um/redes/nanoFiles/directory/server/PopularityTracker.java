@@ -0,0 +1,186 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.um.redes.nanoFiles.directory.message.DirMessage;
+import es.um.redes.nanoFiles.util.Hashing;
+
+/**
+ * Popularidad de los ficheros del directorio: cuántas veces se ha preguntado
+ * por los servidores de cada hash (LOOKUP_HASH) y cuántas descargas se han
+ * comunicado (DOWNLOADED), en memoria fija sea cual sea el número de hashes.
+ *
+ * Cada tipo de evento se cuenta en un Count-Min Sketch (DEPTH filas de WIDTH
+ * contadores; la estimación de un hash es el mínimo de sus contadores, que
+ * nunca es menor que la cuenta real). Los hashes más pedidos se siguen con
+ * Space-Saving: CAPACITY contadores, y un hash que no está entre ellos sustituye
+ * al de menor cuenta cuando la estimación del sketch la supera (el algoritmo
+ * original le daría la cuenta mínima + 1, que sobreestima más).
+ *
+ * El sketch se actualiza sin cerrojos. Sólo se toma el cerrojo para meter un
+ * hash nuevo entre los seguidos, así que la mayoría de peticiones de ficheros
+ * poco pedidos no esperan a nadie. Periódicamente (decay) todas las cuentas se
+ * dividen por dos, para que la lista refleje la demanda reciente.
+ */
+public final class PopularityTracker {
+
+	private static final int DEPTH = 4;
+	private static final int WIDTH = 1 << 12;
+	/**
+	 * Hashes seguidos: el doble de los que se pueden pedir, para que los últimos
+	 * de la lista no dependan de los que acaban de entrar
+	 */
+	public static final int CAPACITY = 2 * DirMessage.MAX_TOP_FILES;
+	/**
+	 * Periodo (ms) con el que se dividen por dos todas las cuentas
+	 */
+	public static final long DECAY_MILLIS = 10 * 60 * 1000;
+
+	private final AtomicIntegerArray lookups = new AtomicIntegerArray(DEPTH * WIDTH);
+	private final AtomicIntegerArray downloads = new AtomicIntegerArray(DEPTH * WIDTH);
+	/**
+	 * Contadores Space-Saving. Se leen y actualizan sin cerrojo; sólo las altas y
+	 * bajas se hacen con el cerrojo del objeto
+	 */
+	private final ConcurrentHashMap<String, AtomicLong> top = new ConcurrentHashMap<String, AtomicLong>();
+	/**
+	 * Cuenta mínima de los contadores cuando están todos ocupados (0 si no). Las
+	 * cuentas sólo crecen entre dos decay, así que un valor desfasado es menor
+	 * que el real y sólo hace que se tome el cerrojo alguna vez de más
+	 */
+	private volatile long minTracked;
+	private long lastDecay;
+
+	/**
+	 * Hash con su demanda estimada
+	 */
+	public static final class Entry {
+		public final String hash;
+		public final int lookups;
+		public final int downloads;
+
+		private Entry(String hash, int lookups, int downloads) {
+			this.hash = hash;
+			this.lookups = lookups;
+			this.downloads = downloads;
+		}
+	}
+
+	public PopularityTracker(long now) {
+		lastDecay = now;
+	}
+
+	public void recordLookup(String hash) {
+		record(lookups, hash);
+	}
+
+	public void recordDownload(String hash) {
+		record(downloads, hash);
+	}
+
+	private void record(AtomicIntegerArray sketch, String hash) {
+		long h1 = Hashing.hash1(hash);
+		long h2 = Hashing.hash2(h1);
+		for (int i = 0; i < DEPTH; i++) {
+			sketch.incrementAndGet(cell(h1, h2, i));
+		}
+		AtomicLong counter = top.get(hash);
+		if (counter != null) {
+			counter.incrementAndGet();
+			return;
+		}
+		long estimate = estimate(lookups, h1, h2) + estimate(downloads, h1, h2);
+		if (top.size() < CAPACITY || estimate > minTracked) {
+			admit(hash, estimate);
+		}
+	}
+
+	private synchronized void admit(String hash, long estimate) {
+		AtomicLong counter = top.get(hash);
+		if (counter != null) {
+			counter.incrementAndGet();
+			return;
+		}
+		if (top.size() >= CAPACITY) {
+			String victim = null;
+			long min = Long.MAX_VALUE;
+			for (Map.Entry<String, AtomicLong> e : top.entrySet()) {
+				if (e.getValue().get() < min) {
+					min = e.getValue().get();
+					victim = e.getKey();
+				}
+			}
+			if (estimate <= min) {
+				minTracked = min;
+				return;
+			}
+			top.remove(victim);
+		}
+		top.put(hash, new AtomicLong(estimate));
+		updateMin();
+	}
+
+	private void updateMin() {
+		if (top.size() < CAPACITY) {
+			minTracked = 0;
+			return;
+		}
+		long min = Long.MAX_VALUE;
+		for (AtomicLong c : top.values()) {
+			min = Math.min(min, c.get());
+		}
+		minTracked = min;
+	}
+
+	/**
+	 * Método para dividir todas las cuentas por dos si ha pasado DECAY_MILLIS
+	 * desde la última vez
+	 */
+	public synchronized void maybeDecay(long now) {
+		if (now - lastDecay < DECAY_MILLIS) {
+			return;
+		}
+		lastDecay = now;
+		for (int i = 0; i < DEPTH * WIDTH; i++) {
+			lookups.getAndUpdate(i, c -> c >>> 1);
+			downloads.getAndUpdate(i, c -> c >>> 1);
+		}
+		top.values().removeIf(c -> c.updateAndGet(v -> v >>> 1) == 0);
+		updateMin();
+	}
+
+	/**
+	 * Los "k" hashes más pedidos, de más a menos, con la estimación de consultas
+	 * y descargas de cada uno
+	 */
+	public List<Entry> top(int k) {
+		ArrayList<Entry> result = new ArrayList<Entry>();
+		top.forEach((hash, c) -> {
+			long h1 = Hashing.hash1(hash);
+			long h2 = Hashing.hash2(h1);
+			result.add(new Entry(hash, estimate(lookups, h1, h2), estimate(downloads, h1, h2)));
+		});
+		result.sort((a, b) -> Long.compare((long) b.lookups + b.downloads, (long) a.lookups + a.downloads));
+		return result.subList(0, Math.min(k, result.size()));
+	}
+
+	private static int estimate(AtomicIntegerArray sketch, long h1, long h2) {
+		int min = Integer.MAX_VALUE;
+		for (int i = 0; i < DEPTH; i++) {
+			min = Math.min(min, sketch.get(cell(h1, h2, i)));
+		}
+		return min;
+	}
+
+	/**
+	 * Contador de la fila "row" (las filas se guardan una detrás de otra)
+	 */
+	private static int cell(long h1, long h2, int row) {
+		return row * WIDTH + (int) ((h1 + row * h2) >>> 40) % WIDTH;
+	}
+}
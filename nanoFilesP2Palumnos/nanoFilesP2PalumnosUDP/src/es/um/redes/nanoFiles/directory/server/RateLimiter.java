@@ -0,0 +1,215 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import es.um.redes.nanoFiles.directory.message.DirMessageOps;
+
+/**
+ * Límite de solicitudes por dirección IP de origen, para que un cliente que
+ * falla (o alguien que falsifica la dirección de otro) no acapare el
+ * directorio ni lo use para inundar la red: una solicitud de un byte como
+ * GETFILES puede tener una respuesta de 64 KB.
+ *
+ * Cada dirección tiene dos cubos de fichas (token buckets): uno para las
+ * solicitudes baratas, de respuesta pequeña, y otro, mucho más estricto, para
+ * las caras, cuya respuesta puede ocupar un datagrama entero. Los cubos se
+ * guardan en una tabla LRU de como mucho MAX_SOURCES direcciones: una
+ * dirección olvidada vuelve con los cubos llenos, como una que lleva tiempo
+ * sin enviar nada.
+ *
+ * Lo usan el hilo receptor del directorio y el canal TCP (CatalogBulkServer),
+ * así que sus métodos están sincronizados.
+ */
+public class RateLimiter {
+
+	public static final int MAX_SOURCES = 4096;
+	/**
+	 * Solicitudes por segundo de cada dirección. Los cubos admiten una ráfaga
+	 * de BURST_SECONDS segundos de solicitudes.
+	 */
+	public static final double CHEAP_PER_SECOND = 500;
+	public static final double EXPENSIVE_PER_SECOND = 20;
+	public static final int BURST_SECONDS = 5;
+	/**
+	 * SLOW_DOWN por segundo (y ráfaga) que se envían a una dirección: el resto
+	 * de solicitudes por encima del límite se descartan sin respuesta, para no
+	 * reflejar una inundación hacia una dirección falsificada
+	 */
+	public static final double SLOW_DOWNS_PER_SECOND = 10;
+
+	/**
+	 * Qué hacer con una solicitud
+	 */
+	public enum Verdict {
+		/** Dentro del límite: se procesa */
+		ACCEPT,
+		/** Por encima del límite: se responde con SLOW_DOWN */
+		SLOW_DOWN,
+		/** Por encima del límite: se descarta */
+		DROP
+	}
+
+	private static final class Buckets {
+		double cheap;
+		double expensive;
+		double slowDowns;
+		long refilledAt;
+
+		Buckets(double cheap, double expensive, long now) {
+			this.cheap = cheap;
+			this.expensive = expensive;
+			this.slowDowns = SLOW_DOWNS_PER_SECOND;
+			this.refilledAt = now;
+		}
+	}
+
+	private final double cheapPerMilli;
+	private final double cheapBurst;
+	private final double expensivePerMilli;
+	private final double expensiveBurst;
+	// En orden de acceso: la primera entrada es la usada hace más tiempo
+	private final LinkedHashMap<InetAddress, Buckets> sources = new LinkedHashMap<InetAddress, Buckets>(256, 0.75f,
+			true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<InetAddress, Buckets> eldest) {
+			return size() > MAX_SOURCES;
+		}
+	};
+	private long limited;
+	private long dropped;
+
+	public RateLimiter() {
+		this(CHEAP_PER_SECOND, EXPENSIVE_PER_SECOND);
+	}
+
+	public RateLimiter(double cheapPerSecond, double expensivePerSecond) {
+		if (cheapPerSecond <= 0 || expensivePerSecond <= 0) {
+			throw new IllegalArgumentException("Rates must be positive");
+		}
+		this.cheapPerMilli = cheapPerSecond / 1000;
+		this.cheapBurst = Math.max(1, cheapPerSecond * BURST_SECONDS);
+		this.expensivePerMilli = expensivePerSecond / 1000;
+		this.expensiveBurst = Math.max(1, expensivePerSecond * BURST_SECONDS);
+	}
+
+	/**
+	 * Indica si el opcode (sin marcas de versión) puede tener una respuesta
+	 * grande. Un BATCH es barato: cada una de sus solicitudes se cobra aparte
+	 * (ver charge).
+	 */
+	public static boolean isExpensive(byte opcode) {
+		switch (opcode) {
+		case DirMessageOps.OPCODE_GETUSERS:
+		case DirMessageOps.OPCODE_GETFILES:
+		case DirMessageOps.OPCODE_GETFILES_SINCE:
+		case DirMessageOps.OPCODE_CATALOG_RESYNC:
+		case DirMessageOps.OPCODE_SUBSCRIBE:
+		case DirMessageOps.OPCODE_SEARCH_NAME:
+		case DirMessageOps.OPCODE_SEARCH_NAME_PREFIX:
+		case DirMessageOps.OPCODE_SEARCH_HASH_PREFIX:
+		case DirMessageOps.OPCODE_LOOKUP_HASH:
+		case DirMessageOps.OPCODE_GET_TOP_FILES:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Método para decidir si se atiende una solicitud de "source", gastando
+	 * una ficha del cubo que le corresponde
+	 */
+	public synchronized Verdict admit(InetAddress source, byte opcode, long now) {
+		Buckets b = refill(source, now);
+		if (take(b, opcode)) {
+			return Verdict.ACCEPT;
+		}
+		limited++;
+		if (b.slowDowns >= 1) {
+			b.slowDowns--;
+			return Verdict.SLOW_DOWN;
+		}
+		dropped++;
+		return Verdict.DROP;
+	}
+
+	/**
+	 * Método para cobrar una de las solicitudes de un BATCH ya admitido, que
+	 * gasta sus fichas igual que si llegara sola. Si no las hay no se envía
+	 * SLOW_DOWN: la solicitud se queda sin respuesta en el lote.
+	 *
+	 * @return true si la solicitud está dentro del límite
+	 */
+	public synchronized boolean charge(InetAddress source, byte opcode, long now) {
+		if (take(refill(source, now), opcode)) {
+			return true;
+		}
+		limited++;
+		return false;
+	}
+
+	/**
+	 * Cubos de "source", rellenados con las fichas ganadas hasta "now"
+	 */
+	private Buckets refill(InetAddress source, long now) {
+		Buckets b = sources.get(source);
+		if (b == null) {
+			b = new Buckets(cheapBurst, expensiveBurst, now);
+			sources.put(source, b);
+		} else if (now > b.refilledAt) {
+			long elapsed = now - b.refilledAt;
+			b.cheap = Math.min(cheapBurst, b.cheap + elapsed * cheapPerMilli);
+			b.expensive = Math.min(expensiveBurst, b.expensive + elapsed * expensivePerMilli);
+			b.slowDowns = Math.min(SLOW_DOWNS_PER_SECOND, b.slowDowns + elapsed * SLOW_DOWNS_PER_SECOND / 1000);
+			b.refilledAt = now;
+		}
+		return b;
+	}
+
+	/**
+	 * Método para gastar las fichas de una solicitud, si las hay. Una
+	 * solicitud cara gasta también una barata: ambos límites la cuentan.
+	 */
+	private boolean take(Buckets b, byte opcode) {
+		boolean expensive = isExpensive(opcode);
+		if (b.cheap >= 1 && (!expensive || b.expensive >= 1)) {
+			b.cheap--;
+			if (expensive) {
+				b.expensive--;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Tiempo (ms) hasta que "source" vuelva a tener una ficha para este tipo de
+	 * solicitud
+	 */
+	public synchronized int retryAfterMillis(InetAddress source, byte opcode) {
+		Buckets b = sources.get(source);
+		if (b == null) {
+			return 0;
+		}
+		double falta = Math.max(1 - b.cheap, 0) / cheapPerMilli;
+		if (isExpensive(opcode)) {
+			falta = Math.max(falta, Math.max(1 - b.expensive, 0) / expensivePerMilli);
+		}
+		return (int) Math.ceil(falta);
+	}
+
+	/**
+	 * Solicitudes rechazadas desde el arranque (con SLOW_DOWN o descartadas)
+	 */
+	public synchronized long getLimited() {
+		return limited;
+	}
+
+	public synchronized String toString() {
+		return limited + " requests over limit (" + dropped + " dropped without reply), " + sources.size()
+				+ " sources tracked";
+	}
+}
@@ -0,0 +1,108 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import es.um.redes.nanoFiles.directory.message.SeedInfo;
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Decide qué fichero debe copiar un peer que se ha ofrecido a replicar
+ * contenido (GET_REPLICATION_TASK), para repartir la carga de los ficheros más
+ * pedidos antes de que su único servidor se sature.
+ *
+ * Sólo se asigna trabajo a servidores ociosos según su último heartbeat, y
+ * sólo ficheros con bastante demanda que tienen menos servidores de los que
+ * les corresponden (uno más por cada DEMAND_PER_REPLICA consultas/descargas,
+ * hasta MAX_REPLICAS). Las asignaciones pendientes cuentan como servidores
+ * durante ASSIGNMENT_MILLIS, para que varios peers no copien a la vez el
+ * mismo fichero; si el peer no lo publica en ese plazo, caduca.
+ */
+final class ReplicationPlanner {
+
+	/**
+	 * Demanda mínima (consultas + descargas recientes) de un fichero para
+	 * replicarlo
+	 */
+	static final int HOT_MIN_DEMAND = 20;
+	static final int DEMAND_PER_REPLICA = 50;
+	static final int MAX_REPLICAS = 8;
+	static final long ASSIGNMENT_MILLIS = 120000;
+	/**
+	 * Carga máxima de un peer para considerarlo ocioso
+	 */
+	static final int IDLE_MAX_TRANSFERS = 1;
+	static final int IDLE_MIN_FREE_KBPS = 1000;
+
+	private static final class Assignment {
+		final String hash;
+		final long deadline;
+
+		Assignment(String hash, long deadline) {
+			this.hash = hash;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Asignación pendiente de cada peer (como mucho una)
+	 */
+	private final Map<String, Assignment> pending = new HashMap<String, Assignment>();
+
+	/**
+	 * Método para elegir el fichero que debe replicar un peer
+	 *
+	 * @param hot Los ficheros más pedidos, de más a menos demanda
+	 * @return El fichero, o null si el peer no está ocioso o no hace falta
+	 *         replicar nada
+	 */
+	synchronized FileInfo assign(String nick, DirectoryState snapshot, PeerLoadTable.Load load,
+			List<PopularityTracker.Entry> hot, long now) {
+		if (!snapshot.isServer(nick) || !isIdle(load, now)) {
+			return null;
+		}
+		// Las caducadas y las que ya se han publicado dejan de contar
+		for (Iterator<Map.Entry<String, Assignment>> it = pending.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Assignment> e = it.next();
+			if (e.getValue().deadline <= now || snapshot.getSeeders(e.getValue().hash).contains(e.getKey())) {
+				it.remove();
+			}
+		}
+		Assignment previous = pending.get(nick);
+		if (previous != null) {
+			// Se repite la asignación (la respuesta anterior pudo perderse)
+			return snapshot.getFile(previous.hash);
+		}
+		for (PopularityTracker.Entry e : hot) {
+			int demand = e.lookups + e.downloads;
+			if (demand < HOT_MIN_DEMAND) {
+				break;
+			}
+			FileInfo f = snapshot.getFile(e.hash);
+			Set<String> seeders = snapshot.getSeeders(e.hash);
+			if (f == null || seeders.contains(nick)) {
+				continue;
+			}
+			int wanted = Math.min(MAX_REPLICAS, 1 + demand / DEMAND_PER_REPLICA);
+			int assigned = 0;
+			for (Assignment a : pending.values()) {
+				if (a.hash.equals(e.hash)) {
+					assigned++;
+				}
+			}
+			if (seeders.size() + assigned < wanted) {
+				pending.put(nick, new Assignment(e.hash, now + ASSIGNMENT_MILLIS));
+				return f;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isIdle(PeerLoadTable.Load load, long now) {
+		return now - load.reportedAt <= SeedInfo.FRESH_MILLIS && load.activeTransfers <= IDLE_MAX_TRANSFERS
+				&& load.freeUploadKbps >= IDLE_MIN_FREE_KBPS;
+	}
+}
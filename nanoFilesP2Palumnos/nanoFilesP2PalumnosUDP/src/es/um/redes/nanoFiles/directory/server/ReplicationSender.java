@@ -0,0 +1,136 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import es.um.redes.nanoFiles.directory.message.DirMessage;
+
+/**
+ * Reenvío fiable de las modificaciones a los demás nodos del clúster. Cada
+ * nodo tiene su cola de REPLICATE: se envía una cada vez, con su propio id, y
+ * la siguiente no sale hasta que el nodo confirma la anterior con
+ * REPLICATE_OK, así que las réplicas aplican las modificaciones en el mismo
+ * orden que este nodo. Sin confirmación, la REPLICATE se retransmite con el
+ * mismo id (el nodo la reconoce en su ResponseCache y no la aplica dos
+ * veces), cada vez más espaciada mientras el nodo no responda.
+ *
+ * Si un nodo caído acumula más de MAX_QUEUED modificaciones se descartan las
+ * más antiguas: al volver tendrá que recuperarlas de los peers (heartbeats y
+ * nuevas publicaciones).
+ */
+public class ReplicationSender {
+	/**
+	 * Plazo (ms) inicial y máximo para retransmitir una REPLICATE sin confirmar
+	 */
+	public static final long RETRY_MILLIS = 200;
+	public static final long MAX_RETRY_MILLIS = 5000;
+	/**
+	 * Modificaciones pendientes de cada nodo
+	 */
+	public static final int MAX_QUEUED = 4096;
+
+	private static class Link {
+		final ArrayDeque<byte[]> queue = new ArrayDeque<byte[]>();
+		// Id de la REPLICATE en curso (la primera de la cola)
+		int requestId;
+		long retryAt;
+		long backoff = RETRY_MILLIS;
+	}
+
+	private final HashMap<InetSocketAddress, Link> links = new HashMap<InetSocketAddress, Link>();
+	private final SingleFlight.Delivery delivery;
+	private int nextRequestId = new SecureRandom().nextInt();
+	private long sent;
+	private long retransmitted;
+	private long dropped;
+
+	public ReplicationSender(SingleFlight.Delivery delivery) {
+		this.delivery = delivery;
+	}
+
+	/**
+	 * Método para encolar una REPLICATE para un nodo. Sale en seguida si el
+	 * nodo no tiene otra sin confirmar.
+	 */
+	public synchronized void send(InetSocketAddress node, byte[] replicate, long now) throws IOException {
+		Link link = links.computeIfAbsent(node, n -> new Link());
+		if (link.queue.size() >= MAX_QUEUED) {
+			link.queue.poll();
+			dropped++;
+			if (!link.queue.isEmpty()) {
+				transmit(node, link, now, true);
+			}
+		}
+		link.queue.add(replicate);
+		if (link.queue.size() == 1) {
+			transmit(node, link, now, true);
+		}
+	}
+
+	/**
+	 * Método para anotar la confirmación de un nodo y enviarle la siguiente
+	 * REPLICATE de su cola. Las confirmaciones duplicadas o de otra REPLICATE
+	 * se ignoran.
+	 */
+	public synchronized void acknowledge(InetSocketAddress node, int requestId, long now) throws IOException {
+		Link link = links.get(node);
+		if (link == null || link.queue.isEmpty() || link.requestId != requestId) {
+			return;
+		}
+		link.queue.poll();
+		link.backoff = RETRY_MILLIS;
+		if (!link.queue.isEmpty()) {
+			transmit(node, link, now, true);
+		}
+	}
+
+	/**
+	 * Método para retransmitir las REPLICATE cuyo plazo ha vencido
+	 */
+	public synchronized void retransmit(long now) throws IOException {
+		for (Map.Entry<InetSocketAddress, Link> e : links.entrySet()) {
+			Link link = e.getValue();
+			if (!link.queue.isEmpty() && now >= link.retryAt) {
+				link.backoff = Math.min(MAX_RETRY_MILLIS, link.backoff * 2);
+				retransmitted++;
+				transmit(e.getKey(), link, now, false);
+			}
+		}
+	}
+
+	private void transmit(InetSocketAddress node, Link link, long now, boolean first) throws IOException {
+		if (first) {
+			if (++nextRequestId == DirMessage.NO_REQUEST_ID) {
+				nextRequestId++;
+			}
+			link.requestId = nextRequestId;
+			sent++;
+		}
+		link.retryAt = now + link.backoff;
+		delivery.deliver(link.queue.peek(), new Requester(node, link.requestId));
+	}
+
+	public synchronized long getSent() {
+		return sent;
+	}
+
+	/**
+	 * Modificaciones que esperan a ser confirmadas, en todos los nodos
+	 */
+	public synchronized int getPending() {
+		int pending = 0;
+		for (Link link : links.values()) {
+			pending += link.queue.size();
+		}
+		return pending;
+	}
+
+	public synchronized String toString() {
+		return String.format("sent=%d retransmitted=%d pending=%d dropped=%d", sent, retransmitted, getPending(),
+				dropped);
+	}
+}
@@ -0,0 +1,108 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import es.um.redes.nanoFiles.directory.message.DirMessage;
+import es.um.redes.nanoFiles.directory.message.DirMessageV2;
+
+/**
+ * Destinatario de una respuesta del directorio: la dirección del cliente y el
+ * id de la solicitud a la que se responde, que el cliente usa para saber a
+ * cuál de sus solicitudes en curso corresponde. Un cliente que retransmite
+ * una solicitud repite su id, así que dos Requester iguales son la misma
+ * solicitud.
+ *
+ * Las solicitudes de un BATCH se responden a un Requester con la posición de
+ * la solicitud en el lote: su respuesta no se envía, sino que se añade a la
+ * respuesta del lote.
+ *
+ * La respuesta se envía en el formato (v1 o v2) en que llegó la solicitud.
+ */
+public final class Requester {
+
+	private final InetSocketAddress socketAddress;
+	private final int requestId;
+	private final int version;
+	private final BatchResponse batch;
+	private final int slot;
+
+	public Requester(InetSocketAddress socketAddress, int requestId) {
+		this(socketAddress, requestId, DirMessageV2.VERSION_1);
+	}
+
+	public Requester(InetSocketAddress socketAddress, int requestId, int version) {
+		this(socketAddress, requestId, version, null, -1);
+	}
+
+	private Requester(InetSocketAddress socketAddress, int requestId, int version, BatchResponse batch, int slot) {
+		this.socketAddress = socketAddress;
+		this.requestId = requestId;
+		this.version = version;
+		this.batch = batch;
+		this.slot = slot;
+	}
+
+	/**
+	 * Destinatario de la solicitud número "slot" de un lote
+	 */
+	Requester inBatch(BatchResponse batch, int slot) {
+		return new Requester(socketAddress, requestId, version, batch, slot);
+	}
+
+	/**
+	 * Destinatario de un mensaje que no responde a ninguna solicitud (cambios
+	 * del catálogo, reenvíos entre nodos)
+	 */
+	public static Requester unsolicited(InetSocketAddress socketAddress) {
+		return new Requester(socketAddress, DirMessage.NO_REQUEST_ID);
+	}
+
+	public InetSocketAddress getSocketAddress() {
+		return socketAddress;
+	}
+
+	public InetAddress getAddress() {
+		return socketAddress.getAddress();
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * Formato de la solicitud y de su respuesta (DirMessageV2.VERSION_1 o
+	 * VERSION_2)
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Lote al que pertenece la solicitud, o null si llegó sola
+	 */
+	BatchResponse getBatch() {
+		return batch;
+	}
+
+	int getSlot() {
+		return slot;
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof Requester)) {
+			return false;
+		}
+		Requester other = (Requester) o;
+		return requestId == other.requestId && slot == other.slot && socketAddress.equals(other.socketAddress);
+	}
+
+	public int hashCode() {
+		return 31 * (31 * socketAddress.hashCode() + requestId) + slot;
+	}
+
+	public String toString() {
+		String id = socketAddress + "#" + Integer.toUnsignedString(requestId, 16);
+		return batch == null ? id : id + "/" + slot;
+	}
+}
@@ -0,0 +1,193 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import es.um.redes.nanoFiles.directory.message.DirMessageOps;
+
+/**
+ * Respuestas enviadas recientemente, por cliente e id de solicitud. Si se
+ * pierde una respuesta el cliente retransmite la solicitud con el mismo id;
+ * el directorio le reenvía entonces la respuesta original en lugar de volver
+ * a ejecutarla (un REGISTER_USERNAME repetido recibiría FAIL porque el primero
+ * ya registró el nick, y un SERVE_FILES repetido rehace todo el trabajo).
+ * Sólo se guardan las de las operaciones que cambian el estado (ver
+ * isCached): una lectura repetida se vuelve a responder sin problema, y sus
+ * respuestas (las listas, sobre todo) desplazarían a las que sí importan.
+ *
+ * Una solicitud se anota en cuanto empieza a procesarse, antes de tener
+ * respuesta: las que esperan al fsync o a un hilo lector pueden tardar más
+ * que el plazo de retransmisión del cliente, y sus retransmisiones se
+ * descartan porque la respuesta original ya está en camino.
+ *
+ * Las entradas caducan pasado TTL_MILLIS (más que todos los reintentos de un
+ * cliente) y, si se superan MAX_ENTRIES o MAX_BYTES, se descartan las más
+ * antiguas.
+ */
+public class ResponseCache {
+	/**
+	 * Tiempo (ms) que se guarda cada respuesta
+	 */
+	public static final long TTL_MILLIS = 30000;
+	public static final int MAX_ENTRIES = 8192;
+	/**
+	 * Tamaño máximo (bytes) del total de respuestas guardadas
+	 */
+	public static final long MAX_BYTES = 8 * 1024 * 1024;
+
+	/**
+	 * Resultado de consultar una solicitud recibida
+	 */
+	public enum Lookup {
+		/** Solicitud nueva: hay que procesarla */
+		NEW,
+		/** Retransmisión de una solicitud que se está procesando */
+		IN_PROGRESS,
+		/** Retransmisión de una solicitud ya respondida */
+		ANSWERED
+	}
+
+	private static class Entry {
+		final long created;
+		// null mientras la solicitud se está procesando
+		byte[] response;
+
+		Entry(long created) {
+			this.created = created;
+		}
+	}
+
+	// En orden de inserción: la primera entrada es siempre la más antigua
+	private final LinkedHashMap<Requester, Entry> entries = new LinkedHashMap<Requester, Entry>();
+	private long bytes;
+	private long replayed;
+	private long dropped;
+
+	/**
+	 * Indica si las respuestas a un tipo de solicitud se guardan: las que no se
+	 * pueden repetir sin efectos (o sin repetir el trabajo). Un BATCH se guarda
+	 * siempre, porque puede llevar alguna de ellas.
+	 */
+	public static boolean isCached(byte opcode) {
+		switch (opcode) {
+		case DirMessageOps.OPCODE_REGISTER_USERNAME:
+		case DirMessageOps.OPCODE_SERVE_FILES:
+		case DirMessageOps.OPCODE_SERVE_SUMMARY:
+		case DirMessageOps.OPCODE_SERVE_FILES_STOP:
+		case DirMessageOps.OPCODE_LOGOFF:
+		case DirMessageOps.OPCODE_SUBSCRIBE:
+		case DirMessageOps.OPCODE_GET_REPLICATION_TASK:
+		case DirMessageOps.OPCODE_BATCH:
+		case DirMessageOps.OPCODE_REPLICATE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Método para consultar una solicitud recibida. Si es nueva, se anota como
+	 * en curso; si ya se respondió, su respuesta se obtiene con getResponse.
+	 */
+	public synchronized Lookup begin(Requester clientAddr, long now) {
+		expire(now);
+		Entry entry = entries.get(clientAddr);
+		if (entry == null) {
+			entries.put(clientAddr, new Entry(now));
+			evict();
+			return Lookup.NEW;
+		}
+		if (entry.response == null) {
+			dropped++;
+			return Lookup.IN_PROGRESS;
+		}
+		replayed++;
+		return Lookup.ANSWERED;
+	}
+
+	/**
+	 * Respuesta guardada para una solicitud, o null si no la hay
+	 */
+	public synchronized byte[] getResponse(Requester clientAddr) {
+		Entry entry = entries.get(clientAddr);
+		return entry == null ? null : entry.response;
+	}
+
+	/**
+	 * Método para guardar la respuesta enviada a una solicitud anotada con
+	 * begin. Las respuestas a solicitudes que ya no están (caducadas o
+	 * descartadas) no se guardan.
+	 */
+	public synchronized void complete(Requester clientAddr, byte[] response) {
+		Entry entry = entries.get(clientAddr);
+		if (entry == null || entry.response != null) {
+			return;
+		}
+		entry.response = response;
+		bytes += response.length;
+		evict();
+	}
+
+	/**
+	 * Método para olvidar una solicitud en curso que se ha quedado sin
+	 * respuesta (mal formada, o cuyo procesamiento ha fallado): su
+	 * retransmisión se procesará como nueva
+	 */
+	public synchronized void abandon(Requester clientAddr) {
+		Entry entry = entries.get(clientAddr);
+		if (entry != null && entry.response == null) {
+			entries.remove(clientAddr);
+		}
+	}
+
+	private void expire(long now) {
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (now - entry.created < TTL_MILLIS) {
+				break;
+			}
+			remove(it, entry);
+		}
+	}
+
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext() && (entries.size() > MAX_ENTRIES || bytes > MAX_BYTES)) {
+			remove(it, it.next());
+		}
+	}
+
+	private void remove(Iterator<Entry> it, Entry entry) {
+		if (entry.response != null) {
+			bytes -= entry.response.length;
+		}
+		it.remove();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Retransmisiones respondidas con la respuesta guardada
+	 */
+	public synchronized long getReplayed() {
+		return replayed;
+	}
+
+	/**
+	 * Retransmisiones descartadas porque su solicitud estaba en curso
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	public synchronized String toString() {
+		return String.format("entries=%d bytes=%d replayed=%d dropped=%d", entries.size(), bytes, replayed, dropped);
+	}
+}
@@ -0,0 +1,158 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Agrupa solicitudes de lectura idénticas (mismo opcode y parámetros) que
+ * llegan mientras se está calculando su respuesta: sólo la primera lanza el
+ * cálculo y el resultado se envía a todos los clientes que esperaban.
+ */
+public class SingleFlight<K> implements FlightStats {
+
+	/**
+	 * Forma de entregar el resultado a cada cliente en espera
+	 */
+	public interface Delivery {
+		void deliver(byte[] response, Requester clientAddr) throws IOException;
+	}
+
+	/**
+	 * Un cálculo en curso y los clientes que esperan su resultado
+	 */
+	private static class Flight {
+		final long startNanos = System.nanoTime();
+		// Un cliente que retransmite mientras tanto sólo recibe una respuesta
+		final LinkedHashSet<Requester> waiters = new LinkedHashSet<Requester>();
+	}
+
+	/**
+	 * Forma de avisar a cada cliente en espera de que el cálculo ha fallado
+	 */
+	public interface Failure {
+		void failed(Requester clientAddr);
+	}
+
+	private final HashMap<K, Flight> inFlight = new HashMap<K, Flight>();
+	private final Executor executor;
+	private final Delivery delivery;
+	private final Failure failure;
+
+	/*
+	 * Métricas: número de cálculos lanzados, solicitudes que se han agrupado con
+	 * un cálculo ya en curso, y duración de las ventanas de agrupamiento
+	 */
+	private final AtomicLong flights = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong totalWindowNanos = new AtomicLong();
+	private final AtomicLong lastWindowNanos = new AtomicLong();
+	private final AtomicInteger lastWaiters = new AtomicInteger();
+	private final AtomicInteger maxWaiters = new AtomicInteger();
+
+	public SingleFlight(Executor executor, Delivery delivery, Failure failure) {
+		this.executor = executor;
+		this.delivery = delivery;
+		this.failure = failure;
+	}
+
+	/**
+	 * Solicita el resultado asociado a una clave en nombre de un cliente. Si ya
+	 * hay un cálculo en curso para esa clave, el cliente se añade a sus
+	 * esperas; si no, se lanza "computation" en el executor.
+	 *
+	 * @param key         Identifica la lectura (opcode y parámetros)
+	 * @param clientAddr  Cliente y solicitud a los que enviar el resultado
+	 * @param computation Cálculo de la respuesta codificada
+	 */
+	public void request(K key, Requester clientAddr, Supplier<byte[]> computation) {
+		Flight flight;
+		boolean leader = false;
+		synchronized (inFlight) {
+			flight = inFlight.get(key);
+			if (flight == null) {
+				flight = new Flight();
+				inFlight.put(key, flight);
+				leader = true;
+			}
+			flight.waiters.add(clientAddr);
+		}
+		if (leader) {
+			flights.incrementAndGet();
+			final Flight f = flight;
+			executor.execute(() -> complete(key, f, computation));
+		} else {
+			coalesced.incrementAndGet();
+		}
+	}
+
+	private void complete(K key, Flight flight, Supplier<byte[]> computation) {
+		byte[] response = null;
+		try {
+			response = computation.get();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+		synchronized (inFlight) {
+			if (inFlight.get(key) == flight) {
+				inFlight.remove(key);
+			}
+		}
+		// A partir de aquí nadie puede añadirse a flight.waiters
+		long window = System.nanoTime() - flight.startNanos;
+		int waiters = flight.waiters.size();
+		totalWindowNanos.addAndGet(window);
+		lastWindowNanos.set(window);
+		lastWaiters.set(waiters);
+		maxWaiters.accumulateAndGet(waiters, Math::max);
+		if (response == null) {
+			for (Requester clientAddr : flight.waiters) {
+				failure.failed(clientAddr);
+			}
+			return;
+		}
+		for (Requester clientAddr : flight.waiters) {
+			try {
+				delivery.deliver(response, clientAddr);
+			} catch (IOException | RuntimeException e) {
+				// Un fallo con un cliente no debe dejar sin respuesta a los demás
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public long getFlights() {
+		return flights.get();
+	}
+
+	public long getCoalescedRequests() {
+		return coalesced.get();
+	}
+
+	public int getMaxWaiters() {
+		return maxWaiters.get();
+	}
+
+	public int getLastWaiters() {
+		return lastWaiters.get();
+	}
+
+	public double getLastWindowMillis() {
+		return lastWindowNanos.get() / 1e6;
+	}
+
+	public double getAverageWindowMillis() {
+		long n = flights.get();
+		return n == 0 ? 0 : totalWindowNanos.get() / 1e6 / n;
+	}
+
+	public String toString() {
+		return String.format("flights=%d coalesced=%d lastWaiters=%d maxWaiters=%d lastWindow=%.2fms avgWindow=%.2fms",
+				getFlights(), getCoalescedRequests(), getLastWaiters(), getMaxWaiters(), getLastWindowMillis(),
+				getAverageWindowMillis());
+	}
+}
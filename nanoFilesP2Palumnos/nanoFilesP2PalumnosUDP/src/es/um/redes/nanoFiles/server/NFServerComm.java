@@ -10,6 +10,8 @@ import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import es.um.redes.nanoFiles.client.application.NanoFiles;
 import es.um.redes.nanoFiles.message.PeerMessage;
@@ -23,6 +25,40 @@ public class NFServerComm {
 	
 	private final static double UTFLimit = 32000.0;
 	
+	/**
+	 * Ancho de banda de subida (kbps) que se supone disponible para servir
+	 * ficheros si no se configura otro
+	 */
+	public static final int DEFAULT_UPLOAD_CAPACITY_KBPS = 10000;
+	
+	/*
+	 * Carga del servidor de ficheros, que se comunica al directorio en los
+	 * heartbeats: descargas en curso, bytes enviados en total y ancho de banda
+	 * de subida disponible
+	 */
+	private static final AtomicInteger activeTransfers = new AtomicInteger();
+	private static final AtomicLong bytesSent = new AtomicLong();
+	private static volatile int uploadCapacityKbps = DEFAULT_UPLOAD_CAPACITY_KBPS;
+	
+	public static int getActiveTransfers() {
+		return activeTransfers.get();
+	}
+	
+	/**
+	 * Bytes de ficheros enviados desde que arrancó el peer
+	 */
+	public static long getBytesSent() {
+		return bytesSent.get();
+	}
+	
+	public static int getUploadCapacityKbps() {
+		return uploadCapacityKbps;
+	}
+	
+	public static void setUploadCapacityKbps(int kbps) {
+		uploadCapacityKbps = kbps;
+	}
+	
 	public static void serveFilesToClient(Socket socket) {
 		boolean clientConnected = true;
 		// Bucle para atender mensajes del cliente
@@ -63,6 +99,7 @@ public class NFServerComm {
 	
 	private static void processDownloadRequest(String fileHash) {
 		String path = NanoFiles.db.lookupFilePath(fileHash);
+		activeTransfers.incrementAndGet();
 		try{
 			// sacar bytes del fichero
 			File f = new File(path);
@@ -97,6 +134,7 @@ public class NFServerComm {
 				mensaje = new PeerMessage(PeerMessageOps.OP_FILE, encoded, numMensajes-i-1);
 				String respuesta = mensaje.toEncodedString();
 				dos.writeUTF(respuesta);
+				bytesSent.addAndGet(buf.length);
 			}
 		} catch (NullPointerException e) {
 			System.out.println("* NullPointerException found, printing stack trace...");
@@ -110,6 +148,8 @@ public class NFServerComm {
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			activeTransfers.decrementAndGet();
 		}
 	}
 	
@@ -0,0 +1,119 @@
+package es.um.redes.nanoFiles.util;
+
+import java.util.Locale;
+
+/**
+ * Filtro de Bloom sobre hashes de ficheros: resumen compacto de un catálogo
+ * que responde si un hash "puede estar" en él (con una probabilidad acotada de
+ * falso positivo) o si seguro que no está. Su tamaño depende del número de
+ * ficheros y de la tasa de falsos positivos, no de sus nombres.
+ *
+ * Las posiciones de cada hash se obtienen por doble hashing (h1 + i*h2) a
+ * partir de dos hashes de 64 bits de la cadena en minúsculas, así que el
+ * resultado no depende de mayúsculas/minúsculas.
+ *
+ * El filtro sólo se modifica mientras se construye; una vez publicado (o
+ * reconstruido con fromBytes) no se vuelve a modificar y puede consultarse
+ * desde cualquier hilo.
+ */
+public final class BloomFilter {
+
+	private static final int MAX_HASHES = 16;
+
+	private final byte[] bits;
+	private final int numBits;
+	private final int numHashes;
+	private int numEntries;
+
+	private BloomFilter(byte[] bits, int numHashes, int numEntries) {
+		this.bits = bits;
+		this.numBits = bits.length * 8;
+		this.numHashes = numHashes;
+		this.numEntries = numEntries;
+	}
+
+	/**
+	 * Método para crear un filtro vacío dimensionado para "expectedEntries"
+	 * hashes con una tasa de falsos positivos "falsePositiveRate". Si no cabe en
+	 * "maxBytes", se usa ese tamaño y la tasa real será mayor.
+	 */
+	public static BloomFilter create(int expectedEntries, double falsePositiveRate, int maxBytes) {
+		int n = Math.max(1, expectedEntries);
+		// m = -n ln(p) / (ln 2)^2 ; k = (m/n) ln 2
+		double optimalBits = -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+		int numBytes = (int) Math.max(1, Math.min(maxBytes, Math.ceil(optimalBits / 8)));
+		int k = (int) Math.round((numBytes * 8.0 / n) * Math.log(2));
+		return new BloomFilter(new byte[numBytes], Math.max(1, Math.min(MAX_HASHES, k)), 0);
+	}
+
+	/**
+	 * Método para reconstruir un filtro recibido por la red o leído de disco
+	 */
+	public static BloomFilter fromBytes(byte[] bits, int numHashes, int numEntries) {
+		if (bits.length == 0 || numHashes < 1 || numHashes > MAX_HASHES) {
+			throw new IllegalArgumentException("Invalid Bloom filter (" + bits.length + " bytes, " + numHashes + " hashes)");
+		}
+		return new BloomFilter(bits, numHashes, numEntries);
+	}
+
+	public void add(String hash) {
+		long h1 = hash1(hash);
+		long h2 = Hashing.hash2(h1);
+		for (int i = 0; i < numHashes; i++) {
+			int bit = position(h1, h2, i);
+			bits[bit >>> 3] |= (byte) (1 << (bit & 7));
+		}
+		numEntries++;
+	}
+
+	/**
+	 * @return false si el hash seguro que no está; true si probablemente está
+	 */
+	public boolean mightContain(String hash) {
+		long h1 = hash1(hash);
+		long h2 = Hashing.hash2(h1);
+		for (int i = 0; i < numHashes; i++) {
+			int bit = position(h1, h2, i);
+			if ((bits[bit >>> 3] & (1 << (bit & 7))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Los bits del filtro (el array interno, que no debe modificarse)
+	 */
+	public byte[] getBits() {
+		return bits;
+	}
+
+	public int getNumHashes() {
+		return numHashes;
+	}
+
+	/**
+	 * Número de hashes añadidos al filtro
+	 */
+	public int getNumEntries() {
+		return numEntries;
+	}
+
+	/**
+	 * Tasa de falsos positivos esperada con los hashes añadidos
+	 */
+	public double getFalsePositiveRate() {
+		return Math.pow(1 - Math.exp(-(double) numHashes * numEntries / numBits), numHashes);
+	}
+
+	private int position(long h1, long h2, int i) {
+		return (int) Long.remainderUnsigned(h1 + i * h2, numBits);
+	}
+
+	/**
+	 * Primer hash, de la cadena en minúsculas
+	 */
+	private static long hash1(String hash) {
+		return Hashing.hash1(hash.toLowerCase(Locale.ROOT));
+	}
+}
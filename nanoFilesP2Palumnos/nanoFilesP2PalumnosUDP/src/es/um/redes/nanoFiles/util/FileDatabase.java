@@ -2,6 +2,7 @@ package es.um.redes.nanoFiles.util;
 
 import java.io.File;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class FileDatabase {
 
@@ -12,7 +13,8 @@ public class FileDatabase {
 		if (!theDir.exists()){
 		    theDir.mkdirs();
 		}
-		this.files = FileInfo.loadFileMapFromFolder(new File(sharedFolder));
+		// Los ficheros replicados se añaden mientras el servidor atiende descargas
+		this.files = new ConcurrentHashMap<String, FileInfo>(FileInfo.loadFileMapFromFolder(new File(sharedFolder)));
 		if (files.size() == 0) {
 			System.err.println("*WARNING: No files found in folder "+sharedFolder);
 		}
@@ -27,6 +29,14 @@ public class FileDatabase {
 		return fileinfoarray;
 	}
 
+	/**
+	 * Método para añadir un fichero que se acaba de guardar en la carpeta
+	 * compartida (por ejemplo, una réplica descargada de otro peer)
+	 */
+	public void addFile(FileInfo file) {
+		files.put(file.getHash(), file);
+	}
+
 	public String lookupFilePath(String fileHash) {
 		FileInfo f = files.get(fileHash);
 		if (f != null) {
@@ -0,0 +1,42 @@
+package es.um.redes.nanoFiles.util;
+
+/**
+ * Funciones hash de 64 bits para las estructuras probabilísticas (filtro de
+ * Bloom, Count-Min Sketch), que calculan las k posiciones de una clave por
+ * doble hashing (h1 + i*h2) a partir de hash1 y hash2. No son criptográficas.
+ */
+public final class Hashing {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private Hashing() {
+	}
+
+	/**
+	 * FNV-1a de 64 bits de los caracteres de "s" (en ASCII, igual que el de
+	 * sus bytes)
+	 */
+	public static long hash1(CharSequence s) {
+		long h = FNV_OFFSET;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * Segundo hash, derivado del primero con el mezclador final de MurmurHash3
+	 * (impar, para que nunca sea 0 y las k posiciones no coincidan todas)
+	 */
+	public static long hash2(long h1) {
+		long h = h1 ^ 0x9e3779b97f4a7c15L;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h | 1;
+	}
+}
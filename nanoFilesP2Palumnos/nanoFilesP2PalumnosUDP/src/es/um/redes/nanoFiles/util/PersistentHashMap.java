@@ -0,0 +1,386 @@
+package es.um.redes.nanoFiles.util;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.function.BiConsumer;
+
+/**
+ * Mapa inmutable y persistente implementado como un trie de hashes (HAMT).
+ * Las operaciones plus/minus devuelven un mapa nuevo que comparte con el
+ * original todos los nodos salvo los del camino modificado, de forma que cada
+ * modificación copia O(log32 n) nodos en lugar del mapa completo. Al ser
+ * inmutable, puede leerse desde cualquier hilo sin sincronización.
+ */
+public final class PersistentHashMap<K, V> {
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	@SuppressWarnings("rawtypes")
+	private static final PersistentHashMap EMPTY = new PersistentHashMap<Object, Object>(null, 0);
+
+	/**
+	 * Reconoce la clave buscada entre las del mapa, para buscar una clave sin
+	 * construirla (por ejemplo, un nick que aún está en el datagrama recibido)
+	 */
+	public interface KeyMatcher {
+		boolean matches(Object key);
+	}
+
+	/**
+	 * Hoja del trie: una entrada clave/valor
+	 */
+	private static final class Leaf {
+		final int hash;
+		final Object key;
+		final Object value;
+
+		Leaf(int hash, Object key, Object value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Nodo interno: un bitmap indica qué posiciones (5 bits del hash) están
+	 * ocupadas, y "children" sólo guarda las ocupadas (Leaf o nodo hijo)
+	 */
+	private static final class BitmapNode {
+		final int bitmap;
+		final Object[] children;
+
+		BitmapNode(int bitmap, Object[] children) {
+			this.bitmap = bitmap;
+			this.children = children;
+		}
+	}
+
+	/**
+	 * Nodo para claves distintas con exactamente el mismo hash
+	 */
+	private static final class CollisionNode {
+		final int hash;
+		final Leaf[] leaves;
+
+		CollisionNode(int hash, Leaf[] leaves) {
+			this.hash = hash;
+			this.leaves = leaves;
+		}
+	}
+
+	private final Object root; // null, Leaf, BitmapNode o CollisionNode
+	private final int size;
+
+	private PersistentHashMap(Object root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentHashMap<K, V> empty() {
+		return (PersistentHashMap<K, V>) EMPTY;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(Object key) {
+		return find(root, hash(key), 0, key) != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		Leaf leaf = find(root, hash(key), 0, key);
+		return leaf == null ? null : (V) leaf.value;
+	}
+
+	/**
+	 * Método para buscar el valor de la clave que reconoce "matcher"
+	 *
+	 * @param keyHash El hashCode() de la clave buscada
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int keyHash, KeyMatcher matcher) {
+		int hash = keyHash ^ (keyHash >>> 16);
+		Object node = root;
+		int shift = 0;
+		while (node instanceof BitmapNode) {
+			BitmapNode bn = (BitmapNode) node;
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((bn.bitmap & bit) == 0) {
+				return null;
+			}
+			node = bn.children[Integer.bitCount(bn.bitmap & (bit - 1))];
+			shift += BITS;
+		}
+		if (node instanceof Leaf) {
+			Leaf leaf = (Leaf) node;
+			return (leaf.hash == hash && matcher.matches(leaf.key)) ? (V) leaf.value : null;
+		}
+		if (node instanceof CollisionNode && ((CollisionNode) node).hash == hash) {
+			for (Leaf leaf : ((CollisionNode) node).leaves) {
+				if (matcher.matches(leaf.key)) {
+					return (V) leaf.value;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Devuelve un mapa con la asociación key -> value añadida (o reemplazada)
+	 */
+	public PersistentHashMap<K, V> plus(K key, V value) {
+		int[] added = new int[1];
+		Object newRoot = put(root, 0, new Leaf(hash(key), key, value), added);
+		if (newRoot == root) {
+			return this;
+		}
+		return new PersistentHashMap<K, V>(newRoot, size + added[0]);
+	}
+
+	/**
+	 * Devuelve un mapa sin la clave indicada
+	 */
+	public PersistentHashMap<K, V> minus(Object key) {
+		if (root == null) {
+			return this;
+		}
+		Object newRoot = remove(root, 0, hash(key), key);
+		if (newRoot == root) {
+			return this;
+		}
+		return new PersistentHashMap<K, V>(newRoot, size - 1);
+	}
+
+	/**
+	 * Recorre todas las entradas del mapa
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(BiConsumer<? super K, ? super V> action) {
+		forEach(root, (BiConsumer<Object, Object>) action);
+	}
+
+	/**
+	 * Conjunto (de sólo lectura) con las claves del mapa. La pertenencia se
+	 * consulta directamente en el trie.
+	 */
+	public java.util.Set<K> keySet() {
+		final ArrayList<K> keys = new ArrayList<K>(size);
+		forEach((k, v) -> keys.add(k));
+		return new AbstractSet<K>() {
+			public Iterator<K> iterator() {
+				return java.util.Collections.unmodifiableList(keys).iterator();
+			}
+
+			public int size() {
+				return keys.size();
+			}
+
+			public boolean contains(Object o) {
+				return containsKey(o);
+			}
+		};
+	}
+
+	/**
+	 * Lista con los valores del mapa
+	 */
+	public ArrayList<V> values() {
+		final ArrayList<V> values = new ArrayList<V>(size);
+		forEach((k, v) -> values.add(v));
+		return values;
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		// Dispersamos los bits altos hacia los bajos, que son los que indexan la raíz
+		return h ^ (h >>> 16);
+	}
+
+	private static Leaf find(Object node, int hash, int shift, Object key) {
+		while (node != null) {
+			if (node instanceof Leaf) {
+				Leaf leaf = (Leaf) node;
+				return (leaf.hash == hash && leaf.key.equals(key)) ? leaf : null;
+			} else if (node instanceof BitmapNode) {
+				BitmapNode bn = (BitmapNode) node;
+				int bit = 1 << ((hash >>> shift) & MASK);
+				if ((bn.bitmap & bit) == 0) {
+					return null;
+				}
+				node = bn.children[Integer.bitCount(bn.bitmap & (bit - 1))];
+				shift += BITS;
+			} else {
+				CollisionNode cn = (CollisionNode) node;
+				if (cn.hash != hash) {
+					return null;
+				}
+				for (Leaf leaf : cn.leaves) {
+					if (leaf.key.equals(key)) {
+						return leaf;
+					}
+				}
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static Object put(Object node, int shift, Leaf leaf, int[] added) {
+		if (node == null) {
+			added[0] = 1;
+			return leaf;
+		}
+		if (node instanceof Leaf) {
+			Leaf existing = (Leaf) node;
+			if (existing.hash == leaf.hash && existing.key.equals(leaf.key)) {
+				return existing.value == leaf.value ? existing : leaf;
+			}
+			added[0] = 1;
+			return merge(shift, existing, leaf);
+		}
+		if (node instanceof CollisionNode) {
+			CollisionNode cn = (CollisionNode) node;
+			if (cn.hash != leaf.hash) {
+				// Se separa en un nodo bitmap en el nivel actual
+				BitmapNode bn = new BitmapNode(1 << ((cn.hash >>> shift) & MASK), new Object[] { cn });
+				return put(bn, shift, leaf, added);
+			}
+			for (int i = 0; i < cn.leaves.length; i++) {
+				if (cn.leaves[i].key.equals(leaf.key)) {
+					if (cn.leaves[i].value == leaf.value) {
+						return cn;
+					}
+					Leaf[] leaves = cn.leaves.clone();
+					leaves[i] = leaf;
+					return new CollisionNode(cn.hash, leaves);
+				}
+			}
+			Leaf[] leaves = java.util.Arrays.copyOf(cn.leaves, cn.leaves.length + 1);
+			leaves[cn.leaves.length] = leaf;
+			added[0] = 1;
+			return new CollisionNode(cn.hash, leaves);
+		}
+		BitmapNode bn = (BitmapNode) node;
+		int bit = 1 << ((leaf.hash >>> shift) & MASK);
+		int idx = Integer.bitCount(bn.bitmap & (bit - 1));
+		if ((bn.bitmap & bit) == 0) {
+			Object[] children = new Object[bn.children.length + 1];
+			System.arraycopy(bn.children, 0, children, 0, idx);
+			children[idx] = leaf;
+			System.arraycopy(bn.children, idx, children, idx + 1, bn.children.length - idx);
+			added[0] = 1;
+			return new BitmapNode(bn.bitmap | bit, children);
+		}
+		Object child = bn.children[idx];
+		Object newChild = put(child, shift + BITS, leaf, added);
+		if (newChild == child) {
+			return bn;
+		}
+		Object[] children = bn.children.clone();
+		children[idx] = newChild;
+		return new BitmapNode(bn.bitmap, children);
+	}
+
+	/**
+	 * Crea el subárbol que contiene dos hojas con claves distintas
+	 */
+	private static Object merge(int shift, Leaf a, Leaf b) {
+		if (a.hash == b.hash) {
+			return new CollisionNode(a.hash, new Leaf[] { a, b });
+		}
+		int fragA = (a.hash >>> shift) & MASK;
+		int fragB = (b.hash >>> shift) & MASK;
+		if (fragA == fragB) {
+			// Los hashes difieren, así que acaban separándose antes de agotar los 32 bits
+			return new BitmapNode(1 << fragA, new Object[] { merge(shift + BITS, a, b) });
+		}
+		Object[] children = fragA < fragB ? new Object[] { a, b } : new Object[] { b, a };
+		return new BitmapNode((1 << fragA) | (1 << fragB), children);
+	}
+
+	/**
+	 * Elimina la clave del subárbol. Devuelve el mismo nodo si no estaba, null si
+	 * el subárbol queda vacío, o una hoja si sólo queda una (para que el padre la
+	 * guarde directamente y el trie no crezca en profundidad innecesariamente)
+	 */
+	private static Object remove(Object node, int shift, int hash, Object key) {
+		if (node instanceof Leaf) {
+			Leaf leaf = (Leaf) node;
+			return (leaf.hash == hash && leaf.key.equals(key)) ? null : leaf;
+		}
+		if (node instanceof CollisionNode) {
+			CollisionNode cn = (CollisionNode) node;
+			if (cn.hash != hash) {
+				return cn;
+			}
+			for (int i = 0; i < cn.leaves.length; i++) {
+				if (cn.leaves[i].key.equals(key)) {
+					if (cn.leaves.length == 2) {
+						return cn.leaves[1 - i];
+					}
+					Leaf[] leaves = new Leaf[cn.leaves.length - 1];
+					System.arraycopy(cn.leaves, 0, leaves, 0, i);
+					System.arraycopy(cn.leaves, i + 1, leaves, i, cn.leaves.length - i - 1);
+					return new CollisionNode(cn.hash, leaves);
+				}
+			}
+			return cn;
+		}
+		BitmapNode bn = (BitmapNode) node;
+		int bit = 1 << ((hash >>> shift) & MASK);
+		if ((bn.bitmap & bit) == 0) {
+			return bn;
+		}
+		int idx = Integer.bitCount(bn.bitmap & (bit - 1));
+		Object child = bn.children[idx];
+		Object newChild = remove(child, shift + BITS, hash, key);
+		if (newChild == child) {
+			return bn;
+		}
+		if (newChild == null) {
+			if (bn.children.length == 1) {
+				return null;
+			}
+			Object[] children = new Object[bn.children.length - 1];
+			System.arraycopy(bn.children, 0, children, 0, idx);
+			System.arraycopy(bn.children, idx + 1, children, idx, bn.children.length - idx - 1);
+			if (children.length == 1 && children[0] instanceof Leaf) {
+				return children[0];
+			}
+			return new BitmapNode(bn.bitmap & ~bit, children);
+		}
+		if (bn.children.length == 1 && newChild instanceof Leaf) {
+			return newChild;
+		}
+		Object[] children = bn.children.clone();
+		children[idx] = newChild;
+		return new BitmapNode(bn.bitmap, children);
+	}
+
+	private static void forEach(Object node, BiConsumer<Object, Object> action) {
+		if (node == null) {
+			return;
+		}
+		if (node instanceof Leaf) {
+			Leaf leaf = (Leaf) node;
+			action.accept(leaf.key, leaf.value);
+		} else if (node instanceof CollisionNode) {
+			for (Leaf leaf : ((CollisionNode) node).leaves) {
+				action.accept(leaf.key, leaf.value);
+			}
+		} else {
+			for (Object child : ((BitmapNode) node).children) {
+				forEach(child, action);
+			}
+		}
+	}
+}